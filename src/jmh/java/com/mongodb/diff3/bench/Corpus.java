@@ -0,0 +1,78 @@
+package com.mongodb.diff3.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.bson.BsonBinary;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonObjectId;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.types.ObjectId;
+
+/**
+ * Synthetic documents for the benchmarks: an <code>_id</code> of the given type, a few
+ * small fields and a binary payload that pads the document to about the requested size.
+ * Generation is seeded, so every run benchmarks the same corpus.
+ */
+public final class Corpus {
+
+    public enum IdType {
+        OBJECT_ID, INT64, STRING, DOCUMENT
+    }
+
+    private static final BsonDocumentCodec codec = new BsonDocumentCodec();
+    private static final int FIXED_OVERHEAD = 64;
+
+    private Corpus() {
+    }
+
+    public static List<RawBsonDocument> documents(IdType idType, int count, int size, long seed) {
+        Random random = new Random(seed);
+        List<RawBsonDocument> docs = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            docs.add(document(random, id(idType, i), size));
+        }
+        return docs;
+    }
+
+    public static BsonValue id(IdType idType, int i) {
+        switch (idType) {
+            case OBJECT_ID:
+                return new BsonObjectId(new ObjectId(1600000000 + (i >>> 24), i & 0xffffff));
+            case INT64:
+                return new BsonInt64(i);
+            case STRING:
+                return new BsonString(String.format("customer-%012d", i));
+            case DOCUMENT:
+                return new BsonDocument("tenant", new BsonInt32(i % 16)).append("seq", new BsonInt64(i));
+            default:
+                throw new IllegalArgumentException("Unknown id type: " + idType);
+        }
+    }
+
+    /**
+     * Copy of <code>doc</code> with the same <code>_id</code> and size but a different
+     * <code>version</code>, i.e. a document that mismatches it.
+     */
+    public static RawBsonDocument mutate(RawBsonDocument doc) {
+        BsonDocument copy = doc.clone().asDocument();
+        copy.put("version", new BsonInt32(copy.getInt32("version").getValue() + 1));
+        return new RawBsonDocument(copy, codec);
+    }
+
+    private static RawBsonDocument document(Random random, BsonValue id, int size) {
+        byte[] payload = new byte[Math.max(0, size - FIXED_OVERHEAD)];
+        random.nextBytes(payload);
+        BsonDocument doc = new BsonDocument("_id", id)
+                .append("version", new BsonInt32(random.nextInt(1000)))
+                .append("status", new BsonString(random.nextBoolean() ? "active" : "closed"))
+                .append("payload", new BsonBinary(payload));
+        return new RawBsonDocument(doc, codec);
+    }
+}
@@ -0,0 +1,116 @@
+package com.mongodb.diff3.bench;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BsonValue;
+import org.bson.ByteBuf;
+import org.bson.RawBsonDocument;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.diff3.ChunkDef;
+import com.mongodb.diff3.DiffConfiguration;
+import com.mongodb.diff3.DiffResult;
+import com.mongodb.diff3.DiffTask;
+import com.mongodb.diff3.DigestTable;
+import com.mongodb.diff3.DocumentDigest;
+import com.mongodb.model.Namespace;
+import com.mongodb.util.CodecUtils;
+
+/**
+ * Cost of joining the source and dest digests of one chunk (the comparison part of
+ * <code>DiffTask.computeDiff</code>), with the loads replaced by prebuilt tables.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DiffComparisonBenchmark {
+
+    @Param({"10000", "100000"})
+    public int docCount;
+
+    @Param({"OBJECT_ID", "INT64", "STRING", "DOCUMENT"})
+    public Corpus.IdType idType;
+
+    // share of source docs that are changed on dest, and as many again missing from it
+    @Param({"0", "1"})
+    public int failedPercent;
+
+    private PreloadedDiffTask task;
+
+    @Setup
+    public void setup() {
+        List<RawBsonDocument> docs = Corpus.documents(idType, docCount, 512, 42);
+        DigestTable source = new DigestTable(docCount);
+        DigestTable dest = new DigestTable(docCount);
+        Random random = new Random(7);
+        for (RawBsonDocument doc : docs) {
+            put(source, doc);
+            int r = random.nextInt(100);
+            if (r < failedPercent) {
+                put(dest, Corpus.mutate(doc));
+            } else if (r >= 2 * failedPercent) {
+                put(dest, doc);
+            }
+        }
+        task = new PreloadedDiffTask(source, dest);
+    }
+
+    private static void put(DigestTable table, RawBsonDocument doc) {
+        ByteBuf bb = doc.getByteBuffer();
+        byte[] md5 = CodecUtils.md5Into(bb.array(), bb.position(), bb.remaining());
+        table.put(doc, DocumentDigest.high(md5), DocumentDigest.low(md5));
+    }
+
+    @Benchmark
+    public DiffResult compare() {
+        return task.diff();
+    }
+
+    private static class PreloadedDiffTask extends DiffTask {
+        private final DigestTable source;
+        private final DigestTable dest;
+
+        PreloadedDiffTask(DigestTable source, DigestTable dest) {
+            super(new DiffConfiguration(), new Namespace("bench", "coll"), null);
+            this.source = source;
+            this.dest = dest;
+            this.chunkDef = new ChunkDef(namespace, null, null);
+        }
+
+        DiffResult diff() {
+            return computeDiff();
+        }
+
+        @Override
+        protected DigestTable load(Collection<BsonValue> ids, Target target, boolean serverHashed) {
+            return target == Target.SOURCE ? source : dest;
+        }
+
+        @Override
+        protected MongoClient getLoadClient(Target target) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected String unitString() {
+            return "bench";
+        }
+    }
+}
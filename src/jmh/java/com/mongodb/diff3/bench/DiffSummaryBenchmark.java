@@ -0,0 +1,95 @@
+package com.mongodb.diff3.bench;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BsonDocument;
+import org.bson.BsonInt64;
+import org.bson.BsonValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mongodb.diff3.ChunkDef;
+import com.mongodb.diff3.DiffResult;
+import com.mongodb.diff3.DiffSummary;
+import com.mongodb.diff3.DocumentDigest;
+import com.mongodb.model.Namespace;
+
+/**
+ * Cost of recording chunk results in a <code>DiffSummary</code> (without a status
+ * database) while a reporter formats the progress summary, as during a run.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DiffSummaryBenchmark {
+
+    private static final int CHUNKS = 4096;
+
+    // share of results that have failed ids
+    @Param({"0", "10"})
+    public int failedPercent;
+
+    private DiffSummary summary;
+    private DiffResult[] results;
+
+    @Setup
+    public void setup() {
+        summary = new DiffSummary(CHUNKS * 10000L, CHUNKS * 10000L * 512, null);
+        summary.setTotalChunks(CHUNKS);
+        Namespace ns = new Namespace("bench", "coll");
+        results = new DiffResult[CHUNKS];
+        for (int i = 0; i < CHUNKS; i++) {
+            ChunkDef chunk = new ChunkDef(ns, new BsonDocument("x", new BsonInt64(i * 1000L)),
+                    new BsonDocument("x", new BsonInt64((i + 1) * 1000L)));
+            Set<DiffResult.MismatchEntry> mismatches = Collections.emptySet();
+            Set<BsonValue> srcOnly = Collections.emptySet();
+            if (i % 100 < failedPercent) {
+                mismatches = new HashSet<>();
+                srcOnly = new HashSet<>();
+                for (int k = 0; k < 10; k++) {
+                    mismatches.add(new DiffResult.MismatchEntry(new BsonInt64(i * 1000L + k),
+                            new DocumentDigest(k, i), new DocumentDigest(i, k)));
+                    srcOnly.add(new BsonInt64(i * 1000L + 500 + k));
+                }
+            }
+            results[i] = new DiffResult(10000, 10000L * 512, mismatches, srcOnly, Collections.emptySet(), ns, chunk);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Benchmark
+    @Group("run")
+    @GroupThreads(15)
+    public void updateInitTask(Cursor cursor) {
+        cursor.next = (cursor.next + 1) % CHUNKS;
+        summary.updateInitTask(results[cursor.next]);
+    }
+
+    @Benchmark
+    @Group("run")
+    @GroupThreads(1)
+    public String getSummary() {
+        return summary.getSummary(false);
+    }
+}
@@ -0,0 +1,87 @@
+package com.mongodb.diff3.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.ByteBuf;
+import org.bson.RawBsonDocument;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mongodb.util.CodecUtils;
+import com.mongodb.util.DiffUtils;
+
+/**
+ * Per-document cost of hashing and hash comparison of raw BSON.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HashBenchmark {
+
+    private static final int CORPUS_SIZE = 1024;
+
+    @Param({"256", "4096", "65536"})
+    public int docSize;
+
+    @Param({"OBJECT_ID", "STRING"})
+    public Corpus.IdType idType;
+
+    private RawBsonDocument[] source;
+    private RawBsonDocument[] sameDest;
+    private RawBsonDocument[] changedDest;
+    private int next;
+
+    @Setup
+    public void setup() {
+        List<RawBsonDocument> docs = Corpus.documents(idType, CORPUS_SIZE, docSize, 42);
+        source = docs.toArray(new RawBsonDocument[0]);
+        sameDest = new RawBsonDocument[CORPUS_SIZE];
+        changedDest = new RawBsonDocument[CORPUS_SIZE];
+        for (int i = 0; i < CORPUS_SIZE; i++) {
+            sameDest[i] = new RawBsonDocument(source[i].getByteBuffer().array().clone());
+            changedDest[i] = Corpus.mutate(source[i]);
+        }
+    }
+
+    private int nextIndex() {
+        next = (next + 1) & (CORPUS_SIZE - 1);
+        return next;
+    }
+
+    @Benchmark
+    public String md5Hex() {
+        ByteBuf bb = source[nextIndex()].getByteBuffer();
+        return CodecUtils.md5Hex(bb.array(), bb.position(), bb.remaining());
+    }
+
+    @Benchmark
+    public byte[] md5Into() {
+        ByteBuf bb = source[nextIndex()].getByteBuffer();
+        return CodecUtils.md5Into(bb.array(), bb.position(), bb.remaining());
+    }
+
+    @Benchmark
+    public boolean compareHashesEqual() {
+        int i = nextIndex();
+        return DiffUtils.compareHashes(source[i], sameDest[i]);
+    }
+
+    @Benchmark
+    public boolean compareHashesChanged() {
+        int i = nextIndex();
+        return DiffUtils.compareHashes(source[i], changedDest[i]);
+    }
+}
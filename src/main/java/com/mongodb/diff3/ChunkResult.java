@@ -8,6 +8,7 @@ import java.util.stream.Collectors;
 
 import org.bson.BsonDocument;
 import org.bson.BsonString;
+import org.bson.BsonTimestamp;
 import org.bson.BsonValue;
 
 import com.mongodb.diff3.DiffSummary.DiffStatus;
@@ -19,7 +20,8 @@ public class ChunkResult {
     private final Set<BsonValue> sourceOnly;
     private final Set<BsonValue> destOnly;
     private final AtomicInteger retryNum;
-    private DiffStatus status;
+    private volatile DiffStatus status;
+    private volatile BsonTimestamp clusterTime;
 
     ChunkResult() {
         matches = new LongAdder();
@@ -96,15 +98,23 @@ public class ChunkResult {
         this.destOnly.clear();
     }
 
-    public synchronized DiffStatus getStatus() {
+    public DiffStatus getStatus() {
         return status;
     }
 
-    public synchronized void setStatus(DiffStatus status) {
+    public void setStatus(DiffStatus status) {
         this.status = status;
     }
 
     public AtomicInteger getRetryNum() {
         return retryNum;
     }
+
+    public BsonTimestamp getClusterTime() {
+        return clusterTime;
+    }
+
+    public void setClusterTime(BsonTimestamp clusterTime) {
+        this.clusterTime = clusterTime;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,123 @@
+package com.mongodb.diff3;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.RawBsonDocument;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.mongodb.client.MongoCursor;
+
+/**
+ * Drains a cursor on a background thread into a small bounded queue of batches, so
+ * that the cursor's getMore round trips overlap with whatever the consuming thread
+ * is doing. At most <code>maxBatches</code> batches are buffered at a time.
+ */
+public class CursorPrefetcher implements Iterator<RawBsonDocument>, AutoCloseable {
+
+    private static final ExecutorService prefetchPool = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("PrefetchPool-%d").setDaemon(true).build());
+
+    private static final List<RawBsonDocument> END_OF_CURSOR = Collections.emptyList();
+
+    private final MongoCursor<RawBsonDocument> cursor;
+    private final int batchSize;
+    private final BlockingQueue<List<RawBsonDocument>> batches;
+
+    private volatile boolean closed;
+    private volatile RuntimeException failure;
+
+    private Iterator<RawBsonDocument> current = Collections.emptyIterator();
+    private boolean exhausted;
+
+    public CursorPrefetcher(MongoCursor<RawBsonDocument> cursor, int batchSize, int maxBatches) {
+        this.cursor = cursor;
+        this.batchSize = batchSize;
+        this.batches = new ArrayBlockingQueue<>(maxBatches);
+        prefetchPool.submit(this::fill);
+    }
+
+    private void fill() {
+        try {
+            List<RawBsonDocument> batch = new ArrayList<>(batchSize);
+            while (!closed && cursor.hasNext()) {
+                batch.add(cursor.next());
+                if (batch.size() >= batchSize) {
+                    if (!put(batch)) {
+                        return;
+                    }
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+            if (!batch.isEmpty() && !put(batch)) {
+                return;
+            }
+        } catch (RuntimeException e) {
+            failure = e;
+        } finally {
+            cursor.close();
+            put(END_OF_CURSOR);
+        }
+    }
+
+    private boolean put(List<RawBsonDocument> batch) {
+        try {
+            while (!closed) {
+                if (batches.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!current.hasNext()) {
+            if (exhausted) {
+                return false;
+            }
+            List<RawBsonDocument> batch;
+            try {
+                batch = batches.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted waiting for prefetched batch", e);
+            }
+            if (batch == END_OF_CURSOR) {
+                exhausted = true;
+                if (failure != null) {
+                    throw failure;
+                }
+                return false;
+            }
+            current = batch.iterator();
+        }
+        return true;
+    }
+
+    @Override
+    public RawBsonDocument next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return current.next();
+    }
+
+    @Override
+    public void close() {
+        // the fill thread owns the cursor and closes it once it sees the flag
+        closed = true;
+        batches.clear();
+    }
+}
@@ -2,6 +2,7 @@ package com.mongodb.diff3;
 
 import java.util.Arrays;
 
+import com.mongodb.diff3.shard.ShardReadRouter;
 import com.mongodb.shardsync.BaseConfiguration;
 
 public class DiffConfiguration extends BaseConfiguration {
@@ -9,6 +10,7 @@ public class DiffConfiguration extends BaseConfiguration {
 	public final static String PARTITION_MODE = "partition";
 	public final static String SHARD_MODE = "shard";
 	public final static String RECHECK_MODE = "recheck";
+	public final static String INCREMENTAL_MODE = "incremental";
 	
 	private int threads = 8;
 	private double sampleRate;
@@ -23,9 +25,24 @@ public class DiffConfiguration extends BaseConfiguration {
 	private String statusDbUri;
 	private String statusDbName;
 	private String statusDbCollName;
-	private final String[] knownModes = new String[]{PARTITION_MODE, RECHECK_MODE, SHARD_MODE};
+	private final String[] knownModes = new String[]{INCREMENTAL_MODE, PARTITION_MODE, RECHECK_MODE, SHARD_MODE};
 	private DiffSummaryClient diffSummaryClient;
 	private boolean bypassMongos;
+	private boolean streamingDiff;
+	private boolean serverSideHash;
+	private boolean merkleDiff;
+	private long merkleLeafDocs;
+	private int merkleFanOut;
+	private int merkleMaxDepth;
+	private boolean adaptivePartitioning;
+	private int maxThreadsPerShard;
+	private int recheckRetries;
+	private boolean secondaryReads;
+	private long maxSecondaryLagSecs;
+	private ShardReadRouter shardReadRouter;
+	private boolean snapshotReads;
+	private String syncTimestampDir;
+	private int snapshotWaitSecs;
 	
 	public DiffSummaryClient getDiffSummaryClient() {
 		if (diffSummaryClient == null) {
@@ -36,6 +53,23 @@ public class DiffConfiguration extends BaseConfiguration {
 		
 	}
 
+	/**
+	 * Writes the pending status updates and closes the status client, if it was opened.
+	 */
+	public void closeDiffSummaryClient() {
+		if (diffSummaryClient != null) {
+			diffSummaryClient.close();
+			diffSummaryClient = null;
+		}
+	}
+
+	public synchronized ShardReadRouter getShardReadRouter() {
+		if (shardReadRouter == null) {
+			shardReadRouter = new ShardReadRouter(maxSecondaryLagSecs);
+		}
+		return shardReadRouter;
+	}
+
 	public String getMode() {
 		return mode;
 	}
@@ -151,4 +185,123 @@ public class DiffConfiguration extends BaseConfiguration {
 	public void setBypassMongos(boolean bypassMongos) {
 		this.bypassMongos = bypassMongos;
 	}
+
+	/**
+	 * Streamed diffs join source and dest as they are read and hold only the documents seen
+	 * on one side and not yet on the other. That is bounded by the drift between the two
+	 * sides (ids missing on one side, or read in a different order), not by a batch; past
+	 * a fixed number of held documents the rest of the chunk is diffed by loading both
+	 * sides. Snapshot reads apply to the streamed cursors as well.
+	 */
+	public boolean isStreamingDiff() {
+		return streamingDiff;
+	}
+
+	public void setStreamingDiff(boolean streamingDiff) {
+		this.streamingDiff = streamingDiff;
+	}
+
+	public boolean isServerSideHash() {
+		return serverSideHash;
+	}
+
+	public void setServerSideHash(boolean serverSideHash) {
+		this.serverSideHash = serverSideHash;
+	}
+
+	public boolean isMerkleDiff() {
+		return merkleDiff;
+	}
+
+	public void setMerkleDiff(boolean merkleDiff) {
+		this.merkleDiff = merkleDiff;
+	}
+
+	public long getMerkleLeafDocs() {
+		return merkleLeafDocs;
+	}
+
+	public void setMerkleLeafDocs(long merkleLeafDocs) {
+		this.merkleLeafDocs = merkleLeafDocs;
+	}
+
+	public int getMerkleFanOut() {
+		return merkleFanOut;
+	}
+
+	public void setMerkleFanOut(int merkleFanOut) {
+		this.merkleFanOut = merkleFanOut;
+	}
+
+	public int getMerkleMaxDepth() {
+		return merkleMaxDepth;
+	}
+
+	public void setMerkleMaxDepth(int merkleMaxDepth) {
+		this.merkleMaxDepth = merkleMaxDepth;
+	}
+
+	public boolean isAdaptivePartitioning() {
+		return adaptivePartitioning;
+	}
+
+	public void setAdaptivePartitioning(boolean adaptivePartitioning) {
+		this.adaptivePartitioning = adaptivePartitioning;
+	}
+
+	public int getMaxThreadsPerShard() {
+		return maxThreadsPerShard;
+	}
+
+	public void setMaxThreadsPerShard(int maxThreadsPerShard) {
+		this.maxThreadsPerShard = maxThreadsPerShard;
+	}
+
+	public int getRecheckRetries() {
+		return recheckRetries;
+	}
+
+	public void setRecheckRetries(int recheckRetries) {
+		this.recheckRetries = recheckRetries;
+	}
+
+	public boolean isSecondaryReads() {
+		return secondaryReads;
+	}
+
+	public void setSecondaryReads(boolean secondaryReads) {
+		this.secondaryReads = secondaryReads;
+	}
+
+	public long getMaxSecondaryLagSecs() {
+		return maxSecondaryLagSecs;
+	}
+
+	public void setMaxSecondaryLagSecs(long maxSecondaryLagSecs) {
+		this.maxSecondaryLagSecs = maxSecondaryLagSecs;
+	}
+
+	public boolean isSnapshotReads() {
+		return snapshotReads;
+	}
+
+	public void setSnapshotReads(boolean snapshotReads) {
+		this.snapshotReads = snapshotReads;
+	}
+
+	public String getSyncTimestampDir() {
+		return syncTimestampDir;
+	}
+
+	public void setSyncTimestampDir(String syncTimestampDir) {
+		this.syncTimestampDir = syncTimestampDir;
+	}
+
+	public int getSnapshotWaitSecs() {
+		return snapshotWaitSecs;
+	}
+
+	public void setSnapshotWaitSecs(int snapshotWaitSecs) {
+		this.snapshotWaitSecs = snapshotWaitSecs;
+	}
 }
@@ -1,6 +1,7 @@
 package com.mongodb.diff3;
 
 import com.mongodb.model.Namespace;
+import org.bson.BsonTimestamp;
 import org.bson.BsonValue;
 
 import java.util.HashSet;
@@ -17,28 +18,37 @@ public class DiffResult {
     private final Namespace namespace;
     private boolean retryable = true;
     private final ChunkDef chunkDef;
+    private BsonTimestamp clusterTime;
 
-    static class MismatchEntry {
+    public static class MismatchEntry {
         private final BsonValue key;
-        private final String srcChksum;
-        private final String destChksum;
+        private final DocumentDigest srcDigest;
+        private final DocumentDigest destDigest;
 
-        MismatchEntry(BsonValue key, String srcChksum, String destChksum) {
+        public MismatchEntry(BsonValue key, DocumentDigest srcDigest, DocumentDigest destDigest) {
             this.key = key;
-            this.srcChksum = srcChksum;
-            this.destChksum = destChksum;
+            this.srcDigest = srcDigest;
+            this.destDigest = destDigest;
         }
 
         public BsonValue getKey() {
             return key;
         }
 
+        public DocumentDigest getSrcDigest() {
+            return srcDigest;
+        }
+
+        public DocumentDigest getDestDigest() {
+            return destDigest;
+        }
+
         public String getSrcChksum() {
-            return srcChksum;
+            return srcDigest.toHex();
         }
 
         public String getDestChksum() {
-            return destChksum;
+            return destDigest.toHex();
         }
     }
 
@@ -96,4 +106,16 @@ public class DiffResult {
     public void setRetryable(boolean retryable) {
         this.retryable = retryable;
     }
+
+    /**
+     * Source cluster time taken before the documents were read, i.e. every write at or
+     * before it is reflected in this result; null if it could not be determined.
+     */
+    public BsonTimestamp getClusterTime() {
+        return clusterTime;
+    }
+
+    public void setClusterTime(BsonTimestamp clusterTime) {
+        this.clusterTime = clusterTime;
+    }
 }
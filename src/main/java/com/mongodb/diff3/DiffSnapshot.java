@@ -0,0 +1,75 @@
+package com.mongodb.diff3;
+
+/**
+ * Immutable copy of a DiffSummary's totals at one point in time.
+ */
+public final class DiffSnapshot {
+
+	private final int totalChunks;
+	private final long processedChunks;
+	private final long processedDocs;
+	private final long failedChunks;
+	private final long failedDocs;
+	private final long processedSize;
+	private final long retryChunks;
+	private final long sourceOnly;
+	private final long destOnly;
+	private final long timeElapsed;
+
+	public DiffSnapshot(int totalChunks, long processedChunks, long processedDocs, long failedChunks,
+			long failedDocs, long processedSize, long retryChunks, long sourceOnly, long destOnly, long timeElapsed) {
+		this.totalChunks = totalChunks;
+		this.processedChunks = processedChunks;
+		this.processedDocs = processedDocs;
+		this.failedChunks = failedChunks;
+		this.failedDocs = failedDocs;
+		this.processedSize = processedSize;
+		this.retryChunks = retryChunks;
+		this.sourceOnly = sourceOnly;
+		this.destOnly = destOnly;
+		this.timeElapsed = timeElapsed;
+	}
+
+	/**
+	 * -1 while the total isn't known yet.
+	 */
+	public int getTotalChunks() {
+		return totalChunks;
+	}
+
+	public long getProcessedChunks() {
+		return processedChunks;
+	}
+
+	public long getProcessedDocs() {
+		return processedDocs;
+	}
+
+	public long getFailedChunks() {
+		return failedChunks;
+	}
+
+	public long getFailedDocs() {
+		return failedDocs;
+	}
+
+	public long getProcessedSize() {
+		return processedSize;
+	}
+
+	public long getRetryChunks() {
+		return retryChunks;
+	}
+
+	public long getSourceOnly() {
+		return sourceOnly;
+	}
+
+	public long getDestOnly() {
+		return destOnly;
+	}
+
+	public long getTimeElapsed() {
+		return timeElapsed;
+	}
+}
@@ -1,15 +1,19 @@
 package com.mongodb.diff3;
 
-import com.mongodb.model.Namespace;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Progress and per-chunk state of a diff run, updated by all the diff workers. The
+ * totals are LongAdders and the chunk state lives in a concurrent map, so workers only
+ * ever contend on the chunk they are updating; progress is read through immutable
+ * snapshots (see getSnapshot()) that never block the workers.
+ */
 public class DiffSummary {
 	private static Logger logger = LoggerFactory.getLogger(DiffSummary.class);
 
@@ -27,9 +31,10 @@ public class DiffSummary {
 	private final LongAdder totalDestOnly = new LongAdder();
 	//private final LongAdder 
 
-	private final Map<Namespace, Map<String, ChunkResult>> chunkResultMap;
+	// keyed by ChunkDef.unitString(), which includes the namespace
+	private final ConcurrentMap<String, ChunkResult> chunkResultMap = new ConcurrentHashMap<>();
 
-	private int totalChunks = -1;
+	private volatile int totalChunks = -1;
 	private final long totalDocs;
 	private final long totalSize;
 	private final long startTime;
@@ -45,38 +50,39 @@ public class DiffSummary {
 		this.dbClient = dbClient;
 
 		this.ppTotalSize = ppSize(totalSize);
-		chunkResultMap = new HashMap<>();
 		this.startTime = new Date().getTime();
 	}
 
-	public synchronized void setTotalChunks(int totalChunks) {
+	public void setTotalChunks(int totalChunks) {
 		this.totalChunks = totalChunks;
 	}
 	
-	public synchronized boolean isComplete() {
+	public boolean isComplete() {
 		return totalProcessedChunks.longValue() >= totalChunks;
 	}
 
+	/**
+	 * Point-in-time copy of the totals. Each counter is read without locking, so while
+	 * workers are updating the copy may be off by the updates in flight, but never blocks
+	 * them.
+	 */
+	public DiffSnapshot getSnapshot() {
+		return new DiffSnapshot(totalChunks, totalProcessedChunks.sum(), totalProcessedDocs.sum(),
+				totalFailedChunks.sum(), totalFailedDocs.sum(), totalProcessedSize.sum(), totalRetryChunks.sum(),
+				totalSourceOnly.sum(), totalDestOnly.sum(), getTimeElapsed());
+	}
+
 	public String getSummary(boolean done) {
 		String summary = null;
 		try {
-			long millsElapsed = getTimeElapsed();
-			int secondsElapsed = (int) (millsElapsed / 1000.);
-
-//            DiffSnapshot snapshot = getSnapshot();
-//            long totalProcessedChunks = snapshot.getTotalProcessedChunks();
-//            long totalProcessedDocs = snapshot.getTotalProcessedDocs();
-//            long totalFailedChunks = snapshot.getTotalFailedChunks();
-//            long totalFailedDocs = snapshot.getTotalFailedDocs();
-//            long totalProcessedSize = snapshot.getTotalProcessedSize();
-//            long totalRetryChunks = snapshot.getTotalRetryChunks();
-//            long totalSourceOnly = snapshot.getTotalSourceOnly();
-//            long totalDestOnly = snapshot.getTotalDestOnly();
-
-			double chunkProcPct = totalChunks >= 0 ? (totalProcessedChunks.longValue() / (double) totalChunks) * 100.
+			DiffSnapshot snapshot = getSnapshot();
+			int secondsElapsed = (int) (snapshot.getTimeElapsed() / 1000.);
+			int totalChunks = snapshot.getTotalChunks();
+
+			double chunkProcPct = totalChunks >= 0 ? (snapshot.getProcessedChunks() / (double) totalChunks) * 100.
 					: 0;
-			double docProcPct = (totalProcessedDocs.longValue() / (double) totalDocs) * 100.;
-			double sizeProcessedPct = (totalProcessedSize.longValue() / (double) totalSize) * 100.;
+			double docProcPct = (snapshot.getProcessedDocs() / (double) totalDocs) * 100.;
+			double sizeProcessedPct = (snapshot.getProcessedSize() / (double) totalSize) * 100.;
 
 			String firstLine = done ? String.format("[Status] Completed in %s seconds.  ", secondsElapsed)
 					: String.format("[Status] %s seconds have elapsed.  ", secondsElapsed);
@@ -86,10 +92,10 @@ public class DiffSummary {
 							+ "%.2f %% of size processed (%s/%s (est.)).  " + "%d chunks failed.  "
 							+ "%d documents mismatched.  " + "%d chunks are retrying.  "
 							+ "%s docs found on source only.  %s docs found on target only",
-					firstLine, chunkProcPct, totalProcessedChunks.longValue(), totalChunks >= 0 ? totalChunks : "Unknown",
-					docProcPct, totalProcessedDocs, totalDocs, sizeProcessedPct, ppSize(totalProcessedSize.longValue()),
-					ppTotalSize, totalFailedChunks.longValue(), totalFailedDocs.longValue(), totalRetryChunks.longValue(), 
-					totalSourceOnly.longValue(), totalDestOnly.longValue());
+					firstLine, chunkProcPct, snapshot.getProcessedChunks(), totalChunks >= 0 ? totalChunks : "Unknown",
+					docProcPct, snapshot.getProcessedDocs(), totalDocs, sizeProcessedPct, ppSize(snapshot.getProcessedSize()),
+					ppTotalSize, snapshot.getFailedChunks(), snapshot.getFailedDocs(), snapshot.getRetryChunks(), 
+					snapshot.getSourceOnly(), snapshot.getDestOnly());
 		} catch (Exception e) {
 			logger.error("getSummary() error", e);
 		}
@@ -97,42 +103,6 @@ public class DiffSummary {
 		return summary;
 	}
 
-//    private synchronized DiffSnapshot getSnapshot() {
-//        long totalProcessedChunks = 0;
-//        long totalProcessedDocs = 0;
-//        long totalFailedChunks = 0;
-//        long totalFailedDocs = 0;
-//        long totalProcessedSize = 0;
-//        long totalRetryChunks = 0;
-//        long totalSourceOnly = 0;
-//        long totalDestOnly = 0;
-//        for (Map.Entry<Namespace, Map<String, ChunkResult>> nse : chunkResultMap.entrySet()) {
-//            for (Map.Entry<String, ChunkResult> e : nse.getValue().entrySet()) {
-//                ChunkResult cr = e.getValue();
-//                if (cr.getStatus() == DiffStatus.SUCCEEDED || cr.getStatus() == DiffStatus.FAILED) {
-//                    totalProcessedChunks++;
-//                }
-//                long numMismatches = cr.getMismatches().size();
-//                long numSourceOnly = cr.getSourceOnly().size();
-//                long numDestOnly = cr.getDestOnly().size();
-//                totalProcessedDocs += cr.getMatches().longValue() + numMismatches + numSourceOnly + numDestOnly;
-//                if ((numMismatches + numSourceOnly + numDestOnly) > 0) {
-//                    totalFailedChunks++;
-//                }
-//                totalFailedDocs += numMismatches;
-//                totalProcessedSize += cr.getBytesProcessed().longValue();
-//                if (cr.getStatus() == DiffStatus.RETRYING) {
-//                    totalRetryChunks++;
-//                }
-//                totalSourceOnly += numSourceOnly;
-//                totalDestOnly += numDestOnly;
-//            }
-//        }
-//
-//        return new DiffSnapshot(totalProcessedChunks, totalProcessedDocs, totalFailedChunks, totalFailedDocs,
-//                totalProcessedSize, totalRetryChunks, totalSourceOnly, totalDestOnly);
-//    }
-
 	private String ppSize(long size) {
 		if (size <= 0) {
 			return "0 B";
@@ -186,7 +156,6 @@ public class DiffSummary {
 	}
 
 	public void updateInitTask(DiffResult result) {
-		Namespace ns = result.getNamespace();
 		String chunkId = result.getChunkDef().unitString();
 		boolean hasFailures = result.getFailedKeys().size() > 0;
 		ChunkResult cr = new ChunkResult();
@@ -201,6 +170,9 @@ public class DiffSummary {
 		cr.setMismatches(result.getMismatchedEntries());
 		cr.setSourceOnly(result.getSrcOnlyKeys());
 		cr.setDestOnly(result.getDestOnlyKeys());
+		// retries only re-read the failed ids, so the chunk is only known to be in sync
+		// as of the time the initial task started
+		cr.setClusterTime(result.getClusterTime());
 		
 		incrementCountersFromChunkResult(cr);
 
@@ -212,28 +184,20 @@ public class DiffSummary {
 			}
 		}
 
-		synchronized (chunkResultMap) {
-			if (!chunkResultMap.containsKey(ns)) {
-				chunkResultMap.put(ns, new HashMap<>());
-			}
-			Map<String, ChunkResult> nsMap = chunkResultMap.get(ns);
-			// Bc this is the initial task, it will always be a new entry
-			nsMap.put(chunkId, cr);
-		}
+		// Bc this is the initial task, it will always be a new entry
+		chunkResultMap.put(chunkId, cr);
 	}
 
 	public void updateRetryingDone(DiffResult result) {
-		synchronized (chunkResultMap) {
-			ChunkResult cr = findChunkResult(result);
-			cr.setStatus(DiffStatus.RUNNING);
-		}
+		ChunkResult cr = findChunkResult(result);
+		cr.setStatus(DiffStatus.RUNNING);
 	}
 
-	public synchronized void updateRetryTask(DiffResult result) {
+	public void updateRetryTask(DiffResult result) {
 		int failures = result.getFailedKeys().size();
-		ChunkResult cr = null;
-		synchronized (chunkResultMap) {
-			cr = findChunkResult(result);
+		ChunkResult cr = findChunkResult(result);
+		// only retries of the same chunk contend here
+		synchronized (cr) {
 			if (failures > 0) {
 				if (result.isRetryable()) {
 					cr.setStatus(DiffStatus.RETRYING);
@@ -261,14 +225,12 @@ public class DiffSummary {
 					dbClient.simpleUpdate(result.getChunkDef(), cr);
 				}
 			}
+			incrementCountersFromChunkResult(cr);
 		}
-		incrementCountersFromChunkResult(cr);
 	}
 
 	private ChunkResult findChunkResult(DiffResult result) {
-		ChunkResult cr;
-		Map<String, ChunkResult> nsMap = chunkResultMap.get(result.getNamespace());
-		cr = nsMap.get(result.getChunkDef().unitString());
+		ChunkResult cr = chunkResultMap.get(result.getChunkDef().unitString());
 		if (cr == null) {
 			logger.error("Could not find chunk ({}) in summary map", result.getChunkDef().unitString());
 			throw new RuntimeException(
@@ -3,13 +3,17 @@ package com.mongodb.diff3;
 import static com.mongodb.client.model.Projections.exclude;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.bson.BsonDocument;
+import org.bson.BsonTimestamp;
 import org.bson.BsonValue;
 import org.bson.Document;
 import org.bson.RawBsonDocument;
@@ -19,27 +23,53 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.mongodb.ConnectionString;
+import com.mongodb.MongoBulkWriteException;
 import com.mongodb.MongoClientSettings;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
 import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.BulkWriteOptions;
 import com.mongodb.client.model.Filters;
-import com.mongodb.client.model.FindOneAndUpdateOptions;
 import com.mongodb.client.model.Indexes;
-import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Projections;
 import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
 import com.mongodb.client.model.Updates;
 import com.mongodb.diff3.DiffSummary.DiffStatus;
-import com.mongodb.model.Namespace;
 import com.mongodb.shardsync.ShardClient;
 
-public class DiffSummaryClient {
+/**
+ * Reads and writes the diff status collection. Chunk status updates are queued and written
+ * in batches by a background writer thread, so the client must be closed to write the last
+ * of them and stop the writer.
+ */
+public class DiffSummaryClient implements AutoCloseable {
+    /**
+     * Source cluster time as of which a SUCCEEDED chunk is known to be in sync.
+     */
+    public static final String SUCCEEDED_AT = "succeededAt";
+
     private final MongoClient client;
     private final MongoDatabase db;
     private final MongoCollection<RawBsonDocument> coll;
     private final MongoCollection<BsonDocument> simpleColl;
+    private final MongoCollection<BsonDocument> watermarkColl;
+
+    private static final int WRITE_BATCH_SIZE = 1000;
+    private static final int MAX_PENDING_WRITES = 10 * WRITE_BATCH_SIZE;
+    private static final long FLUSH_INTERVAL_MS = 1000;
+    // chunk id -> latest pending status update, guarded by itself
+    private final Map<String, WriteModel<RawBsonDocument>> pendingWrites = new LinkedHashMap<>();
+    private boolean writing;
+    private boolean closed;
+    private final Thread writer;
     private static final Logger logger = LoggerFactory.getLogger(DiffSummaryClient.class);
 
 
@@ -52,7 +82,38 @@ public class DiffSummaryClient {
         this.db = this.client.getDatabase(dbName);
         this.coll = this.db.getCollection(collName, RawBsonDocument.class);
         this.simpleColl = this.db.getCollection(collName, BsonDocument.class);
+        this.watermarkColl = this.db.getCollection(collName + "Watermarks", BsonDocument.class);
         coll.createIndex(Indexes.compoundIndex(Indexes.ascending("ns"), Indexes.ascending("min"), Indexes.ascending("max")));
+
+        writer = new Thread(this::writeLoop, "StatusWriter");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Loads the completed chunks matching <code>chunkQuery</code> in one pass, without
+     * their (possibly large) mismatch/srcOnly/destOnly arrays: only the bounds, status,
+     * totals and the array sizes, computed by the server, are returned.
+     */
+    public Map<String, RawBsonDocument> loadCompletedChunks(BsonDocument chunkQuery) {
+        Map<String, RawBsonDocument> completed = new LinkedHashMap<>();
+        List<Bson> pipeline = Arrays.asList(
+                Aggregates.match(chunkQuery),
+                Aggregates.project(Projections.fields(
+                        Projections.include("ns", "min", "max", "status", "matches", "bytesProcessed", SUCCEEDED_AT),
+                        Projections.computed("mismatchesCount", arraySize("$mismatches")),
+                        Projections.computed("srcOnlyCount", arraySize("$srcOnly")),
+                        Projections.computed("destOnlyCount", arraySize("$destOnly")))),
+                Aggregates.sort(Sorts.ascending("ns", "min")));
+        for (RawBsonDocument chunk : coll.aggregate(pipeline).allowDiskUse(true)) {
+            completed.put(ShardClient.getIdFromChunk(chunk), chunk);
+        }
+        logger.debug("loaded {} completed chunks", completed.size());
+        return completed;
+    }
+
+    private static Document arraySize(String field) {
+        return new Document("$size", new Document("$ifNull", Arrays.asList(field, Collections.emptyList())));
     }
 
     public Map<String, RawBsonDocument> loadChunksCache(BsonDocument chunkQuery) {
@@ -97,6 +158,9 @@ public class DiffSummaryClient {
         newDoc.put("destOnlyCount", cr.getDestOnly().size());
         newDoc.put("bytesProcessed", cr.getBytesProcessed().longValue());
         newDoc.put("timestamp", new Date());
+        if (cr.getStatus() == DiffStatus.SUCCEEDED && cr.getClusterTime() != null) {
+            newDoc.put(SUCCEEDED_AT, cr.getClusterTime());
+        }
 
         BsonDocument newBsonDoc = newDoc.toBsonDocument();
         if (res == null) {
@@ -106,11 +170,16 @@ public class DiffSummaryClient {
         }
     }
 
+    /**
+     * Queues the status update for <code>cd</code>; it is written by the background
+     * writer together with other pending updates. A newer update for the same chunk
+     * replaces a queued one that has not been written yet, so intermediate states of a
+     * chunk (e.g. a RETRYING result quickly followed by the next attempt's) may never be
+     * written, and are then also missing from its <code>history</code>, which is built from
+     * the stored document. Only the latest state of every chunk is guaranteed to be written
+     * by {@link #flush()} or {@link #close()}.
+     */
     public void update(ChunkDef cd, ChunkResult cr) {
-        FindOneAndUpdateOptions opts = new FindOneAndUpdateOptions();
-        opts.upsert(true);
-        opts.returnDocument(ReturnDocument.AFTER);
-
         BsonValue min = cd.getMin() == null ? new BsonDocument() : cd.getMin();
         BsonValue max = cd.getMax() == null ? new BsonDocument() : cd.getMax();
 
@@ -156,47 +225,141 @@ public class DiffSummaryClient {
         updates.add(Updates.set("destOnlyCount", cr.getDestOnly().size()));
         updates.add(Updates.set("bytesProcessed", cr.getBytesProcessed().longValue()));
         updates.add(Updates.set("timestamp", new Date()));
+        if (cr.getStatus() == DiffStatus.SUCCEEDED && cr.getClusterTime() != null) {
+            updates.add(Updates.set(SUCCEEDED_AT, cr.getClusterTime()));
+        }
 
-        logger.trace("Fire Status update Query");
-        try {
-            BsonDocument res = coll.findOneAndUpdate(filter, updates, opts);
-
-            logger.trace("Status Update Result:: {}", res.toString());
-        } catch (Exception e) {
-//            logger.error("Update status query failed", e);
-            logger.info("Update failed; trying simple update");
-            throw new RuntimeException(e);
+        String key = String.format("%s_%s_%s", cd.getNs().getNamespace(), min, max);
+        UpdateOneModel<RawBsonDocument> model = new UpdateOneModel<>(filter, updates,
+                new UpdateOptions().upsert(true));
+        synchronized (pendingWrites) {
+            if (closed) {
+                throw new IllegalStateException("status update after close: " + key);
+            }
+            while (pendingWrites.size() >= MAX_PENDING_WRITES && !pendingWrites.containsKey(key)) {
+                // the writer has fallen behind, hold the diff workers back until it catches up
+                pendingWrites.notifyAll();
+                try {
+                    pendingWrites.wait(FLUSH_INTERVAL_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+            }
+            pendingWrites.put(key, model);
+            if (pendingWrites.size() >= WRITE_BATCH_SIZE) {
+                pendingWrites.notifyAll();
+            }
         }
     }
 
-    public boolean updateChunkCompletion(Namespace ns, RawBsonDocument chunk, DiffSummary summary) {
-
-        Bson filter = Filters.and(
-                Filters.eq("ns", ns.getNamespace()),
-                Filters.eq("min", chunk.get("min")),
-                Filters.eq("max", chunk.get("max")),
-                Filters.eq("status", DiffStatus.SUCCEEDED.toString())
-        );
-
+    private void writeLoop() {
+        while (true) {
+            List<WriteModel<RawBsonDocument>> batch;
+            synchronized (pendingWrites) {
+                while (pendingWrites.isEmpty()) {
+                    if (closed) {
+                        return;
+                    }
+                    try {
+                        pendingWrites.wait(FLUSH_INTERVAL_MS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                batch = new ArrayList<>(pendingWrites.values());
+                pendingWrites.clear();
+                writing = true;
+            }
+            try {
+                writeBatch(batch);
+            } finally {
+                synchronized (pendingWrites) {
+                    writing = false;
+                    pendingWrites.notifyAll();
+                }
+            }
+        }
+    }
 
-        long count = coll.countDocuments(filter);
+    private void writeBatch(List<WriteModel<RawBsonDocument>> batch) {
+        BulkWriteOptions options = new BulkWriteOptions().ordered(false);
+        for (int i = 0; i < batch.size(); i += WRITE_BATCH_SIZE) {
+            List<WriteModel<RawBsonDocument>> part = batch.subList(i, Math.min(batch.size(), i + WRITE_BATCH_SIZE));
+            try {
+                BulkWriteResult result = coll.bulkWrite(part, options);
+                logger.trace("Status bulk write: {} matched, {} upserted", result.getMatchedCount(),
+                        result.getUpserts().size());
+            } catch (MongoBulkWriteException e) {
+                // an unordered bulk write applies everything but the failed writes, retry those one by one
+                for (BulkWriteError error : e.getWriteErrors()) {
+                    WriteModel<RawBsonDocument> failed = part.get(error.getIndex());
+                    try {
+                        coll.bulkWrite(Collections.singletonList(failed));
+                    } catch (Exception retryError) {
+                        logger.error("Status update failed: {}", error.getMessage(), retryError);
+                    }
+                }
+            } catch (Exception e) {
+                logger.error("Status bulk write of {} updates failed", part.size(), e);
+            }
+        }
+    }
 
-//        RawBsonDocument aggResult = coll.aggregate(Arrays.asList(
-//            Aggregates.match(filter),
-//            Aggregates.project(Projections.fields(
-//            		Projections.computed("mismatchCount", new Document("$size", "$mismatches")),
-//            		Projections.computed("srcOnlyCount", new Document("$size", "$srcOnly")),
-//            		Projections.computed("destOnlyCount", new Document("$size", "$destOnly"))
-//            ))
-//        )).first();
-//        
-//        if (aggResult != null) {
-//        	return true;
-//        }
-//        return false;
+    /**
+     * Blocks until every status update queued so far has been written.
+     */
+    public void flush() {
+        synchronized (pendingWrites) {
+            while (!pendingWrites.isEmpty() || writing) {
+                pendingWrites.notifyAll();
+                try {
+                    pendingWrites.wait(FLUSH_INTERVAL_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+    }
 
-        return count > 0;
+    /**
+     * Writes every queued status update, stops the writer thread and closes the connection.
+     */
+    @Override
+    public void close() {
+        synchronized (pendingWrites) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            pendingWrites.notifyAll();
+        }
+        try {
+            // the writer drains what is pending before it sees the flag
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("interrupted waiting for the status writer, {} updates not written", pendingWrites.size());
+        }
+        client.close();
+    }
 
+    /**
+     * Per source shard, the oplog time up to which a previous incremental run has
+     * already re-diffed every touched document.
+     */
+    public Map<String, BsonTimestamp> loadIncrementalWatermarks() {
+        Map<String, BsonTimestamp> watermarks = new HashMap<>();
+        for (BsonDocument doc : watermarkColl.find()) {
+            watermarks.put(doc.getString("_id").getValue(), doc.getTimestamp("ts"));
+        }
+        return watermarks;
+    }
 
+    public void updateIncrementalWatermark(String shardId, BsonTimestamp ts) {
+        watermarkColl.updateOne(Filters.eq("_id", shardId),
+                Updates.combine(Updates.set("ts", ts), Updates.set("timestamp", new Date())),
+                new UpdateOptions().upsert(true));
     }
 }
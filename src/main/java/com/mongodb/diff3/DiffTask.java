@@ -3,10 +3,10 @@ package com.mongodb.diff3;
 import static com.mongodb.diff3.DiffTask.Target.DEST;
 import static com.mongodb.diff3.DiffTask.Target.SOURCE;
 
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Map;
+import java.util.Iterator;
 import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.Callable;
@@ -15,6 +15,9 @@ import com.mongodb.model.Database;
 import com.mongodb.model.DatabaseCatalog;
 import com.mongodb.model.IndexSpec;
 import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.BsonTimestamp;
 import org.bson.BsonValue;
 import org.bson.ByteBuf;
 import org.bson.Document;
@@ -23,9 +26,8 @@ import org.bson.conversions.Bson;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.collect.MapDifference;
-import com.google.common.collect.MapDifference.ValueDifference;
-import com.google.common.collect.Maps;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoCommandException;
 import com.mongodb.MongoException;
 import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoClient;
@@ -55,6 +57,31 @@ public abstract class DiffTask implements Callable<DiffResult> {
     }
 
     protected static final Logger logger = LoggerFactory.getLogger(DiffTask.class);
+    private static final Document ID_ORDER = new Document("_id", 1);
+    private static final int STREAMING_PREFETCH_BATCH_SIZE = 1000;
+    private static final int STREAMING_PREFETCH_BATCHES = 4;
+    // digests held by a streamed diff (a bound on the drift between the sides, not on a
+    // batch) before the rest is diffed by loading both sides
+    private static final int STREAMING_MAX_PENDING = 500000;
+    private static final String SERVER_HASH_FIELD = "h";
+    private static final String SERVER_SIZE_FIELD = "s";
+    /**
+     * Server side 64-bit hash of a whole document. <code>$toHashedIndexKey</code> alone
+     * canonicalizes numbers (1, 1L and 1.0 hash the same, doubles are truncated to
+     * integers), so the document is hashed together with the BSON type and the exact
+     * string value of each of its top level fields. Together with the document size this
+     * leaves a numeric change of the same width that keeps the integer part, inside a
+     * nested document or array, as the only change the hash can't see.
+     */
+    protected static final Document SERVER_DOC_HASH = new Document("$toHashedIndexKey", Arrays.asList("$$ROOT",
+            new Document("$map", new Document("input", new Document("$objectToArray", "$$ROOT"))
+                    .append("as", "f")
+                    .append("in", Arrays.asList("$$f.k", new Document("$type", "$$f.v"),
+                            new Document("$convert", new Document("input", "$$f.v").append("to", "string")
+                                    .append("onError", null).append("onNull", null)))))));
+    private static final Document SERVER_HASH_PROJECTION = new Document("_id", 1)
+            .append(SERVER_HASH_FIELD, SERVER_DOC_HASH)
+            .append(SERVER_SIZE_FIELD, new Document("$bsonSize", "$$ROOT"));
     protected DiffConfiguration config;
 
     protected Namespace namespace;
@@ -69,8 +96,11 @@ public abstract class DiffTask implements Callable<DiffResult> {
     protected MongoCursor<RawBsonDocument> sourceCursor = null;
     protected MongoCursor<RawBsonDocument> destCursor = null;
 
-    protected Map<BsonValue, String> sourceDocs = null;
-    protected Map<BsonValue, String> destDocs = null;
+    protected DigestTable sourceDocs = null;
+    protected DigestTable destDocs = null;
+
+    // source time this task's result is recorded against, see getClusterTime()
+    protected BsonTimestamp clusterTime;
 
     public DiffTask(DiffConfiguration config, Namespace namespace, DiffSummary summary) {
         this.config = config;
@@ -91,9 +121,11 @@ public abstract class DiffTask implements Callable<DiffResult> {
     public DiffResult call() throws Exception {
         DiffResult result;
         start = System.currentTimeMillis();
+        clusterTime = getClusterTime();
 
         try {
             result = computeDiff();
+            result.setClusterTime(clusterTime);
         } catch (Exception e) {
             logger.error("[{}] fatal error diffing ({})",
                     Thread.currentThread().getName(), unitString(), e);
@@ -107,58 +139,111 @@ public abstract class DiffTask implements Callable<DiffResult> {
         return result;
     }
 
+    /**
+     * Source cluster time to record against this task's result, read before any
+     * document is loaded. Null unless the task knows how to read it.
+     */
+    protected BsonTimestamp getClusterTime() {
+        return null;
+    }
+
+    /**
+     * Read concern for a snapshot read of <code>target</code> (a <code>find</code> command
+     * read concern document, e.g. <code>{level: "snapshot", atClusterTime: ...}</code>),
+     * or null to read with the client's defaults.
+     */
+    protected BsonDocument getSnapshotReadConcern(Target target) {
+        return null;
+    }
+
     protected DiffResult computeDiff() {
         return computeDiff(null);
     }
 
     protected DiffResult computeDiff(Collection<BsonValue> ids) {
+        boolean fullScan = ids == null || ids.isEmpty();
+        if (fullScan && config.isServerSideHash()) {
+            return computeServerHashedDiff();
+        }
+        if (fullScan && config.isStreamingDiff()) {
+            return computeStreamingDiff();
+        }
 
-        for (int i = 1; i <= 3; i++) {
+        loadBoth(ids, false);
+        return doComparison();
+    }
+
+    private void loadBoth(Collection<BsonValue> ids, boolean serverHashed) {
+        for (int i = 1; ; i++) {
             try {
-                sourceDocs = load(ids, SOURCE);
-                destDocs = load(ids, DEST);
-                break;
+                sourceDocs = load(ids, SOURCE, serverHashed);
+                destDocs = load(ids, DEST, serverHashed);
+                return;
             } catch (MongoException me) {
+                if (i >= 3) {
+                    throw me;
+                }
                 logger.warn("computeDiff caught mongo exception on attempt " + i, me);
             }
         }
-        return doComparison();
+    }
+
+    /**
+     * Diffs using digests computed by the server (see {@link #SERVER_DOC_HASH}), so that
+     * only <code>_id</code> plus a 64-bit hash and the document size cross the network for
+     * each document. Ids with equal digests count as matches; any ids whose digests differ
+     * (or exist on only one side) are then re-fetched in full and compared with the regular
+     * md5 path, so the reported mismatches are the same as for a full-document diff.
+     */
+    protected DiffResult computeServerHashedDiff() {
+        loadBoth(null, true);
+        DiffResult hashed = doComparison();
+        if (hashed.getFailedKeys().isEmpty()) {
+            return hashed;
+        }
+        long hashedBytes = hashed.getBytesProcessed();
+        logger.debug("[{}] server side hashes differ for {} ids, fetching full documents ({})",
+                Thread.currentThread().getName(), hashed.getFailedKeys().size(), unitString());
+
+        DiffResult full = computeDiff(hashed.getFailedKeys());
+        return new DiffResult(hashed.getMatches() + full.getMatches(), hashedBytes + full.getBytesProcessed(),
+                full.getMismatchedEntries(), full.getSrcOnlyKeys(), full.getDestOnlyKeys(), namespace, chunkDef);
     }
 
     private DiffResult doComparison() {
         long compStart = System.currentTimeMillis();
-        MapDifference<BsonValue, String> diff = Maps.difference(sourceDocs, destDocs);
 
         Set<DiffResult.MismatchEntry> mismatches = new HashSet<>();
         Set<BsonValue> srcOnly = new HashSet<>();
         Set<BsonValue> destOnly = new HashSet<>();
-        int numMatches;
-        if (diff.areEqual()) {
-            numMatches = sourceDocs.size();
-//            result.setMatches(numMatches);
-        } else {
-            Map<BsonValue, ValueDifference<String>> valueDiff = diff.entriesDiffering();
-            for (Map.Entry<BsonValue, ValueDifference<String>> entry : valueDiff.entrySet()) {
-                BsonValue key = entry.getKey();
-                ValueDifference<String> val = entry.getValue();
-                mismatches.add(new DiffResult.MismatchEntry(key, val.leftValue(), val.rightValue()));
+        long numMatches = 0;
+        int destFound = 0;
+        for (int slot = 0; slot < sourceDocs.capacity(); slot++) {
+            if (!sourceDocs.isOccupied(slot)) {
+                continue;
             }
-            Set<BsonValue> onlyOnSource = diff.entriesOnlyOnLeft().keySet();
-            if (!onlyOnSource.isEmpty()) {
-                //logger.debug("[{}] {} - diff failure, onlyOnSource: {}", Thread.currentThread().getName(), namespace, onlyOnSource);
-                srcOnly.addAll(onlyOnSource);
+            int destSlot = destDocs.find(sourceDocs, slot);
+            if (destSlot < 0) {
+                srcOnly.add(sourceDocs.getId(slot));
+                continue;
             }
-
-            Set<BsonValue> onlyOnDest = diff.entriesOnlyOnRight().keySet();
-            if (!onlyOnDest.isEmpty()) {
-                //logger.warn("[{}] {} - diff failure, onlyOnDest: {}", Thread.currentThread().getName(), namespace, onlyOnDest);
-                destOnly.addAll(onlyOnDest);
+            destFound++;
+            if (sourceDocs.getHigh(slot) == destDocs.getHigh(destSlot)
+                    && sourceDocs.getLow(slot) == destDocs.getLow(destSlot)) {
+                numMatches++;
+            } else {
+                mismatches.add(new DiffResult.MismatchEntry(sourceDocs.getId(slot),
+                        sourceDocs.getDigest(slot), destDocs.getDigest(destSlot)));
             }
-
-            numMatches = (int) (sourceDocs.size() - valueDiff.size()
-                    - onlyOnSource.size() - onlyOnDest.size());
-//            result.setMatches(numMatches);
         }
+        if (destFound < destDocs.size()) {
+            for (int slot = 0; slot < destDocs.capacity(); slot++) {
+                if (destDocs.isOccupied(slot) && sourceDocs.find(destDocs, slot) < 0) {
+                    destOnly.add(destDocs.getId(slot));
+                }
+            }
+        }
+
         long bytes = Math.max(sourceBytesProcessed, destBytesProcessed);
         long diffTime = System.currentTimeMillis() - compStart;
         logger.trace("[{}] computed diff in {} ms ({})",
@@ -166,6 +251,80 @@ public abstract class DiffTask implements Callable<DiffResult> {
         return new DiffResult(numMatches, bytes, mismatches, srcOnly, destOnly, namespace, chunkDef);
     }
 
+    /**
+     * Compares source and dest without materializing either side. Both cursors are
+     * read in the same index order (dest on a prefetch thread, so that source and dest
+     * I/O overlap), with the snapshot read concern if there is one, and joined on
+     * <code>_id</code> as they arrive, see {@link StreamingMergeJoin}. Only documents that
+     * have been seen on one side but not yet on the other are held in memory. That is a
+     * handful for two mostly-in-sync clusters, but it grows with every id missing on one
+     * side and with the drift between the cursors, so past
+     * <code>STREAMING_MAX_PENDING</code> held documents the held digests and the rest of
+     * both cursors are loaded into digest tables and diffed like the default mode.
+     */
+    protected DiffResult computeStreamingDiff() {
+        boolean snapshot = true;
+        for (int i = 1; ; i++) {
+            try {
+                return streamingComparison(snapshot);
+            } catch (MongoException me) {
+                if (snapshot && me instanceof MongoCommandException && getSnapshotReadConcern(SOURCE) != null) {
+                    // e.g. SnapshotTooOld, or a server without snapshot reads
+                    logger.warn("[{}] snapshot read failed, streaming without snapshot ({}): {}",
+                            Thread.currentThread().getName(), unitString(), me.getMessage());
+                    snapshot = false;
+                    continue;
+                }
+                if (i >= 3) {
+                    throw me;
+                }
+                logger.warn("computeStreamingDiff caught mongo exception on attempt " + i, me);
+            }
+        }
+    }
+
+    private DiffResult streamingComparison(boolean snapshot) {
+        long compStart = System.currentTimeMillis();
+        StreamingMergeJoin join = new StreamingMergeJoin(STREAMING_MAX_PENDING);
+        DiffResult rest = null;
+
+        try (MongoCursor<RawBsonDocument> srcIter = openCursor(null, SOURCE, true, false,
+                snapshot ? getSnapshotReadConcern(SOURCE) : null);
+             CursorPrefetcher destIter = new CursorPrefetcher(openCursor(null, DEST, true, false,
+                     snapshot ? getSnapshotReadConcern(DEST) : null),
+                     STREAMING_PREFETCH_BATCH_SIZE, STREAMING_PREFETCH_BATCHES)) {
+            if (!join.join(srcIter, destIter)) {
+                logger.warn("[{}] streamed diff holds over {} unmatched docs, loading the rest of both sides ({})",
+                        Thread.currentThread().getName(), STREAMING_MAX_PENDING, unitString());
+                sourceDocs = new DigestTable(expectedLoadSize(null));
+                destDocs = new DigestTable(expectedLoadSize(null));
+                join.spillInto(sourceDocs, destDocs);
+                sourceBytesProcessed = join.getSourceBytes() + readInto(sourceDocs, srcIter, false);
+                destBytesProcessed = join.getDestBytes() + readInto(destDocs, destIter, false);
+                rest = doComparison();
+            }
+        }
+
+        if (rest == null) {
+            sourceBytesProcessed = join.getSourceBytes();
+            destBytesProcessed = join.getDestBytes();
+        }
+        long bytes = Math.max(sourceBytesProcessed, destBytesProcessed);
+        if (logger.isTraceEnabled()) {
+            logger.trace("[{}] streamed diff in {} ms, max {} unmatched docs held ({})",
+                    Thread.currentThread().getName(), System.currentTimeMillis() - compStart,
+                    join.getMaxHeld(), unitString());
+        }
+        if (rest == null) {
+            return new DiffResult(join.getMatches(), bytes, join.getMismatches(), join.getSourceOnly(),
+                    join.getDestOnly(), namespace, chunkDef);
+        }
+        Set<DiffResult.MismatchEntry> mismatches = new HashSet<>(join.getMismatches());
+        mismatches.addAll(rest.getMismatchedEntries());
+        return new DiffResult(join.getMatches() + rest.getMatches(), bytes, mismatches, rest.getSrcOnlyKeys(),
+                rest.getDestOnlyKeys(), namespace, chunkDef);
+    }
+
     protected abstract MongoClient getLoadClient(Target target);
 
     private BsonDocument findHintDoc(BsonDocument ref) {
@@ -201,12 +360,14 @@ public abstract class DiffTask implements Callable<DiffResult> {
         }).get().getSourceSpec().toBsonDocument();
     }
 
-    protected Map<BsonValue, String> load(Collection<BsonValue> ids, Target target) {
+    /**
+     * Builds the find for this task's chunk/partition (or for an explicit set of ids).
+     * When <code>ordered</code> is set, both sides are guaranteed to be returned in the
+     * same index order: <code>_id</code> order for partitions and unsharded collections,
+     * shard key index order for shard chunks.
+     */
+    protected FindIterable<RawBsonDocument> getFinder(Collection<BsonValue> ids, Target target, boolean ordered) {
         MongoClient loadClient = getLoadClient(target);
-        long bytesProcessed = 0;
-
-        Map<BsonValue, String> output = new HashMap<>();
-        long loadStart = System.currentTimeMillis();
         MongoCollection<RawBsonDocument> coll = getRawCollection(loadClient, namespace.getNamespace());
         FindIterable<RawBsonDocument> finder;
 
@@ -225,22 +386,49 @@ public abstract class DiffTask implements Callable<DiffResult> {
             } else {
                 BsonDocument min = chunkDef.getMin();
                 BsonDocument max = chunkDef.getMax();
-                Set<String> shardKeys = min.keySet();
                 BsonDocument hintDoc = findHintDoc(min);
 
                 logger.debug("hint: {}", hintDoc);
-                finder = coll.find().min(min).max(max).hint(hintDoc.getDocument("key")).batchSize(10000);
+                // min/max with a hint already walks the shard key index in order
+                return coll.find().min(min).max(max).hint(hintDoc.getDocument("key")).batchSize(10000);
             }
         }
+        if (ordered) {
+            finder = finder.sort(ID_ORDER).hint(ID_ORDER);
+        }
+        return finder;
+    }
 
-        for (RawBsonDocument doc : finder) {
-            BsonValue id = doc.get("_id");
-            ByteBuf bb = doc.getByteBuffer();
-            byte[] docBytes = bb.array();
-            bytesProcessed += bb.remaining();
+    protected DigestTable load(Collection<BsonValue> ids, Target target) {
+        return load(ids, target, false);
+    }
 
-            String docHash = CodecUtils.md5Hex(docBytes);
-            output.put(id, docHash);
+    /**
+     * Loads the digests of this task's documents. When <code>serverHashed</code> is set
+     * the server projects each document down to its <code>_id</code>, a
+     * {@link #SERVER_DOC_HASH} of the whole document and its <code>$bsonSize</code>
+     * (MongoDB 4.4+ find projection expressions, $toHashedIndexKey needs 6.0+), and the
+     * digest is made of the hash and the size instead of a client side md5.
+     */
+    protected DigestTable load(Collection<BsonValue> ids, Target target, boolean serverHashed) {
+        long bytesProcessed = 0;
+
+        DigestTable output = new DigestTable(expectedLoadSize(ids));
+        long loadStart = System.currentTimeMillis();
+        BsonDocument readConcern = getSnapshotReadConcern(target);
+        try (MongoCursor<RawBsonDocument> cursor = openCursor(ids, target, false, serverHashed, readConcern)) {
+            bytesProcessed = readInto(output, cursor, serverHashed);
+        } catch (MongoCommandException e) {
+            if (readConcern == null) {
+                throw e;
+            }
+            // e.g. SnapshotTooOld, or a server without snapshot reads
+            logger.warn("[{}] {} snapshot read failed, reading without snapshot ({}): {}",
+                    Thread.currentThread().getName(), target.getName(), unitString(), e.getMessage());
+            output = new DigestTable(expectedLoadSize(ids));
+            try (MongoCursor<RawBsonDocument> cursor = openCursor(ids, target, false, serverHashed, null)) {
+                bytesProcessed = readInto(output, cursor, serverHashed);
+            }
         }
         switch (target) {
             case SOURCE:
@@ -262,6 +450,86 @@ public abstract class DiffTask implements Callable<DiffResult> {
         return output;
     }
 
+    /**
+     * Opens a cursor over this task's documents (or <code>ids</code>), as a snapshot read
+     * when <code>readConcern</code> is set.
+     */
+    private MongoCursor<RawBsonDocument> openCursor(Collection<BsonValue> ids, Target target, boolean ordered,
+                                                    boolean serverHashed, BsonDocument readConcern) {
+        if (readConcern != null) {
+            return new SnapshotFind(getLoadClient(target), namespace.getDatabaseName(),
+                    snapshotFindCommand(ids, ordered, serverHashed, readConcern)).iterator();
+        }
+        FindIterable<RawBsonDocument> finder = getFinder(ids, target, ordered);
+        if (serverHashed) {
+            finder = finder.projection(SERVER_HASH_PROJECTION);
+        }
+        return finder.iterator();
+    }
+
+    private static long readInto(DigestTable output, Iterator<RawBsonDocument> docs, boolean serverHashed) {
+        long bytesProcessed = 0;
+        while (docs.hasNext()) {
+            RawBsonDocument doc = docs.next();
+            if (serverHashed) {
+                int size = doc.getInt32(SERVER_SIZE_FIELD).getValue();
+                bytesProcessed += size;
+                output.put(doc, doc.getInt64(SERVER_HASH_FIELD).getValue(), size);
+                continue;
+            }
+            ByteBuf bb = doc.getByteBuffer();
+            bytesProcessed += bb.remaining();
+
+            byte[] md5 = CodecUtils.md5Into(bb.array(), bb.position(), bb.remaining());
+            output.put(doc, DocumentDigest.high(md5), DocumentDigest.low(md5));
+        }
+        return bytesProcessed;
+    }
+
+    /**
+     * The <code>find</code> command equivalent of the getFinder() query, with the given
+     * read concern.
+     */
+    private BsonDocument snapshotFindCommand(Collection<BsonValue> ids, boolean ordered, boolean serverHashed,
+                                             BsonDocument readConcern) {
+        BsonDocument cmd = new BsonDocument("find", new BsonString(namespace.getCollectionName()));
+        if (ids != null && ids.size() > 0) {
+            cmd.append("filter", toBsonDocument(formIdsQuery(ids)));
+        } else if (this instanceof PartitionDiffTask) {
+            cmd.append("filter", toBsonDocument(((PartitionDiffTask) this).getPartitionDiffQuery()));
+        } else if (chunkDef.getMin() != null) {
+            // min/max with a hint already walks the shard key index in order
+            cmd.append("min", chunkDef.getMin());
+            cmd.append("max", chunkDef.getMax());
+            cmd.append("hint", findHintDoc(chunkDef.getMin()).getDocument("key"));
+            ordered = false;
+        }
+        if (ordered) {
+            cmd.append("sort", toBsonDocument(ID_ORDER));
+            cmd.append("hint", toBsonDocument(ID_ORDER));
+        }
+        if (serverHashed) {
+            cmd.append("projection", toBsonDocument(SERVER_HASH_PROJECTION));
+        }
+        cmd.append("batchSize", new BsonInt32(10000));
+        cmd.append("readConcern", readConcern);
+        return cmd;
+    }
+
+    private static BsonDocument toBsonDocument(Bson bson) {
+        return bson.toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry());
+    }
+
+    private int expectedLoadSize(Collection<BsonValue> ids) {
+        if (ids != null && ids.size() > 0) {
+            return ids.size();
+        } else if (this instanceof PartitionDiffTask) {
+            return (int) Math.min(Integer.MAX_VALUE / 2,
+                    ((PartitionDiffTask) this).getPartition().getEstimatedDocCount());
+        }
+        return 1024;
+    }
+
     protected Bson formIdsQuery(Collection<BsonValue> ids) {
 //        List<Document> idDocs = ids.stream().map(i -> Document.parse(i)).collect(Collectors.toList());
         return Filters.in("_id", ids);
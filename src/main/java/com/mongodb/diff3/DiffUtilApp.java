@@ -1,5 +1,6 @@
 package com.mongodb.diff3;
 
+import static com.mongodb.diff3.DiffConfiguration.INCREMENTAL_MODE;
 import static com.mongodb.diff3.DiffConfiguration.PARTITION_MODE;
 import static com.mongodb.diff3.DiffConfiguration.SHARD_MODE;
 import static com.mongodb.diff3.DiffConfiguration.RECHECK_MODE;
@@ -30,6 +31,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.mongodb.diff3.partition.PartitionDiffUtil;
+import com.mongodb.diff3.shard.IncrementalDiffUtil;
 import com.mongodb.diff3.shard.ShardDiffUtil;
 
 public class DiffUtilApp {
@@ -57,6 +59,20 @@ public class DiffUtilApp {
     private final static String SYNC_MISMATCHES = "syncMismatches";
     private final static String FILTER = "filter";
     private static final String BYPASS_MONGOS = "bypassMongos";
+    private final static String STREAMING_DIFF = "streamingDiff";
+    private final static String SERVER_SIDE_HASH = "serverSideHash";
+    private final static String MERKLE_DIFF = "merkleDiff";
+    private final static String MERKLE_LEAF_DOCS = "merkleLeafDocs";
+    private final static String MERKLE_FAN_OUT = "merkleFanOut";
+    private final static String MERKLE_MAX_DEPTH = "merkleMaxDepth";
+    private final static String ADAPTIVE_PARTITIONING = "adaptivePartitioning";
+    private final static String MAX_THREADS_PER_SHARD = "maxThreadsPerShard";
+    private final static String RECHECK_RETRIES = "recheckRetries";
+    private final static String SECONDARY_READS = "secondaryReads";
+    private final static String MAX_SECONDARY_LAG_SECS = "maxSecondaryLagSecs";
+    private final static String SNAPSHOT_READS = "snapshotReads";
+    private final static String SYNC_TIMESTAMP_DIR = "syncTimestampDir";
+    private final static String SNAPSHOT_WAIT_SECS = "snapshotWaitSecs";
 
     private final static String DEFAULT_THREADS = "8";
     private final static String DEFAULT_SAMPLE_RATE = "0.04";
@@ -66,6 +82,9 @@ public class DiffUtilApp {
     private final static String DEFAULT_MAX_RETRIES = "5";
     private final static String DEFAULT_STATUS_DB_NAME = "Diff3";
     private final static String DEFAULT_STATUS_DB_COLL_NAME = "Status";
+    private final static String DEFAULT_MERKLE_LEAF_DOCS = "10000";
+    private final static String DEFAULT_MERKLE_FAN_OUT = "8";
+    private final static String DEFAULT_MERKLE_MAX_DEPTH = "6";
 
     @SuppressWarnings("static-access")
     private static CommandLine initializeAndParseCommandLineOptions(String[] args) {
@@ -82,7 +101,7 @@ public class DiffUtilApp {
 
         options.addOption(withArgName("Number of worker threads").hasArg()
                 .withLongOpt(THREADS).create("t"));
-        options.addOption(withArgName("Mode (one of: [shard, partition {default}])").hasArg()
+        options.addOption(withArgName("Mode (one of: [shard, partition {default}, recheck, incremental])").hasArg()
                 .withLongOpt("mode").create());
         options.addOption(withArgName("Sample rate for partitions").hasArg()
                 .withLongOpt(SAMPLE_RATE).create());
@@ -98,6 +117,34 @@ public class DiffUtilApp {
         options.addOption(withArgName("Status DB Collection Name").hasArg().withLongOpt(STATUS_DB_COLL_NAME).create());
         options.addOption(OptionBuilder.withArgName("Bypass mongos (requires exact chunk alignment between source and target")
                 .hasArg().withLongOpt(BYPASS_MONGOS).create(BYPASS_MONGOS));
+        options.addOption(withArgName("Stream and merge-join source/dest instead of loading each chunk into memory")
+                .hasArg().withLongOpt(STREAMING_DIFF).create());
+        options.addOption(withArgName("Hash documents on the server, only fetch full documents for ids that differ")
+                .hasArg().withLongOpt(SERVER_SIDE_HASH).create());
+        options.addOption(withArgName("Partition mode: compare range digests and only diff ranges that differ")
+                .hasArg().withLongOpt(MERKLE_DIFF).create());
+        options.addOption(withArgName("Max docs in a range before it is diffed document by document").hasArg()
+                .withLongOpt(MERKLE_LEAF_DOCS).create());
+        options.addOption(withArgName("Number of sub-ranges a differing range is split into").hasArg()
+                .withLongOpt(MERKLE_FAN_OUT).create());
+        options.addOption(withArgName("Max range split depth").hasArg()
+                .withLongOpt(MERKLE_MAX_DEPTH).create());
+        options.addOption(withArgName("Partition mode: split partitions found to be oversized while diffing them")
+                .hasArg().withLongOpt(ADAPTIVE_PARTITIONING).create());
+        options.addOption(withArgName("Shard mode: max concurrent diff tasks per source shard (default 2x fair share)")
+                .hasArg().withLongOpt(MAX_THREADS_PER_SHARD).create());
+        options.addOption(withArgName("Recheck mode: retries, with exponential backoff, of ids that still differ")
+                .hasArg().withLongOpt(RECHECK_RETRIES).create());
+        options.addOption(withArgName("Shard mode: read from the least loaded, caught up secondary of each shard")
+                .hasArg().withLongOpt(SECONDARY_READS).create());
+        options.addOption(withArgName("Max replication lag of a secondary to read from (seconds)")
+                .hasArg().withLongOpt(MAX_SECONDARY_LAG_SECS).create());
+        options.addOption(withArgName("Shard mode: read source at a snapshot, dest once the sync has applied through it")
+                .hasArg().withLongOpt(SNAPSHOT_READS).create());
+        options.addOption(withArgName("Directory of the sync tool's <shard>.timestamp files")
+                .hasArg().withLongOpt(SYNC_TIMESTAMP_DIR).create());
+        options.addOption(withArgName("Max wait for the sync to apply through a snapshot (seconds)")
+                .hasArg().withLongOpt(SNAPSHOT_WAIT_SECS).create());
         CommandLineParser parser = new GnuParser();
 
         try {
@@ -180,6 +227,32 @@ public class DiffUtilApp {
         config.setDestRsManual(properties.getStringArray(DEST_RS_MANUAL));
         config.setBypassMongos(Boolean.parseBoolean(getConfigValue(
                 line, properties, BYPASS_MONGOS, "true")));
+        config.setStreamingDiff(Boolean.parseBoolean(getConfigValue(
+                line, properties, STREAMING_DIFF, "false")));
+        config.setServerSideHash(Boolean.parseBoolean(getConfigValue(
+                line, properties, SERVER_SIDE_HASH, "false")));
+        config.setMerkleDiff(Boolean.parseBoolean(getConfigValue(line, properties, MERKLE_DIFF, "false")));
+        config.setMerkleLeafDocs(Long.parseLong(
+                getConfigValue(line, properties, MERKLE_LEAF_DOCS, DEFAULT_MERKLE_LEAF_DOCS)));
+        config.setMerkleFanOut(Integer.parseInt(
+                getConfigValue(line, properties, MERKLE_FAN_OUT, DEFAULT_MERKLE_FAN_OUT)));
+        config.setMerkleMaxDepth(Integer.parseInt(
+                getConfigValue(line, properties, MERKLE_MAX_DEPTH, DEFAULT_MERKLE_MAX_DEPTH)));
+        config.setAdaptivePartitioning(Boolean.parseBoolean(
+                getConfigValue(line, properties, ADAPTIVE_PARTITIONING, "false")));
+        config.setMaxThreadsPerShard(Integer.parseInt(
+                getConfigValue(line, properties, MAX_THREADS_PER_SHARD, "0")));
+        config.setRecheckRetries(Integer.parseInt(
+                getConfigValue(line, properties, RECHECK_RETRIES, "3")));
+        config.setSecondaryReads(Boolean.parseBoolean(
+                getConfigValue(line, properties, SECONDARY_READS, "false")));
+        config.setMaxSecondaryLagSecs(Long.parseLong(
+                getConfigValue(line, properties, MAX_SECONDARY_LAG_SECS, "10")));
+        config.setSnapshotReads(Boolean.parseBoolean(
+                getConfigValue(line, properties, SNAPSHOT_READS, "false")));
+        config.setSyncTimestampDir(getConfigValue(line, properties, SYNC_TIMESTAMP_DIR));
+        config.setSnapshotWaitSecs(Integer.parseInt(
+                getConfigValue(line, properties, SNAPSHOT_WAIT_SECS, "60")));
 
         Set<Namespace> inclNamespaces = new HashSet<>();
         String[] filters = getConfigValues(line, properties, FILTER);
@@ -201,20 +274,28 @@ public class DiffUtilApp {
         }
 
         config.setNamespaceFilters(line.getOptionValues("f"));
-        if (config.getMode().equals(PARTITION_MODE)) {
-            PartitionDiffUtil diffUtil = new PartitionDiffUtil(config);
-            diffUtil.run();
-        } else if (config.getMode().equals(SHARD_MODE)) {
-            ShardDiffUtil shardDiffUtil = new ShardDiffUtil(config);
-            shardDiffUtil.run();
-            
-        } else if (config.getMode().equals(RECHECK_MODE)) {
-        	RecheckUtil rechecker = new RecheckUtil(config);
-        	rechecker.recheck();
-        	
-        } else {
-            System.out.println("Unknown mode: " + config.getMode() + ". Exiting.");
-            System.exit(1);
+        try {
+            if (config.getMode().equals(PARTITION_MODE)) {
+                PartitionDiffUtil diffUtil = new PartitionDiffUtil(config);
+                diffUtil.run();
+            } else if (config.getMode().equals(SHARD_MODE)) {
+                ShardDiffUtil shardDiffUtil = new ShardDiffUtil(config);
+                shardDiffUtil.run();
+
+            } else if (config.getMode().equals(RECHECK_MODE)) {
+                RecheckUtil rechecker = new RecheckUtil(config);
+                rechecker.recheck();
+
+            } else if (config.getMode().equals(INCREMENTAL_MODE)) {
+                IncrementalDiffUtil incrementalDiffUtil = new IncrementalDiffUtil(config);
+                incrementalDiffUtil.run();
+
+            } else {
+                System.out.println("Unknown mode: " + config.getMode() + ". Exiting.");
+                System.exit(1);
+            }
+        } finally {
+            config.closeDiffSummaryClient();
         }
 
     }
@@ -0,0 +1,234 @@
+package com.mongodb.diff3;
+
+import java.util.Arrays;
+
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.ByteBuf;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+
+import com.mongodb.util.bson.RawBsonScanner;
+
+/**
+ * Open-addressing (linear probing) map of document <code>_id</code> to 128-bit
+ * {@link DocumentDigest}, held entirely in primitive arrays.
+ * <p>
+ * Keys are the normalized encoding of the <code>_id</code> value, i.e. its BSON type
+ * byte followed by its raw BSON value bytes, copied out of the source document into
+ * a single shared byte arena. No BsonValue or String is allocated per entry; ids are
+ * only decoded back to BsonValues (via {@link #getId(int)}) for the entries that are
+ * reported as differences.
+ * <p>
+ * Not thread safe.
+ */
+public class DigestTable {
+
+    private static final int EMPTY = -1;
+    private static final float MAX_LOAD = 0.7f;
+    // the expected size is only an estimate: pre-size for at most this many entries and
+    // grow on demand past it
+    private static final int MAX_EXPECTED_SIZE = 1 << 20;
+    private static final int MAX_CAPACITY = 1 << 30;
+    private static final int MAX_ARENA = Integer.MAX_VALUE - 8;
+    private static final byte[] ID_NAME = {'_', 'i', 'd', 0};
+    private static final BsonDocumentCodec CODEC = new BsonDocumentCodec();
+
+    private byte[] arena;
+    private int arenaSize;
+
+    private int[] keyOffsets;
+    private int[] keyLengths;
+    private int[] hashes;
+    private long[] highs;
+    private long[] lows;
+    private int mask;
+    private int size;
+    private int resizeThreshold;
+
+    public DigestTable() {
+        this(1024);
+    }
+
+    public DigestTable(int expectedSize) {
+        int expected = Math.max(0, Math.min(expectedSize, MAX_EXPECTED_SIZE));
+        int capacity = Integer.highestOneBit(Math.max(16, (int) (expected / MAX_LOAD)) - 1) << 1;
+        allocate(capacity);
+        arena = new byte[Math.max(256, expected * 16)];
+    }
+
+    private void allocate(int capacity) {
+        keyOffsets = new int[capacity];
+        Arrays.fill(keyOffsets, EMPTY);
+        keyLengths = new int[capacity];
+        hashes = new int[capacity];
+        highs = new long[capacity];
+        lows = new long[capacity];
+        mask = capacity - 1;
+        resizeThreshold = (int) (capacity * MAX_LOAD);
+    }
+
+    /**
+     * Adds the <code>_id</code> of <code>doc</code> with the given digest, replacing the
+     * digest if the id is already present.
+     */
+    public void put(RawBsonDocument doc, long high, long low) {
+        ByteBuf bb = doc.getByteBuffer();
+        byte[] bytes = bb.array();
+        int element = RawBsonScanner.findElement(bytes, bb.position(), "_id");
+        if (element < 0) {
+            throw new IllegalArgumentException("Document has no _id");
+        }
+        int valueOffset = RawBsonScanner.valueOffset(bytes, element);
+        int valueLength = RawBsonScanner.valueLength(bytes, bytes[element], valueOffset);
+
+        // append the key speculatively; it is rolled back if the id is already present
+        int keyOffset = arenaSize;
+        int keyLength = 1 + valueLength;
+        ensureArena(keyLength);
+        arena[arenaSize] = bytes[element];
+        System.arraycopy(bytes, valueOffset, arena, arenaSize + 1, valueLength);
+        arenaSize += keyLength;
+
+        int hash = hash(arena, keyOffset, keyLength);
+        int slot = probe(arena, keyOffset, keyLength, hash);
+        highs[slot] = high;
+        lows[slot] = low;
+        if (keyOffsets[slot] != EMPTY) {
+            arenaSize = keyOffset;
+            return;
+        }
+        keyOffsets[slot] = keyOffset;
+        keyLengths[slot] = keyLength;
+        hashes[slot] = hash;
+        if (++size > resizeThreshold) {
+            resize();
+        }
+    }
+
+    /**
+     * Adds <code>id</code> with the given digest, like {@link #put(RawBsonDocument, long, long)}.
+     */
+    public void put(BsonValue id, long high, long low) {
+        put(new RawBsonDocument(new BsonDocument("_id", id), CODEC), high, low);
+    }
+
+    /**
+     * Returns the slot in this table holding the key found at <code>otherSlot</code> of
+     * <code>other</code>, or -1 if this table does not contain it.
+     */
+    public int find(DigestTable other, int otherSlot) {
+        int offset = other.keyOffsets[otherSlot];
+        int length = other.keyLengths[otherSlot];
+        int slot = probe(other.arena, offset, length, other.hashes[otherSlot]);
+        return keyOffsets[slot] == EMPTY ? -1 : slot;
+    }
+
+    private int probe(byte[] key, int offset, int length, int hash) {
+        int slot = hash & mask;
+        while (keyOffsets[slot] != EMPTY) {
+            if (hashes[slot] == hash && keyLengths[slot] == length
+                    && Arrays.equals(arena, keyOffsets[slot], keyOffsets[slot] + length, key, offset, offset + length)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void resize() {
+        if (keyOffsets.length == MAX_CAPACITY) {
+            throw new IllegalStateException("DigestTable is full: " + size + " entries");
+        }
+        int[] oldOffsets = keyOffsets;
+        int[] oldLengths = keyLengths;
+        int[] oldHashes = hashes;
+        long[] oldHighs = highs;
+        long[] oldLows = lows;
+        allocate(oldOffsets.length << 1);
+        for (int i = 0; i < oldOffsets.length; i++) {
+            if (oldOffsets[i] == EMPTY) {
+                continue;
+            }
+            int slot = oldHashes[i] & mask;
+            while (keyOffsets[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            keyOffsets[slot] = oldOffsets[i];
+            keyLengths[slot] = oldLengths[i];
+            hashes[slot] = oldHashes[i];
+            highs[slot] = oldHighs[i];
+            lows[slot] = oldLows[i];
+        }
+    }
+
+    private void ensureArena(int needed) {
+        long required = (long) arenaSize + needed;
+        if (required > arena.length) {
+            if (required > MAX_ARENA) {
+                throw new IllegalStateException("DigestTable key arena is full: " + size + " entries");
+            }
+            arena = Arrays.copyOf(arena, (int) Math.min(MAX_ARENA, Math.max(2L * arena.length, required)));
+        }
+    }
+
+    private static int hash(byte[] bytes, int offset, int length) {
+        int h = 0x811c9dc5;
+        for (int i = offset; i < offset + length; i++) {
+            h = (h ^ (bytes[i] & 0xff)) * 0x01000193;
+        }
+        // murmur3 fmix32, so that linear probing sees well spread low bits
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Number of slots; valid slot indexes are <code>0 .. capacity() - 1</code>.
+     */
+    public int capacity() {
+        return keyOffsets.length;
+    }
+
+    public boolean isOccupied(int slot) {
+        return keyOffsets[slot] != EMPTY;
+    }
+
+    public long getHigh(int slot) {
+        return highs[slot];
+    }
+
+    public long getLow(int slot) {
+        return lows[slot];
+    }
+
+    public DocumentDigest getDigest(int slot) {
+        return new DocumentDigest(highs[slot], lows[slot]);
+    }
+
+    /**
+     * Decodes the key at <code>slot</code> back into the original <code>_id</code> value.
+     */
+    public BsonValue getId(int slot) {
+        int keyOffset = keyOffsets[slot];
+        int valueLength = keyLengths[slot] - 1;
+        int docLength = 4 + 1 + ID_NAME.length + valueLength + 1;
+        byte[] doc = new byte[docLength];
+        doc[0] = (byte) docLength;
+        doc[1] = (byte) (docLength >>> 8);
+        doc[2] = (byte) (docLength >>> 16);
+        doc[3] = (byte) (docLength >>> 24);
+        doc[4] = arena[keyOffset];
+        System.arraycopy(ID_NAME, 0, doc, 5, ID_NAME.length);
+        System.arraycopy(arena, keyOffset + 1, doc, 5 + ID_NAME.length, valueLength);
+        doc[docLength - 1] = 0;
+        return new RawBsonDocument(doc).get("_id");
+    }
+}
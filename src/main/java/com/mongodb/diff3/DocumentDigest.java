@@ -0,0 +1,72 @@
+package com.mongodb.diff3;
+
+import com.mongodb.util.CodecUtils;
+
+/**
+ * A 128-bit document digest (md5 of the raw BSON bytes) held as two longs rather
+ * than as a 32 character hex String.
+ */
+public final class DocumentDigest {
+    private final long high;
+    private final long low;
+
+    public DocumentDigest(long high, long low) {
+        this.high = high;
+        this.low = low;
+    }
+
+    public static DocumentDigest of(byte[] md5) {
+        return new DocumentDigest(high(md5), low(md5));
+    }
+
+    public static long high(byte[] md5) {
+        return toLong(md5, 0);
+    }
+
+    public static long low(byte[] md5) {
+        return toLong(md5, 8);
+    }
+
+    private static long toLong(byte[] b, int offset) {
+        long v = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            v = (v << 8) | (b[i] & 0xff);
+        }
+        return v;
+    }
+
+    public long getHigh() {
+        return high;
+    }
+
+    public long getLow() {
+        return low;
+    }
+
+    public String toHex() {
+        byte[] b = new byte[CodecUtils.MD5_BYTE_SIZE];
+        for (int i = 0; i < 8; i++) {
+            b[i] = (byte) (high >>> (56 - 8 * i));
+            b[i + 8] = (byte) (low >>> (56 - 8 * i));
+        }
+        return CodecUtils.toHex(b);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        DocumentDigest that = (DocumentDigest) o;
+        return high == that.high && low == that.low;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(high * 31 + low);
+    }
+
+    @Override
+    public String toString() {
+        return toHex();
+    }
+}
@@ -2,22 +2,33 @@ package com.mongodb.diff3;
 
 import static com.mongodb.client.model.Filters.eq;
 import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Projections.include;
 import static com.mongodb.client.model.Updates.pullAll;
 import static com.mongodb.ErrorCategory.DUPLICATE_KEY;
 
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import org.bson.BsonArray;
 import org.bson.BsonDocument;
 import org.bson.BsonValue;
+import org.bson.Document;
 import org.bson.RawBsonDocument;
 import org.bson.UuidRepresentation;
 import org.bson.conversions.Bson;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.mongodb.ConnectionString;
 import com.mongodb.ErrorCategory;
 import com.mongodb.MongoClientSettings;
@@ -27,6 +38,7 @@ import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Aggregates;
 import com.mongodb.client.result.UpdateResult;
 import com.mongodb.model.Namespace;
 import com.mongodb.shardsync.ChunkManager;
@@ -36,6 +48,11 @@ import com.mongodb.util.DiffUtils;
 public class RecheckUtil {
 	
 	private static Logger logger = LoggerFactory.getLogger(RecheckUtil.class);
+	
+	private static final int RECHECK_BATCH_SIZE = 1000;
+	// failed ids held in memory per chunk and failure type before spilling to disk
+	private static final int SPILL_THRESHOLD = 100000;
+	private static final long RETRY_BACKOFF_MS = 500;
 
 	private final ShardClient sourceShardClient;
 	private final ShardClient destShardClient;
@@ -48,6 +65,10 @@ public class RecheckUtil {
 	
 	private ChunkManager chunkManager;
 	private Bson chunkQuery;
+	
+	// fetches each recheck batch from source and dest concurrently
+	private final ExecutorService fetchPool = Executors.newFixedThreadPool(2,
+			new ThreadFactoryBuilder().setNameFormat("RecheckFetch-%d").setDaemon(true).build());
 
 	public RecheckUtil(DiffConfiguration config) {
 
@@ -81,17 +102,10 @@ public class RecheckUtil {
 	
 	public void recheck() {
 		
-		List<BsonDocument> failedChunks = new ArrayList<>();
-		
-		if (chunkQuery != null) {
-			coll.find(chunkQuery).into(failedChunks);
-		} else {
-			failedChunks = coll.find().into(failedChunks);
-		}
-		
-		logger.debug("{} failed chunks found, chunkQuery: {}", failedChunks.size(), chunkQuery);
-		
+		// the failure arrays are streamed per chunk below, don't load them all up front
+		FindIterable<BsonDocument> failedChunks = coll.find(chunkQuery).projection(include("ns"));
 		
+		int count = 0;
 		for (BsonDocument failed : failedChunks) {
 			
 			Namespace ns = new Namespace(failed.getString("ns").getValue());
@@ -101,123 +115,195 @@ public class RecheckUtil {
 			MongoDatabase destDb = destShardClient.getMongoClient().getDatabase(ns.getDatabaseName());
 			MongoCollection<RawBsonDocument> destColl = destDb.getCollection(ns.getCollectionName(), RawBsonDocument.class);
 			
-			recheck(failed, "mismatches", ns, sourceColl, destColl);
-			recheck(failed, "srcOnly", ns, sourceColl, destColl);
-			recheck(failed, "destOnly", ns, sourceColl, destColl);
-			
+			recheck(failed.get("_id"), "mismatches", ns, sourceColl, destColl);
+			recheck(failed.get("_id"), "srcOnly", ns, sourceColl, destColl);
+			recheck(failed.get("_id"), "destOnly", ns, sourceColl, destColl);
+			count++;
 		}
 		
+		logger.debug("{} failed chunks rechecked, chunkQuery: {}", count, chunkQuery);
+		fetchPool.shutdown();
 	}
 	
-	private void recheck(BsonDocument failed, String failedKey, Namespace ns, MongoCollection<RawBsonDocument> sourceColl, MongoCollection<RawBsonDocument> destColl) {
+	private void recheck(BsonValue chunkId, String failedKey, Namespace ns, MongoCollection<RawBsonDocument> sourceColl, MongoCollection<RawBsonDocument> destColl) {
 		
-		BsonArray failures = failed.getArray(failedKey);
-		
-		if (failures.size() == 0) {
-			return;
-		}
+		List<Bson> pipeline = Arrays.asList(
+				Aggregates.match(eq("_id", chunkId)),
+				Aggregates.project(new Document("failure", "$" + failedKey)),
+				Aggregates.unwind("$failure"));
 		
-		logger.debug("{} - recheck {}, failureCount: {}", ns, failedKey, failures.size());
-		
-		List<BsonValue> passedKeys = new ArrayList<>();
-		
-		for (BsonValue m : failures) {
-			
-			BsonValue key = null;
-			
-			if (m instanceof BsonDocument) {
-				BsonDocument d = (BsonDocument)m;
-				
-				if (d.containsKey("key")) {
-					key = d.get("key");
-				} else {
-					key = d;
-				}
-			} else {
-				key = m;
+		try (SpillingIdList failures = new SpillingIdList(SPILL_THRESHOLD)) {
+			for (BsonDocument d : coll.aggregate(pipeline).batchSize(RECHECK_BATCH_SIZE)) {
+				failures.add(d.get("failure"));
 			}
 			
-			Bson query = eq("_id", key);
+			if (failures.size() == 0) {
+				return;
+			}
 			
-			RawBsonDocument sourceDoc = null;
-			RawBsonDocument destDoc = null;
+			logger.debug("{} - recheck {}, failureCount: {}, spilled: {}", ns, failedKey, failures.size(), failures.isSpilled());
 			
-			Iterator<RawBsonDocument> sourceDocs = sourceColl.find(query).iterator();
-			if (sourceDocs.hasNext()) {
-				sourceDoc = sourceDocs.next();
-			} 
-
-			if (sourceDocs.hasNext()) {
-				logger.error("{}: duplicate source documents found with same key: {}", ns, key);
-			}
+			failures.forEachBatch(RECHECK_BATCH_SIZE, batch -> recheckBatch(chunkId, failedKey, ns, batch, sourceColl, destColl));
+		}
+	}
+	
+	/**
+	 * Re-fetches a batch of failed ids from source and dest with one <code>$in</code> query
+	 * each (run in parallel). Ids that still differ are retried with exponential backoff,
+	 * since they are often documents that were being written while the chunk was diffed;
+	 * whatever still differs after the last attempt is reported (and archived/synced).
+	 */
+	private void recheckBatch(BsonValue chunkId, String failedKey, Namespace ns, List<BsonValue> batch,
+			MongoCollection<RawBsonDocument> sourceColl, MongoCollection<RawBsonDocument> destColl) {
+		
+		List<BsonValue> passedKeys = new ArrayList<>();
+		List<BsonValue> todo = batch;
+		
+		for (int attempt = 0; !todo.isEmpty(); attempt++) {
 			
-			Iterator<RawBsonDocument> destDocs = destColl.find(query).iterator();
-			if (destDocs.hasNext()) {
-				destDoc = destDocs.next();
-			} 
-
-			if (destDocs.hasNext()) {
-				logger.error("{}: duplicate dest documents found with same key: {}", ns, key);
+			// failure array entry by _id; mismatches are {key: _id, ...}
+			Map<BsonValue, BsonValue> failures = new LinkedHashMap<>();
+			for (BsonValue m : todo) {
+				failures.put(failureKey(m), m);
 			}
 			
-			if (sourceDoc == null && destDoc == null) {
-				logger.debug("{}: both documents are null, key: {}", ns, key);
-				passedKeys.add(m);
-				continue;
+			Future<Map<BsonValue, RawBsonDocument>> sourceFuture = fetchPool.submit(() -> fetch(ns, sourceColl, failures.keySet(), "source"));
+			Future<Map<BsonValue, RawBsonDocument>> destFuture = fetchPool.submit(() -> fetch(ns, destColl, failures.keySet(), "dest"));
+			Map<BsonValue, RawBsonDocument> sourceDocs;
+			Map<BsonValue, RawBsonDocument> destDocs;
+			try {
+				sourceDocs = sourceFuture.get();
+				destDocs = destFuture.get();
+			} catch (InterruptedException | ExecutionException e) {
+				throw new RuntimeException(e);
 			}
 			
-			if (sourceDoc == null && destDoc != null) {
-				logger.error("{}: source doc does not exist: {}", ns, key);
-				if (config.isArchive()) {
-					archive(ns, "diffDestOnly", destDoc);
-				}
-				if (config.isArchiveAndDeleteDestOnly()) {
-					archiveAndDeleteDestOnly(ns, destDoc, destColl, key);
-				}
-				continue;
-			}
+			boolean lastAttempt = attempt >= config.getRecheckRetries();
+			List<BsonValue> retry = new ArrayList<>();
 			
-			if (destDoc == null) {
-				logger.error("{}: dest doc does not exist: {}, query: {}", ns, key, query);
-				if (config.isArchive()) {
-					archive(ns, "diffSourceOnly", sourceDoc);
-				}
-				if (config.isSyncMismatches()) {
-					try {
-						syncSourceOnly(sourceDoc, destColl);
-					} catch (MongoWriteException ex) {
-						
-						if(ex.getError().getCategory() == ErrorCategory.DUPLICATE_KEY) {
-					        logger.error("duplicate key error: {}", ex);
-					    } 
+			for (Map.Entry<BsonValue, BsonValue> entry : failures.entrySet()) {
+				BsonValue key = entry.getKey();
+				RawBsonDocument sourceDoc = sourceDocs.get(key);
+				RawBsonDocument destDoc = destDocs.get(key);
+				
+				if (lastAttempt) {
+					if (recheck(ns, key, sourceDoc, destDoc, destColl)) {
+						passedKeys.add(entry.getValue());
 					}
-					
+				} else if (isEquivalent(ns, sourceDoc, destDoc)) {
+					passedKeys.add(entry.getValue());
+				} else {
+					retry.add(entry.getValue());
 				}
-				continue;
 			}
 			
-			boolean pass = compareDocuments(ns, sourceDoc, destDoc);
-			
-			if (pass) {
-				passedKeys.add(m);
-			} else {
-				logger.debug("{}: doc mismatch, key: {}", ns, key);
-				if (config.isArchive()) {
-					archive(ns, "diffSourceMismatch", sourceDoc);
-					archive(ns, "diffDestMismatch", destDoc);
-				}
-				if (config.isSyncMismatches()) {
-					syncMismatch(sourceDoc, destColl, key);
+			todo = retry;
+			if (!todo.isEmpty()) {
+				long backoff = RETRY_BACKOFF_MS << attempt;
+				logger.debug("{} - {} {} still failing, retrying in {}ms", ns, todo.size(), failedKey, backoff);
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException(e);
 				}
 			}
 		}
+		
+		// pulled per batch, so the update stays small however many keys passed
 		if (passedKeys.size() > 0) {
-			Bson filter = eq("_id", failed.get("_id"));
+			Bson filter = eq("_id", chunkId);
 			Bson update = pullAll(failedKey, passedKeys);
 			UpdateResult result = coll.updateOne(filter, update);
 			logger.debug("Status update result: {}", result);
 		}
-
+	}
+	
+	private static BsonValue failureKey(BsonValue m) {
+		if (m instanceof BsonDocument) {
+			BsonDocument d = (BsonDocument)m;
+			
+			if (d.containsKey("key")) {
+				return d.get("key");
+			}
+		}
+		return m;
+	}
+	
+	private Map<BsonValue, RawBsonDocument> fetch(Namespace ns, MongoCollection<RawBsonDocument> coll, Collection<BsonValue> keys, String side) {
+		Map<BsonValue, RawBsonDocument> docs = new HashMap<>();
+		for (RawBsonDocument doc : coll.find(in("_id", keys))) {
+			BsonValue id = doc.get("_id");
+			if (docs.put(id, doc) != null) {
+				logger.error("{}: duplicate {} documents found with same key: {}", ns, side, id);
+			}
+		}
+		return docs;
+	}
+	
+	private boolean isEquivalent(Namespace ns, RawBsonDocument sourceDoc, RawBsonDocument destDoc) {
+		if (sourceDoc == null || destDoc == null) {
+			return sourceDoc == destDoc;
+		}
+		if (DiffUtils.documentSize(sourceDoc) == DiffUtils.documentSize(destDoc)) {
+			return DiffUtils.compareHashes(sourceDoc, destDoc) || sourceDoc.equals(destDoc);
+		}
+		return DiffUtils.compareDocuments(ns.getNamespace(), sourceDoc, destDoc);
+	}
+	
+	/**
+	 * Final check of one key, reports (and archives/syncs) it if it still fails.
+	 */
+	private boolean recheck(Namespace ns, BsonValue key, RawBsonDocument sourceDoc, RawBsonDocument destDoc, MongoCollection<RawBsonDocument> destColl) {
+		
+		if (sourceDoc == null && destDoc == null) {
+			logger.debug("{}: both documents are null, key: {}", ns, key);
+			return true;
+		}
+		
+		if (sourceDoc == null && destDoc != null) {
+			logger.error("{}: source doc does not exist: {}", ns, key);
+			if (config.isArchive()) {
+				archive(ns, "diffDestOnly", destDoc);
+			}
+			if (config.isArchiveAndDeleteDestOnly()) {
+				archiveAndDeleteDestOnly(ns, destDoc, destColl, key);
+			}
+			return false;
+		}
+		
+		if (destDoc == null) {
+			logger.error("{}: dest doc does not exist: {}", ns, key);
+			if (config.isArchive()) {
+				archive(ns, "diffSourceOnly", sourceDoc);
+			}
+			if (config.isSyncMismatches()) {
+				try {
+					syncSourceOnly(sourceDoc, destColl);
+				} catch (MongoWriteException ex) {
+					
+					if(ex.getError().getCategory() == ErrorCategory.DUPLICATE_KEY) {
+				        logger.error("duplicate key error: {}", ex);
+				    } 
+				}
+				
+			}
+			return false;
+		}
+		
+		boolean pass = compareDocuments(ns, sourceDoc, destDoc);
+		
+		if (!pass) {
+			logger.debug("{}: doc mismatch, key: {}", ns, key);
+			if (config.isArchive()) {
+				archive(ns, "diffSourceMismatch", sourceDoc);
+				archive(ns, "diffDestMismatch", destDoc);
+			}
+			if (config.isSyncMismatches()) {
+				syncMismatch(sourceDoc, destColl, key);
+			}
+		}
+		return pass;
 	}
 	
 	private void syncSourceOnly(RawBsonDocument srcDoc, MongoCollection<RawBsonDocument> destColl) {
@@ -251,13 +337,13 @@ public class RecheckUtil {
 	}
 	
 	private boolean compareDocuments(Namespace ns, RawBsonDocument sourceDoc, RawBsonDocument destDoc) {
-		byte[] sourceBytes = sourceDoc.getByteBuffer().array();
-		byte[] destBytes = destDoc.getByteBuffer().array();
+		int sourceSize = DiffUtils.documentSize(sourceDoc);
+		int destSize = DiffUtils.documentSize(destDoc);
 		
 		Object id = sourceDoc.get("_id");
 		
-		if (sourceBytes.length == destBytes.length) {
-			if (DiffUtils.compareHashes(sourceBytes, destBytes)) {
+		if (sourceSize == destSize) {
+			if (DiffUtils.compareHashes(sourceDoc, destDoc)) {
 				//logger.debug("hashes match");
 				return true;
 			} else {
@@ -273,10 +359,10 @@ public class RecheckUtil {
 			
 			boolean docCheck = DiffUtils.compareDocuments(ns.getNamespace(), sourceDoc, destDoc);
 			if (docCheck) {
-				logger.debug("{} - docs are equivalent, id: {}, sourceBytes: {}, destBytes: {}", ns, id, sourceBytes.length, destBytes.length);
+				logger.debug("{} - docs are equivalent, id: {}, sourceBytes: {}, destBytes: {}", ns, id, sourceSize, destSize);
 				return true;
 			} else {
-				logger.debug("{} - docs are not equivalent, id: {}, sourceBytes: {}, destBytes: {}", ns, id, sourceBytes.length, destBytes.length);
+				logger.debug("{} - docs are not equivalent, id: {}, sourceBytes: {}, destBytes: {}", ns, id, sourceSize, destSize);
 				return false;
 			}
 		}
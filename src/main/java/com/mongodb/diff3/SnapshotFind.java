@@ -0,0 +1,138 @@
+package com.mongodb.diff3;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt64;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.ClientSessionOptions;
+import com.mongodb.MongoException;
+import com.mongodb.ServerAddress;
+import com.mongodb.ServerCursor;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+
+/**
+ * Runs a <code>find</code> command (which carries its own read concern, e.g. a
+ * <code>snapshot</code> read at an <code>atClusterTime</code>) and iterates all of its
+ * batches with <code>getMore</code>. The driver's find API can't set atClusterTime, so
+ * the commands are run directly.
+ *
+ * The server only accepts a <code>getMore</code> (or <code>killCursors</code>) from the
+ * session that created the cursor, so each cursor runs its commands in its own explicit
+ * session rather than in whichever implicit session the driver picks per command.
+ */
+public class SnapshotFind implements Iterable<RawBsonDocument> {
+
+    private static final Logger logger = LoggerFactory.getLogger(SnapshotFind.class);
+    private static final BsonDocumentCodec codec = new BsonDocumentCodec();
+
+    private static final ClientSessionOptions SESSION_OPTIONS = ClientSessionOptions.builder()
+            .causallyConsistent(false).build();
+
+    private final MongoClient client;
+    private final MongoDatabase db;
+    private final BsonDocument findCommand;
+
+    public SnapshotFind(MongoClient client, String databaseName, BsonDocument findCommand) {
+        this.client = client;
+        this.db = client.getDatabase(databaseName);
+        this.findCommand = findCommand;
+    }
+
+    /**
+     * Runs the find command. The cursor must be closed, so that a server cursor left open
+     * by a read that stopped early (or failed) is killed and the session is ended.
+     */
+    @Override
+    public SnapshotCursor iterator() {
+        return new SnapshotCursor();
+    }
+
+    public class SnapshotCursor implements MongoCursor<RawBsonDocument> {
+        private final String collName = findCommand.getString("find").getValue();
+        private final ClientSession session;
+        private Iterator<BsonValue> batch;
+        private long cursorId;
+
+        private SnapshotCursor() {
+            session = client.startSession(SESSION_OPTIONS);
+            try {
+                BsonDocument c = db.runCommand(session, findCommand, RawBsonDocument.class).getDocument("cursor");
+                batch = c.getArray("firstBatch").iterator();
+                cursorId = c.getInt64("id").getValue();
+            } catch (RuntimeException e) {
+                session.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!batch.hasNext() && cursorId != 0) {
+                BsonDocument getMore = new BsonDocument("getMore", new BsonInt64(cursorId))
+                        .append("collection", new BsonString(collName));
+                if (findCommand.containsKey("batchSize")) {
+                    getMore.append("batchSize", findCommand.get("batchSize"));
+                }
+                BsonDocument c = db.runCommand(session, getMore, RawBsonDocument.class).getDocument("cursor");
+                BsonArray next = c.getArray("nextBatch");
+                batch = next.iterator();
+                cursorId = c.getInt64("id").getValue();
+            }
+            return batch.hasNext();
+        }
+
+        @Override
+        public RawBsonDocument next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            BsonValue v = batch.next();
+            return v instanceof RawBsonDocument ? (RawBsonDocument) v : new RawBsonDocument(v.asDocument(), codec);
+        }
+
+        @Override
+        public RawBsonDocument tryNext() {
+            return hasNext() ? next() : null;
+        }
+
+        @Override
+        public ServerCursor getServerCursor() {
+            return null;
+        }
+
+        @Override
+        public ServerAddress getServerAddress() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+            long id = cursorId;
+            cursorId = 0;
+            try {
+                if (id != 0) {
+                    db.runCommand(session, new BsonDocument("killCursors", new BsonString(collName))
+                            .append("cursors", new BsonArray(Collections.singletonList(new BsonInt64(id)))));
+                }
+            } catch (MongoException e) {
+                // the server times the cursor out eventually
+                logger.debug("killCursors {} on {} failed: {}", id, collName, e.getMessage());
+            } finally {
+                session.close();
+            }
+        }
+    }
+}
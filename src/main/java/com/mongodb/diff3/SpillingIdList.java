@@ -0,0 +1,142 @@
+package com.mongodb.diff3;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.ByteBuf;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append-only list of ids that keeps up to <code>threshold</code> values in memory
+ * and spills the rest, as a stream of BSON documents, to a temp file. Reading it back
+ * is done in batches, so the whole list never has to be in memory at once.
+ */
+public class SpillingIdList implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(SpillingIdList.class);
+
+	private static final BsonDocumentCodec codec = new BsonDocumentCodec();
+
+	private final int threshold;
+	private final List<BsonValue> memory = new ArrayList<>();
+	private File spillFile;
+	private OutputStream spillOut;
+	private long size;
+
+	public SpillingIdList(int threshold) {
+		this.threshold = threshold;
+	}
+
+	public void add(BsonValue id) {
+		size++;
+		if (spillOut == null && memory.size() < threshold) {
+			memory.add(id);
+			return;
+		}
+		try {
+			if (spillOut == null) {
+				spillFile = File.createTempFile("diffIds", ".bson");
+				spillFile.deleteOnExit();
+				spillOut = new BufferedOutputStream(new FileOutputStream(spillFile));
+				logger.debug("spilling ids beyond {} to {}", threshold, spillFile);
+			}
+			ByteBuf buf = new RawBsonDocument(new BsonDocument("v", id), codec).getByteBuffer();
+			byte[] bytes = new byte[buf.remaining()];
+			buf.get(bytes);
+			spillOut.write(bytes);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public long size() {
+		return size;
+	}
+
+	public boolean isSpilled() {
+		return spillFile != null;
+	}
+
+	/**
+	 * Passes the ids, in insertion order, to <code>consumer</code> in batches of at most
+	 * <code>batchSize</code>.
+	 */
+	public void forEachBatch(int batchSize, Consumer<List<BsonValue>> consumer) {
+		List<BsonValue> batch = new ArrayList<>(batchSize);
+		for (BsonValue id : memory) {
+			batch.add(id);
+			if (batch.size() == batchSize) {
+				consumer.accept(batch);
+				batch = new ArrayList<>(batchSize);
+			}
+		}
+		if (spillFile != null) {
+			try {
+				spillOut.flush();
+				try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile)))) {
+					RawBsonDocument doc;
+					while ((doc = readDocument(in)) != null) {
+						batch.add(doc.get("v"));
+						if (batch.size() == batchSize) {
+							consumer.accept(batch);
+							batch = new ArrayList<>(batchSize);
+						}
+					}
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		if (!batch.isEmpty()) {
+			consumer.accept(batch);
+		}
+	}
+
+	private static RawBsonDocument readDocument(DataInputStream in) throws IOException {
+		byte[] header = new byte[4];
+		try {
+			in.readFully(header);
+		} catch (EOFException e) {
+			return null;
+		}
+		// BSON lengths are little-endian and include the length itself
+		int length = (header[0] & 0xff) | (header[1] & 0xff) << 8 | (header[2] & 0xff) << 16 | (header[3] & 0xff) << 24;
+		byte[] bytes = new byte[length];
+		System.arraycopy(header, 0, bytes, 0, 4);
+		in.readFully(bytes, 4, length - 4);
+		return new RawBsonDocument(bytes);
+	}
+
+	@Override
+	public void close() {
+		memory.clear();
+		if (spillFile != null) {
+			try {
+				spillOut.close();
+			} catch (IOException e) {
+				logger.warn("error closing spill file {}", spillFile, e);
+			}
+			if (!spillFile.delete()) {
+				logger.warn("could not delete spill file {}", spillFile);
+			}
+			spillFile = null;
+			spillOut = null;
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package com.mongodb.diff3;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.BsonValue;
+import org.bson.ByteBuf;
+import org.bson.RawBsonDocument;
+
+import com.mongodb.util.CodecUtils;
+
+/**
+ * Joins the documents of two cursors on <code>_id</code> as they arrive, one document
+ * from each side in turn, comparing md5 digests.
+ *
+ * A document is held (as its digest) from the time it is read on one side until its
+ * <code>_id</code> is read on the other. When both sides return the same ids in the same
+ * order that is a handful of documents, but every id missing on one side stays held to
+ * the end, and ids that drift apart (inserts or deletes on one side only, or a different
+ * order) are held until the other side catches up. Memory is therefore bounded by the
+ * drift between the two sides, not by a batch: the join stops once more than
+ * <code>maxPending</code> documents are held, and the caller hands the held digests
+ * ({@link #spillInto}) and the rest of both cursors to a diff that loads both sides.
+ */
+public class StreamingMergeJoin {
+
+    private final int maxPending;
+
+    private final Map<BsonValue, DocumentDigest> pendingSource = new HashMap<>();
+    private final Map<BsonValue, DocumentDigest> pendingDest = new HashMap<>();
+    private final Set<DiffResult.MismatchEntry> mismatches = new HashSet<>();
+    private long matches;
+    private long sourceBytes;
+    private long destBytes;
+    private int maxHeld;
+
+    public StreamingMergeJoin(int maxPending) {
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * Reads both sides to the end, failures of either iterator are thrown.
+     *
+     * @return false if more than <code>maxPending</code> documents had to be held, the
+     * result is then incomplete
+     */
+    public boolean join(Iterator<RawBsonDocument> source, Iterator<RawBsonDocument> dest) {
+        boolean srcMore = source.hasNext();
+        boolean destMore = dest.hasNext();
+        while (srcMore || destMore) {
+            if (srcMore) {
+                RawBsonDocument doc = source.next();
+                ByteBuf bb = doc.getByteBuffer();
+                sourceBytes += bb.remaining();
+                match(doc.get("_id"), digest(bb), pendingSource, pendingDest, true);
+                srcMore = source.hasNext();
+            }
+            if (destMore) {
+                RawBsonDocument doc = dest.next();
+                ByteBuf bb = doc.getByteBuffer();
+                destBytes += bb.remaining();
+                match(doc.get("_id"), digest(bb), pendingDest, pendingSource, false);
+                destMore = dest.hasNext();
+            }
+            int held = pendingSource.size() + pendingDest.size();
+            maxHeld = Math.max(maxHeld, held);
+            if (held > maxPending) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void match(BsonValue id, DocumentDigest digest, Map<BsonValue, DocumentDigest> pending,
+                       Map<BsonValue, DocumentDigest> otherPending, boolean isSource) {
+        DocumentDigest other = otherPending.remove(id);
+        if (other == null) {
+            pending.put(id, digest);
+        } else if (digest.equals(other)) {
+            matches++;
+        } else if (isSource) {
+            mismatches.add(new DiffResult.MismatchEntry(id, digest, other));
+        } else {
+            mismatches.add(new DiffResult.MismatchEntry(id, other, digest));
+        }
+    }
+
+    /**
+     * Moves the digests held so far into the given tables, after {@link #join} returned
+     * false. Together with the rest of both cursors they make up the part of the diff
+     * the join did not settle; matches and mismatches found so far stay with the join.
+     */
+    public void spillInto(DigestTable source, DigestTable dest) {
+        for (Map.Entry<BsonValue, DocumentDigest> e : pendingSource.entrySet()) {
+            source.put(e.getKey(), e.getValue().getHigh(), e.getValue().getLow());
+        }
+        for (Map.Entry<BsonValue, DocumentDigest> e : pendingDest.entrySet()) {
+            dest.put(e.getKey(), e.getValue().getHigh(), e.getValue().getLow());
+        }
+        pendingSource.clear();
+        pendingDest.clear();
+    }
+
+    private static DocumentDigest digest(ByteBuf bb) {
+        return DocumentDigest.of(CodecUtils.md5Into(bb.array(), bb.position(), bb.remaining()));
+    }
+
+    public long getMatches() {
+        return matches;
+    }
+
+    public Set<DiffResult.MismatchEntry> getMismatches() {
+        return mismatches;
+    }
+
+    /**
+     * Ids read on the source only, complete once {@link #join} returned true.
+     */
+    public Set<BsonValue> getSourceOnly() {
+        return new HashSet<>(pendingSource.keySet());
+    }
+
+    /**
+     * Ids read on the dest only, complete once {@link #join} returned true.
+     */
+    public Set<BsonValue> getDestOnly() {
+        return new HashSet<>(pendingDest.keySet());
+    }
+
+    public long getSourceBytes() {
+        return sourceBytes;
+    }
+
+    public long getDestBytes() {
+        return destBytes;
+    }
+
+    /**
+     * Most documents held at any one time.
+     */
+    public int getMaxHeld() {
+        return maxHeld;
+    }
+}
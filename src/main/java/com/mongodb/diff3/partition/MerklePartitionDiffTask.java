@@ -0,0 +1,168 @@
+package com.mongodb.diff3.partition;
+
+import static com.mongodb.client.model.Accumulators.sum;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.diff3.DiffConfiguration;
+import com.mongodb.diff3.DiffResult;
+import com.mongodb.diff3.DiffSummary;
+import com.mongodb.diff3.DiffTask;
+
+/**
+ * Diffs a partition top-down, Merkle style. For a range, both clusters compute an
+ * order independent aggregate digest (count, total size and two modular sums of
+ * per-document hashes) server side. Ranges whose digests agree are counted as
+ * matching without shipping a single document; ranges that disagree are split into
+ * sub-ranges on <code>_id</code> and recursed into, and only ranges at or below the
+ * leaf size are diffed document by document.
+ *
+ * Documents are hashed with {@link DiffTask#SERVER_DOC_HASH}, see there for the
+ * changes the hash can't see.
+ */
+public class MerklePartitionDiffTask extends PartitionDiffTask {
+
+    // Each summand is < 2^24, so the sums cannot overflow a long below 2^39 docs per range
+    private static final long MOD_1 = 16777213L;
+    private static final long MOD_2 = 16777199L;
+
+    private final PartitionManager partitionManager;
+
+    public MerklePartitionDiffTask(Partition partition, MongoClient sourceClient, MongoClient destClient,
+                                   DiffSummary summary, DiffConfiguration config,
+                                   PartitionManager partitionManager) {
+        super(partition, sourceClient, destClient, summary, config);
+        this.partitionManager = partitionManager;
+    }
+
+    @Override
+    protected DiffResult computeDiff() {
+        return diffRange(partition, 0);
+    }
+
+    private DiffResult diffRange(Partition range, int depth) {
+        RangeDigest sourceDigest = digest(Target.SOURCE, range);
+        RangeDigest destDigest = digest(Target.DEST, range);
+        long bytes = Math.max(sourceDigest.size, destDigest.size);
+
+        if (sourceDigest.equals(destDigest)) {
+            logger.trace("[{}] range digests match at depth {}, {} docs ({})",
+                    Thread.currentThread().getName(), depth, sourceDigest.count, range);
+            return new DiffResult(sourceDigest.count, bytes, new HashSet<>(), new HashSet<>(), new HashSet<>(),
+                    namespace, chunkDef);
+        }
+
+        long count = Math.max(sourceDigest.count, destDigest.count);
+        List<Object> midBounds = new ArrayList<>();
+        if (count > config.getMerkleLeafDocs() && depth < config.getMerkleMaxDepth()) {
+            Target splitTarget = sourceDigest.count >= destDigest.count ? Target.SOURCE : Target.DEST;
+            midBounds = splitRange(splitTarget, range, count);
+        }
+        if (midBounds.isEmpty()) {
+            logger.debug("[{}] range digests differ at depth {}, diffing {} docs ({})",
+                    Thread.currentThread().getName(), depth, count, range);
+            return leafDiff(range);
+        }
+        logger.debug("[{}] range digests differ at depth {}, splitting into {} ranges ({})",
+                Thread.currentThread().getName(), depth, midBounds.size() + 1, range);
+
+        List<Object> bounds = new ArrayList<>();
+        bounds.add(range.getLowerBound());
+        bounds.addAll(midBounds);
+        bounds.add(range.getUpperBound());
+
+        long matches = 0;
+        long bytesProcessed = 0;
+        Set<DiffResult.MismatchEntry> mismatches = new HashSet<>();
+        Set<BsonValue> srcOnly = new HashSet<>();
+        Set<BsonValue> destOnly = new HashSet<>();
+        long subCount = count / (bounds.size() - 1);
+        for (int i = 0; i < bounds.size() - 1; i++) {
+            Partition sub = new Partition(namespace, bounds.get(i), bounds.get(i + 1), subCount);
+            DiffResult r = diffRange(sub, depth + 1);
+            matches += r.getMatches();
+            bytesProcessed += r.getBytesProcessed();
+            mismatches.addAll(r.getMismatchedEntries());
+            srcOnly.addAll(r.getSrcOnlyKeys());
+            destOnly.addAll(r.getDestOnlyKeys());
+        }
+        return new DiffResult(matches, bytesProcessed, mismatches, srcOnly, destOnly, namespace, chunkDef);
+    }
+
+    List<Object> splitRange(Target target, Partition range, long count) {
+        return partitionManager.getRangeMidIdBounds(namespace, getLoadClient(target), range, count,
+                config.getMerkleFanOut());
+    }
+
+    /**
+     * Diffs <code>range</code> document by document, the only step that reads documents.
+     */
+    DiffResult leafDiff(Partition range) {
+        try {
+            return new PartitionDiffTask(range, sourceClient, destClient, summary, config).call();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    RangeDigest digest(Target target, Partition range) {
+        List<Bson> pipeline = Arrays.asList(
+                Aggregates.match(range.query()),
+                Aggregates.group(null,
+                        sum("count", 1),
+                        sum("size", new Document("$bsonSize", "$$ROOT")),
+                        sum("h1", new Document("$mod", Arrays.asList(SERVER_DOC_HASH, MOD_1))),
+                        sum("h2", new Document("$mod", Arrays.asList(SERVER_DOC_HASH, MOD_2)))));
+        Document result = getLoadClient(target).getDatabase(namespace.getDatabaseName())
+                .getCollection(namespace.getCollectionName())
+                .aggregate(pipeline)
+                .hint(new Document("_id", 1))
+                .first();
+        if (result == null) {
+            return new RangeDigest(0, 0, 0, 0);
+        }
+        return new RangeDigest(asLong(result.get("count")), asLong(result.get("size")),
+                asLong(result.get("h1")), asLong(result.get("h2")));
+    }
+
+    private static long asLong(Object o) {
+        return ((Number) o).longValue();
+    }
+
+    static class RangeDigest {
+        private final long count;
+        private final long size;
+        private final long h1;
+        private final long h2;
+
+        RangeDigest(long count, long size, long h1, long h2) {
+            this.count = count;
+            this.size = size;
+            this.h1 = h1;
+            this.h2 = h2;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            RangeDigest that = (RangeDigest) o;
+            return count == that.count && size == that.size && h1 == that.h1 && h2 == that.h2;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(count * 31 + h1 * 17 + h2);
+        }
+    }
+}
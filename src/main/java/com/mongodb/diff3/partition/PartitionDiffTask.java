@@ -16,24 +16,58 @@ import java.util.Queue;
 public class PartitionDiffTask extends DiffTask {
 
 
-    protected final Partition partition;
+    protected Partition partition;
     protected final MongoClient sourceClient;
     protected final MongoClient destClient;
+    private final PartitionSplitter splitter;
+    private boolean remainder;
     public static final PartitionDiffTask END_TOKEN = new PartitionDiffTask(
             null, null, null, null, null);
 
 
     public PartitionDiffTask(Partition partition, MongoClient sourceClient, MongoClient destClient,
     		DiffSummary summary, DiffConfiguration config) {
+        this(partition, sourceClient, destClient, summary, config, null);
+    }
+
+    public PartitionDiffTask(Partition partition, MongoClient sourceClient, MongoClient destClient,
+                             DiffSummary summary, DiffConfiguration config, PartitionSplitter splitter) {
         super(config, (partition == null) ? null : partition.getNamespace(), summary);
         this.partition = partition;
         this.sourceClient = sourceClient;
         this.destClient = destClient;
+        this.splitter = splitter;
         if (this.partition != null) {
             this.chunkDef = this.partition.toChunkDef();
         }
     }
 
+    @Override
+    protected DiffResult computeDiff() {
+        if (splitter != null) {
+            Partition head = splitter.split(this, sourceClient);
+            if (head != partition) {
+                partition = head;
+                chunkDef = head.toChunkDef();
+            }
+        }
+        return super.computeDiff();
+    }
+
+    PartitionDiffTask newRemainderTask(Partition remainderPartition) {
+        PartitionDiffTask task = new PartitionDiffTask(remainderPartition, sourceClient, destClient, summary,
+                config, splitter);
+        task.remainder = true;
+        return task;
+    }
+
+    /**
+     * True for tasks created by splitting an oversized partition at run time.
+     */
+    public boolean isRemainder() {
+        return remainder;
+    }
+
     //    @Override
     public Bson getPartitionDiffQuery() {
         return (partition != null) ? partition.query() : new BsonDocument();
@@ -16,22 +16,18 @@ import com.mongodb.model.DatabaseCatalog;
 import com.mongodb.model.DatabaseCatalogProvider;
 import com.mongodb.model.StandardDatabaseCatalogProvider;
 import com.mongodb.util.BlockWhenQueueFull;
-import org.apache.commons.lang3.tuple.Pair;
 import org.bson.UuidRepresentation;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.DelayQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -40,7 +36,6 @@ import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
@@ -54,12 +49,9 @@ public class PartitionDiffUtil {
     private final ThreadPoolExecutor initialTaskPool;
 
     private final ThreadPoolExecutor partitionerTaskPool;
-    private ExecutorService retryTaskPool;
-    private final List<Future<DiffResult>> initialTaskPoolResults = new ArrayList<>();
-    private final List<Future<Pair<String, Integer>>> partitionerTaskPoolResults = new ArrayList<>();
     private final long estimatedTotalDocs;
     private final long totalSize;
-    private Queue<PartitionDiffTask> partitionerTaskPoolQueue;
+    private BlockingQueue<PartitionDiffTask> partitionerTaskPoolQueue;
 
     public PartitionDiffUtil(DiffConfiguration config) {
         this.config = config;
@@ -90,16 +82,20 @@ public class PartitionDiffUtil {
                 TimeUnit.SECONDS, partitionerWorkQueue, new BlockWhenQueueFull());
     }
 
+    /**
+     * Runs the diff as a completion-driven pipeline: partitioner tasks feed the partition
+     * queue, a dispatcher thread blocks on that queue and submits each diff task to the
+     * worker pool (blocking while the pool's bounded queue is full), and this thread
+     * takes results off the completion service as they finish.
+     * <p>
+     * Termination is tracked with a single count of outstanding work: one unit per
+     * partitioner until its end token is dispatched, plus one per diff task until its
+     * result is collected. A unit is always added before the unit that spawned it is
+     * released (partitions before their partitioner's end token, split remainders before
+     * the splitting task completes), so the count only reaches zero once everything is
+     * done, and the run ends as soon as it does.
+     */
     public void run() {
-        AtomicBoolean partitionerTaskPoolDone = new AtomicBoolean(false);
-        AtomicBoolean initialTaskPoolDone = new AtomicBoolean(false);
-        AtomicBoolean retryTaskPoolDone = new AtomicBoolean(false);
-        AtomicBoolean partitionerTaskPoolListenerDone = new AtomicBoolean(false);
-        AtomicBoolean partitionerTaskPoolCollectorDone = new AtomicBoolean(false);
-        AtomicBoolean retryTaskPoolCollectorDone = new AtomicBoolean(false);
-        AtomicBoolean retryTaskPoolListenerDone = new AtomicBoolean(false);
-        AtomicBoolean initialTaskPoolCollectorDone = new AtomicBoolean(false);
-
         Set<Collection> colls = databaseCatalogProvider.get().getUnshardedCollections();
 
         // Initialize diff summary (optionally with db storage)
@@ -111,190 +107,90 @@ public class PartitionDiffUtil {
                 logger.info(summary.getSummary(false)), 0, 5, TimeUnit.SECONDS);
 
         partitionerTaskPoolQueue = new LinkedBlockingQueue<>();
-
-        AtomicInteger totalPartitions = new AtomicInteger(-1);
+        AtomicInteger outstanding = new AtomicInteger(colls.size());
+        PartitionSplitter splitter = config.isAdaptivePartitioning() && !config.isMerkleDiff()
+                ? new PartitionSplitter(partitionManager, partitionerTaskPoolQueue, outstanding) : null;
 
         ThreadFactory partitionerTaskPoolThreadFactory =
                 new ThreadFactoryBuilder().setNameFormat("PartionerTaskPool-%d").build();
         partitionerTaskPool.setThreadFactory(partitionerTaskPoolThreadFactory);
-
-        ScheduledExecutorService partitionerTaskPoolListener = Executors.newSingleThreadScheduledExecutor();
+        ThreadFactory initialTaskPoolThreadFactory = new ThreadFactoryBuilder().setNameFormat("WorkerPool-%d").build();
+        initialTaskPool.setThreadFactory(initialTaskPoolThreadFactory);
+        CompletionService<DiffResult> completionService = new ExecutorCompletionService<>(initialTaskPool);
 
         for (Collection coll : colls) {
             PartitionTask pt = new PartitionTask(coll.getNamespace(), sourceClient,
-                    destClient, partitionManager, partitionerTaskPoolQueue, summary, config);
-            partitionerTaskPoolResults.add(partitionerTaskPool.submit(pt));
+                    destClient, partitionManager, partitionerTaskPoolQueue, summary, config, splitter);
+            partitionerTaskPool.submit(pt);
         }
-        partitionerTaskPoolListener.scheduleWithFixedDelay(new Runnable() {
+
+        ExecutorService dispatcher = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("PartitionDispatcher-%d").build());
+        dispatcher.submit(() -> {
             int endTokensSeen = 0;
             int numPartitions = 0;
-
-            @Override
-            public void run() {
-                PartitionDiffTask pt;
-                while ((pt = partitionerTaskPoolQueue.poll()) != null) {
-                    try {
-                        if (pt == PartitionDiffTask.END_TOKEN) {
-                            logger.debug("[PartitionerTaskPoolListener] saw an EndToken ({}/{})",
-                                    endTokensSeen + 1, colls.size());
-                            if (++endTokensSeen == colls.size()) {
-                                logger.debug("[PartitionerTaskPoolListener] has seen all end tokens ({})", endTokensSeen);
-                                totalPartitions.set(numPartitions);
-                                summary.setTotalChunks(numPartitions);
-                                partitionerTaskPoolListenerDone.set(true);
-//                                break;
-                            }
-                        } else {
-                            initialTaskPoolResults.add(initialTaskPool.submit(pt));
-                            numPartitions++;
+            try {
+                while (true) {
+                    PartitionDiffTask pt = partitionerTaskPoolQueue.take();
+                    if (pt == PartitionDiffTask.END_TOKEN) {
+                        logger.debug("[PartitionDispatcher] saw an EndToken ({}/{})", endTokensSeen + 1, colls.size());
+                        if (++endTokensSeen == colls.size()) {
+                            logger.debug("[PartitionDispatcher] has seen all end tokens, {} partitions", numPartitions);
+                            summary.setTotalChunks(numPartitions);
                         }
-                    } catch (Exception e) {
-                        logger.error("[PartitionerTaskPoolListener] Exception occurred while running partition task", e);
-                        throw new RuntimeException(e);
-                    }
-                }
-            }
-        }, 0, 100, TimeUnit.MILLISECONDS);
-
-        ThreadFactory initialTaskPoolThreadFactory = new ThreadFactoryBuilder().setNameFormat("WorkerPool-%d").build();
-        initialTaskPool.setThreadFactory(initialTaskPoolThreadFactory);
-
-        ScheduledExecutorService partitionerTaskPoolCollector = Executors.newSingleThreadScheduledExecutor();
-        Set<Future<Pair<String, Integer>>> partitionerTaskPoolFuturesSeen = new HashSet<>();
-
-        Future<?> partitionerTaskPoolFuture = partitionerTaskPoolCollector.scheduleWithFixedDelay(
-                new Runnable() {
-                    int runs = 0;
-                    int expectedResultSize = colls.size();
-
-                    @Override
-                    public void run() {
-                        logger.trace("[PartitionerTaskPoolCollector] loop: {} :: {} expected results, {} seen",
-                                ++runs, expectedResultSize, partitionerTaskPoolFuturesSeen.size());
-                        if (partitionerTaskPoolFuturesSeen.size() < expectedResultSize) {
-                            for (Future<Pair<String, Integer>> future : partitionerTaskPoolResults) {
-                                try {
-                                    if (!partitionerTaskPoolFuturesSeen.contains(future) && future.isDone()) {
-                                        partitionerTaskPoolFuturesSeen.add(future);
-                                        Pair<String, Integer> pair = future.get();
-                                        int newPartitions = pair.getRight();
-                                        String coll = pair.getLeft();
-                                        logger.debug("[PartitionerTaskPoolCollector] saw {} partitions created for {}",
-                                                newPartitions, coll);
-//                                    totalPartitions.getAndAdd(newPartitions);
-                                    }
-                                } catch (InterruptedException e) {
-                                    logger.error("[PartitionerTaskPoolCollector] was interrupted", e);
-                                    throw new RuntimeException(e);
-                                } catch (ExecutionException e) {
-                                    logger.error("[PartitionerTaskPoolCollector] threw an exception", e);
-                                    throw new RuntimeException(e);
-                                }
-                            }
-                        } else {
-                            partitionerTaskPoolCollectorDone.set(true);
+                        if (outstanding.decrementAndGet() == 0) {
+                            // wake the collector, which may be waiting for a result that will never come
+                            completionService.submit(() -> null);
                         }
+                        continue;
                     }
-                }, 0, 1000, TimeUnit.MILLISECONDS);
-
-        ScheduledExecutorService initialTaskPoolCollector = Executors.newSingleThreadScheduledExecutor();
-        Set<Future<DiffResult>> initialTaskPoolFuturesSeen = new HashSet<>();
-        Future<?> initialTaskPoolFuture = initialTaskPoolCollector.scheduleWithFixedDelay(new Runnable() {
-            int runs = 0;
-
-            @Override
-            public void run() {
-                int expectedResultSize = totalPartitions.get();
-                logger.trace("[InitialTaskPoolCollector] loop: {} :: {} expected results, {} seen",
-                        ++runs, expectedResultSize, initialTaskPoolFuturesSeen.size());
-                if (expectedResultSize >= 0) {
-                    if (initialTaskPoolFuturesSeen.size() < expectedResultSize) {
-                        for (Future<DiffResult> future : initialTaskPoolResults) {
-                            try {
-                                if (!initialTaskPoolFuturesSeen.contains(future) && future.isDone()) {
-                                    initialTaskPoolFuturesSeen.add(future);
-                                    DiffResult result = future.get();
-                                    int failures = result.getFailedKeys().size();
-                                    logger.trace("[InitialTaskPoolCollector] got result for {}: " +
-                                                    "{} matches, {} failures, {} bytes",
-                                            result.getChunkDef().unitString(), result.getMatches(),
-                                            failures, result.getBytesProcessed());
-
-                                    summary.updateInitTask(result);
-
-                                }
-                            } catch (InterruptedException e) {
-                                logger.error("[InitialTaskPoolCollector] diff task was interrupted", e);
-                                throw new RuntimeException(e);
-                            } catch (ExecutionException e) {
-                                logger.error("[InitialTaskPoolCollector] diff task threw an exception", e);
-                                throw new RuntimeException(e);
-                            }
-                        }
-                    } else {
-                        initialTaskPoolCollectorDone.set(true);
+                    // split remainders were counted by the splitter when they were queued
+                    if (!pt.isRemainder()) {
+                        outstanding.incrementAndGet();
+                    }
+                    completionService.submit(pt);
+                    numPartitions++;
+                    if (endTokensSeen == colls.size()) {
+                        summary.setTotalChunks(numPartitions);
                     }
                 }
+            } catch (InterruptedException e) {
+                logger.debug("[PartitionDispatcher] stopped");
             }
-        }, 0, 1, TimeUnit.SECONDS);
-
-
-        boolean partitionerTaskPoolResult = false;
-        boolean initialTaskPoolResult = false;
-        while (!(partitionerTaskPoolDone.get() && initialTaskPoolDone.get() && retryTaskPoolDone.get())) {
-            try {
-                Thread.sleep(1000);
-                logger.trace("Check completion status");
-                if (!partitionerTaskPoolDone.get()) {
-                    if (partitionerTaskPoolListenerDone.get() && !partitionerTaskPoolListener.isShutdown()) {
-                        logger.info("[Main] shutting down partitioner task pool listener");
-                        partitionerTaskPoolListener.shutdown();
-                    } else {
-                        logger.trace("[Main] task pool listener still running");
-                    }
-                    if (partitionerTaskPoolCollectorDone.get() && !partitionerTaskPoolCollector.isShutdown()) {
-                        logger.info("[Main] shutting down partitioner task pool collector");
-                        partitionerTaskPoolResult = partitionerTaskPoolFuture.cancel(false);
-                        partitionerTaskPoolCollector.shutdown();
-                    } else {
-                        logger.trace("[Main] partitioner task pool collector still running");
-                    }
-                    if (partitionerTaskPoolResult) {
-                        partitionerTaskPoolDone.set(true);
-                        logger.info("[Main] shutting down partitioner task pool");
-                        partitionerTaskPool.shutdown();
-                        if (!partitionerTaskPoolListener.isShutdown()) {
-                            partitionerTaskPoolListener.shutdown();
-                        }
-                    }
-                } else {
-                    logger.trace("[Main] partitioner task pool still running");
+        });
+
+        try {
+            while (outstanding.get() > 0) {
+                Future<DiffResult> future = completionService.take();
+                DiffResult result;
+                try {
+                    result = future.get();
+                } catch (ExecutionException e) {
+                    logger.error("[Main] diff task threw an exception", e);
+                    outstanding.decrementAndGet();
+                    continue;
                 }
-                if (!initialTaskPoolDone.get()) {
-                    if (initialTaskPoolCollectorDone.get() && !initialTaskPoolCollector.isShutdown()) {
-                        logger.info("[Main] shutting down initial task pool collector");
-                        initialTaskPoolResult = initialTaskPoolFuture.cancel(false);
-                        initialTaskPoolCollector.shutdown();
-                    } else {
-                        logger.trace("[Main] Initial task pool collector still running");
-                    }
-                    if (initialTaskPoolResult) {
-                        initialTaskPoolDone.set(true);
-                        logger.info("[Main] shutting down initial task pool");
-                        initialTaskPool.shutdown();
-                    }
-                } else {
-                    logger.trace("[Main] Initial task pool still runnign");
+                if (result == null) {
+                    continue;
                 }
-
-            } catch (Exception e) {
-                logger.error("[Main] Error collecting partition pool and/or worker pool", e);
-                throw new RuntimeException(e);
+                logger.trace("[Main] got result for {}: {} matches, {} failures, {} bytes",
+                        result.getChunkDef().unitString(), result.getMatches(),
+                        result.getFailedKeys().size(), result.getBytesProcessed());
+                summary.updateInitTask(result);
+                outstanding.decrementAndGet();
             }
+        } catch (InterruptedException e) {
+            logger.error("[Main] interrupted collecting diff results", e);
+            throw new RuntimeException(e);
+        } finally {
+            dispatcher.shutdownNow();
+            partitionerTaskPool.shutdown();
+            initialTaskPool.shutdown();
         }
 
         logger.info("[Main] shutting down statusReporter thread");
         statusReporter.shutdown();
+        diffSummaryClient.flush();
 
         logger.info(summary.getSummary(true));
         sourceClient.close();
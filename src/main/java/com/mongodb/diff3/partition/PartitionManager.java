@@ -3,8 +3,10 @@ package com.mongodb.diff3.partition;
 import com.mongodb.ReadConcern;
 import com.mongodb.client.AggregateIterable;
 import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
 import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.CountOptions;
 import com.mongodb.client.model.Projections;
 import com.mongodb.client.model.Sorts;
 import com.mongodb.model.Namespace;
@@ -13,6 +15,7 @@ import org.bson.BsonDocument;
 import org.bson.BsonMaxKey;
 import org.bson.BsonMinKey;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
 import org.bson.conversions.Bson;
 
 import java.util.ArrayList;
@@ -21,6 +24,9 @@ import java.util.List;
 import static com.mongodb.client.model.Accumulators.sum;
 
 public class PartitionManager {
+    private static final int SPLIT_PROBE_DOCS = 1000;
+    private static final Document ID_ORDER = new Document("_id", 1);
+
     private final double sampleRate;
     private final int sampleMinDocs;
     private final int maxDocsToSamplePerPartition;
@@ -137,6 +143,91 @@ public class PartitionManager {
         return output;
     }
 
+    /**
+     * Splits <code>range</code> into (up to) <code>numBuckets</code> roughly equal
+     * sub-ranges and returns the inner bounds. Unlike {@link #getMidIdBounds}, which
+     * samples the whole collection, this buckets the <code>_id</code>s of the range in
+     * one covered scan of the <code>_id</code> index, so only the bounds themselves are
+     * returned to the client.
+     */
+    public List<Object> getRangeMidIdBounds(Namespace ns, MongoClient client, Partition range,
+                                            long rangeDocCount, int numBuckets) {
+        List<Object> output = new ArrayList<>(numBuckets);
+        if (numBuckets < 2 || rangeDocCount < numBuckets) {
+            return output;
+        }
+        List<Bson> pipeline = new ArrayList<>();
+        pipeline.add(Aggregates.match(range.query()));
+        pipeline.add(Aggregates.project(Projections.fields(Projections.include("_id"))));
+        pipeline.add(Aggregates.bucketAuto("$_id", numBuckets));
+
+        AggregateIterable<BsonDocument> results = client.getDatabase(ns.getDatabaseName())
+                .getCollection(ns.getCollectionName(), BsonDocument.class)
+                .aggregate(pipeline)
+                .hint(ID_ORDER)
+                .allowDiskUse(true);
+
+        // a bucket's max is the next bucket's min, except for the last bucket (the range max)
+        List<Object> maxIds = new ArrayList<>(numBuckets);
+        try (MongoCursor<BsonDocument> cursor = results.iterator()) {
+            while (cursor.hasNext()) {
+                maxIds.add(cursor.next().getDocument("_id").get("max"));
+            }
+        }
+        if (!maxIds.isEmpty()) {
+            output.addAll(maxIds.subList(0, maxIds.size() - 1));
+        }
+        return output;
+    }
+
+    /**
+     * Measures the actual bytes per document of <code>partition</code> from its first
+     * batch and, if the partition turns out to hold more than twice the default partition
+     * size, splits off a head of about the default partition size.
+     *
+     * @return the head and the remainder, or null if the partition is not oversized
+     */
+    public Pair<Partition, Partition> splitOversized(MongoClient client, Partition partition) {
+        Namespace ns = partition.getNamespace();
+        MongoCollection<RawBsonDocument> coll = client.getDatabase(ns.getDatabaseName())
+                .getCollection(ns.getCollectionName(), RawBsonDocument.class);
+
+        long probeBytes = 0;
+        int probeDocs = 0;
+        for (RawBsonDocument doc : coll.find(partition.query()).sort(ID_ORDER).hint(ID_ORDER)
+                .limit(SPLIT_PROBE_DOCS).batchSize(SPLIT_PROBE_DOCS)) {
+            probeBytes += doc.getByteBuffer().remaining();
+            probeDocs++;
+        }
+        if (probeDocs < SPLIT_PROBE_DOCS) {
+            return null;
+        }
+        long targetDocs = Math.max(SPLIT_PROBE_DOCS, defaultPartitionSize * probeDocs / Math.max(1, probeBytes));
+
+        // counting the _id index is cheap, and the limit bounds it for huge partitions
+        long count = coll.countDocuments(partition.query(),
+                new CountOptions().hint(ID_ORDER).limit((int) Math.min(Integer.MAX_VALUE, 2 * targetDocs + 1)));
+        if (count <= 2 * targetDocs) {
+            return null;
+        }
+        BsonDocument split = client.getDatabase(ns.getDatabaseName())
+                .getCollection(ns.getCollectionName(), BsonDocument.class)
+                .find(partition.query())
+                .projection(Projections.include("_id"))
+                .sort(ID_ORDER)
+                .hint(ID_ORDER)
+                .skip((int) Math.min(Integer.MAX_VALUE, targetDocs))
+                .limit(1)
+                .first();
+        if (split == null) {
+            return null;
+        }
+        Object splitId = split.get("_id");
+        long remainderEstimate = Math.max(targetDocs, partition.getEstimatedDocCount() - targetDocs);
+        return Pair.of(new Partition(ns, partition.getLowerBound(), splitId, targetDocs),
+                new Partition(ns, splitId, partition.getUpperBound(), remainderEstimate));
+    }
+
     private long asLong(Object o) {
         return ((Number) o).longValue();
     }
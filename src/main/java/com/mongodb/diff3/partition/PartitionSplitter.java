@@ -0,0 +1,53 @@
+package com.mongodb.diff3.partition;
+
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.client.MongoClient;
+
+/**
+ * Splits partitions that turn out to be oversized while they are being diffed: the
+ * task keeps a head of about the default partition size and the remainder is fed back
+ * into the partition queue as a new task, which is checked (and split) again when it
+ * runs. This keeps one giant partition from serializing the tail of a run.
+ * <p>
+ * A remainder is added to the run's outstanding work count before it is queued, i.e.
+ * while the task that split it is still running, so the run can't be seen as complete
+ * while a remainder is in flight.
+ */
+public class PartitionSplitter {
+
+    private static final Logger logger = LoggerFactory.getLogger(PartitionSplitter.class);
+
+    private final PartitionManager partitionManager;
+    private final Queue<PartitionDiffTask> partitionQueue;
+    private final AtomicInteger outstanding;
+
+    public PartitionSplitter(PartitionManager partitionManager, Queue<PartitionDiffTask> partitionQueue,
+                             AtomicInteger outstanding) {
+        this.partitionManager = partitionManager;
+        this.partitionQueue = partitionQueue;
+        this.outstanding = outstanding;
+    }
+
+    /**
+     * Returns the partition <code>task</code> should diff: its own partition, or the head
+     * of it if the rest has been split off and queued.
+     */
+    Partition split(PartitionDiffTask task, MongoClient client) {
+        Partition partition = task.getPartition();
+        Pair<Partition, Partition> split = partitionManager.splitOversized(client, partition);
+        if (split == null) {
+            return partition;
+        }
+        logger.debug("[{}] partition oversized, split at {} ({})",
+                Thread.currentThread().getName(), split.getRight().getLowerBound(), partition);
+        outstanding.incrementAndGet();
+        partitionQueue.add(task.newRemainderTask(split.getRight()));
+        return split.getLeft();
+    }
+}
@@ -22,12 +22,13 @@ public class PartitionTask implements Callable<Pair<String, Integer>> {
     private final Queue<PartitionDiffTask> partitionQueue;
     private final DiffSummary summary;
     private final DiffConfiguration config;
+    private final PartitionSplitter splitter;
 
     private  static final Logger logger = LoggerFactory.getLogger(PartitionTask.class);
 
     public PartitionTask(Namespace namespace, MongoClient sourceClient, MongoClient destClient,
                          PartitionManager partitionManager, Queue<PartitionDiffTask> partitionQueue,
-                         DiffSummary summary, DiffConfiguration config) {
+                         DiffSummary summary, DiffConfiguration config, PartitionSplitter splitter) {
         this.namespace = namespace;
         this.sourceClient = sourceClient;
         this.destClient = destClient;
@@ -35,22 +36,36 @@ public class PartitionTask implements Callable<Pair<String, Integer>> {
         this.partitionQueue = partitionQueue;
         this.summary = summary;
         this.config = config;
+        this.splitter = splitter;
     }
 
     @Override
     public Pair<String, Integer> call() throws Exception {
         long start = System.currentTimeMillis();
 
-        List<Partition> partitions = partitionManager.partitionCollection(namespace, sourceClient);
-        logger.debug("[{}] created {} partitions for {}",
-                Thread.currentThread().getName(), partitions.size(), namespace.getNamespace());
-        Collections.shuffle(partitions);
+        List<Partition> partitions;
+        try {
+            partitions = partitionManager.partitionCollection(namespace, sourceClient);
+            logger.debug("[{}] created {} partitions for {}",
+                    Thread.currentThread().getName(), partitions.size(), namespace.getNamespace());
+            Collections.shuffle(partitions);
 
-        for (Partition p : partitions) {
-            logger.debug("[{}] added {} to the partition queue", Thread.currentThread().getName(), p.toString());
-            partitionQueue.add(new PartitionDiffTask(p, sourceClient, destClient, summary, config));
+            for (Partition p : partitions) {
+                logger.debug("[{}] added {} to the partition queue", Thread.currentThread().getName(), p.toString());
+                if (config.isMerkleDiff()) {
+                    partitionQueue.add(new MerklePartitionDiffTask(p, sourceClient, destClient, summary, config,
+                            partitionManager));
+                } else {
+                    partitionQueue.add(new PartitionDiffTask(p, sourceClient, destClient, summary, config, splitter));
+                }
+            }
+        } catch (Exception e) {
+            logger.error("[{}] failed partitioning {}", Thread.currentThread().getName(), namespace.getNamespace(), e);
+            throw e;
+        } finally {
+            // always release this partitioner, or the run would wait for it forever
+            partitionQueue.add(PartitionDiffTask.END_TOKEN);
         }
-        partitionQueue.add(PartitionDiffTask.END_TOKEN);
         logger.debug("[{}] Partition task completed in {} ms",
                 Thread.currentThread().getName(), System.currentTimeMillis() - start);
         return Pair.of(namespace.getNamespace(), partitions.size());
@@ -0,0 +1,524 @@
+package com.mongodb.diff3.shard;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.exists;
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Filters.lte;
+import static com.mongodb.client.model.Filters.ne;
+import static com.mongodb.client.model.Filters.or;
+import static com.mongodb.client.model.Projections.include;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.bson.BsonBoolean;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.BsonTimestamp;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.diff3.DiffConfiguration;
+import com.mongodb.diff3.DiffResult;
+import com.mongodb.diff3.DiffSummary;
+import com.mongodb.diff3.DiffSummary.DiffStatus;
+import com.mongodb.diff3.DiffSummaryClient;
+import com.mongodb.model.Collection;
+import com.mongodb.model.DatabaseCatalog;
+import com.mongodb.model.Namespace;
+import com.mongodb.shardsync.ChunkManager;
+import com.mongodb.shardsync.ShardClient;
+import com.mongodb.util.bson.BsonValueComparator;
+
+/**
+ * Re-diffs only what changed since the last successful run. Every SUCCEEDED chunk in
+ * the status collection carries the source cluster time (<code>succeededAt</code>) as
+ * of which it was known to be in sync; this tails each source shard's oplog from the
+ * oldest of those times, maps every touched <code>_id</code> back to its chunk by
+ * shard key, and diffs just those ids. Chunks that are not SUCCEEDED are left to a
+ * regular shard mode run.
+ */
+public class IncrementalDiffUtil {
+
+	private static final Logger logger = LoggerFactory.getLogger(IncrementalDiffUtil.class);
+
+	private static final List<String> CRUD_OPS = Arrays.asList("i", "u", "d");
+	// commands that remove or move documents without an oplog entry per document
+	private static final List<String> DDL_FIELDS = Arrays.asList("drop", "renameCollection", "to", "dropDatabase",
+			"convertToCapped", "emptycapped");
+	// past this many touched ids a chunk is re-diffed in full rather than by id
+	private static final int MAX_TOUCHED_IDS = 100000;
+	private static final RawBsonDocument EMPTY_BOUND = new RawBsonDocument(new BsonDocument(),
+			new BsonDocumentCodec());
+
+	private final ShardClient sourceShardClient;
+	private final DiffSummaryClient diffSummaryClient;
+	private final DiffConfiguration config;
+	private final ChunkManager chunkManager;
+	private final BsonValueComparator comparator = new BsonValueComparator();
+
+	// ns -> SUCCEEDED chunks, sorted by min
+	private final Map<String, List<ChunkEntry>> chunksByNs = new HashMap<>();
+	// ns -> shard key fields, or null when documents can't be mapped to chunks client side
+	private final Map<String, List<String>> shardKeys = new HashMap<>();
+	// ns -> whole-collection entry, for unsharded collections and ids that can't be mapped
+	private final Map<String, ChunkEntry> collectionEntries = new HashMap<>();
+
+	private BsonTimestamp oldestSucceededAt;
+
+	// shards whose oplog no longer reaches back to where tailing had to start
+	private final Set<String> gapShards = new HashSet<>();
+
+	public IncrementalDiffUtil(DiffConfiguration config) {
+		this.config = config;
+
+		chunkManager = new ChunkManager(config);
+		chunkManager.initalize();
+
+		this.sourceShardClient = config.getSourceShardClient();
+		this.diffSummaryClient = config.getDiffSummaryClient();
+
+		Set<String> includeNs = config.getIncludeNamespaces().stream().map(Namespace::getNamespace)
+				.collect(Collectors.toSet());
+		sourceShardClient.populateCollectionsMap(includeNs);
+		DatabaseCatalog catalog = sourceShardClient.getDatabaseCatalog(config.getIncludeNamespaces());
+
+		sourceShardClient.populateShardMongoClients();
+		config.getDestShardClient().populateShardMongoClients();
+
+		loadSucceededChunks(catalog);
+	}
+
+	private void loadSucceededChunks(DatabaseCatalog catalog) {
+		BsonDocument chunkQuery = chunkManager.getChunkQuery();
+		Map<String, RawBsonDocument> sourceCache = sourceShardClient.loadChunksCache(chunkQuery);
+
+		BsonDocument succeededQuery = chunkQuery.clone();
+		succeededQuery.append("status", new BsonString(DiffStatus.SUCCEEDED.toString()));
+		succeededQuery.append(DiffSummaryClient.SUCCEEDED_AT, new BsonDocument("$exists", BsonBoolean.TRUE));
+		Map<String, RawBsonDocument> succeeded = diffSummaryClient.loadCompletedChunks(succeededQuery);
+
+		int count = 0;
+		// sourceCache is ordered by ns, min
+		for (Map.Entry<String, RawBsonDocument> e : sourceCache.entrySet()) {
+			RawBsonDocument status = succeeded.get(e.getKey());
+			if (status == null) {
+				continue;
+			}
+			RawBsonDocument chunk = e.getValue();
+			String ns = ShardClient.getNsFromChunk(chunk);
+			ChunkEntry entry = new ChunkEntry(chunk, new Namespace(ns), ShardClient.getShardFromChunk(chunk),
+					status.getTimestamp(DiffSummaryClient.SUCCEEDED_AT));
+			chunksByNs.computeIfAbsent(ns, k -> new ArrayList<>()).add(entry);
+			trackOldest(entry.succeededAt);
+			count++;
+		}
+
+		for (String ns : chunksByNs.keySet()) {
+			Document coll = sourceShardClient.getCollectionsMap().get(ns);
+			shardKeys.put(ns, coll == null ? null : rangeShardKey((Document) coll.get("key")));
+		}
+
+		for (Collection coll : catalog.getUnshardedCollections()) {
+			String ns = coll.getNamespace().getNamespace();
+			RawBsonDocument status = succeeded.get(ShardClient.getIdFromChunk(ns, EMPTY_BOUND, EMPTY_BOUND));
+			if (status == null) {
+				continue;
+			}
+			ChunkEntry entry = new ChunkEntry(null, coll.getNamespace(), null,
+					status.getTimestamp(DiffSummaryClient.SUCCEEDED_AT));
+			collectionEntries.put(ns, entry);
+			trackOldest(entry.succeededAt);
+			count++;
+		}
+		logger.info("[Main] {} succeeded chunks/collections eligible for incremental diff, oldest succeededAt: {}",
+				count, oldestSucceededAt);
+	}
+
+	private void trackOldest(BsonTimestamp ts) {
+		if (oldestSucceededAt == null || ts.compareTo(oldestSucceededAt) < 0) {
+			oldestSucceededAt = ts;
+		}
+	}
+
+	/**
+	 * Hashed shard keys can't be evaluated client side, so their ids are re-diffed at the
+	 * collection level instead of per chunk.
+	 */
+	private static List<String> rangeShardKey(Document key) {
+		if (key == null || key.containsValue("hashed")) {
+			return null;
+		}
+		return new ArrayList<>(key.keySet());
+	}
+
+	public void run() {
+		if (oldestSucceededAt == null) {
+			logger.info("[Main] no succeeded chunks with a recorded cluster time; run a shard mode diff first");
+			return;
+		}
+		Map<String, BsonTimestamp> watermarks = diffSummaryClient.loadIncrementalWatermarks();
+		Map<String, BsonTimestamp> upperBounds = new HashMap<>();
+		BsonTimestamp clusterTime = null;
+
+		for (String shard : sourceShardClient.getShardsMap().keySet()) {
+			BsonTimestamp watermark = watermarks.get(shard);
+			BsonTimestamp from = max(oldestSucceededAt, watermark);
+			BsonTimestamp upper = collectTouchedIds(shard, from, watermark);
+			upperBounds.put(shard, upper);
+			if (clusterTime == null || upper.compareTo(clusterTime) < 0) {
+				clusterTime = upper;
+			}
+		}
+
+		List<ChunkEntry> touched = new ArrayList<>();
+		for (List<ChunkEntry> entries : chunksByNs.values()) {
+			entries.stream().filter(ChunkEntry::isTouched).forEach(touched::add);
+		}
+		collectionEntries.values().stream().filter(ChunkEntry::isTouched).forEach(touched::add);
+		long touchedIds = touched.stream().mapToLong(e -> e.ids.size()).sum();
+		long full = touched.stream().filter(e -> e.full).count();
+		logger.info("[Main] {} ids touched in {} chunks/collections since last diff, {} re-diffed in full",
+				touchedIds, touched.size(), full);
+
+		DiffSummary summary = new DiffSummary(touchedIds, 0, diffSummaryClient);
+		summary.setTotalChunks(touched.size());
+		ScheduledExecutorService statusReporter = Executors.newSingleThreadScheduledExecutor();
+		statusReporter.scheduleAtFixedRate(() -> logger.info(summary.getSummary(false)), 0, 5, TimeUnit.SECONDS);
+
+		ExecutorService pool = Executors.newFixedThreadPool(config.getThreads(),
+				new ThreadFactoryBuilder().setNameFormat("IncrementalPool-%d").build());
+		List<Future<DiffResult>> futures = new ArrayList<>();
+		for (ChunkEntry e : touched) {
+			futures.add(pool.submit(new IncrementalShardDiffTask(config, e.chunk, e.ns, e.shard,
+					chunkManager.getShardMapping(e.shard), summary, e.full ? null : e.ids, clusterTime)));
+		}
+
+		boolean allCompleted = true;
+		for (Future<DiffResult> future : futures) {
+			try {
+				summary.updateInitTask(future.get());
+			} catch (InterruptedException | ExecutionException e) {
+				logger.error("[Main] incremental diff task failed", e);
+				allCompleted = false;
+			}
+		}
+		pool.shutdown();
+		statusReporter.shutdown();
+		// the chunk statuses must be persisted before the watermarks move past them
+		diffSummaryClient.flush();
+
+		// chunks without any writes are now known to be in sync up to the tailed range too
+		if (allCompleted) {
+			for (Map.Entry<String, BsonTimestamp> e : upperBounds.entrySet()) {
+				if (gapShards.contains(e.getKey())) {
+					logger.warn("[Main] not advancing the incremental watermark of shard {}, its oplog has a gap",
+							e.getKey());
+					continue;
+				}
+				diffSummaryClient.updateIncrementalWatermark(e.getKey(), e.getValue());
+			}
+		} else {
+			logger.warn("[Main] not advancing incremental watermarks, some tasks failed");
+		}
+		logger.info(summary.getSummary(true));
+	}
+
+	/**
+	 * Reads the shard's oplog in <code>(from, latest]</code> and adds every touched id to
+	 * its chunk, unless the write is already covered by the chunk's own
+	 * <code>succeededAt</code> or by the shard's watermark. Chunks of a collection that was
+	 * dropped, renamed or emptied in that range are re-diffed in full.
+	 *
+	 * If the oplog has rolled over past <code>from</code> the writes in between are lost, so
+	 * every chunk of the shard is re-diffed in full and its watermark is not advanced.
+	 *
+	 * @return the latest oplog time read
+	 */
+	private BsonTimestamp collectTouchedIds(String shard, BsonTimestamp from, BsonTimestamp watermark) {
+		BsonTimestamp upper = sourceShardClient.getLatestOplogTimestamp(shard);
+		MongoCollection<RawBsonDocument> oplog = sourceShardClient.getShardMongoClient(shard).getDatabase("local")
+				.getCollection("oplog.rs", RawBsonDocument.class);
+
+		RawBsonDocument first = oplog.find().sort(eq("$natural", 1)).projection(include("ts")).first();
+		if (first == null || first.getTimestamp("ts").compareTo(from) > 0) {
+			logger.error("[Main] oplog of shard {} starts at {}, after {}: writes may have been missed, "
+					+ "re-diffing all of its chunks in full", shard, first == null ? null : first.getTimestamp("ts"), from);
+			gapShards.add(shard);
+			invalidateShard(shard);
+			return upper;
+		}
+
+		List<String> namespaces = new ArrayList<>(chunksByNs.keySet());
+		namespaces.addAll(collectionEntries.keySet());
+		Set<String> commandNamespaces = new HashSet<>();
+		for (String ns : namespaces) {
+			commandNamespaces.add(new Namespace(ns).getDatabaseName() + ".$cmd");
+		}
+
+		Bson query = and(gt("ts", from), lte("ts", upper), ne("fromMigrate", true),
+				or(and(in("ns", namespaces), in("op", CRUD_OPS)), and(eq("op", "c"), exists("o.applyOps")),
+						and(eq("op", "c"), in("ns", commandNamespaces))));
+
+		// only the document key is needed, not the full inserted document
+		Set<String> projected = new LinkedHashSet<>(Arrays.asList("ts", "ns", "op", "o2", "o._id", "o.applyOps"));
+		DDL_FIELDS.forEach(f -> projected.add("o." + f));
+		for (List<String> key : shardKeys.values()) {
+			if (key != null) {
+				key.forEach(f -> projected.add("o." + f));
+			}
+		}
+		// a projection may not hold both a path and one of its sub-paths
+		projected.removeIf(p -> projected.stream().anyMatch(q -> p.startsWith(q + ".")));
+
+		long entries = 0;
+		for (RawBsonDocument entry : oplog.find(query).projection(include(new ArrayList<>(projected)))) {
+			BsonTimestamp ts = entry.getTimestamp("ts");
+			if ("c".equals(entry.getString("op").getValue())) {
+				BsonDocument o = entry.getDocument("o");
+				if (!o.containsKey("applyOps")) {
+					invalidateCommandNamespaces(entry.getString("ns").getValue(), o, ts, watermark);
+					continue;
+				}
+				for (BsonValue op : o.getArray("applyOps")) {
+					addTouchedId(shard, ts, watermark, op.asDocument());
+				}
+			} else {
+				addTouchedId(shard, ts, watermark, entry);
+			}
+			entries++;
+		}
+		logger.debug("[Main] read {} oplog entries from shard {} in ({}, {}]", entries, shard, from, upper);
+		return upper;
+	}
+
+	private void addTouchedId(String shard, BsonTimestamp ts, BsonTimestamp watermark, BsonDocument op) {
+		String opType = op.getString("op").getValue();
+		if (!CRUD_OPS.contains(opType)) {
+			return;
+		}
+		String ns = op.getString("ns").getValue();
+		BsonDocument docKey = "u".equals(opType) ? op.getDocument("o2", null) : op.getDocument("o", null);
+		if (docKey == null || !docKey.containsKey("_id")) {
+			return;
+		}
+		ChunkEntry entry = locate(ns, docKey, shard);
+		if (entry == null || ts.compareTo(max(entry.succeededAt, watermark)) <= 0) {
+			return;
+		}
+		if (entry.shard == null) {
+			entry.shard = shard;
+		}
+		entry.touch(docKey.get("_id"));
+	}
+
+	/**
+	 * Re-diffs in full the collections a DDL command entry (on <code>db.$cmd</code>) removed
+	 * or moved documents of.
+	 */
+	private void invalidateCommandNamespaces(String cmdNs, BsonDocument o, BsonTimestamp ts, BsonTimestamp watermark) {
+		String db = new Namespace(cmdNs).getDatabaseName();
+		if (o.containsKey("dropDatabase")) {
+			List<String> dbNamespaces = new ArrayList<>(chunksByNs.keySet());
+			dbNamespaces.addAll(collectionEntries.keySet());
+			dbNamespaces.stream().filter(ns -> ns.startsWith(db + ".")).forEach(ns -> invalidateNamespace(ns, ts, watermark));
+		} else if (o.containsKey("renameCollection")) {
+			invalidateNamespace(o.getString("renameCollection").getValue(), ts, watermark);
+			if (o.isString("to")) {
+				invalidateNamespace(o.getString("to").getValue(), ts, watermark);
+			}
+		} else {
+			for (String field : Arrays.asList("drop", "convertToCapped", "emptycapped")) {
+				if (o.isString(field)) {
+					invalidateNamespace(db + "." + o.getString(field).getValue(), ts, watermark);
+				}
+			}
+		}
+	}
+
+	private void invalidateNamespace(String ns, BsonTimestamp ts, BsonTimestamp watermark) {
+		List<ChunkEntry> entries = new ArrayList<>(chunksByNs.getOrDefault(ns, new ArrayList<>()));
+		ChunkEntry collEntry = collectionEntries.get(ns);
+		if (collEntry != null) {
+			entries.add(collEntry);
+		}
+		int count = 0;
+		for (ChunkEntry entry : entries) {
+			if (ts.compareTo(max(entry.succeededAt, watermark)) > 0) {
+				entry.markFull();
+				count++;
+			}
+		}
+		if (count > 0) {
+			logger.info("[Main] {} changed by a DDL command at {}, re-diffing {} chunks/collections in full", ns, ts, count);
+		}
+	}
+
+	/**
+	 * Every chunk of the shard, and every unsharded collection that may live on it, is
+	 * re-diffed in full.
+	 */
+	private void invalidateShard(String shard) {
+		for (List<ChunkEntry> entries : chunksByNs.values()) {
+			entries.stream().filter(e -> shard.equals(e.shard)).forEach(ChunkEntry::markFull);
+		}
+		for (ChunkEntry entry : collectionEntries.values()) {
+			if (entry.shard == null || shard.equals(entry.shard)) {
+				entry.shard = shard;
+				entry.markFull();
+			}
+		}
+	}
+
+	private ChunkEntry locate(String ns, BsonDocument docKey, String shard) {
+		List<ChunkEntry> chunks = chunksByNs.get(ns);
+		if (chunks == null) {
+			return collectionEntries.get(ns);
+		}
+		List<String> key = shardKeys.get(ns);
+		BsonDocument shardKey = key == null ? null : extractShardKey(docKey, key);
+		if (shardKey == null) {
+			return collectionEntry(ns, chunks, shard);
+		}
+		try {
+			return locateChunk(chunks, shardKey, key);
+		} catch (IllegalArgumentException e) {
+			// shard key values of a type the comparator can't order
+			logger.debug("{}: can't locate the chunk of shard key {}, re-diffing the id collection wide: {}",
+					ns, shardKey, e.getMessage());
+			return collectionEntry(ns, chunks, shard);
+		}
+	}
+
+	/**
+	 * Entry for touched ids of a sharded collection that can't be attributed to a chunk.
+	 */
+	private ChunkEntry collectionEntry(String ns, List<ChunkEntry> chunks, String shard) {
+		ChunkEntry collEntry = collectionEntries.get(ns);
+		if (collEntry == null) {
+			collEntry = new ChunkEntry(null, chunks.get(0).ns, shard, chunks.stream()
+					.map(c -> c.succeededAt).min(BsonTimestamp::compareTo).get());
+			collectionEntries.put(ns, collEntry);
+		}
+		return collEntry;
+	}
+
+	private ChunkEntry locateChunk(List<ChunkEntry> chunks, BsonDocument shardKey, List<String> key) {
+		// last chunk with min <= key, then check key < max
+		int lo = 0;
+		int hi = chunks.size() - 1;
+		int found = -1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (compareKey(chunks.get(mid).min, shardKey, key) <= 0) {
+				found = mid;
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		if (found < 0) {
+			return null;
+		}
+		ChunkEntry candidate = chunks.get(found);
+		return compareKey(shardKey, candidate.max, key) < 0 ? candidate : null;
+	}
+
+	/**
+	 * Shard key values of an oplog document key, keyed like chunk bounds (dotted paths
+	 * flattened); null if any of them is missing.
+	 */
+	private static BsonDocument extractShardKey(BsonDocument docKey, List<String> key) {
+		BsonDocument shardKey = new BsonDocument();
+		for (String field : key) {
+			BsonValue value = docKey;
+			for (String part : field.split("\\.")) {
+				value = value.isDocument() ? value.asDocument().get(part) : null;
+				if (value == null) {
+					return null;
+				}
+			}
+			shardKey.put(field, value);
+		}
+		return shardKey;
+	}
+
+	private int compareKey(BsonDocument x, BsonDocument y, List<String> key) {
+		for (String field : key) {
+			int c = comparator.compare(x.get(field), y.get(field));
+			if (c != 0) {
+				return c;
+			}
+		}
+		return 0;
+	}
+
+	private static BsonTimestamp max(BsonTimestamp x, BsonTimestamp y) {
+		if (y == null || x.compareTo(y) >= 0) {
+			return x;
+		}
+		return y;
+	}
+
+	private static class ChunkEntry {
+		private final RawBsonDocument chunk;
+		private final Namespace ns;
+		private final BsonDocument min;
+		private final BsonDocument max;
+		private final BsonTimestamp succeededAt;
+		private Set<BsonValue> ids = new HashSet<>();
+		// re-diff the whole chunk, the ids aren't tracked (any more)
+		private boolean full;
+		private String shard;
+
+		ChunkEntry(RawBsonDocument chunk, Namespace ns, String shard, BsonTimestamp succeededAt) {
+			this.chunk = chunk;
+			this.ns = ns;
+			this.shard = shard;
+			this.succeededAt = succeededAt;
+			this.min = chunk != null ? chunk.getDocument("min") : null;
+			this.max = chunk != null ? chunk.getDocument("max") : null;
+		}
+
+		void touch(BsonValue id) {
+			if (full) {
+				return;
+			}
+			ids.add(id);
+			if (ids.size() > MAX_TOUCHED_IDS) {
+				markFull();
+			}
+		}
+
+		void markFull() {
+			full = true;
+			ids = new HashSet<>();
+		}
+
+		boolean isTouched() {
+			return full || !ids.isEmpty();
+		}
+	}
+}
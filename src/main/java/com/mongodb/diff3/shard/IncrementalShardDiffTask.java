@@ -0,0 +1,70 @@
+package com.mongodb.diff3.shard;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.bson.BsonTimestamp;
+import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
+
+import com.mongodb.diff3.DiffConfiguration;
+import com.mongodb.diff3.DiffResult;
+import com.mongodb.diff3.DiffSummary;
+import com.mongodb.model.Namespace;
+
+/**
+ * Re-diffs only the given ids of a chunk (or unsharded collection), i.e. the documents
+ * written on the source since the chunk last SUCCEEDED. The ids are fetched in batches
+ * so that the <code>$in</code> query stays small, and the batch results are merged into
+ * one result for the chunk. Without ids (too many of them, or writes that can't be
+ * tracked by id) the whole chunk is re-diffed.
+ */
+public class IncrementalShardDiffTask extends ShardDiffTask {
+
+    private static final int IDS_BATCH_SIZE = 10000;
+
+    // null to re-diff the whole chunk
+    private final List<BsonValue> ids;
+    private final BsonTimestamp clusterTime;
+
+    public IncrementalShardDiffTask(DiffConfiguration config, RawBsonDocument chunk, Namespace namespace,
+                                    String srcShardName, String destShardName, DiffSummary summary,
+                                    Set<BsonValue> ids, BsonTimestamp clusterTime) {
+        super(config, chunk, namespace, srcShardName, destShardName, summary);
+        this.ids = ids == null ? null : new ArrayList<>(ids);
+        this.clusterTime = clusterTime;
+    }
+
+    /**
+     * The oplog was read up to this time, so once these ids match the chunk is in sync
+     * as of it.
+     */
+    @Override
+    protected BsonTimestamp getClusterTime() {
+        return clusterTime;
+    }
+
+    @Override
+    protected DiffResult computeDiff() {
+        if (ids == null) {
+            return super.computeDiff();
+        }
+        long matches = 0;
+        long bytesProcessed = 0;
+        Set<DiffResult.MismatchEntry> mismatches = new HashSet<>();
+        Set<BsonValue> srcOnly = new HashSet<>();
+        Set<BsonValue> destOnly = new HashSet<>();
+        for (int i = 0; i < ids.size(); i += IDS_BATCH_SIZE) {
+            List<BsonValue> batch = ids.subList(i, Math.min(ids.size(), i + IDS_BATCH_SIZE));
+            DiffResult r = computeDiff(batch);
+            matches += r.getMatches();
+            bytesProcessed += r.getBytesProcessed();
+            mismatches.addAll(r.getMismatchedEntries());
+            srcOnly.addAll(r.getSrcOnlyKeys());
+            destOnly.addAll(r.getDestOnlyKeys());
+        }
+        return new DiffResult(matches, bytesProcessed, mismatches, srcOnly, destOnly, namespace, chunkDef);
+    }
+}
@@ -0,0 +1,175 @@
+package com.mongodb.diff3.shard;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.mongodb.diff3.DiffResult;
+import com.mongodb.diff3.DiffSummary;
+
+/**
+ * Runs the shard diff tasks of all source shards on one pool of workers. Each shard
+ * has its own deque of tasks and each worker a home shard; a worker takes from the
+ * head of its home shard's deque and, when that is empty or the shard is at its
+ * concurrency cap, steals from the tail of the most backlogged shard that still has
+ * headroom. The per-shard cap protects each mongod, stealing keeps every worker busy
+ * until the last shard is drained.
+ * <p>
+ * Tasks run for seconds to minutes, so the deques share a single monitor; the lock is
+ * only held to pick a task, never while diffing.
+ */
+public class ShardDiffScheduler {
+
+	private static final Logger logger = LoggerFactory.getLogger(ShardDiffScheduler.class);
+
+	private final Map<String, ShardQueue> shardQueues = new LinkedHashMap<>();
+	private final List<ShardQueue> homeQueues = new ArrayList<>();
+	private final int numThreads;
+	private final DiffSummary summary;
+
+	private final Object lock = new Object();
+	private int queued;
+	private ExecutorService workers;
+
+	public ShardDiffScheduler(List<String> shards, int numThreads, int maxThreadsPerShard, DiffSummary summary) {
+		this.numThreads = numThreads;
+		this.summary = summary;
+		for (String shard : shards) {
+			ShardQueue q = new ShardQueue(shard, maxThreadsPerShard);
+			shardQueues.put(shard, q);
+			homeQueues.add(q);
+		}
+	}
+
+	public void add(String shard, ShardDiffTask task) {
+		synchronized (lock) {
+			shardQueues.get(shard).tasks.addLast(task);
+			queued++;
+			lock.notifyAll();
+		}
+	}
+
+	public int size() {
+		synchronized (lock) {
+			return queued;
+		}
+	}
+
+	public void start() {
+		workers = Executors.newFixedThreadPool(numThreads,
+				new ThreadFactoryBuilder().setNameFormat("WorkerPool-%d").build());
+		for (int i = 0; i < numThreads; i++) {
+			ShardQueue home = homeQueues.get(i % homeQueues.size());
+			workers.submit(() -> work(home));
+		}
+		workers.shutdown();
+	}
+
+	public void awaitCompletion() throws InterruptedException {
+		while (!workers.awaitTermination(1, TimeUnit.SECONDS)) {
+			if (logger.isTraceEnabled()) {
+				synchronized (lock) {
+					shardQueues.values().forEach(q -> logger.trace("[Scheduler] {}: {} queued, {} running",
+							q.shard, q.tasks.size(), q.running));
+				}
+			}
+		}
+	}
+
+	private void work(ShardQueue home) {
+		while (true) {
+			ShardQueue q;
+			ShardDiffTask task;
+			synchronized (lock) {
+				while (true) {
+					if (queued == 0) {
+						return;
+					}
+					q = pick(home);
+					if (q != null) {
+						break;
+					}
+					// every shard with work is at its cap
+					try {
+						lock.wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+				task = q == home ? q.tasks.pollFirst() : q.tasks.pollLast();
+				if (q != home) {
+					logger.trace("[{}] stole a task from shard {} ({} left)",
+							Thread.currentThread().getName(), q.shard, q.tasks.size());
+				}
+				q.running++;
+				queued--;
+			}
+			try {
+				runTask(task);
+			} finally {
+				synchronized (lock) {
+					q.running--;
+					lock.notifyAll();
+				}
+			}
+		}
+	}
+
+	private ShardQueue pick(ShardQueue home) {
+		if (home.canRun()) {
+			return home;
+		}
+		ShardQueue victim = null;
+		for (ShardQueue q : shardQueues.values()) {
+			if (q.canRun() && (victim == null || q.tasks.size() > victim.tasks.size())) {
+				victim = q;
+			}
+		}
+		return victim;
+	}
+
+	private void runTask(ShardDiffTask task) {
+		try {
+			DiffResult result = task.call();
+			int failures = result.getFailedKeys().size();
+			if (failures > 0) {
+				logger.debug("[{}] will retry {} failed ids for ({})", Thread.currentThread().getName(),
+						failures, result.getChunkDef().unitString());
+			} else {
+				logger.trace("[{}] got result for ({}): {} matches, {} failures, {} bytes",
+						Thread.currentThread().getName(), result.getChunkDef().unitString(), result.getMatches(),
+						failures, result.getBytesProcessed());
+			}
+			summary.updateInitTask(result);
+		} catch (Exception e) {
+			logger.error("[{}] Diff task threw an exception", Thread.currentThread().getName(), e);
+		}
+	}
+
+	private static class ShardQueue {
+		private final String shard;
+		private final int cap;
+		private final Deque<ShardDiffTask> tasks = new ArrayDeque<>();
+		private int running;
+
+		ShardQueue(String shard, int cap) {
+			this.shard = shard;
+			this.cap = cap;
+		}
+
+		boolean canRun() {
+			return !tasks.isEmpty() && running < cap;
+		}
+	}
+}
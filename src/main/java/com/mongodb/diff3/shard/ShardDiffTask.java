@@ -1,11 +1,25 @@
 package com.mongodb.diff3.shard;
 
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Filters.lte;
+import static com.mongodb.client.model.Filters.or;
+import static com.mongodb.client.model.Projections.include;
+
+import java.io.File;
+import java.io.IOException;
 import java.util.Queue;
 
 import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.BsonTimestamp;
 import org.bson.RawBsonDocument;
+import org.bson.conversions.Bson;
 
 import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
 import com.mongodb.diff3.ChunkDef;
 import com.mongodb.diff3.DiffConfiguration;
 import com.mongodb.diff3.DiffResult;
@@ -14,6 +28,7 @@ import com.mongodb.diff3.DiffTask;
 import com.mongodb.diff3.RetryStatus;
 import com.mongodb.diff3.RetryTask;
 import com.mongodb.model.Namespace;
+import com.mongodb.mongosync.TimestampFile;
 import com.mongodb.shardsync.ShardClient;
 
 public class ShardDiffTask extends DiffTask {
@@ -26,6 +41,10 @@ public class ShardDiffTask extends DiffTask {
 
     protected final RawBsonDocument chunk;
 
+    // dest primary optime when the source read started, dest reads must be applied through it
+    private BsonTimestamp destReadFloor;
+    private boolean appliedThroughChecked;
+
     public ShardDiffTask(DiffConfiguration config,
                          RawBsonDocument chunk, Namespace namespace, String srcShardName,
                          String destShardName, DiffSummary summary) {
@@ -48,6 +67,93 @@ public class ShardDiffTask extends DiffTask {
         return new ChunkDef(namespace, min, max);
     }
 
+    /**
+     * Latest optime of the source shard's oplog. Writes after it show up in the oplog,
+     * which is what incremental mode tails to find the documents to re-diff.
+     */
+    @Override
+    protected BsonTimestamp getClusterTime() {
+        try {
+            return sourceShardClient.getLatestOplogTimestamp(srcShardName);
+        } catch (Exception e) {
+            logger.debug("[{}] could not read latest oplog timestamp for shard {}: {}",
+                    Thread.currentThread().getName(), srcShardName, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * In snapshot mode the source is read at the task's cluster time. The dest is read at
+     * a snapshot taken once the sync tool reports (in its timestamp file for the source
+     * shard) that it has applied every write to this namespace the source snapshot contains,
+     * so the dest already holds them.
+     */
+    @Override
+    protected BsonDocument getSnapshotReadConcern(Target target) {
+        if (!config.isSnapshotReads() || clusterTime == null) {
+            return null;
+        }
+        BsonDocument readConcern = new BsonDocument("level", new BsonString("snapshot"));
+        if (target == Target.SOURCE) {
+            return readConcern.append("atClusterTime", clusterTime);
+        }
+        awaitAppliedThrough();
+        return readConcern;
+    }
+
+    private void awaitAppliedThrough() {
+        if (appliedThroughChecked) {
+            return;
+        }
+        appliedThroughChecked = true;
+        String dir = config.getSyncTimestampDir();
+        TimestampFile tsFile = new TimestampFile(dir == null ? null : new File(dir), srcShardName);
+        if (!tsFile.exists()) {
+            logger.debug("[{}] no timestamp file {}, not waiting for the sync to catch up",
+                    Thread.currentThread().getName(), tsFile);
+            return;
+        }
+        long deadline = System.currentTimeMillis() + config.getSnapshotWaitSecs() * 1000L;
+        while (true) {
+            try {
+                BsonTimestamp appliedThrough = tsFile.getShardTimestamp().getTimestamp();
+                if (appliedThrough.compareTo(clusterTime) >= 0 || !hasWritesAfter(appliedThrough)) {
+                    return;
+                }
+            } catch (IOException e) {
+                // being rewritten, try again
+                logger.trace("could not read timestamp file {}: {}", tsFile, e.getMessage());
+            }
+            if (System.currentTimeMillis() > deadline) {
+                logger.warn("[{}] sync has not applied {} through {} after {}s, reading dest anyway ({})",
+                        Thread.currentThread().getName(), srcShardName, clusterTime, config.getSnapshotWaitSecs(),
+                        unitString());
+                return;
+            }
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * True if the source oplog has writes to this namespace in <code>(after, clusterTime]</code>.
+     * The cluster time is usually a noop (the periodic no-op writer) or a write to another
+     * namespace, which the sync never applies, so its timestamp file only reaches the last
+     * write it replicated: once nothing relevant is left after that, the dest is caught up.
+     */
+    private boolean hasWritesAfter(BsonTimestamp after) {
+        MongoCollection<RawBsonDocument> oplog = sourceShardClient.getShardMongoClient(srcShardName)
+                .getDatabase("local").getCollection("oplog.rs", RawBsonDocument.class);
+        Bson query = and(gt("ts", after), lte("ts", clusterTime),
+                or(and(eq("ns", namespace.getNamespace()), in("op", "i", "u", "d")),
+                        and(eq("ns", namespace.getDatabaseName() + ".$cmd"), eq("op", "c"))));
+        return oplog.find(query).projection(include("ts")).first() != null;
+    }
+
     @Override
     protected MongoClient getLoadClient(Target target) {
         ShardClient shardClient;
@@ -64,7 +170,14 @@ public class ShardDiffTask extends DiffTask {
             default:
                 throw new RuntimeException("Unexpected target type: " + target.getName());
         }
-        if (config.isBypassMongos()) {
+        if (config.isSecondaryReads()) {
+            ShardReadRouter router = config.getShardReadRouter();
+            if (target == Target.SOURCE) {
+                destReadFloor = router.getPrimaryOptime(destShardClient, destShardName);
+                return router.route(shardClient, shardName, null);
+            }
+            return router.route(shardClient, shardName, destReadFloor);
+        } else if (config.isBypassMongos()) {
         	return shardClient.getShardMongoClient(shardName);
         } else {
         	return shardClient.getMongoClient();
@@ -2,20 +2,12 @@ package com.mongodb.diff3.shard;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
@@ -25,9 +17,7 @@ import org.bson.RawBsonDocument;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.mongodb.diff3.DiffConfiguration;
-import com.mongodb.diff3.DiffResult;
 import com.mongodb.diff3.DiffSummary;
 import com.mongodb.diff3.DiffSummary.DiffStatus;
 import com.mongodb.diff3.DiffSummaryClient;
@@ -36,7 +26,6 @@ import com.mongodb.model.DatabaseCatalog;
 import com.mongodb.model.Namespace;
 import com.mongodb.shardsync.ChunkManager;
 import com.mongodb.shardsync.ShardClient;
-import com.mongodb.util.BlockWhenQueueFull;
 
 public class ShardDiffUtil {
 
@@ -50,16 +39,10 @@ public class ShardDiffUtil {
 
 	private final DiffConfiguration config;
 
-	protected Map<String, ThreadPoolExecutor> initialTaskPoolMap = new HashMap<>();
-	 Map<String, List<Future<DiffResult>>> initialTaskPoolFutureMap = new HashMap<>();
-
-	private Map<String, ShardDiffTaskExecutor> shardDiffTaskExecutors = new HashMap<>();
-
 	private Map<String, Map<String, RawBsonDocument>> sourceChunksCacheMap;
 	private final long estimatedTotalDocs;
 	private final long totalSize;
 	private final int numUnshardedCollections;
-	private int totalInitialTasks;
 
 	private int alreadyCompletedCount = 0;
 
@@ -92,7 +75,6 @@ public class ShardDiffUtil {
 		Set<String> unshardedColls = catalog.getUnshardedCollections().stream()
 				.map(c -> c.getNamespace().getNamespace()).collect(Collectors.toSet());
 		numUnshardedCollections = unshardedColls.size();
-		totalInitialTasks += numUnshardedCollections;
 
 		logger.info("[Main] shardedColls:[" + String.join(", ", shardedColls) + "]");
 		logger.info("[Main] unshardedColls:[" + String.join(", ", unshardedColls) + "]");
@@ -106,24 +88,6 @@ public class ShardDiffUtil {
 
 		srcShardNames = new ArrayList<>(sourceShardClient.getShardsMap().keySet());
 		destShardNames = new ArrayList<>(destShardClient.getShardsMap().keySet());
-		
-		for (String shard : srcShardNames) {
-            int numThreads = config.getThreads() / srcShardNames.size();
-            Map<String, RawBsonDocument> chunkMap = sourceChunksCacheMap.get(shard);
-            int qSize = chunkMap == null ? 1 : chunkMap.size();
-            totalInitialTasks += qSize;
-            logger.debug("[Main] Setting workQueue size to {}", qSize);
-            BlockingQueue<Runnable> workQueue = new ArrayBlockingQueue<>(qSize);
-            initialTaskPoolFutureMap.put(shard, new ArrayList<>());
-            ThreadFactory initialTaskPoolThreadFactory =
-                    new ThreadFactoryBuilder().setNameFormat("WorkerPool-" + shard + "-%d").build();
-            ThreadPoolExecutor initialTaskPool = new ThreadPoolExecutor(numThreads, numThreads, 30, TimeUnit.SECONDS,
-                    workQueue, new BlockWhenQueueFull());
-            initialTaskPool.setThreadFactory(initialTaskPoolThreadFactory);
-            initialTaskPoolMap.put(shard, initialTaskPool);
-        }
-        totalInitialTasks += unshardedColls.size();
-
 	}
 
 	private void loadChunks() {
@@ -136,7 +100,7 @@ public class ShardDiffUtil {
 
 		BsonDocument completedChunksQuery = chunkQuery.clone();
 		completedChunksQuery.append("status", new BsonString(DiffStatus.SUCCEEDED.toString()));
-		Map<String, RawBsonDocument> completedChunks = diffSummaryClient.loadChunksCache(completedChunksQuery);
+		Map<String, RawBsonDocument> completedChunks = diffSummaryClient.loadCompletedChunks(completedChunksQuery);
 
 		int todoCount = 0;
 		for (Map.Entry<String, RawBsonDocument> entry : sourceCache.entrySet()) {
@@ -147,11 +111,11 @@ public class ShardDiffUtil {
 
 				RawBsonDocument completedChunk = completedChunks.get(chunkId);
 
-				int srcOnlyCount = completedChunk.getArray("srcOnly").size();
-				int destOnlyCount = completedChunk.getArray("destOnly").size();
-				int mismatches = completedChunk.getArray("mismatches").size();
-				long bytesProcessed = completedChunk.getInt64("bytesProcessed").getValue();
-				long matches = completedChunk.getInt64("matches").getValue();
+				int srcOnlyCount = completedChunk.getNumber("srcOnlyCount").intValue();
+				int destOnlyCount = completedChunk.getNumber("destOnlyCount").intValue();
+				int mismatches = completedChunk.getNumber("mismatchesCount").intValue();
+				long bytesProcessed = completedChunk.getNumber("bytesProcessed").longValue();
+				long matches = completedChunk.getNumber("matches").longValue();
 
 				long totalProcessedDocs = matches + mismatches + srcOnlyCount + destOnlyCount;
 				// (cr.getMatches().longValue() + numMismatches + numSourceOnly + numDestOnly);
@@ -186,167 +150,70 @@ public class ShardDiffUtil {
 		return sum.get() + numUnshardedCollections;
 	}
 
-	private void initializeTasks() {
+	private ShardDiffScheduler initializeTasks() {
+		int maxThreadsPerShard = config.getMaxThreadsPerShard();
+		if (maxThreadsPerShard <= 0) {
+			// twice the fair share, so that stealing can double up on a backlogged shard
+			int fairShare = (config.getThreads() + srcShardNames.size() - 1) / srcShardNames.size();
+			maxThreadsPerShard = Math.min(config.getThreads(), 2 * fairShare);
+		}
+		ShardDiffScheduler scheduler = new ShardDiffScheduler(srcShardNames, config.getThreads(),
+				maxThreadsPerShard, summary);
+
 		for (String sourceShardName : srcShardNames) {
 			String destShardName = chunkManager.getShardMapping(sourceShardName);
-
-			int numThreads = config.getThreads() / srcShardNames.size();
 			Map<String, RawBsonDocument> chunkMap = sourceChunksCacheMap.get(sourceShardName);
 			if (chunkMap == null) {
 				logger.debug("No chunks for shard {}, skipping execution", sourceShardName);
 				continue;
 			}
-
-			totalInitialTasks += chunkMap.size();
-
-			ShardDiffTaskExecutor executor = new ShardDiffTaskExecutor(config, chunkMap, sourceShardName, destShardName,
-					numThreads, summary);
-			shardDiffTaskExecutors.put(sourceShardName, executor);
-			executor.initializeTasks();
-			executor.run();
+			for (RawBsonDocument chunk : chunkMap.values()) {
+				Namespace ns = new Namespace(chunk.get("ns").asString().getValue());
+				scheduler.add(sourceShardName,
+						new ShardDiffTask(config, chunk, ns, sourceShardName, destShardName, summary));
+			}
 		}
 
-		logger.info("[Main] found {} initial tasks", totalInitialTasks);
-	}
-
-	private boolean shardDiffTaskExecutorsComplete() {
+		List<Collection> unshardedCollections = new ArrayList<>(
+				sourceShardClient.getDatabaseCatalog().getUnshardedCollections());
+		for (int i = 0; i < unshardedCollections.size(); i++) {
+			Collection unshardedColl = unshardedCollections.get(i);
 
-		for (ShardDiffTaskExecutor e : shardDiffTaskExecutors.values()) {
-			if (!e.isComplete()) {
-				return false;
-			}
+			// Round-robin which shard to assign to
+			int shardIdx = i % srcShardNames.size();
+			String srcShard = srcShardNames.get(shardIdx);
+			String destShard = destShardNames.get(shardIdx);
+			ShardDiffTask task = new ShardDiffTask(config, null, unshardedColl.getNamespace(), srcShard, destShard, summary);
+			logger.debug("[Main] Added an UnshardedDiffTask for {}", unshardedColl.getNamespace());
+			scheduler.add(srcShard, task);
 		}
-		return true;
+
+		logger.info("[Main] found {} initial tasks, max {} threads per shard", scheduler.size(),
+				maxThreadsPerShard);
+		return scheduler;
 	}
 
 	public void run() {
 
-		initializeTasks();
-		
-		AtomicBoolean initialTaskPoolCollectorDone = new AtomicBoolean(false);
-        AtomicBoolean initialTaskPoolDone = new AtomicBoolean(false);
+		ShardDiffScheduler scheduler = initializeTasks();
 
 		int totalChunks = getTotalChunks() + alreadyCompletedCount;
-		int numShards = srcShardNames.size();
-
 		summary.setTotalChunks(totalChunks);
 
 		ScheduledExecutorService statusReporter = Executors.newSingleThreadScheduledExecutor();
 		statusReporter.scheduleAtFixedRate(() -> logger.info(summary.getSummary(false)), 0, 5, TimeUnit.SECONDS);
 
-		List<Collection> unshardedCollections = new ArrayList<>(
-				sourceShardClient.getDatabaseCatalog().getUnshardedCollections());
-		for (int i = 0; i < unshardedCollections.size(); i++) {
-			Collection unshardedColl = unshardedCollections.get(i);
-
-			// Round-robin which pool to assign to
-			int shardIdx = i % numShards;
-			String srcShard = srcShardNames.get(shardIdx);
-			String destShard = destShardNames.get(shardIdx);
-			ShardDiffTask task = new ShardDiffTask(config, null, unshardedColl.getNamespace(), srcShard, destShard, summary);
-			logger.debug("[Main] Added an UnshardedDiffTask for {}", unshardedColl.getNamespace());
-			 List<Future<DiffResult>> initialTaskPoolFutures = initialTaskPoolFutureMap.get(srcShard);
-			ThreadPoolExecutor initialTaskPool = initialTaskPoolMap.get(srcShard);
-			initialTaskPoolFutures.add(initialTaskPool.submit(task));
-		}
-
-		Set<String> finishedShards = new HashSet<>();
-        Map<String, Set<Future<DiffResult>>> initialTaskPoolFuturesSeen = new HashMap<>();
-
-		ScheduledExecutorService initialTaskPoolCollector = Executors.newSingleThreadScheduledExecutor();
-        Future<?> initialTaskPoolFuture = initialTaskPoolCollector.scheduleAtFixedRate(new Runnable() {
-            int runs = 0;
-
-            @Override
-            public void run() {
-                // Poll for completed futures every second
-                if (finishedShards.size() < numShards) {
-                    logger.trace("[InitialTaskPoolCollector] loop: {}", ++runs);
-                    for (String shard : srcShardNames) {
-                        if (!initialTaskPoolFuturesSeen.containsKey(shard)) {
-                            initialTaskPoolFuturesSeen.put(shard, new HashSet<>());
-                        }
-                        Set<Future<DiffResult>> futuresSeen = initialTaskPoolFuturesSeen.get(shard);
-                        List<Future<DiffResult>> diffResults = initialTaskPoolFutureMap.get(shard);
-
-                        if (futuresSeen.size() >= diffResults.size()) {
-                            finishedShards.add(shard);
-                        } else {
-                            for (Future<DiffResult> future : diffResults) {
-                                try {
-                                    if (!futuresSeen.contains(future) && future.isDone()) {
-                                        futuresSeen.add(future);
-
-                                        DiffResult result = future.get();
-                                        int failures = result.getFailedKeys().size();
-                                        if (failures > 0) {
-                                            logger.debug("[InitialTaskPoolCollector] will retry {} failed ids for ({})",
-                                                    result.getFailedKeys().size(), result.getChunkDef().unitString());
-                                        } else {
-                                            logger.debug("[InitialTaskPoolCollector] got result for ({}): " +
-                                                            "{} matches, {} failures, {} bytes",
-                                                    result.getChunkDef().unitString(), result.getMatches(),
-                                                    result.getFailedKeys().size(), result.getBytesProcessed());
-                                        }
-                                        summary.updateInitTask(result);
-                                    }
-                                } catch (InterruptedException e) {
-                                    logger.error("[InitialTaskPoolCollector] Diff task was interrupted", e);
-                                } catch (ExecutionException e) {
-                                    logger.error("[InitialTaskPoolCollector] Diff task threw an exception", e);
-                                }
-                            }
-                        }
-                    }
-                } else {
-                    initialTaskPoolCollectorDone.set(true);
-                }
-            }
-        }, 0, 1, TimeUnit.SECONDS);
-
-        boolean initialTaskPoolResult = false;
-
-		while (!initialTaskPoolDone.get()) {
-			try {
-				Thread.sleep(1000);
-				logger.debug("[Main] check completion status: shardDiffTaskExecutorsComplete: {}",
-						shardDiffTaskExecutorsComplete());
-
-				
-                if (!initialTaskPoolDone.get()) {
-                    if (initialTaskPoolCollectorDone.get() && !initialTaskPoolCollector.isShutdown()) {
-                        logger.info("[Main] shutting down initial task pool collector");
-                        initialTaskPoolResult = initialTaskPoolFuture.cancel(false);
-                        initialTaskPoolCollector.shutdown();
-                    } else {
-                        logger.trace("[Main] Initial task pool collector still running");
-                    }
-                    if (initialTaskPoolResult) {
-                        initialTaskPoolDone.set(true);
-                        logger.info("[Main] shutting down {} initial task pools", initialTaskPoolMap.size());
-                        for (ThreadPoolExecutor e : initialTaskPoolMap.values()) {
-                            e.shutdown();
-                        }
-                    }
-                } else {
-                    logger.trace("[Main] Initial task pool still running");
-                }
-			} catch (Exception e) {
-				logger.error("[Main] Error collector worker and/or retry pool", e);
-				throw new RuntimeException(e);
-			}
-		}
-		
-		while (! shardDiffTaskExecutorsComplete()) {
-			try {
-				Thread.sleep(1000);
-			} catch (InterruptedException e) {
-				logger.debug("interrupted waiting for shardDiffTaskExecutorsComplete");
-			}
+		scheduler.start();
+		try {
+			scheduler.awaitCompletion();
+		} catch (InterruptedException e) {
+			logger.error("[Main] interrupted waiting for diff tasks", e);
+			throw new RuntimeException(e);
 		}
 
 		logger.info("[Main] shutting down statusReporter thread");
 		statusReporter.shutdown();
+		diffSummaryClient.flush();
 
 		logger.info(summary.getSummary(true));
 
@@ -0,0 +1,159 @@
+package com.mongodb.diff3.shard;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoClient;
+import com.mongodb.shardsync.ShardClient;
+
+/**
+ * Routes diff reads to the secondaries of each shard. The members of a shard come from
+ * <code>replSetGetStatus</code>, cached for a few seconds; a read goes to the eligible
+ * secondary with the fewest reads routed to it so far (ties to the least lagged), where
+ * eligible means healthy, no more than <code>maxLagSecs</code> behind the primary and,
+ * if given, applied through a minimum optime. When no secondary is eligible, or the
+ * status can't be read (e.g. missing clusterMonitor privileges), the read goes to the
+ * shard's regular client.
+ */
+public class ShardReadRouter {
+
+	private static final Logger logger = LoggerFactory.getLogger(ShardReadRouter.class);
+
+	private static final long STATUS_TTL_MS = 5000;
+
+	private final long maxLagSecs;
+	private final Map<String, ShardMembers> shardMembers = new ConcurrentHashMap<>();
+	private final Map<String, AtomicLong> routedReads = new ConcurrentHashMap<>();
+
+	public ShardReadRouter(long maxLagSecs) {
+		this.maxLagSecs = maxLagSecs;
+	}
+
+	/**
+	 * Client to read <code>shard</code> from: a secondary applied through at least
+	 * <code>minOptime</code> (when not null), or the shard's own client.
+	 */
+	public MongoClient route(ShardClient shardClient, String shard, BsonTimestamp minOptime) {
+		ShardMembers members = getMembers(shardClient, shard, false);
+		Member member = members == null ? null : pick(members, minOptime);
+		if (member == null && members != null && minOptime != null) {
+			// the cached status may predate minOptime
+			members = getMembers(shardClient, shard, true);
+			member = members == null ? null : pick(members, minOptime);
+		}
+		if (member == null) {
+			logger.debug("[{}] no eligible secondary for {} shard {}, reading from shard client",
+					Thread.currentThread().getName(), shardClient.getName(), shard);
+			return shardClient.getShardMongoClient(shard);
+		}
+		routedReads.computeIfAbsent(member.host, h -> new AtomicLong()).incrementAndGet();
+		logger.trace("[{}] routed {} shard {} read to {} ({}s behind primary)",
+				Thread.currentThread().getName(), shardClient.getName(), shard, member.host, member.lagSecs);
+		return shardClient.getShardMemberClient(member.host);
+	}
+
+	/**
+	 * Current optime of the shard's primary, read fresh. Null if it can't be read.
+	 */
+	public BsonTimestamp getPrimaryOptime(ShardClient shardClient, String shard) {
+		ShardMembers members = getMembers(shardClient, shard, true);
+		return members == null ? null : members.primaryOptime;
+	}
+
+	private Member pick(ShardMembers members, BsonTimestamp minOptime) {
+		Member best = null;
+		long bestReads = 0;
+		for (Member m : members.secondaries) {
+			if (m.lagSecs > maxLagSecs || (minOptime != null && m.optime.compareTo(minOptime) < 0)) {
+				continue;
+			}
+			AtomicLong reads = routedReads.get(m.host);
+			long n = reads == null ? 0 : reads.get();
+			if (best == null || n < bestReads || (n == bestReads && m.lagSecs < best.lagSecs)) {
+				best = m;
+				bestReads = n;
+			}
+		}
+		return best;
+	}
+
+	private ShardMembers getMembers(ShardClient shardClient, String shard, boolean refresh) {
+		String key = shardClient.getName() + "/" + shard;
+		ShardMembers cached = shardMembers.get(key);
+		if (!refresh && cached != null && System.currentTimeMillis() - cached.fetchedAt < STATUS_TTL_MS) {
+			return cached.primaryOptime == null ? null : cached;
+		}
+		ShardMembers members = readStatus(shardClient, shard);
+		shardMembers.put(key, members);
+		return members.primaryOptime == null ? null : members;
+	}
+
+	private ShardMembers readStatus(ShardClient shardClient, String shard) {
+		ShardMembers members = new ShardMembers();
+		Document status;
+		try {
+			status = shardClient.getShardMongoClient(shard).getDatabase("admin")
+					.runCommand(new Document("replSetGetStatus", 1));
+		} catch (MongoException e) {
+			logger.warn("{} shard {}: replSetGetStatus failed, not routing reads to secondaries: {}",
+					shardClient.getName(), shard, e.getMessage());
+			return members;
+		}
+
+		List<Document> secondaries = new ArrayList<>();
+		for (Document m : status.getList("members", Document.class)) {
+			if (m.getInteger("state", 0) == 1) {
+				members.primaryOptime = optime(m);
+			} else if (m.getInteger("state", 0) == 2 && m.get("health", Number.class).intValue() == 1) {
+				secondaries.add(m);
+			}
+		}
+		if (members.primaryOptime == null) {
+			return members;
+		}
+		for (Document m : secondaries) {
+			BsonTimestamp optime = optime(m);
+			if (optime != null) {
+				long lag = Math.max(0, members.primaryOptime.getTime() - optime.getTime());
+				members.secondaries.add(new Member(m.getString("name"), optime, lag));
+			}
+		}
+		return members;
+	}
+
+	private static BsonTimestamp optime(Document member) {
+		Object optime = member.get("optime");
+		if (optime instanceof Document) {
+			return ((Document) optime).get("ts", BsonTimestamp.class);
+		}
+		// protocol version 0
+		return optime instanceof BsonTimestamp ? (BsonTimestamp) optime : null;
+	}
+
+	private static class ShardMembers {
+		private final long fetchedAt = System.currentTimeMillis();
+		private BsonTimestamp primaryOptime;
+		private final List<Member> secondaries = new ArrayList<>();
+	}
+
+	private static class Member {
+		private final String host;
+		private final BsonTimestamp optime;
+		private final long lagSecs;
+
+		Member(String host, BsonTimestamp optime, long lagSecs) {
+			this.host = host;
+			this.optime = optime;
+			this.lagSecs = lagSecs;
+		}
+	}
+}
@@ -60,8 +60,6 @@ public class DiffTask implements Callable<DiffResult> {
 
 		RawBsonDocument sourceDoc = null;
 		RawBsonDocument destDoc = null;
-		byte[] sourceBytes = null;
-		byte[] destBytes = null;
 		
 		long lastReport = System.currentTimeMillis();
 		while (sourceCursor.hasNext()) {
@@ -74,10 +72,8 @@ public class DiffTask implements Callable<DiffResult> {
 				result.incrementMissing();
 				continue;
 			}
-			sourceBytes = sourceDoc.getByteBuffer().array();
-			destBytes = destDoc.getByteBuffer().array();
-			if (sourceBytes.length == destBytes.length) {
-				if (!DiffUtils.compareHashes(sourceBytes, destBytes)) {
+			if (DiffUtils.documentSize(sourceDoc) == DiffUtils.documentSize(destDoc)) {
+				if (!DiffUtils.compareHashes(sourceDoc, destDoc)) {
 					Object id = sourceDoc.get("_id");
 
 					if (sourceDoc.equals(destDoc)) {
@@ -228,8 +228,6 @@ public class DiffUtil {
 
 		RawBsonDocument sourceDoc = null;
 		RawBsonDocument destDoc = null;
-		byte[] sourceBytes = null;
-		byte[] destBytes = null;
 		long missing = 0;
 		long matches = 0;
 		long keysMisordered = 0;
@@ -255,10 +253,8 @@ public class DiffUtil {
 				statusCheck();
 			}
 			
-			sourceBytes = sourceDoc.getByteBuffer().array();
-			destBytes = destDoc.getByteBuffer().array();
-			if (sourceBytes.length == destBytes.length) {
-				if (!DiffUtils.compareHashes(sourceBytes, destBytes)) {
+			if (DiffUtils.documentSize(sourceDoc) == DiffUtils.documentSize(destDoc)) {
+				if (!DiffUtils.compareHashes(sourceDoc, destDoc)) {
 					Object id = sourceDoc.get("_id");
 
 					if (sourceDoc.equals(destDoc)) {
@@ -470,11 +466,8 @@ public class DiffUtil {
 							ds.totalMissingDocs++;
 							sourceNext = sourceDoc;
 						} else {
-							byte[] sourceBytes = sourceDoc.getByteBuffer().array();
-							byte[] destBytes = destDoc.getByteBuffer().array();
-							
-							if (sourceBytes.length == destBytes.length) {
-								if (!DiffUtils.compareHashes(sourceBytes, destBytes)) {
+							if (DiffUtils.documentSize(sourceDoc) == DiffUtils.documentSize(destDoc)) {
+								if (!DiffUtils.compareHashes(sourceDoc, destDoc)) {
 									Object id = sourceDoc.get("_id");
 
 									if (sourceDoc.equals(destDoc)) {
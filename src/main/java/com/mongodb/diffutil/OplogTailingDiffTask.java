@@ -88,8 +88,6 @@ public class OplogTailingDiffTask implements Callable<OplogTailingDiffTaskResult
 
 		RawBsonDocument sourceDoc = null;
 		RawBsonDocument destDoc = null;
-		byte[] sourceBytes = null;
-		byte[] destBytes = null;
 		
 		Set<Object> sourceIds = new HashSet<>();
 		Set<Object> destIds = new HashSet<>();
@@ -108,10 +106,8 @@ public class OplogTailingDiffTask implements Callable<OplogTailingDiffTaskResult
 				result.incrementMissing();
 				continue;
 			}
-			sourceBytes = sourceDoc.getByteBuffer().array();
-			destBytes = destDoc.getByteBuffer().array();
-			if (sourceBytes.length == destBytes.length) {
-				if (!DiffUtils.compareHashes(sourceBytes, destBytes)) {
+			if (DiffUtils.documentSize(sourceDoc) == DiffUtils.documentSize(destDoc)) {
+				if (!DiffUtils.compareHashes(sourceDoc, destDoc)) {
 					Object id = sourceDoc.get("_id");
 
 					if (sourceDoc.equals(destDoc)) {
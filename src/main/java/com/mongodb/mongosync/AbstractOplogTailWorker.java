@@ -1,9 +1,11 @@
 package com.mongodb.mongosync;
 
-import org.bson.BsonDocument;
+import org.bson.BsonTimestamp;
+import org.bson.RawBsonDocument;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.mongodb.model.Namespace;
 import com.mongodb.model.ShardTimestamp;
 import com.mongodb.shardsync.ShardClient;
 
@@ -28,7 +30,7 @@ public abstract class AbstractOplogTailWorker implements Runnable {
 	
 	//protected abstract void flushBuffer(List<BsonDocument> buffer) throws MongoException, IOException;
 	
-	protected abstract void addToBuffer(BsonDocument doc) throws InterruptedException;
+	protected abstract void addToBuffer(RawBsonDocument doc, Namespace ns, String op, BsonTimestamp ts) throws InterruptedException;
 
 	protected abstract void stop();
 
@@ -0,0 +1,126 @@
+package com.mongodb.mongosync;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits the bulk writes in flight to one destination and, when adaptive, tunes the limit
+ * and the clone batch size AIMD style from what the writes observe.
+ *
+ * Every <code>limit</code> completed writes (about one round of the pipe) the window is
+ * judged: if a write hit a write concern error or failed and had to be retried, or the
+ * average write latency went over twice the baseline, the destination is congested and the
+ * limit and batch size are halved. Otherwise both grow by one step. The baseline is the
+ * lowest window latency seen, drifting up slowly so it follows changes in batch size and
+ * document shape rather than sticking to the best window ever.
+ *
+ * When not adaptive the limiter never blocks and the batch size stays as configured.
+ */
+public class AdaptiveWriteLimiter {
+
+	protected static final Logger logger = LoggerFactory.getLogger(AdaptiveWriteLimiter.class);
+
+	private final static double LATENCY_TOLERANCE = 2.0;
+	private final static double BASELINE_DRIFT = 1.02;
+	private final static long BATCH_BYTES_STEP = 1024 * 1024;
+	private final static long MIN_BATCH_BYTES = 1024 * 1024;
+
+	private final String name;
+	private final boolean adaptive;
+	private final int maxLimit;
+	private final long maxBatchBytes;
+
+	private int limit;
+	private int inFlight;
+	private volatile long batchBytes;
+
+	private int windowWrites;
+	private long windowLatencyNanos;
+	private boolean windowCongested;
+	private double baselineNanos = Double.MAX_VALUE;
+
+	public AdaptiveWriteLimiter(String name, boolean adaptive, int initialLimit, int maxLimit,
+			long initialBatchBytes, long maxBatchBytes) {
+		this.name = name;
+		this.adaptive = adaptive;
+		this.maxLimit = Math.max(1, maxLimit);
+		this.limit = adaptive ? Math.max(1, Math.min(initialLimit, this.maxLimit)) : Integer.MAX_VALUE;
+		this.maxBatchBytes = maxBatchBytes;
+		this.batchBytes = Math.min(initialBatchBytes, maxBatchBytes);
+	}
+
+	/**
+	 * Waits for a write slot. Like <code>Semaphore.acquireUninterruptibly</code>, an interrupt
+	 * doesn't abort the wait, it is kept for the caller to see afterwards.
+	 */
+	public synchronized void acquire() {
+		boolean interrupted = false;
+		while (inFlight >= limit) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		inFlight++;
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Returns the slot of a completed write.
+	 *
+	 * @param congested the write hit a write concern error or failed in a way that is retried,
+	 *                  rather than with per-document errors such as duplicate keys
+	 */
+	public synchronized void release(long latencyNanos, boolean congested) {
+		inFlight--;
+		notifyAll();
+		if (!adaptive) {
+			return;
+		}
+		windowWrites++;
+		windowLatencyNanos += latencyNanos;
+		windowCongested |= congested;
+		if (windowWrites < limit) {
+			return;
+		}
+
+		double averageNanos = windowLatencyNanos / (double) windowWrites;
+		int previousLimit = limit;
+		if (windowCongested || averageNanos > baselineNanos * LATENCY_TOLERANCE) {
+			limit = Math.max(1, limit / 2);
+			batchBytes = Math.max(MIN_BATCH_BYTES, batchBytes / 2);
+		} else {
+			limit = Math.min(maxLimit, limit + 1);
+			batchBytes = Math.min(maxBatchBytes, batchBytes + BATCH_BYTES_STEP);
+		}
+		if (limit < previousLimit) {
+			logger.debug("{}: write limit {} -> {}, batch {} MB, latency {} ms (baseline {} ms), congested: {}",
+					name, previousLimit, limit, batchBytes / (1024 * 1024),
+					(long) averageNanos / 1000000, (long) baselineNanos / 1000000, windowCongested);
+		}
+		baselineNanos = Math.min(baselineNanos * BASELINE_DRIFT, averageNanos);
+
+		windowWrites = 0;
+		windowLatencyNanos = 0;
+		windowCongested = false;
+	}
+
+	/**
+	 * Target size in bytes of a clone insert batch.
+	 */
+	public long getBatchBytes() {
+		return batchBytes;
+	}
+
+	public synchronized int getLimit() {
+		return limit;
+	}
+
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+}
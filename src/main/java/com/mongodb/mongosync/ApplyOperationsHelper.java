@@ -2,9 +2,9 @@ package com.mongodb.mongosync;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
 
 import org.bson.BsonDocument;
+import org.bson.BsonValue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,16 +31,19 @@ public class ApplyOperationsHelper  {
 	private OplogTailMonitor oplogTailMonitor;
 	private ShardClient destShardClient;
 	private String shardId;
+	private AdaptiveWriteLimiter writeLimiter;
 	
 	private final static UpdateOptions upsertOptions = new UpdateOptions().upsert(true);
 	private final static BulkWriteOptions orderedBulkWriteOptions = new BulkWriteOptions();
 	private final static BulkWriteOptions unorderedBulkWriteOptions = new BulkWriteOptions().ordered(false);
 	
 	
-	public ApplyOperationsHelper(String shardId, OplogTailMonitor oplogTailMonitor, ShardClient destShardClient) {
+	public ApplyOperationsHelper(String shardId, OplogTailMonitor oplogTailMonitor, ShardClient destShardClient,
+			AdaptiveWriteLimiter writeLimiter) {
 		this.shardId = shardId;
 		this.oplogTailMonitor = oplogTailMonitor;
 		this.destShardClient = destShardClient;
+		this.writeLimiter = writeLimiter;
 	}
 	
 	
@@ -55,10 +58,10 @@ public class ApplyOperationsHelper  {
 			//BulkWriteResult bulkWriteResult = applyBulkWriteModelsOnCollection(collection, operations, originalOps);
 			if (useOrdered) {
 				//logger.debug("{}: using ordered batch, {} ops", shardId, writeModels.size());
-				bulkWriteResult = collection.bulkWrite(writeModels, orderedBulkWriteOptions);
+				bulkWriteResult = bulkWrite(collection, writeModels, orderedBulkWriteOptions);
 			} else {
 				//logger.debug("{}: using un-ordered batch, {} ops", shardId, writeModels.size());
-				bulkWriteResult = collection.bulkWrite(writeModels, unorderedBulkWriteOptions);
+				bulkWriteResult = bulkWrite(collection, writeModels, unorderedBulkWriteOptions);
 			}
 			
 			output.increment(bulkWriteResult);
@@ -88,6 +91,27 @@ public class ApplyOperationsHelper  {
 		}
 	}
 	
+	/**
+	 * bulkWrite within the destination's write limit, released before any retry of the batch.
+	 * Per-operation errors don't count as congestion, write concern errors and failed batches do.
+	 */
+	private BulkWriteResult bulkWrite(MongoCollection<BsonDocument> collection, List<WriteModel<BsonDocument>> writeModels,
+			BulkWriteOptions bulkWriteOptions) {
+		writeLimiter.acquire();
+		long start = System.nanoTime();
+		boolean congested = true;
+		try {
+			BulkWriteResult result = collection.bulkWrite(writeModels, bulkWriteOptions);
+			congested = false;
+			return result;
+		} catch (MongoBulkWriteException err) {
+			congested = err.getWriteConcernError() != null;
+			throw err;
+		} finally {
+			writeLimiter.release(System.nanoTime() - start, congested);
+		}
+	}
+	
 	public BulkWriteOutput applyBulkWriteModelsOnCollection(Namespace namespace, OplogBatch oplogBatch) {
 		BulkWriteOutput output = new BulkWriteOutput();
 		applyBulkWriteModelsOnCollection(namespace, oplogBatch, output);
@@ -138,9 +162,21 @@ public class ApplyOperationsHelper  {
 	}
 	
 	public static WriteModel<BsonDocument> getWriteModelForOperation(BsonDocument operation, boolean upsert) throws MongoException {
+		return getWriteModelForOperation(operation, operation.getString("op").getValue(), upsert);
+	}
+	
+	public static WriteModel<BsonDocument> getWriteModelForOperation(BsonDocument operation, String op) throws MongoException {
+		return getWriteModelForOperation(operation, op, false);
+	}
+	
+	/**
+	 * The write model for an oplog entry whose op type was already read. The entry may be a
+	 * RawBsonDocument, only o (and o2 for updates) are decoded and the entry isn't modified.
+	 */
+	public static WriteModel<BsonDocument> getWriteModelForOperation(BsonDocument operation, String op, boolean upsert) throws MongoException {
 		String message;
 		WriteModel<BsonDocument> model = null;
-		switch (operation.getString("op").getValue()) {
+		switch (op) {
 		case "i":
 			model = getInsertWriteModel(operation);
 			break;
@@ -153,12 +189,52 @@ public class ApplyOperationsHelper  {
 		case "n":
 			break;
 		default:
-			message = String.format("unsupported operation %s; op: %s", operation.getString("op"), operation.toJson());
+			message = String.format("unsupported operation %s; op: %s", op, operation.toJson());
 			logger.error(message);
 		}
 		return model;
 	}
 	
+	public BsonValue getIdForOperation(BsonDocument operation) throws MongoException {
+		return getIdForOperation(operation, operation.getString("op").getValue());
+	}
+	
+	public BsonValue getIdForOperation(BsonDocument operation, String opType) throws MongoException {
+		switch (opType) {
+		case "u":
+			BsonDocument o2 = operation.getDocument("o2");
+			if (o2 != null) {
+				BsonValue id = o2.get("_id");
+				if (id != null) {
+					return id;
+				} else {
+					logger.warn("{}: did not find o2._id field for update oplog entry: {}", shardId, operation);
+				}
+			} else {
+				logger.error("{}: did not find o2 field for update oplog entry: {}", shardId, operation);
+				return null;
+			}
+			break;
+		case "i":
+		case "d":
+			BsonDocument oDoc = operation.getDocument("o");
+			if (oDoc != null) {
+				BsonValue id = oDoc.get("_id");
+				if (id != null) {
+					return id;
+				} else {
+					logger.warn("{}: did not find o._id field for insert/delete oplog entry: {}", shardId, operation);
+				}
+			} else {
+				logger.error("{}: did not find o field for insert/delete oplog entry: {}", shardId, operation);
+			}
+			break;
+		default:
+			logger.error(String.format("{}: unexpected operation %s; op: %s", shardId, opType, operation.toJson()));
+		}
+		return null;
+	}
+	
 	private void performRunCommand(BsonDocument operation) {
 		try {
 			BsonDocument document = operation.getDocument("o");
@@ -176,7 +252,6 @@ public class ApplyOperationsHelper  {
 	}
 	
 	private static WriteModel<BsonDocument> getInsertWriteModel(BsonDocument operation) {
-		String ns = operation.getString("ns").getValue();
 		BsonDocument document = operation.getDocument("o");
 		// TODO can we get duplicate key here?
 		return new InsertOneModel<>(document);
@@ -188,12 +263,15 @@ public class ApplyOperationsHelper  {
 		BsonDocument update = operation.getDocument("o");
 
 		if (update.containsKey("$v")) {
-			update.remove("$v");
+			// raw oplog entries are read-only, so $v is removed from a (shallow) copy
+			BsonDocument copy = new BsonDocument();
+			copy.putAll(update);
+			copy.remove("$v");
+			update = copy;
 		}
 
 		// if the update operation is not using $set/$push, etc then use replaceOne
-		Set<String> docKeys = update.keySet();
-		if (docKeys.iterator().next().startsWith("$")) {
+		if (update.getFirstKey().startsWith("$")) {
 			if (upsert) {
 				return new UpdateOneModel<BsonDocument>(find, update, upsertOptions);
 			} else {
@@ -2,17 +2,13 @@ package com.mongodb.mongosync;
 
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 import org.bson.BsonDocument;
 import org.bson.BsonTimestamp;
-import org.bson.BsonValue;
-import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.mongodb.client.MongoClient;
 import com.mongodb.client.model.WriteModel;
 import com.mongodb.model.Namespace;
 
@@ -21,13 +17,15 @@ public class ChildOplogWorker implements Runnable {
 	protected static final Logger logger = LoggerFactory.getLogger(ChildOplogWorker.class);
 	
 	private String shardId;
-	private BlockingQueue<OplogQueueEntry> workQueue;
+	private int index;
+	private OplogRingBuffer workQueue;
 	private ApplyOperationsHelper applyOperationsHelper;
 	private OplogTailMonitor oplogTailMonitor;
+	private OplogWatermark watermark;
 	
 	private boolean shutdown = false;
 	
-	private Map<String, OplogBatch> oplogBatches;
+	private Map<Namespace, OplogBatch> oplogBatches;
 	
 	private BsonTimestamp lastTimestamp = null;
 	
@@ -37,27 +35,18 @@ public class ChildOplogWorker implements Runnable {
 	
 	private long lastFlushMillis;
 	
-	public ChildOplogWorker(String shardId, BlockingQueue<OplogQueueEntry> workQueue, 
-			ApplyOperationsHelper applyOperationsHelper, OplogTailMonitor oplogTailMonitor, MongoSyncOptions options) {
+	public ChildOplogWorker(String shardId, int index, OplogRingBuffer workQueue, 
+			ApplyOperationsHelper applyOperationsHelper, OplogTailMonitor oplogTailMonitor, OplogWatermark watermark,
+			MongoSyncOptions options) {
 		this.shardId = shardId;
+		this.index = index;
 		this.workQueue = workQueue;
 		this.applyOperationsHelper = applyOperationsHelper;
 		this.oplogTailMonitor = oplogTailMonitor;
+		this.watermark = watermark;
 		this.oplogBatches = new HashMap<>();
 		this.options = options;
-		initializeTransformers();
-	}
-	
-	private void initializeTransformers() {
-		for (Map.Entry<String, String> entry : options.getTransformersMap().entrySet()) {
-			if (lookupTransformers == null) {
-				lookupTransformers = new HashMap<>();
-			}
-			MongoClient sourceClient = options.getSourceShardClient().getMongoClient();
-			Namespace ns = new Namespace(entry.getKey());
-			LookupTransformer transformer = new LookupTransformer(sourceClient, ns.getDatabaseName(), ns.getCollectionName(), entry.getValue());
-			lookupTransformers.put(entry.getKey(), transformer);
-		}
+		this.lookupTransformers = LookupTransformer.initialize(options);
 	}
 	
 	public void stop() {
@@ -65,20 +54,26 @@ public class ChildOplogWorker implements Runnable {
 	}
 	
 	private void flush(int minThreshold) {
+		// all batches use the same elapsed time, the first flush resets it
+		long elapsed = System.currentTimeMillis() - lastFlushMillis;
 		//synchronized (writeModelsMap) {
-			for (Map.Entry<String, OplogBatch> entry : oplogBatches.entrySet()) {
-				Namespace ns = new Namespace(entry.getKey());
-				flush(minThreshold, ns, entry.getValue());
+			for (Map.Entry<Namespace, OplogBatch> entry : oplogBatches.entrySet()) {
+				flush(minThreshold, entry.getKey(), entry.getValue(), elapsed);
 			}
 		//}
-			
+		updateAppliedThrough();
 	}
 	
 	private void flush(int minThreshold, Namespace ns, OplogBatch oplogBatch) {
+		long elapsed = System.currentTimeMillis() - lastFlushMillis;
+		if (flush(minThreshold, ns, oplogBatch, elapsed)) {
+			updateAppliedThrough();
+		}
+	}
+	
+	private boolean flush(int minThreshold, Namespace ns, OplogBatch oplogBatch, long elapsed) {
 		BulkWriteOutput output = null;
 		long current = System.currentTimeMillis();
-		long elapsed = current - lastFlushMillis;
-		
 		
 		int size = oplogBatch.size();
 		if (size > minThreshold || (size > 0 && elapsed > 15000)) {
@@ -90,9 +85,31 @@ public class ChildOplogWorker implements Runnable {
 		
 		if (output != null) {
 			oplogTailMonitor.updateStatus(output);
-			oplogTailMonitor.setLatestTimestamp(new BsonTimestamp(lastTimestamp.getValue()));
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Everything this worker took before its oldest unflushed entry has been applied
+	 * (or skipped); with nothing unflushed, everything it took has.
+	 */
+	private void updateAppliedThrough() {
+		if (lastTimestamp == null) {
+			return;
+		}
+		BsonTimestamp oldest = null;
+		for (OplogBatch batch : oplogBatches.values()) {
+			BsonTimestamp first = batch.getFirstTimestamp();
+			if (first != null && (oldest == null || first.compareTo(oldest) < 0)) {
+				oldest = first;
+			}
+		}
+		if (oldest == null) {
+			watermark.applied(index, lastTimestamp);
+		} else {
+			watermark.applied(index, new BsonTimestamp(oldest.getValue() - 1));
 		}
-		
 	}
 	
 
@@ -101,81 +118,78 @@ public class ChildOplogWorker implements Runnable {
 		
 		while (!shutdown) {
 			
+			int available = 0;
 			try {
-				OplogQueueEntry currentQueueEntry = null;
-				
-				try {
-					currentQueueEntry = workQueue.poll(5, TimeUnit.SECONDS);
-					//currentDocument = workQueue.take();
-				} catch (InterruptedException e) {
-					if (shutdown) {
-						logger.debug("{}: interruped, breaking", shardId);
-						break;
-					}
+				available = workQueue.waitForAvailable(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				if (shutdown) {
+					logger.debug("{}: interruped, breaking", shardId);
+					break;
 				}
-				
-				if (currentQueueEntry == null) {
+			}
+			
+			if (available == 0) {
+				try {
 					flush(options.getOplogBatchSize());
-					continue;
-				}
-				BsonDocument currentDocument = currentQueueEntry.doc;
-				
-				String ns = currentDocument.getString("ns").getValue();
-				Namespace namespace = new Namespace(ns);
-				String op = currentDocument.getString("op").getValue();
-				if (op.equals("c") || namespace.getCollectionName().equals("system.indexes")) {
-					continue;
-				} 
-				
-				OplogBatch batch = oplogBatches.get(ns);
-				if (batch == null) {
-					batch = new OplogBatch(options.getOplogBatchSize());
-					oplogBatches.put(ns, batch);
-				}
-				
-				if (lookupTransformers != null && op.equals("u")) {
-					LookupTransformer tran = lookupTransformers.get(ns);
-					if (tran != null) {
-						BsonDocument updateQuery = currentDocument.getDocument("o2");
-						ObjectId id = updateQuery.getObjectId("_id").getValue();
-						BsonValue lookupValue = null;
-						try {
-							lookupValue = tran.lookup(id);
-							updateQuery.put(tran.getLookupValueKey(), lookupValue);
-						} catch (Exception e) {
-							logger.warn("ChildOplogWorker exception executing transformation lookup", e);
-						}
-						
-						//BsonDocument updateQuery = currentDocument.getDocument("o2");
-						
-					}
-					
+				} catch (Exception e) {
+					logger.error("{}: ChildOplogWorker error", shardId, e);
 				}
-				
-				WriteModel<BsonDocument> model = ApplyOperationsHelper.getWriteModelForOperation(currentDocument);
-				if (model != null) {
-					//synchronized(oplogBatches) {
-						batch.addWriteModel(model, currentQueueEntry.id);
-					//}
-				} else {
-					// if the command is $cmd for create index or create collection, there would not
-					// be any write model.
-					logger.warn("{}: ignoring oplog entry. could not convert the document to model. Given document is {}", 
-							shardId, currentDocument.toJson());
-				}
-				lastTimestamp = currentDocument.getTimestamp("ts");
-				
-				flush(options.getOplogBatchSize(), namespace, batch);
-				
-			} catch (Exception e) {
-				logger.error("{}: ChildOplogWorker error", shardId, e);
-				
+				continue;
 			}
 			
+			try {
+				for (int i = 0; i < available; i++) {
+					apply(workQueue.get(i));
+				}
+			} finally {
+				workQueue.release(available);
+			}
 		}
 		logger.debug("{}: child flush", shardId);
 		flush(0);
 		
 	}
+	
+	private void apply(OplogQueueEntry currentQueueEntry) {
+		try {
+			BsonDocument currentDocument = currentQueueEntry.doc;
+			BsonTimestamp ts = currentQueueEntry.ts;
+			lastTimestamp = ts;
+			
+			Namespace namespace = currentQueueEntry.ns;
+			String op = currentQueueEntry.op;
+			if (op.equals("c") || namespace.getCollectionName().equals("system.indexes")) {
+				updateAppliedThrough();
+				return;
+			} 
+			
+			OplogBatch batch = oplogBatches.get(namespace);
+			if (batch == null) {
+				batch = new OplogBatch(options.getOplogBatchSize());
+				oplogBatches.put(namespace, batch);
+			}
+			
+			if (lookupTransformers != null && op.equals("u")) {
+				LookupTransformer tran = lookupTransformers.get(namespace.getNamespace());
+				if (tran != null) {
+					currentDocument = tran.transform(currentDocument);
+				}
+			}
+			
+			WriteModel<BsonDocument> model = ApplyOperationsHelper.getWriteModelForOperation(currentDocument, op);
+			if (model != null) {
+				batch.addWriteModel(model, currentQueueEntry.id, ts);
+			} else {
+				// if the command is $cmd for create index or create collection, there would not
+				// be any write model.
+				logger.warn("{}: ignoring oplog entry. could not convert the document to model. Given document is {}", 
+						shardId, currentDocument.toJson());
+			}
+			flush(options.getOplogBatchSize(), namespace, batch);
+			
+		} catch (Exception e) {
+			logger.error("{}: ChildOplogWorker error", shardId, e);
+		}
+	}
 
 }
@@ -0,0 +1,107 @@
+package com.mongodb.mongosync;
+
+import org.bson.BsonBoolean;
+import org.bson.BsonDocument;
+import org.bson.BsonInt64;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+
+import com.mongodb.model.Namespace;
+
+/**
+ * Clone progress of one chunk or <code>_id</code> range of the initial sync.
+ *
+ * For an <code>_id</code> ordered range, lastId is the highest <code>_id</code> such that
+ * everything before it in the range has been inserted, so a restart resumes after it. Other
+ * chunks are either done or cloned again from the start.
+ */
+public class ChunkCheckpoint {
+
+	private final Namespace ns;
+	// null for a whole collection
+	private final BsonDocument query;
+	private final boolean idOrdered;
+
+	private BsonValue lastId;
+	private long docs;
+	private long bytes;
+	private boolean done;
+
+	public ChunkCheckpoint(Namespace ns, BsonDocument query, boolean idOrdered) {
+		this.ns = ns;
+		this.query = query;
+		this.idOrdered = idOrdered;
+	}
+
+	/**
+	 * A batch of <code>count</code> documents was inserted, and for an <code>_id</code> ordered
+	 * range, everything up to <code>lastId</code>.
+	 */
+	public synchronized void inserted(BsonValue lastId, long count, long size) {
+		if (lastId != null) {
+			this.lastId = lastId;
+		}
+		docs += count;
+		bytes += size;
+	}
+
+	/**
+	 * The chunk is cloned again from the start.
+	 */
+	public synchronized void restart() {
+		lastId = null;
+		docs = 0;
+		bytes = 0;
+	}
+
+	public synchronized void setDone() {
+		done = true;
+	}
+
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	public synchronized BsonValue getLastId() {
+		return lastId;
+	}
+
+	public Namespace getNamespace() {
+		return ns;
+	}
+
+	public BsonDocument getQuery() {
+		return query;
+	}
+
+	public boolean isIdOrdered() {
+		return idOrdered;
+	}
+
+	public synchronized BsonDocument toDocument() {
+		BsonDocument doc = new BsonDocument("ns", new BsonString(ns.getNamespace()));
+		if (query != null) {
+			doc.append("query", query);
+		}
+		doc.append("idOrdered", BsonBoolean.valueOf(idOrdered));
+		if (lastId != null) {
+			doc.append("lastId", lastId);
+		}
+		doc.append("docs", new BsonInt64(docs));
+		doc.append("bytes", new BsonInt64(bytes));
+		doc.append("done", BsonBoolean.valueOf(done));
+		return doc;
+	}
+
+	public static ChunkCheckpoint fromDocument(BsonDocument doc) {
+		BsonDocument query = doc.containsKey("query") ? doc.getDocument("query") : null;
+		ChunkCheckpoint checkpoint = new ChunkCheckpoint(new Namespace(doc.getString("ns").getValue()), query,
+				doc.getBoolean("idOrdered").getValue());
+		checkpoint.lastId = doc.get("lastId");
+		checkpoint.docs = doc.getInt64("docs").getValue();
+		checkpoint.bytes = doc.getInt64("bytes").getValue();
+		checkpoint.done = doc.getBoolean("done").getValue();
+		return checkpoint;
+	}
+
+}
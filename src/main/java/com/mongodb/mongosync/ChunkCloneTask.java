@@ -1,10 +1,22 @@
 package com.mongodb.mongosync;
 
+import static com.mongodb.client.model.Filters.and;
 import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Sorts.ascending;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.bson.BsonSerializationException;
 import org.bson.BsonValue;
@@ -37,18 +49,69 @@ public class ChunkCloneTask implements Callable<ChunkCloneResult> {
     protected MongoDatabase destDb;
     protected MongoCollection<RawBsonDocument> sourceCollection;
     protected MongoCollection<RawBsonDocument> destCollection;
+    protected AdaptiveWriteLimiter writeLimiter;
     
     protected Bson chunkQuery;
     
+    // the chunk is an _id range read in _id order, so a retry resumes after the last inserted _id
+    private boolean idOrdered;
+    private volatile BsonValue resumeAfterId;
+    
+    // batch sequence numbers of the current attempt, for the resume point
+    private long nextBatchSeq;
+    private long insertedThroughSeq;
+    private final Map<Long, InsertBatch> insertedBatches = new HashMap<>();
+    
+    // writer threads shared by all chunk clones of the worker
+    private final ExecutorService writerPool;
+    // incremented after each attempt (guarded by this), a writer of an older attempt records nothing
+    private int attempt;
+    // writers of this task that have started and not returned yet, guarded by itself for waits
+    private final AtomicInteger activeWriters = new AtomicInteger();
+    
+    // durable progress of the chunk, null if not checkpointed
+    private ChunkCheckpoint checkpoint;
+    
     
     private final static InsertManyOptions insertManyOptions = new InsertManyOptions().ordered(false);
+    
+    private final static InsertBatch END_OF_CHUNK = new InsertBatch(-1, null, 0);
+    
+    private final static long WRITER_STOP_WAIT_MILLIS = 60000;
+    
+    private static class InsertBatch {
+    	final long seq;
+    	final List<RawBsonDocument> docs;
+    	final long bytes;
+    	
+    	InsertBatch(long seq, List<RawBsonDocument> docs, long bytes) {
+    		this.seq = seq;
+    		this.docs = docs;
+    		this.bytes = bytes;
+    	}
+    }
+	
+	public ChunkCloneTask(Namespace ns, ShardClient sourceShardClient, ShardClient destShardClient, Bson chunkQuery,
+			MongoSyncOptions options, ExecutorService writerPool) {
+		this(ns, sourceShardClient, destShardClient, chunkQuery, false, options, writerPool);
+	}
 	
-	public ChunkCloneTask(Namespace ns, ShardClient sourceShardClient, ShardClient destShardClient, Bson chunkQuery, MongoSyncOptions options) {
+	/**
+	 * @param idOrdered chunkQuery is an <code>_id</code> range: it is read in <code>_id</code>
+	 *                  order and a retry only clones what is after the last inserted batch
+	 * @param writerPool runs the inserts, it must have room for
+	 *                   <code>options.getCloneWriterThreads()</code> writers of every running task
+	 */
+	public ChunkCloneTask(Namespace ns, ShardClient sourceShardClient, ShardClient destShardClient, Bson chunkQuery,
+			boolean idOrdered, MongoSyncOptions options, ExecutorService writerPool) {
         this.ns = ns;
+        this.writerPool = writerPool;
+        this.idOrdered = idOrdered;
         this.sourceShardClient = sourceShardClient;
         this.destShardClient = destShardClient;
         this.options = options;
         this.chunkQuery = chunkQuery;
+        this.writeLimiter = options.getWriteLimiter();
         
         sourceDb = sourceShardClient.getMongoClient().getDatabase(ns.getDatabaseName());
         sourceCollection = sourceDb.getCollection(ns.getCollectionName(), RawBsonDocument.class);
@@ -56,34 +119,64 @@ public class ChunkCloneTask implements Callable<ChunkCloneResult> {
         destDb = destShardClient.getMongoClient().getDatabase(ns.getDatabaseName());
         destCollection = destDb.getCollection(ns.getCollectionName(), RawBsonDocument.class);
     }
+	
+	/**
+	 * Clones the chunk of a checkpoint, resuming an <code>_id</code> ordered range after its
+	 * last inserted <code>_id</code>, and records the progress in it.
+	 */
+	public ChunkCloneTask(Namespace ns, ShardClient sourceShardClient, ShardClient destShardClient,
+			ChunkCheckpoint checkpoint, MongoSyncOptions options, ExecutorService writerPool) {
+		this(ns, sourceShardClient, destShardClient, checkpoint.getQuery(), checkpoint.isIdOrdered(), options,
+				writerPool);
+		this.checkpoint = checkpoint;
+		if (idOrdered) {
+			this.resumeAfterId = checkpoint.getLastId();
+		}
+	}
 
 	@Override
 	public ChunkCloneResult call() throws Exception {
 		
-		ChunkCloneResult result = cloneChunk();
+		ChunkCloneResult result = cloneChunk(new ChunkCloneResult(ns, chunkQuery));
 		if (result == null) {
-			logger.warn("problem cloning chunk, retrying, ns: {}, query: {}", ns, chunkQuery);
-			result = cloneChunk();
+			if (resumeAfterId != null) {
+				logger.warn("problem cloning chunk, retrying after _id {}, ns: {}, query: {}", resumeAfterId, ns, chunkQuery);
+			} else {
+				logger.warn("problem cloning chunk, retrying, ns: {}, query: {}", ns, chunkQuery);
+			}
+			result = cloneChunk(new ChunkCloneResult(ns, chunkQuery));
 			if (result != null) {
 				logger.debug("chunk clone retry success, ns: {}, query: {}", ns, chunkQuery);
 			}
 		}
+		if (result != null && checkpoint != null) {
+			checkpoint.setDone();
+		}
 		return result;
 	}
 	
-	private ChunkCloneResult cloneChunk() {
-		ChunkCloneResult result = new ChunkCloneResult(ns, chunkQuery);
+	/**
+	 * Reads the chunk on the calling thread into batches, bounded by count and by bytes, and
+	 * inserts them on writer threads so reading from the source overlaps writing to the dest.
+	 * At most writers + 1 batches are queued, the reader blocks when the writers fall behind.
+	 * The writers of an attempt are stopped before it returns, so none of them is left to
+	 * move the resume point of the next attempt.
+	 */
+	private ChunkCloneResult cloneChunk(ChunkCloneResult result) {
 		MongoCursor<RawBsonDocument> cursor = null;
+		List<Future<ChunkCloneResult>> writerResults = null;
 		try {
 			long sourceTotal;
-	        List<RawBsonDocument> docsBuffer = new ArrayList<>(options.getBatchSize());
+			if (checkpoint != null && resumeAfterId == null) {
+				checkpoint.restart();
+			}
 	        
 			if (chunkQuery == null) {
 				sourceTotal = sourceCollection.countDocuments();
 	    		cursor = sourceCollection.find().sort(eq("$natural", 1)).noCursorTimeout(true).iterator();
 	    	} else {
 	    		sourceTotal = sourceCollection.countDocuments(chunkQuery);
-	    		if (options.isSkipChunkSyncIfMatchingCounts()) {
+	    		if (options.isSkipChunkSyncIfMatchingCounts() && resumeAfterId == null) {
 	    			
 	    			if (sourceTotal > 0) {
 	    				long destCount = destCollection.countDocuments(chunkQuery);
@@ -95,29 +188,54 @@ public class ChunkCloneTask implements Callable<ChunkCloneResult> {
  	    				return result;
  	    			}
 	    		}
-	    		cursor = sourceCollection.find(chunkQuery).noCursorTimeout(true).iterator();
+	    		if (idOrdered) {
+	    			Bson query = resumeAfterId == null ? chunkQuery : and(chunkQuery, gt("_id", resumeAfterId));
+	    			cursor = sourceCollection.find(query).sort(ascending("_id")).hint(ascending("_id"))
+	    					.noCursorTimeout(true).iterator();
+	    		} else {
+	    			cursor = sourceCollection.find(chunkQuery).noCursorTimeout(true).iterator();
+	    		}
 	    		
 	    	}
+			
+			int numWriters = Math.max(1, options.getCloneWriterThreads());
+			BlockingQueue<InsertBatch> queue = new ArrayBlockingQueue<>(numWriters + 1);
+			int writerAttempt;
+			synchronized (this) {
+				writerAttempt = attempt;
+				nextBatchSeq = 0;
+				insertedThroughSeq = 0;
+				insertedBatches.clear();
+			}
+			writerResults = new ArrayList<>(numWriters);
+			for (int i = 0; i < numWriters; i++) {
+				writerResults.add(writerPool.submit(() -> write(queue, writerAttempt)));
+			}
+			
 			long start = System.currentTimeMillis();
 	        long last = start;
 	    	int count = 0;
+	    	List<RawBsonDocument> docsBuffer = new ArrayList<>(options.getBatchSize());
+	    	long bufferBytes = 0;
 	        while (cursor.hasNext()) {
 	            RawBsonDocument doc = cursor.next();
 	            result.sourceCount++;
 	            docsBuffer.add(doc);
+	            bufferBytes += doc.getByteBuffer().remaining();
 	            
-	            if (docsBuffer.size() >= options.getBatchSize()) {
-	                doInsert(docsBuffer, result);
-	                docsBuffer.clear();
+	            if (docsBuffer.size() >= options.getBatchSize() || bufferBytes >= writeLimiter.getBatchBytes()) {
+	                enqueue(queue, new InsertBatch(nextBatchSeq++, docsBuffer, bufferBytes), writerResults);
+	                docsBuffer = new ArrayList<>(options.getBatchSize());
+	                bufferBytes = 0;
 	                
 	                long current = System.currentTimeMillis();
                     long delta = (current - last) / 1000;
                     if (delta >= 30) {
                     	Long percent = null;
                     	if (sourceTotal > 0) {
-                    		percent = (result.sourceCount / sourceTotal);
+                    		percent = (result.sourceCount * 100 / sourceTotal);
                     	}
-                        logger.debug("{} - cloned {} / {} documents, {} %", 
+                        logger.debug("{} - read {} / {} documents, {} %", 
                         		ns, result.sourceCount, sourceTotal, percent);
                         last = current;
                     }
@@ -130,13 +248,31 @@ public class ChunkCloneTask implements Callable<ChunkCloneResult> {
 	        }
 	        // flush any remaining from the buffer
 	        if (docsBuffer.size() > 0) {
-	            doInsert(docsBuffer, result);
-	            docsBuffer.clear();
+	        	enqueue(queue, new InsertBatch(nextBatchSeq++, docsBuffer, bufferBytes), writerResults);
+	        }
+	        for (int i = 0; i < numWriters; i++) {
+	        	enqueue(queue, END_OF_CHUNK, writerResults);
+	        }
+	        for (Future<ChunkCloneResult> writerResult : writerResults) {
+	        	ChunkCloneResult w = writerResult.get();
+	        	result.successCount += w.successCount;
+	        	result.errorCount += w.errorCount;
+	        	result.duplicateKeyCount += w.duplicateKeyCount;
 	        }
 		} catch (MongoException me) {
         	logger.error("fatal error cloning chunk, ns: {}", ns, me);
         	result = null;
+		} catch (ExecutionException ee) {
+			logger.error("fatal error writing chunk, ns: {}", ns, ee.getCause());
+			result = null;
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			logger.warn("interrupted cloning chunk, ns: {}", ns);
+			result = null;
         } finally {
+        	if (writerResults != null) {
+        		stopWriters(writerResults);
+        	}
 			try {
 				if (cursor != null) {
 	        		cursor.close();
@@ -149,11 +285,104 @@ public class ChunkCloneTask implements Callable<ChunkCloneResult> {
 		
 	}
 	
+	/**
+	 * Queues a batch for the writers, failing fast instead of blocking forever if a writer died.
+	 */
+	private void enqueue(BlockingQueue<InsertBatch> queue, InsertBatch batch,
+			List<Future<ChunkCloneResult>> writerResults) throws InterruptedException, ExecutionException {
+		while (!queue.offer(batch, 1, TimeUnit.SECONDS)) {
+			for (Future<ChunkCloneResult> writerResult : writerResults) {
+				if (writerResult.isDone()) {
+					writerResult.get();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Stops the writers of an attempt: the ones that haven't started are cancelled, the
+	 * running ones are interrupted and waited for. A writer that is still running after
+	 * the wait belongs to an older attempt by then and records nothing.
+	 */
+	private void stopWriters(List<Future<ChunkCloneResult>> writerResults) {
+		for (Future<ChunkCloneResult> writerResult : writerResults) {
+			writerResult.cancel(true);
+		}
+		synchronized (this) {
+			attempt++;
+		}
+		long deadline = System.currentTimeMillis() + WRITER_STOP_WAIT_MILLIS;
+		synchronized (activeWriters) {
+			long remaining;
+			while (activeWriters.get() > 0 && (remaining = deadline - System.currentTimeMillis()) > 0) {
+				try {
+					activeWriters.wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+			if (activeWriters.get() > 0) {
+				logger.warn("{} chunk clone writers still running, ns: {}, query: {}", activeWriters.get(), ns, chunkQuery);
+			}
+		}
+	}
+	
+	private ChunkCloneResult write(BlockingQueue<InsertBatch> queue, int writerAttempt) throws InterruptedException {
+		activeWriters.incrementAndGet();
+		try {
+			ChunkCloneResult writerResult = new ChunkCloneResult(ns, chunkQuery);
+			while (true) {
+				InsertBatch batch = queue.take();
+				if (batch == END_OF_CHUNK || !isCurrent(writerAttempt)) {
+					return writerResult;
+				}
+				doInsert(batch.docs, writerResult);
+				if (idOrdered) {
+					batchInserted(batch, writerAttempt);
+				} else if (checkpoint != null && isCurrent(writerAttempt)) {
+					checkpoint.inserted(null, batch.docs.size(), batch.bytes);
+				}
+			}
+		} finally {
+			synchronized (activeWriters) {
+				activeWriters.decrementAndGet();
+				activeWriters.notifyAll();
+			}
+		}
+	}
+	
+	private synchronized boolean isCurrent(int writerAttempt) {
+		return writerAttempt == attempt;
+	}
+	
+	/**
+	 * Batches complete out of order, the resume point only moves past a batch once every
+	 * batch before it has been inserted too.
+	 */
+	private synchronized void batchInserted(InsertBatch batch, int writerAttempt) {
+		if (writerAttempt != attempt) {
+			return;
+		}
+		insertedBatches.put(batch.seq, batch);
+		InsertBatch next;
+		while ((next = insertedBatches.remove(insertedThroughSeq)) != null) {
+			insertedThroughSeq++;
+			BsonValue id = getId(next.docs.get(next.docs.size() - 1));
+			if (id != null) {
+				resumeAfterId = id;
+			}
+			if (checkpoint != null) {
+				checkpoint.inserted(id, next.docs.size(), next.bytes);
+			}
+		}
+	}
+	
     protected void doInsert(final List<RawBsonDocument> docsBuffer, final ChunkCloneResult result) {
         boolean retry = false;
         
         try {
-            destCollection.insertMany(docsBuffer, insertManyOptions);
+            insertMany(docsBuffer);
             result.successCount += docsBuffer.size();
             
         } catch (MongoBulkWriteException bwe) {
@@ -194,6 +423,25 @@ public class ChunkCloneTask implements Callable<ChunkCloneResult> {
         }
     }
     
+    /**
+     * insertMany within the destination's write limit. Duplicate keys and other per-document
+     * errors don't count as congestion, write concern errors and failed batches do.
+     */
+    private void insertMany(List<RawBsonDocument> docs) {
+        writeLimiter.acquire();
+        long start = System.nanoTime();
+        boolean congested = true;
+        try {
+            destCollection.insertMany(docs, insertManyOptions);
+            congested = false;
+        } catch (MongoBulkWriteException bwe) {
+            congested = bwe.getWriteConcernError() != null;
+            throw bwe;
+        } finally {
+            writeLimiter.release(System.nanoTime() - start, congested);
+        }
+    }
+    
     protected static BsonValue getId(RawBsonDocument doc) {
         BsonValue lastId = null;
         try {
@@ -0,0 +1,213 @@
+package com.mongodb.mongosync;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bson.BSONException;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoCommandException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.model.IndexSpec;
+import com.mongodb.model.Namespace;
+import com.mongodb.shardsync.ShardClient;
+
+/**
+ * Builds the secondary indexes of the cloned collections after the initial sync instead of
+ * maintaining them on every insert.
+ *
+ * Before a collection is cloned its source index specs are recorded and the same indexes
+ * are dropped from the (empty) dest collection, leaving only <code>_id</code> and the shard
+ * key index. Once every collection is cloned the recorded indexes are built, several
+ * collections at a time. Each createIndexes builds all indexes of a collection in one scan,
+ * on all dest shards at once.
+ */
+public class DeferredIndexBuilder {
+
+	protected static final Logger logger = LoggerFactory.getLogger(DeferredIndexBuilder.class);
+
+	private final ShardClient sourceShardClient;
+	private final ShardClient destShardClient;
+	private final int threads;
+
+	private final Map<Namespace, Set<IndexSpec>> deferred = new LinkedHashMap<>();
+
+	public DeferredIndexBuilder(ShardClient sourceShardClient, ShardClient destShardClient, int threads) {
+		this.sourceShardClient = sourceShardClient;
+		this.destShardClient = destShardClient;
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Records the secondary indexes of a source collection and drops them from the dest
+	 * collection, called before the collection is cloned. A dest collection that already has
+	 * documents keeps its indexes, its deferred build is then a no-op for the existing ones.
+	 */
+	public void defer(Namespace ns) {
+		BsonDocument shardKey = getShardKey(ns);
+		MongoCollection<RawBsonDocument> sourceColl = sourceShardClient.getMongoClient()
+				.getDatabase(ns.getDatabaseName()).getCollection(ns.getCollectionName(), RawBsonDocument.class);
+		Set<IndexSpec> specs = new LinkedHashSet<>();
+		try {
+			for (RawBsonDocument sourceSpec : sourceColl.listIndexes(RawBsonDocument.class)) {
+				try {
+					IndexSpec spec = IndexSpec.fromDocument(sourceSpec, ns);
+					if (!isLoadIndex(spec.getKey(), shardKey)) {
+						specs.add(spec);
+					}
+				} catch (BSONException be) {
+					logger.error("{}: error getting index spec: {}", ns, sourceSpec, be);
+				}
+			}
+		} catch (MongoCommandException mce) {
+			// views have no indexes
+			logger.debug("{}: not deferring indexes: {}", ns, mce.getMessage());
+			return;
+		}
+		if (specs.isEmpty()) {
+			return;
+		}
+		deferred.put(ns, specs);
+
+		MongoCollection<Document> destColl = destShardClient.getCollection(ns);
+		if (destColl.estimatedDocumentCount() > 0) {
+			logger.debug("{}: dest collection is not empty, keeping its indexes", ns);
+			return;
+		}
+		for (IndexSpec spec : specs) {
+			try {
+				destColl.dropIndex(spec.getName());
+			} catch (MongoCommandException mce) {
+				// IndexNotFound or NamespaceNotFound, nothing to drop
+			}
+		}
+		logger.debug("{}: deferred {} index builds until after the clone", ns, specs.size());
+	}
+
+	/**
+	 * Builds all deferred indexes, returns when every build has completed or failed. A build
+	 * counts as failed unless its indexes are listed on the dest afterwards, createIndexes
+	 * errors are only logged by ShardClient.
+	 *
+	 * @return the specs that were not built, by namespace, empty if all were
+	 */
+	public Map<Namespace, Set<IndexSpec>> buildAll() {
+		Map<Namespace, Set<IndexSpec>> failed = new ConcurrentHashMap<>();
+		if (deferred.isEmpty()) {
+			return failed;
+		}
+		int total = deferred.size();
+		logger.debug("starting deferred index builds for {} collections, {} threads", total, threads);
+		long start = System.currentTimeMillis();
+		ExecutorService executor = Executors.newFixedThreadPool(threads,
+				new ThreadFactoryBuilder().setNameFormat("index-build-%d").setDaemon(true).build());
+		AtomicInteger complete = new AtomicInteger();
+		Map<Namespace, Future<?>> builds = new LinkedHashMap<>();
+		for (Map.Entry<Namespace, Set<IndexSpec>> entry : deferred.entrySet()) {
+			Namespace ns = entry.getKey();
+			Set<IndexSpec> specs = entry.getValue();
+			builds.put(ns, executor.submit(() -> {
+				long buildStart = System.currentTimeMillis();
+				destShardClient.createIndexes(ns, specs, false, null);
+				Set<IndexSpec> missing = getMissing(ns, specs);
+				if (!missing.isEmpty()) {
+					failed.put(ns, missing);
+					return;
+				}
+				logger.debug("{}: built {} indexes in {} s, {} / {} collections complete", ns, specs.size(),
+						(System.currentTimeMillis() - buildStart) / 1000, complete.incrementAndGet(), total);
+			}));
+		}
+		boolean interrupted = false;
+		for (Map.Entry<Namespace, Future<?>> build : builds.entrySet()) {
+			if (interrupted) {
+				build.getValue().cancel(false);
+				failed.putIfAbsent(build.getKey(), deferred.get(build.getKey()));
+				continue;
+			}
+			try {
+				build.getValue().get();
+			} catch (InterruptedException e) {
+				logger.warn("interrupted waiting for deferred index builds");
+				Thread.currentThread().interrupt();
+				interrupted = true;
+				failed.putIfAbsent(build.getKey(), deferred.get(build.getKey()));
+			} catch (ExecutionException e) {
+				logger.error("{}: deferred index build error", build.getKey(), e.getCause());
+				failed.put(build.getKey(), deferred.get(build.getKey()));
+			}
+		}
+		executor.shutdown();
+		logger.debug("deferred index builds complete for {} / {} collections in {} s", complete.get(), total,
+				(System.currentTimeMillis() - start) / 1000);
+		for (Map.Entry<Namespace, Set<IndexSpec>> entry : failed.entrySet()) {
+			List<String> names = new ArrayList<>();
+			entry.getValue().forEach(spec -> names.add(spec.getName()));
+			logger.error("{}: deferred indexes not built: {}", entry.getKey(), names);
+		}
+		return failed;
+	}
+
+	private Set<IndexSpec> getMissing(Namespace ns, Set<IndexSpec> specs) {
+		Set<String> built = new HashSet<>();
+		for (Document index : destShardClient.getCollection(ns).listIndexes()) {
+			built.add(index.getString("name"));
+		}
+		Set<IndexSpec> missing = new LinkedHashSet<>();
+		for (IndexSpec spec : specs) {
+			if (!built.contains(spec.getName())) {
+				missing.add(spec);
+			}
+		}
+		return missing;
+	}
+
+	private BsonDocument getShardKey(Namespace ns) {
+		Document shardCollection = sourceShardClient.getCollectionsMap().get(ns.getNamespace());
+		if (shardCollection == null) {
+			return null;
+		}
+		Document key = (Document) shardCollection.get("key");
+		return key.toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry());
+	}
+
+	/**
+	 * The indexes the load needs: <code>_id</code> and the shard key index (same fields in the
+	 * same order and the same index type, whatever the numeric type of the direction).
+	 */
+	private static boolean isLoadIndex(BsonDocument key, BsonDocument shardKey) {
+		if (key.size() == 1 && key.containsKey("_id")) {
+			return true;
+		}
+		if (shardKey == null || !new ArrayList<>(key.keySet()).equals(new ArrayList<>(shardKey.keySet()))) {
+			return false;
+		}
+		for (Map.Entry<String, BsonValue> field : key.entrySet()) {
+			BsonValue type = field.getValue();
+			BsonValue shardKeyType = shardKey.get(field.getKey());
+			if ((type.isString() || shardKeyType.isString()) && !type.equals(shardKeyType)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,205 @@
+package com.mongodb.mongosync;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BsonArray;
+import org.bson.BsonBoolean;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriterSettings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.mongodb.model.Namespace;
+import com.mongodb.util.AtomicFileWriter;
+
+/**
+ * Durable progress of the initial sync, so that a restart resumes it instead of starting
+ * over, or skipping it as the timestamp files alone would.
+ *
+ * The file is written (incomplete) before the timestamp files, so a restart can't find
+ * timestamp files without it. The chunks (or <code>_id</code> ranges) of a collection are
+ * recorded and written together before any of them is cloned, and their progress is
+ * written to the checkpoint file every few seconds with an AtomicFileWriter. On restart, collections with recorded chunks clone only the
+ * chunks that are not done, <code>_id</code> ordered ranges from their last inserted
+ * <code>_id</code>, collections without are cloned from the start. The file only records
+ * inserts that have completed, so anything lost between writes is inserted again, as
+ * duplicate keys.
+ */
+public class InitialSyncCheckpoint {
+
+	protected static final Logger logger = LoggerFactory.getLogger(InitialSyncCheckpoint.class);
+
+	private final static String FILE_NAME = "initialSync.checkpoint";
+	private final static long FLUSH_INTERVAL_SECONDS = 10;
+
+	// extended JSON keeps the exact _id types
+	private final static JsonWriterSettings jsonWriterSettings = JsonWriterSettings.builder()
+			.outputMode(JsonMode.EXTENDED).build();
+
+	private final File file;
+	private final Map<Namespace, List<ChunkCheckpoint>> chunks = new LinkedHashMap<>();
+	private boolean complete;
+	private ScheduledExecutorService flusher;
+
+	/**
+	 * Checkpoint file in <code>dir</code> (the working directory if null).
+	 */
+	public InitialSyncCheckpoint(File dir) {
+		this.file = new File(dir, FILE_NAME);
+	}
+
+	/**
+	 * Reads the checkpoint file, returns false if there is none.
+	 */
+	public synchronized boolean load() throws IOException {
+		chunks.clear();
+		complete = false;
+		if (!file.exists()) {
+			return false;
+		}
+		String json = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+		BsonDocument doc = BsonDocument.parse(json);
+		complete = doc.getBoolean("complete").getValue();
+		for (BsonValue value : doc.getArray("chunks")) {
+			ChunkCheckpoint chunk = ChunkCheckpoint.fromDocument(value.asDocument());
+			chunks.computeIfAbsent(chunk.getNamespace(), k -> new ArrayList<>()).add(chunk);
+		}
+		logger.debug("{}: loaded checkpoints of {} collections, complete: {}", file, chunks.size(), complete);
+		return true;
+	}
+
+	/**
+	 * Forgets any previous progress and deletes the checkpoint file.
+	 */
+	public synchronized void clear() throws IOException {
+		chunks.clear();
+		complete = false;
+		Files.deleteIfExists(file.toPath());
+	}
+
+	public synchronized boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * True if there is progress of a previous run to resume from.
+	 */
+	public synchronized boolean isResuming() {
+		return !chunks.isEmpty();
+	}
+
+	/**
+	 * The recorded chunks of <code>ns</code>, null if it was not reached yet.
+	 */
+	public synchronized List<ChunkCheckpoint> getChunks(Namespace ns) {
+		List<ChunkCheckpoint> nsChunks = chunks.get(ns);
+		return nsChunks == null ? null : Collections.unmodifiableList(nsChunks);
+	}
+
+	/**
+	 * The recorded chunks of <code>ns</code> a resumed sync still has to clone, those that
+	 * are not done, null if <code>ns</code> was not reached yet. <code>_id</code> ordered
+	 * ranges resume after their last inserted <code>_id</code>.
+	 */
+	public synchronized List<ChunkCheckpoint> getPendingChunks(Namespace ns) {
+		List<ChunkCheckpoint> nsChunks = chunks.get(ns);
+		if (nsChunks == null) {
+			return null;
+		}
+		List<ChunkCheckpoint> pending = new ArrayList<>();
+		for (ChunkCheckpoint chunk : nsChunks) {
+			if (!chunk.isDone()) {
+				pending.add(chunk);
+			}
+		}
+		return pending;
+	}
+
+	/**
+	 * Records and writes all chunks of <code>ns</code> at once, before any of them is cloned.
+	 */
+	public synchronized void addChunks(Namespace ns, List<ChunkCheckpoint> nsChunks) {
+		chunks.put(ns, new ArrayList<>(nsChunks));
+		flush();
+	}
+
+	/**
+	 * True if every recorded chunk is done.
+	 */
+	public synchronized boolean isAllDone() {
+		for (List<ChunkCheckpoint> nsChunks : chunks.values()) {
+			for (ChunkCheckpoint chunk : nsChunks) {
+				if (!chunk.isDone()) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the checkpoint file, as incomplete, and starts writing it periodically.
+	 */
+	public synchronized void start() {
+		complete = false;
+		flush();
+		flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+				.setNameFormat("initial-sync-checkpoint").setDaemon(true).build());
+		flusher.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_SECONDS, FLUSH_INTERVAL_SECONDS, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Stops the periodic writes and writes the final state, complete or not. The initial
+	 * sync is only complete once every chunk is done and, with deferred indexes, every
+	 * deferred index was built: an incomplete checkpoint is resumed on restart.
+	 */
+	public synchronized void stop(boolean complete) {
+		if (flusher != null) {
+			flusher.shutdown();
+			flusher = null;
+		}
+		this.complete = complete;
+		flush();
+	}
+
+	public synchronized void flush() {
+		BsonArray chunksArray = new BsonArray();
+		for (List<ChunkCheckpoint> nsChunks : chunks.values()) {
+			for (ChunkCheckpoint chunk : nsChunks) {
+				chunksArray.add(chunk.toDocument());
+			}
+		}
+		BsonDocument doc = new BsonDocument("complete", BsonBoolean.valueOf(complete)).append("chunks", chunksArray);
+
+		try (AtomicFileWriter cw = new AtomicFileWriter(file.getAbsoluteFile().toPath())) {
+			try {
+				cw.write(doc.toJson(jsonWriterSettings));
+				cw.commit();
+			} finally {
+				cw.abort();
+			}
+		} catch (IOException ioe) {
+			logger.error(String.format("initial sync checkpoint update error: %s", file), ioe);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return file.getName();
+	}
+
+}
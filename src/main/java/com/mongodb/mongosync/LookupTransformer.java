@@ -2,11 +2,15 @@ package com.mongodb.mongosync;
 
 import static com.mongodb.client.model.Filters.eq;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 
 import org.bson.BsonDocument;
 import org.bson.BsonValue;
 import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
@@ -14,9 +18,12 @@ import com.google.common.cache.LoadingCache;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.model.Namespace;
 
 public class LookupTransformer {
 	
+	protected static final Logger logger = LoggerFactory.getLogger(LookupTransformer.class);
+	
 	private MongoCollection<BsonDocument> coll;
 	private String lookupValueKey;
 	
@@ -44,6 +51,46 @@ public class LookupTransformer {
 				  .build(new DbCacheLoader());
 	}
 	
+	/**
+	 * The configured transformers by namespace, or null if there are none.
+	 */
+	public static Map<String, LookupTransformer> initialize(MongoSyncOptions options) {
+		Map<String, LookupTransformer> lookupTransformers = null;
+		for (Map.Entry<String, String> entry : options.getTransformersMap().entrySet()) {
+			if (lookupTransformers == null) {
+				lookupTransformers = new HashMap<>();
+			}
+			MongoClient sourceClient = options.getSourceShardClient().getMongoClient();
+			Namespace ns = new Namespace(entry.getKey());
+			LookupTransformer transformer = new LookupTransformer(sourceClient, ns.getDatabaseName(), ns.getCollectionName(), entry.getValue());
+			lookupTransformers.put(entry.getKey(), transformer);
+		}
+		return lookupTransformers;
+	}
+	
+	/**
+	 * Copy of an update oplog entry with the looked up value added to its query (o2).
+	 * Oplog entries are read as (read-only) raw documents, so only the top level and o2
+	 * are copied. Returns the entry itself if the lookup fails.
+	 */
+	public BsonDocument transform(BsonDocument updateOperation) {
+		BsonDocument updateQuery = updateOperation.getDocument("o2");
+		ObjectId id = updateQuery.getObjectId("_id").getValue();
+		try {
+			BsonValue lookupValue = lookup(id);
+			BsonDocument transformedQuery = new BsonDocument();
+			transformedQuery.putAll(updateQuery);
+			transformedQuery.put(lookupValueKey, lookupValue);
+			BsonDocument transformed = new BsonDocument();
+			transformed.putAll(updateOperation);
+			transformed.put("o2", transformedQuery);
+			return transformed;
+		} catch (Exception e) {
+			logger.warn("exception executing transformation lookup", e);
+		}
+		return updateOperation;
+	}
+	
 	public BsonValue lookup(ObjectId id) throws ExecutionException {
 		return cache.get(id);
 	}
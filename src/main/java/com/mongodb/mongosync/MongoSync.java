@@ -65,12 +65,25 @@ public class MongoSync {
     private final static String OPLOG_THREADS = "oplogThreads";
     private final static String OPLOG_QUEUE_SIZE = "oplogQueueSize";
     private final static String OPLOG_BATCH_SIZE = "oplogBatchSize";
+    private final static String PIPELINED_APPLY = "pipelinedApply";
+    private final static String OPLOG_FETCH_BATCH_SIZE = "oplogFetchBatchSize";
+    private final static String OPLOG_WAIT_STRATEGY = "oplogWaitStrategy";
+    private final static String CLONE_RANGE_SIZE_MB = "cloneRangeSizeMb";
+    private final static String CLONE_WRITER_THREADS = "cloneWriterThreads";
+    private final static String CLONE_BATCH_SIZE_MB = "cloneBatchSizeMb";
+    private final static String ADAPTIVE_WRITES = "adaptiveWrites";
+    private final static String MAX_WRITE_CONCURRENCY = "maxWriteConcurrency";
+    private final static String DEFER_INDEXES = "deferIndexes";
+    private final static String INDEX_BUILD_THREADS = "indexBuildThreads";
     private final static String INITIAL_SYNC = "initialSync";
     private final static String NAME = "name";
     private final static String OPLOG_TRANSFORMERS = "oplogTransformers";
     private final static String CHUNK_SKIP = "skipMatchingCountChunks";
     private final static String SHARD_LIST = "shardList";
     
+    // the driver splits larger inserts, so there is no point in buffering more than a message
+    private final static long MAX_WRITE_BATCH_BYTES = 48L * 1000 * 1000;
+    
     private static Options options;
     private static CommandLine line;
     
@@ -91,6 +104,8 @@ public class MongoSync {
     
     private boolean doInitialSync = true;
     
+    private InitialSyncCheckpoint initialSyncCheckpoint;
+    
     private void initialize() throws IOException {
     	
     	Set<String> shardList = mongoSyncOptions.getShardList();
@@ -113,6 +128,13 @@ public class MongoSync {
         destShardClient.populateShardMongoClients();
         mongoSyncOptions.setDestShardClient(destShardClient);
         
+        initialSyncCheckpoint = new InitialSyncCheckpoint(null);
+        mongoSyncOptions.setInitialSyncCheckpoint(initialSyncCheckpoint);
+        // starts from --threads writes in flight, --adaptiveWrites moves it from there
+        mongoSyncOptions.setWriteLimiter(new AdaptiveWriteLimiter("dest", mongoSyncOptions.isAdaptiveWrites(),
+                mongoSyncOptions.getThreads(), mongoSyncOptions.getMaxWriteConcurrency(),
+                mongoSyncOptions.getCloneBatchBytes(), MAX_WRITE_BATCH_BYTES));
+        
         //sourceShardClient.populateCollectionsMap(mongoSyncOptions.getNamespacesToMigrate());
         stopSourceBalancer();
     }
@@ -157,6 +179,19 @@ public class MongoSync {
     	}
     	
         
+    	// the timestamp files are written before the initial sync starts, an initial sync that
+    	// didn't complete is resumed from its checkpoint rather than skipped
+    	if (!doInitialSync) {
+    		if (initialSyncCheckpoint.load() && !initialSyncCheckpoint.isComplete()) {
+    			logger.debug("initial sync checkpoint {} is incomplete, resuming initial sync", initialSyncCheckpoint);
+    			doInitialSync = true;
+    		}
+    	} else {
+    		// an incomplete checkpoint goes down before the timestamp files do
+    		initialSyncCheckpoint.clear();
+    		initialSyncCheckpoint.flush();
+    	}
+    	
     	if (tasks.size() > 0) {
     		int numThreads = tasks.size();
             ExecutorService executor = Executors.newFixedThreadPool(numThreads);
@@ -395,6 +430,26 @@ public class MongoSync {
                 .withLongOpt(OPLOG_QUEUE_SIZE).create(OPLOG_QUEUE_SIZE));
         options.addOption(OptionBuilder.withArgName("oplog batch size").hasArg()
                 .withLongOpt(OPLOG_BATCH_SIZE).create(OPLOG_BATCH_SIZE));
+        options.addOption(OptionBuilder.withArgName("Apply the oplog in dependency-aware parallel batches (instead of fixed child workers)")
+                .withLongOpt(PIPELINED_APPLY).create(PIPELINED_APPLY));
+        options.addOption(OptionBuilder.withArgName("oplog tail cursor batch size (default: server default)").hasArg()
+                .withLongOpt(OPLOG_FETCH_BATCH_SIZE).create(OPLOG_FETCH_BATCH_SIZE));
+        options.addOption(OptionBuilder.withArgName("oplog queue wait strategy: blocking (default), busy_spin, yielding or sleeping").hasArg()
+                .withLongOpt(OPLOG_WAIT_STRATEGY).create(OPLOG_WAIT_STRATEGY));
+        options.addOption(OptionBuilder.withArgName("_id range size (MB) for parallel clone of unsharded collections, 0 to disable").hasArg()
+                .withLongOpt(CLONE_RANGE_SIZE_MB).create(CLONE_RANGE_SIZE_MB));
+        options.addOption(OptionBuilder.withArgName("# of insert threads per chunk clone").hasArg()
+                .withLongOpt(CLONE_WRITER_THREADS).create(CLONE_WRITER_THREADS));
+        options.addOption(OptionBuilder.withArgName("max clone insert batch size (MB, up to 48)").hasArg()
+                .withLongOpt(CLONE_BATCH_SIZE_MB).create(CLONE_BATCH_SIZE_MB));
+        options.addOption(OptionBuilder.withArgName("Tune write concurrency and clone batch size from dest write latency and errors")
+                .withLongOpt(ADAPTIVE_WRITES).create(ADAPTIVE_WRITES));
+        options.addOption(OptionBuilder.withArgName("max concurrent bulk writes to dest with --adaptiveWrites").hasArg()
+                .withLongOpt(MAX_WRITE_CONCURRENCY).create(MAX_WRITE_CONCURRENCY));
+        options.addOption(OptionBuilder.withArgName("Build secondary indexes after the initial sync instead of before")
+                .withLongOpt(DEFER_INDEXES).create(DEFER_INDEXES));
+        options.addOption(OptionBuilder.withArgName("# of collections to build indexes for at a time with --deferIndexes").hasArg()
+                .withLongOpt(INDEX_BUILD_THREADS).create(INDEX_BUILD_THREADS));
         
         options.addOption(OptionBuilder.withArgName("name for this sync process")
                 .withLongOpt(NAME).create(NAME));
@@ -475,6 +530,7 @@ public class MongoSync {
         mongoSyncOptions.setSkipChunkSyncIfMatchingCounts(line.hasOption(CHUNK_SKIP));
         mongoSyncOptions.setCleanTimestampFiles(line.hasOption(CLEAN_TIMESTAMPS));
         mongoSyncOptions.setUseMultiThreadedOplogTailWorkers(line.hasOption(MULTI_OPLOG_WORKER));
+        mongoSyncOptions.setPipelinedApply(line.hasOption(PIPELINED_APPLY));
         
         
         
@@ -496,6 +552,44 @@ public class MongoSync {
             int oplogBatchSize = Integer.parseInt(oplogBatchSizeStr);
             mongoSyncOptions.setOplogBatchSize(oplogBatchSize);
         }
+        
+        String oplogFetchBatchSizeStr = line.getOptionValue(OPLOG_FETCH_BATCH_SIZE);
+        if (oplogFetchBatchSizeStr != null) {
+            int oplogFetchBatchSize = Integer.parseInt(oplogFetchBatchSizeStr);
+            mongoSyncOptions.setOplogFetchBatchSize(oplogFetchBatchSize);
+        }
+        
+        String oplogWaitStrategyStr = line.getOptionValue(OPLOG_WAIT_STRATEGY);
+        if (oplogWaitStrategyStr != null) {
+            mongoSyncOptions.setOplogWaitStrategy(OplogRingBuffer.WaitStrategy.valueOf(oplogWaitStrategyStr.toUpperCase()));
+        }
+        
+        String cloneRangeSizeStr = line.getOptionValue(CLONE_RANGE_SIZE_MB);
+        if (cloneRangeSizeStr != null) {
+            mongoSyncOptions.setCloneRangeSize(Long.parseLong(cloneRangeSizeStr) * 1024 * 1024);
+        }
+        
+        String cloneWriterThreadsStr = line.getOptionValue(CLONE_WRITER_THREADS);
+        if (cloneWriterThreadsStr != null) {
+            mongoSyncOptions.setCloneWriterThreads(Integer.parseInt(cloneWriterThreadsStr));
+        }
+        
+        String cloneBatchSizeStr = line.getOptionValue(CLONE_BATCH_SIZE_MB);
+        if (cloneBatchSizeStr != null) {
+            mongoSyncOptions.setCloneBatchBytes(Long.parseLong(cloneBatchSizeStr) * 1024 * 1024);
+        }
+        
+        mongoSyncOptions.setAdaptiveWrites(line.hasOption(ADAPTIVE_WRITES));
+        String maxWriteConcurrencyStr = line.getOptionValue(MAX_WRITE_CONCURRENCY);
+        if (maxWriteConcurrencyStr != null) {
+            mongoSyncOptions.setMaxWriteConcurrency(Integer.parseInt(maxWriteConcurrencyStr));
+        }
+        
+        mongoSyncOptions.setDeferIndexes(line.hasOption(DEFER_INDEXES));
+        String indexBuildThreadsStr = line.getOptionValue(INDEX_BUILD_THREADS);
+        if (indexBuildThreadsStr != null) {
+            mongoSyncOptions.setIndexBuildThreads(Integer.parseInt(indexBuildThreadsStr));
+        }
     }
     
     private static void addShutdownHook(MongoSync sync) {
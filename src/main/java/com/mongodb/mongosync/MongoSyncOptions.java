@@ -24,6 +24,18 @@ public class MongoSyncOptions {
 	private boolean initialSyncOnly;
 	private int oplogThreads = 4;
 	private int oplogQueueSize = 50;
+	private boolean pipelinedApply = false;
+	private int oplogFetchBatchSize = 0;
+	private OplogRingBuffer.WaitStrategy oplogWaitStrategy = OplogRingBuffer.WaitStrategy.BLOCKING;
+	private long cloneRangeSize = 400L * 1024 * 1024;
+	private int cloneWriterThreads = 2;
+	private long cloneBatchBytes = 16L * 1024 * 1024;
+	private boolean adaptiveWrites = false;
+	private int maxWriteConcurrency = 64;
+	private AdaptiveWriteLimiter writeLimiter;
+	private boolean deferIndexes = false;
+	private int indexBuildThreads = 4;
+	private InitialSyncCheckpoint initialSyncCheckpoint;
 
 	private ShardClient sourceShardClient;
 	private ShardClient destShardClient;
@@ -275,4 +287,100 @@ public class MongoSyncOptions {
 		return shardList;
 	}
 
+	public boolean isPipelinedApply() {
+		return pipelinedApply;
+	}
+
+	public void setPipelinedApply(boolean pipelinedApply) {
+		this.pipelinedApply = pipelinedApply;
+	}
+
+	public int getOplogFetchBatchSize() {
+		return oplogFetchBatchSize;
+	}
+
+	public void setOplogFetchBatchSize(int oplogFetchBatchSize) {
+		this.oplogFetchBatchSize = oplogFetchBatchSize;
+	}
+
+	public OplogRingBuffer.WaitStrategy getOplogWaitStrategy() {
+		return oplogWaitStrategy;
+	}
+
+	public void setOplogWaitStrategy(OplogRingBuffer.WaitStrategy oplogWaitStrategy) {
+		this.oplogWaitStrategy = oplogWaitStrategy;
+	}
+
+	public long getCloneRangeSize() {
+		return cloneRangeSize;
+	}
+
+	public void setCloneRangeSize(long cloneRangeSize) {
+		this.cloneRangeSize = cloneRangeSize;
+	}
+
+	public int getCloneWriterThreads() {
+		return cloneWriterThreads;
+	}
+
+	public void setCloneWriterThreads(int cloneWriterThreads) {
+		this.cloneWriterThreads = cloneWriterThreads;
+	}
+
+	public long getCloneBatchBytes() {
+		return cloneBatchBytes;
+	}
+
+	public void setCloneBatchBytes(long cloneBatchBytes) {
+		this.cloneBatchBytes = cloneBatchBytes;
+	}
+
+	public boolean isAdaptiveWrites() {
+		return adaptiveWrites;
+	}
+
+	public void setAdaptiveWrites(boolean adaptiveWrites) {
+		this.adaptiveWrites = adaptiveWrites;
+	}
+
+	public int getMaxWriteConcurrency() {
+		return maxWriteConcurrency;
+	}
+
+	public void setMaxWriteConcurrency(int maxWriteConcurrency) {
+		this.maxWriteConcurrency = maxWriteConcurrency;
+	}
+
+	public AdaptiveWriteLimiter getWriteLimiter() {
+		return writeLimiter;
+	}
+
+	public void setWriteLimiter(AdaptiveWriteLimiter writeLimiter) {
+		this.writeLimiter = writeLimiter;
+	}
+
+	public boolean isDeferIndexes() {
+		return deferIndexes;
+	}
+
+	public void setDeferIndexes(boolean deferIndexes) {
+		this.deferIndexes = deferIndexes;
+	}
+
+	public int getIndexBuildThreads() {
+		return indexBuildThreads;
+	}
+
+	public void setIndexBuildThreads(int indexBuildThreads) {
+		this.indexBuildThreads = indexBuildThreads;
+	}
+
+	public InitialSyncCheckpoint getInitialSyncCheckpoint() {
+		return initialSyncCheckpoint;
+	}
+
+	public void setInitialSyncCheckpoint(InitialSyncCheckpoint initialSyncCheckpoint) {
+		this.initialSyncCheckpoint = initialSyncCheckpoint;
+	}
+
 }
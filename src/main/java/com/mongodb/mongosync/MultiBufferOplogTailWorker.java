@@ -3,9 +3,12 @@ package com.mongodb.mongosync;
 import static com.mongodb.client.model.Filters.and;
 import static com.mongodb.client.model.Filters.eq;
 import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Filters.gte;
 import static com.mongodb.client.model.Filters.in;
-import static com.mongodb.client.model.Filters.ne;
+import static com.mongodb.client.model.Filters.lt;
 import static com.mongodb.client.model.Filters.nin;
+import static com.mongodb.client.model.Filters.or;
+import static com.mongodb.client.model.Projections.include;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -13,23 +16,23 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
-import org.bson.BsonDocument;
+import org.bson.BsonTimestamp;
 import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
 import org.bson.conversions.Bson;
 
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.mongodb.CursorType;
-import com.mongodb.MongoException;
+import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.model.Namespace;
 import com.mongodb.model.ShardTimestamp;
 import com.mongodb.shardsync.ShardClient;
 
@@ -52,7 +55,18 @@ public class MultiBufferOplogTailWorker extends AbstractOplogTailWorker implemen
 	
 	ScheduledExecutorService monitorExecutor;
 	
-	private Map<Integer, BlockingQueue<OplogQueueEntry>> childQueues;
+	private Map<Integer, OplogRingBuffer> childQueues;
+	
+	// used instead of the child workers when pipelined apply is enabled
+	private OplogApplyScheduler applyScheduler;
+	
+	private OplogWatermark watermark;
+	
+	// Namespace instances by ns string, shared by all entries of a namespace
+	private Map<String, Namespace> namespaces = new HashMap<>();
+	
+	// the only fields of an oplog entry that are used
+	private final static Bson oplogProjection = include("ts", "op", "ns", "o", "o2", "lsid", "txnNumber");
 
 	public MultiBufferOplogTailWorker(ShardTimestamp shardTimestamp, TimestampFile timestampFile,
 			ShardClient sourceShardClient, ShardClient destShardClient, MongoSyncOptions options) throws IOException {
@@ -70,14 +84,23 @@ public class MultiBufferOplogTailWorker extends AbstractOplogTailWorker implemen
 		// childQueues = new ArrayBlockingQueue<>(options.getOplogQueueSize());
 
 		oplogTailMonitor = new OplogTailMonitor(timestampFile, sourceShardClient, childQueues);
-		this.applyOperationsHelper = new ApplyOperationsHelper(shardId, oplogTailMonitor, destShardClient);
+		this.applyOperationsHelper = new ApplyOperationsHelper(shardId, oplogTailMonitor, destShardClient,
+				options.getWriteLimiter());
+		this.watermark = new OplogWatermark(numChildWorkers, shardTimestamp.getTimestamp());
+		if (options.isPipelinedApply()) {
+			applyScheduler = new OplogApplyScheduler(shardId, applyOperationsHelper, oplogTailMonitor, options);
+		} else {
+			// the scheduler retires its batches in order, the child workers need the low watermark
+			oplogTailMonitor.setWatermark(watermark);
+		}
 	}
 
 	private void startChildExecutors() {
 		for (int i = 0; i < numChildWorkers; i++) {
-			BlockingQueue<OplogQueueEntry> childQueue = new LinkedBlockingQueue<>(options.getOplogQueueSize());
+			OplogRingBuffer childQueue = new OplogRingBuffer(options.getOplogQueueSize(), options.getOplogWaitStrategy());
 			childQueues.put(i, childQueue);
-			ChildOplogWorker worker = new ChildOplogWorker(shardId, childQueue, applyOperationsHelper, oplogTailMonitor, options);
+			ChildOplogWorker worker = new ChildOplogWorker(shardId, i, childQueue, applyOperationsHelper, oplogTailMonitor,
+					watermark, options);
 			childWorkers.put(i, worker);
 			ExecutorService executor = Executors.newFixedThreadPool(1,  new ThreadFactoryBuilder()
 					.setNameFormat("child-oplog-worker_" + shardId + "_" + i).setDaemon(true).build());
@@ -107,28 +130,18 @@ public class MultiBufferOplogTailWorker extends AbstractOplogTailWorker implemen
 	}
 
 	public void run() {
-		startChildExecutors();
+		if (applyScheduler == null) {
+			startChildExecutors();
+		}
 		monitorExecutor = Executors.newScheduledThreadPool(1);
 		monitorExecutor.scheduleAtFixedRate(oplogTailMonitor, 0L, 30L, TimeUnit.SECONDS);
 
 		MongoDatabase local = sourceShardClient.getShardMongoClient(shardId).getDatabase("local");
-		MongoCollection<BsonDocument> oplog = local.getCollection("oplog.rs", BsonDocument.class);
+		MongoCollection<RawBsonDocument> oplog = local.getCollection("oplog.rs", RawBsonDocument.class);
 
-		MongoCursor<BsonDocument> cursor = null;
+		MongoCursor<RawBsonDocument> cursor = null;
 		
-		Set<String> includedNamespaces = options.getIncludedNamespaceStrings();
-		Set<String> excludedNamespaces = options.getExcludedNamespaceStrings();
-		
-		Bson query = null;
-		if (includedNamespaces.isEmpty() && excludedNamespaces.isEmpty()) {
-			query = and(gt("ts", shardTimestamp.getTimestamp()), ne("op", "n"));
-		} else {
-			if (excludedNamespaces.size() > 0) {
-				query = and(gt("ts", shardTimestamp.getTimestamp()), ne("op", "n"), nin("ns", excludedNamespaces));
-			} else {
-				query = and(gt("ts", shardTimestamp.getTimestamp()), ne("op", "n"), in("ns", includedNamespaces));
-			}
-		}
+		Bson query = getOplogQuery();
 
 		long start = System.currentTimeMillis();
 		long count;
@@ -136,25 +149,36 @@ public class MultiBufferOplogTailWorker extends AbstractOplogTailWorker implemen
 
 			logger.debug("{}: starting oplog tail query: {}", shardId, query);
 			count = 0;
-			cursor = oplog.find(query).sort(eq("$natural", 1)).oplogReplay(true).noCursorTimeout(true)
-					.cursorType(CursorType.TailableAwait).iterator();
-			while (cursor.hasNext() && !shutdown) {
-				BsonDocument doc = cursor.next();
-				String op = doc.getString("op").getValue();
-
-				if (op.equals("n") || op.equals("c")) {
+			FindIterable<RawBsonDocument> find = oplog.find(query).projection(oplogProjection).sort(eq("$natural", 1))
+					.oplogReplay(true).noCursorTimeout(true).cursorType(CursorType.TailableAwait);
+			if (options.getOplogFetchBatchSize() > 0) {
+				find.batchSize(options.getOplogFetchBatchSize());
+			}
+			cursor = find.iterator();
+			while (!shutdown) {
+				RawBsonDocument doc = cursor.tryNext();
+				if (doc == null) {
+					if (cursor.getServerCursor() == null) {
+						break;
+					}
+					if (applyScheduler != null) {
+						applyScheduler.flush();
+					}
 					continue;
 				}
+				// the query only returns entries to apply (see getOplogQuery)
+				String op = doc.getString("op").getValue();
+				BsonTimestamp ts = doc.getTimestamp("ts");
 				currentNs = doc.getString("ns").getValue();
-				if (! options.includeNamespace(currentNs)) {
-					continue;
-				}
 				
-				if (currentNs == null || currentNs.equals("") || currentNs.startsWith("config.")) {
+				if (op.equals("c")) {
+					applyScheduler.add(new OplogQueueEntry(doc, getNamespace(currentNs), op, ts, null));
+					count++;
 					continue;
 				}
 
-				addToBuffer(doc);
+				addToBuffer(doc, getNamespace(currentNs), op, ts);
+				watermark.read(ts);
 				count++;
 			}
 
@@ -171,10 +195,47 @@ public class MultiBufferOplogTailWorker extends AbstractOplogTailWorker implemen
 			}
 			
 		}
-		stopChildExecutors();
+		if (applyScheduler != null) {
+			applyScheduler.close();
+		} else {
+			stopChildExecutors();
+		}
 
 	}
 	
+	/**
+	 * The oplog entries to apply, so that irrelevant ones are never shipped: inserts,
+	 * updates and deletes (and commands, which are barriers for the scheduler; the child
+	 * workers skip them) on included, non-excluded namespaces outside of config.
+	 */
+	private Bson getOplogQuery() {
+		List<Bson> filters = new ArrayList<>();
+		filters.add(gt("ts", shardTimestamp.getTimestamp()));
+		if (applyScheduler != null) {
+			filters.add(in("op", "i", "u", "d", "c"));
+		} else {
+			filters.add(in("op", "i", "u", "d"));
+		}
+		// excludes config.* without a $regex: "/" is the character after "."
+		filters.add(or(lt("ns", "config."), gte("ns", "config/")));
+		
+		Set<String> includedNamespaces = options.getIncludedNamespaceStrings();
+		Set<String> excludedNamespaces = options.getExcludedNamespaceStrings();
+		// both apply when both are set, as includeNamespace() and the exclude check did
+		if (excludedNamespaces.size() > 0) {
+			filters.add(nin("ns", excludedNamespaces));
+		}
+		if (includedNamespaces.size() > 0) {
+			if (applyScheduler != null) {
+				// command entries are on <db>.$cmd (applyOps filters its operations itself)
+				filters.add(or(in("ns", includedNamespaces), eq("op", "c")));
+			} else {
+				filters.add(in("ns", includedNamespaces));
+			}
+		}
+		return and(filters);
+	}
+	
 	private int getCombinedHashModulo(String ns, BsonValue id) {
 		int hash = 7;
 		hash = 31 * hash +  (id == null ? 0 : id.hashCode());
@@ -187,54 +248,28 @@ public class MultiBufferOplogTailWorker extends AbstractOplogTailWorker implemen
 		return hash;
 	}
 
-	protected void addToBuffer(BsonDocument doc) throws InterruptedException {
+	protected void addToBuffer(RawBsonDocument doc, Namespace ns, String op, BsonTimestamp ts) throws InterruptedException {
 		if (currentNs.endsWith(".$cmd")) {
 			logger.debug("$cmd: {}", doc);
 		}
-		BsonValue id = getIdForOperation(doc);
-		Integer hashKey = getCombinedHashModulo(currentNs, id);
-		BlockingQueue<OplogQueueEntry> childQueue = childQueues.get(hashKey);
-		//logger.debug("{}: child queue {} size {}", shardId, hashKey, childQueue.size());
-		//childQueue.put(doc);
-		//boolean inserted = childQueue.offer(doc, 5, TimeUnit.SECONDS);
-		childQueue.put(new OplogQueueEntry(doc, id));
+		BsonValue id = applyOperationsHelper.getIdForOperation(doc, op);
+		if (applyScheduler != null) {
+			applyScheduler.add(new OplogQueueEntry(doc, ns, op, ts, id));
+			return;
+		}
+		int hashKey = getCombinedHashModulo(currentNs, id);
+		OplogRingBuffer childQueue = childQueues.get(hashKey);
+		watermark.queued(hashKey, ts);
+		childQueue.publish(doc, ns, op, ts, id);
 	}
-
-	private BsonValue getIdForOperation(BsonDocument operation) throws MongoException {
-		String opType = operation.getString("op").getValue();
-		switch (opType) {
-		case "u":
-			BsonDocument o2 = operation.getDocument("o2");
-			if (o2 != null) {
-				BsonValue id = o2.get("_id");
-				if (id != null) {
-					return id;
-				} else {
-					logger.warn("{}: did not find o2._id field for update oplog entry: {}", shardId, operation);
-				}
-			} else {
-				logger.error("{}: did not find o2 field for update oplog entry: {}", shardId, operation);
-				return null;
-			}
-			break;
-		case "i":
-		case "d":
-			BsonDocument oDoc = operation.getDocument("o");
-			if (oDoc != null) {
-				BsonValue id = oDoc.get("_id");
-				if (id != null) {
-					return id;
-				} else {
-					logger.warn("{}: did not find o._id field for insert/delete oplog entry: {}", shardId, operation);
-				}
-			} else {
-				logger.error("{}: did not find o field for insert/delete oplog entry: {}", shardId, operation);
-			}
-			break;
-		default:
-			logger.error(String.format("{}: unexpected operation %s; op: %s", shardId, opType, operation.toJson()));
+	
+	private Namespace getNamespace(String ns) {
+		Namespace namespace = namespaces.get(ns);
+		if (namespace == null) {
+			namespace = new Namespace(ns);
+			namespaces.put(ns, namespace);
 		}
-		return null;
+		return namespace;
 	}
 
 	private Integer getModuloKeyForBsonValue(BsonValue val) {
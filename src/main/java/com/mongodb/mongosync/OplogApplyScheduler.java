@@ -0,0 +1,356 @@
+package com.mongodb.mongosync;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BsonArray;
+import org.bson.BsonBoolean;
+import org.bson.BsonDocument;
+import org.bson.BsonTimestamp;
+import org.bson.BsonValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.model.Namespace;
+
+/**
+ * Applies the oplog entries of one shard in batches on a pool of applier threads.
+ *
+ * Each batch is split into write groups by (ns, _id) hash: all writes to a document land
+ * in the same group, in oplog order, while writes to different documents, of the same or
+ * of different namespaces, are applied in parallel. Groups with the same index are chained
+ * across batches, so the next batch can start while the previous one is still applying
+ * without reordering the writes to any document. Command entries (DDL, applyOps and
+ * transaction commits) are barriers: everything before them is applied first and nothing
+ * after them starts until they are done.
+ *
+ * The operations of a prepared transaction (and the partial applyOps entries of a large
+ * one) are buffered by session and transaction number until its commitTransaction (or final
+ * applyOps) entry, and dropped on abortTransaction. While a transaction is buffered the
+ * monitor's timestamp is held before its first entry, so a restart reads it again.
+ *
+ * Batches are retired in oplog order, the monitor's timestamp only moves past a batch once
+ * every group of it has been applied. A failed group fails its batch: the timestamp stops
+ * before it and the failure is thrown to the tail thread.
+ */
+public class OplogApplyScheduler {
+
+	protected static final Logger logger = LoggerFactory.getLogger(OplogApplyScheduler.class);
+
+	private final static int MAX_IN_FLIGHT_BATCHES = 4;
+	private final static long MAX_BATCH_WAIT_MILLIS = 1000;
+
+	private final String shardId;
+	private final ApplyOperationsHelper applyOperationsHelper;
+	private final OplogTailMonitor oplogTailMonitor;
+	private final MongoSyncOptions options;
+	private final Map<String, LookupTransformer> lookupTransformers;
+
+	private final int numGroups;
+	private final ExecutorService pool;
+
+	// last write group submitted for each group index
+	private final List<CompletableFuture<Void>> groupTails;
+
+	// dispatched, not yet retired batches, oldest first
+	private final Deque<InFlightBatch> inFlight = new ArrayDeque<>();
+
+	// namespaces of applyOps entries, only used on the tail thread
+	private final Map<String, Namespace> namespaces = new HashMap<>();
+
+	// operations of uncommitted transactions by lsid and txnNumber, only used on the tail thread
+	private final Map<BsonDocument, BsonArray> transactions = new LinkedHashMap<>();
+
+	private List<OplogQueueEntry> pending;
+	private BsonTimestamp pendingTimestamp;
+	private long pendingSinceMillis;
+
+	private static class InFlightBatch {
+		final CompletableFuture<Void> done;
+		final BsonTimestamp lastTimestamp;
+
+		InFlightBatch(CompletableFuture<Void> done, BsonTimestamp lastTimestamp) {
+			this.done = done;
+			this.lastTimestamp = lastTimestamp;
+		}
+	}
+
+	public OplogApplyScheduler(String shardId, ApplyOperationsHelper applyOperationsHelper,
+			OplogTailMonitor oplogTailMonitor, MongoSyncOptions options) {
+		this.shardId = shardId;
+		this.applyOperationsHelper = applyOperationsHelper;
+		this.oplogTailMonitor = oplogTailMonitor;
+		this.options = options;
+		this.lookupTransformers = LookupTransformer.initialize(options);
+		this.numGroups = options.getOplogThreads();
+		this.pool = Executors.newFixedThreadPool(numGroups, new ThreadFactoryBuilder()
+				.setNameFormat("oplog-applier_" + shardId + "_%d").setDaemon(true).build());
+		this.groupTails = new ArrayList<>(numGroups);
+		for (int i = 0; i < numGroups; i++) {
+			groupTails.add(CompletableFuture.completedFuture(null));
+		}
+		this.pending = new ArrayList<>(options.getOplogBatchSize());
+	}
+
+	/**
+	 * Adds the next oplog entry, in oplog order. Called from the tail thread only.
+	 */
+	public void add(OplogQueueEntry entry) {
+		if (entry.op.equals("c")) {
+			barrier(entry.doc, entry.ts);
+			return;
+		}
+		if (pending.isEmpty()) {
+			pendingSinceMillis = System.currentTimeMillis();
+		}
+		pending.add(entry);
+		pendingTimestamp = entry.ts;
+		if (pending.size() >= options.getOplogBatchSize()
+				|| System.currentTimeMillis() - pendingSinceMillis > MAX_BATCH_WAIT_MILLIS) {
+			dispatch();
+		}
+	}
+
+	/**
+	 * Dispatches the pending entries and retires the batches that are done, called when
+	 * the tail is idle.
+	 */
+	public void flush() {
+		dispatch();
+		retireCompleted();
+	}
+
+	/**
+	 * Applies everything that was added and stops the applier threads. After a failed
+	 * write the timestamp stays before the failed batch.
+	 */
+	public void close() {
+		try {
+			dispatch();
+			awaitAll();
+		} catch (CompletionException e) {
+			logger.error("{}: oplog apply failed, not moving the timestamp past the failed batch", shardId,
+					e.getCause());
+		}
+		pool.shutdown();
+		try {
+			pool.awaitTermination(60, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			logger.error("{}: timed out waiting for oplog appliers to complete", shardId);
+		}
+		if (!transactions.isEmpty()) {
+			logger.warn("{}: {} uncommitted transactions not applied, they are read again on restart", shardId,
+					transactions.size());
+		}
+	}
+
+	private void dispatch() {
+		if (pending.isEmpty()) {
+			return;
+		}
+		List<List<OplogQueueEntry>> groups = new ArrayList<>(numGroups);
+		for (int i = 0; i < numGroups; i++) {
+			groups.add(new ArrayList<>());
+		}
+		for (OplogQueueEntry entry : pending) {
+			groups.get(getGroupIndex(entry.ns, entry.id)).add(entry);
+		}
+
+		List<CompletableFuture<Void>> batchGroups = new ArrayList<>(numGroups);
+		for (int i = 0; i < numGroups; i++) {
+			List<OplogQueueEntry> group = groups.get(i);
+			if (group.isEmpty()) {
+				continue;
+			}
+			CompletableFuture<Void> tail = groupTails.get(i).thenRunAsync(() -> apply(group), pool);
+			groupTails.set(i, tail);
+			batchGroups.add(tail);
+		}
+		CompletableFuture<Void> done = CompletableFuture.allOf(batchGroups.toArray(new CompletableFuture<?>[0]));
+		inFlight.add(new InFlightBatch(done, pendingTimestamp));
+		pending = new ArrayList<>(options.getOplogBatchSize());
+
+		retireCompleted();
+		while (inFlight.size() > MAX_IN_FLIGHT_BATCHES) {
+			inFlight.peek().done.join();
+			retireCompleted();
+		}
+	}
+
+	private void retireCompleted() {
+		InFlightBatch head = inFlight.peek();
+		while (head != null && head.done.isDone()) {
+			// surfaces a rejected or failed group instead of moving past it
+			head.done.join();
+			setAppliedTimestamp(head.lastTimestamp);
+			inFlight.poll();
+			head = inFlight.peek();
+		}
+	}
+
+	private void awaitAll() {
+		for (InFlightBatch batch : inFlight) {
+			batch.done.join();
+		}
+		retireCompleted();
+	}
+
+	private void barrier(BsonDocument doc, BsonTimestamp ts) {
+		dispatch();
+		awaitAll();
+		BsonDocument o = doc.getDocument("o");
+		BsonDocument txnKey = getTransactionKey(doc);
+		if (o.containsKey("applyOps")) {
+			BsonArray ops = o.getArray("applyOps");
+			boolean partial = o.getBoolean("partialTxn", BsonBoolean.FALSE).getValue();
+			boolean prepare = o.getBoolean("prepare", BsonBoolean.FALSE).getValue();
+			if (txnKey != null && (partial || prepare)) {
+				transactions.computeIfAbsent(txnKey, k -> new BsonArray()).addAll(ops);
+			} else if (txnKey != null && transactions.containsKey(txnKey)) {
+				// last entry of a large unprepared transaction commits it
+				BsonArray txnOps = transactions.remove(txnKey);
+				txnOps.addAll(ops);
+				applyOps(txnOps);
+			} else {
+				applyOps(ops);
+			}
+		} else if (txnKey != null && o.containsKey("commitTransaction")) {
+			BsonArray txnOps = transactions.remove(txnKey);
+			if (txnOps != null) {
+				applyOps(txnOps);
+			} else {
+				logger.warn("{}: commitTransaction without a prepared transaction: {}", shardId, doc);
+			}
+		} else if (txnKey != null && o.containsKey("abortTransaction")) {
+			transactions.remove(txnKey);
+		} else {
+			logger.debug("{}: command not applied: {}", shardId, doc);
+		}
+		setAppliedTimestamp(ts);
+	}
+
+	/**
+	 * Moves the monitor's timestamp to <code>ts</code>, unless a transaction is buffered: it
+	 * then stays where it was before the transaction's first entry, and catches up once the
+	 * last buffered transaction is committed or aborted.
+	 */
+	private void setAppliedTimestamp(BsonTimestamp ts) {
+		if (transactions.isEmpty()) {
+			oplogTailMonitor.setLatestTimestamp(ts);
+		}
+	}
+
+	private static BsonDocument getTransactionKey(BsonDocument doc) {
+		if (!doc.containsKey("lsid") || !doc.containsKey("txnNumber")) {
+			return null;
+		}
+		return new BsonDocument("lsid", doc.get("lsid")).append("txnNumber", doc.get("txnNumber"));
+	}
+
+	/**
+	 * Applies the operations of an applyOps (or transaction commit) entry in order, on the
+	 * tail thread since nothing else is running during a barrier.
+	 */
+	private void applyOps(BsonArray ops) {
+		Namespace currentNs = null;
+		OplogBatch batch = new OplogBatch(ops.size());
+		for (BsonValue value : ops) {
+			BsonDocument op = value.asDocument();
+			String opType = op.getString("op").getValue();
+			String ns = op.getString("ns").getValue();
+			if (!(opType.equals("i") || opType.equals("u") || opType.equals("d"))) {
+				logger.debug("{}: applyOps operation not applied: {}", shardId, op);
+				continue;
+			}
+			if (!options.includeNamespace(ns) || ns.startsWith("config.") || options.getExcludedNamespaceStrings().contains(ns)) {
+				continue;
+			}
+			Namespace namespace = getNamespace(ns);
+			if (currentNs != null && !currentNs.equals(namespace)) {
+				applyBatch(currentNs, batch);
+			}
+			currentNs = namespace;
+			addToBatch(batch, op, opType, ns, applyOperationsHelper.getIdForOperation(op, opType));
+		}
+		if (currentNs != null) {
+			applyBatch(currentNs, batch);
+		}
+	}
+
+	/**
+	 * Applies a write group on an applier thread. A failure completes the group's future
+	 * exceptionally, so the later groups chained to it don't run and its batch is never
+	 * retired.
+	 */
+	private void apply(List<OplogQueueEntry> group) {
+		Map<Namespace, OplogBatch> batches = new LinkedHashMap<>();
+		for (OplogQueueEntry entry : group) {
+			if (entry.ns.getCollectionName().equals("system.indexes")) {
+				continue;
+			}
+			OplogBatch batch = batches.get(entry.ns);
+			if (batch == null) {
+				batch = new OplogBatch(group.size());
+				batches.put(entry.ns, batch);
+			}
+			addToBatch(batch, entry.doc, entry.op, null, entry.id);
+		}
+		for (Map.Entry<Namespace, OplogBatch> entry : batches.entrySet()) {
+			try {
+				applyBatch(entry.getKey(), entry.getValue());
+			} catch (RuntimeException e) {
+				logger.error("{}: oplog apply error, {}", shardId, entry.getKey(), e);
+				throw e;
+			}
+		}
+	}
+
+	private void addToBatch(OplogBatch batch, BsonDocument doc, String op, String ns, BsonValue id) {
+		if (lookupTransformers != null && op.equals("u")) {
+			LookupTransformer tran = lookupTransformers.get(ns != null ? ns : doc.getString("ns").getValue());
+			if (tran != null) {
+				doc = tran.transform(doc);
+			}
+		}
+		WriteModel<BsonDocument> model = ApplyOperationsHelper.getWriteModelForOperation(doc, op);
+		if (model != null) {
+			batch.addWriteModel(model, id);
+		} else {
+			logger.warn("{}: ignoring oplog entry. could not convert the document to model. Given document is {}",
+					shardId, doc.toJson());
+		}
+	}
+
+	private void applyBatch(Namespace ns, OplogBatch batch) {
+		if (batch.size() == 0) {
+			return;
+		}
+		BulkWriteOutput output = applyOperationsHelper.applyBulkWriteModelsOnCollection(ns, batch);
+		batch.clear();
+		oplogTailMonitor.updateStatus(output);
+	}
+
+	private Namespace getNamespace(String ns) {
+		return namespaces.computeIfAbsent(ns, Namespace::new);
+	}
+
+	private int getGroupIndex(Namespace ns, BsonValue id) {
+		int hash = 7;
+		hash = 31 * hash + (id == null ? 0 : id.hashCode());
+		hash = 31 * hash + ns.hashCode();
+		return Math.floorMod(hash, numGroups);
+	}
+
+}
@@ -6,6 +6,7 @@ import java.util.List;
 import java.util.Map;
 
 import org.bson.BsonDocument;
+import org.bson.BsonTimestamp;
 import org.bson.BsonValue;
 
 import com.mongodb.client.model.WriteModel;
@@ -21,6 +22,9 @@ public class OplogBatch {
 
 	private Map<BsonValue, WriteModel<BsonDocument>> idsMap;
 	
+	// timestamp of the oldest entry added since the last clear
+	private BsonTimestamp firstTimestamp;
+	
 	public OplogBatch(int batchSize) {
 		this.orderedWriteModels = new ArrayList<>(batchSize);
 		//this.orderedIndexToIdMap = new HashMap<>(batchSize);
@@ -59,6 +63,13 @@ public class OplogBatch {
 		}
 	}
 	
+	public void addWriteModel(WriteModel<BsonDocument> model, BsonValue id, BsonTimestamp ts) {
+		if (firstTimestamp == null) {
+			firstTimestamp = ts;
+		}
+		addWriteModel(model, id);
+	}
+	
 	public void removeWriteModel(WriteModel<BsonDocument> model, boolean ordered) {
 		BsonValue id = null;
 		if (ordered) {
@@ -80,6 +91,7 @@ public class OplogBatch {
 		orderedWriteModels.clear();
 		//orderedIndexToIdMap.clear();
 		idsMap.clear();
+		firstTimestamp = null;
 	}
 
 	public List<WriteModel<BsonDocument>> getOrderedWriteModels() {
@@ -90,4 +102,8 @@ public class OplogBatch {
 		return unorderedWriteModels;
 	}
 
+	public BsonTimestamp getFirstTimestamp() {
+		return firstTimestamp;
+	}
+
 }
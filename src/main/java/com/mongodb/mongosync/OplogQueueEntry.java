@@ -1,15 +1,28 @@
 package com.mongodb.mongosync;
 
-import org.bson.BsonDocument;
+import org.bson.BsonTimestamp;
 import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
 
+import com.mongodb.model.Namespace;
+
+/**
+ * An oplog entry as read by the tail, with the fields every consumer needs already
+ * extracted so the raw document is only decoded further to build the write model.
+ */
 public class OplogQueueEntry {
 	
-	public BsonDocument doc;
+	public RawBsonDocument doc;
+	public Namespace ns;
+	public String op;
+	public BsonTimestamp ts;
 	public BsonValue id;
 	
-	public OplogQueueEntry(BsonDocument doc, BsonValue id) {
+	public OplogQueueEntry(RawBsonDocument doc, Namespace ns, String op, BsonTimestamp ts, BsonValue id) {
 		this.doc = doc;
+		this.ns = ns;
+		this.op = op;
+		this.ts = ts;
 		this.id = id;
 	}
 
@@ -0,0 +1,272 @@
+package com.mongodb.mongosync;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.bson.BsonTimestamp;
+import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
+
+import com.mongodb.model.Namespace;
+
+/**
+ * Single-producer/single-consumer ring buffer for the tail to child worker handoff.
+ *
+ * The slots are preallocated entries that the producer (the tail) fills in place, so
+ * publishing allocates nothing and takes no lock, only an ordered write of the published
+ * sequence. The consumer (the child) takes every available entry at once, processes them
+ * in place and releases them together. Both sides wait according to the configured
+ * WaitStrategy when the buffer is full or empty. With BLOCKING (the default) a waiting side
+ * spins briefly, then sleeps on a condition the other side signals, so an idle tail costs
+ * nothing. The other strategies trade CPU for latency and are opt-in.
+ */
+public class OplogRingBuffer {
+
+	public enum WaitStrategy {
+		// spins briefly, then waits until signalled by the other side
+		BLOCKING,
+		// lowest latency, burns a core per waiting thread
+		BUSY_SPIN,
+		// spins briefly, then yields
+		YIELDING,
+		// spins and yields briefly, then parks for 100us at a time
+		SLEEPING;
+
+		boolean blocks(int attempt) {
+			return this == BLOCKING && attempt >= SPIN_TRIES;
+		}
+
+		void idle(int attempt) {
+			if (this == BUSY_SPIN || attempt < SPIN_TRIES) {
+				Thread.onSpinWait();
+			} else if (this == YIELDING || attempt < 200) {
+				Thread.yield();
+			} else {
+				LockSupport.parkNanos(100_000);
+			}
+		}
+	}
+
+	private final static int SPIN_TRIES = 100;
+
+	private final OplogQueueEntry[] slots;
+	private final long[] publishNanos;
+	private final int capacity;
+	private final int mask;
+	private final WaitStrategy waitStrategy;
+
+	// next sequence to publish, written by the producer only
+	private final AtomicLong published = new AtomicLong();
+	// next sequence to consume, written by the consumer only
+	private final AtomicLong consumed = new AtomicLong();
+
+	// producer's last read of consumed, saves a volatile read per publish
+	private long cachedConsumed;
+
+	// BLOCKING only: a side sets its flag before checking the sequences again and waiting,
+	// the other side signals after its volatile sequence write if it sees the flag
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notFull = lock.newCondition();
+	private final Condition notEmpty = lock.newCondition();
+	private volatile boolean producerWaiting;
+	private volatile boolean consumerWaiting;
+
+	// metrics, each written by one side only
+	private volatile long latencySamples;
+	private volatile long totalLatencyNanos;
+	private volatile long maxLatencyNanos;
+	private volatile long producerWaits;
+
+	/**
+	 * @param minCapacity rounded up to a power of 2
+	 */
+	public OplogRingBuffer(int minCapacity, WaitStrategy waitStrategy) {
+		int c = 1;
+		while (c < minCapacity) {
+			c <<= 1;
+		}
+		this.capacity = c;
+		this.mask = c - 1;
+		this.waitStrategy = waitStrategy;
+		this.slots = new OplogQueueEntry[c];
+		this.publishNanos = new long[c];
+		for (int i = 0; i < c; i++) {
+			slots[i] = new OplogQueueEntry(null, null, null, null, null);
+		}
+	}
+
+	/**
+	 * Producer: fills the next slot, waiting while the buffer is full.
+	 */
+	public void publish(RawBsonDocument doc, Namespace ns, String op, BsonTimestamp ts, BsonValue id)
+			throws InterruptedException {
+		long seq = published.get();
+		if (seq - cachedConsumed >= capacity) {
+			int attempt = 0;
+			producerWaits++;
+			while (seq - (cachedConsumed = consumed.get()) >= capacity) {
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+				if (waitStrategy.blocks(attempt)) {
+					awaitNotFull(seq);
+				} else {
+					waitStrategy.idle(attempt++);
+				}
+			}
+		}
+		int index = (int) seq & mask;
+		OplogQueueEntry entry = slots[index];
+		entry.doc = doc;
+		entry.ns = ns;
+		entry.op = op;
+		entry.ts = ts;
+		entry.id = id;
+		publishNanos[index] = System.nanoTime();
+		if (waitStrategy == WaitStrategy.BLOCKING) {
+			published.set(seq + 1);
+			if (consumerWaiting) {
+				signal(notEmpty);
+			}
+		} else {
+			published.lazySet(seq + 1);
+		}
+	}
+
+	/**
+	 * Consumer: waits up to <code>timeout</code> for entries, returns how many are
+	 * available (0 on timeout). They are read with get(0) to get(n - 1) and must then be
+	 * released.
+	 */
+	public int waitForAvailable(long timeout, TimeUnit unit) throws InterruptedException {
+		long next = consumed.get();
+		long available = published.get() - next;
+		if (available > 0) {
+			return (int) available;
+		}
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		int attempt = 0;
+		while ((available = published.get() - next) == 0) {
+			if (System.nanoTime() - deadline >= 0) {
+				return 0;
+			}
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			if (waitStrategy.blocks(attempt)) {
+				awaitNotEmpty(next, deadline);
+			} else {
+				waitStrategy.idle(attempt++);
+			}
+		}
+		return (int) available;
+	}
+
+	/**
+	 * Consumer: the i-th available entry. Valid until released, the slot is reused after.
+	 */
+	public OplogQueueEntry get(int i) {
+		int index = (int) (consumed.get() + i) & mask;
+		long latency = System.nanoTime() - publishNanos[index];
+		latencySamples++;
+		totalLatencyNanos += latency;
+		if (latency > maxLatencyNanos) {
+			maxLatencyNanos = latency;
+		}
+		return slots[index];
+	}
+
+	/**
+	 * Consumer: hands the first <code>n</code> available slots back to the producer.
+	 */
+	public void release(int n) {
+		long next = consumed.get() + n;
+		for (long seq = consumed.get(); seq < next; seq++) {
+			// don't keep the documents reachable until the slot is reused
+			OplogQueueEntry entry = slots[(int) seq & mask];
+			entry.doc = null;
+			entry.id = null;
+		}
+		if (waitStrategy == WaitStrategy.BLOCKING) {
+			consumed.set(next);
+			if (producerWaiting) {
+				signal(notFull);
+			}
+		} else {
+			consumed.lazySet(next);
+		}
+	}
+
+	private void awaitNotFull(long seq) throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			producerWaiting = true;
+			while (seq - consumed.get() >= capacity) {
+				notFull.await();
+			}
+		} finally {
+			producerWaiting = false;
+			lock.unlock();
+		}
+	}
+
+	private void awaitNotEmpty(long next, long deadline) throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			consumerWaiting = true;
+			long nanos = deadline - System.nanoTime();
+			while (published.get() == next && nanos > 0) {
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+		} finally {
+			consumerWaiting = false;
+			lock.unlock();
+		}
+	}
+
+	private void signal(Condition condition) {
+		lock.lock();
+		try {
+			condition.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int size() {
+		return (int) (published.get() - consumed.get());
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Number of entries read by the consumer so far.
+	 */
+	public long getLatencySamples() {
+		return latencySamples;
+	}
+
+	/**
+	 * Sum of the publish to read latencies of all entries read by the consumer.
+	 */
+	public long getTotalLatencyNanos() {
+		return totalLatencyNanos;
+	}
+
+	public long getMaxLatencyNanos() {
+		return maxLatencyNanos;
+	}
+
+	/**
+	 * Number of times the producer found the buffer full.
+	 */
+	public long getProducerWaits() {
+		return producerWaits;
+	}
+
+}
@@ -1,8 +1,8 @@
 package com.mongodb.mongosync;
 
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
 
 import org.bson.BsonDocument;
 import org.bson.BsonTimestamp;
@@ -30,9 +30,15 @@ public class OplogTailMonitor implements Runnable {
 	//private ClientSession sourceSession;
 	private String shardId;
 	
-	private Map<Integer, BlockingQueue<OplogQueueEntry>> childQueues;
+	private Map<Integer, OplogRingBuffer> childQueues;
 	
-	public OplogTailMonitor(TimestampFile timestampFile, ShardClient sourceShardClient, Map<Integer, BlockingQueue<OplogQueueEntry>> childQueues) {
+	// per child queue: latency samples and total latency at the previous report
+	private Map<Integer, long[]> lastLatencies = new HashMap<>();
+	
+	// when set, the persisted timestamp is the low watermark of the child workers
+	private OplogWatermark watermark;
+	
+	public OplogTailMonitor(TimestampFile timestampFile, ShardClient sourceShardClient, Map<Integer, OplogRingBuffer> childQueues) {
 		this.timestampFile = timestampFile;
 		this.sourceShardClient = sourceShardClient;
 		this.shardId = timestampFile.getShardId();
@@ -41,6 +47,10 @@ public class OplogTailMonitor implements Runnable {
 		//this.sourceSession = sourceShardClient.getShardMongoClient(shardId).startSession();
 	}
 	
+	protected void setWatermark(OplogWatermark watermark) {
+		this.watermark = watermark;
+	}
+	
 	protected synchronized void setLatestTimestamp(BsonTimestamp ts) {
 		latestTimestamp = ts;
 		//logger.debug("{}: setLatestTimestamp: {}", shardId, latestTimestamp.getTime());
@@ -52,6 +62,9 @@ public class OplogTailMonitor implements Runnable {
     }
 	
 	private void processLoop() {
+		if (watermark != null) {
+			setLatestTimestamp(watermark.getAppliedThrough());
+		}
 		try {
 			timestampFile.update(latestTimestamp);
 		} catch (IOException e) {
@@ -69,10 +82,17 @@ public class OplogTailMonitor implements Runnable {
 		
 		int queuedTasks = 0;
 		if (childQueues != null) {
-			for (Map.Entry<Integer, BlockingQueue<OplogQueueEntry>> entry : childQueues.entrySet()) {
-				BlockingQueue<OplogQueueEntry> queue = entry.getValue();
+			for (Map.Entry<Integer, OplogRingBuffer> entry : childQueues.entrySet()) {
+				OplogRingBuffer queue = entry.getValue();
 				int queueSize = queue.size();
-				logger.debug("{} - executor {} - queue size: {}", shardId, entry.getKey(), queueSize);
+				long samples = queue.getLatencySamples();
+				long totalLatency = queue.getTotalLatencyNanos();
+				long[] last = lastLatencies.getOrDefault(entry.getKey(), new long[2]);
+				long avgLatencyMicros = samples > last[0] ? (totalLatency - last[1]) / (samples - last[0]) / 1000 : 0;
+				lastLatencies.put(entry.getKey(), new long[] {samples, totalLatency});
+				logger.debug("{} - executor {} - queue size: {}/{}, avg latency: {}us, max latency: {}us, producer waits: {}",
+						shardId, entry.getKey(), queueSize, queue.getCapacity(), avgLatencyMicros,
+						queue.getMaxLatencyNanos() / 1000, queue.getProducerWaits());
 				queuedTasks += queueSize;
 			}
 			logger.debug("{} - lagSeconds: {}, inserted: {}, modified: {}, upserted: {}, deleted: {}, dupeKey: {}, queuedTasks: {}",
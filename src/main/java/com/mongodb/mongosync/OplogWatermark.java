@@ -0,0 +1,67 @@
+package com.mongodb.mongosync;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.bson.BsonTimestamp;
+
+/**
+ * Low watermark of the oplog entries applied by the child workers of one shard: the
+ * latest timestamp such that every entry at or before it has been applied, so a restart
+ * from it replays only what might not have been applied.
+ *
+ * The tail records the last timestamp it handed to each child (before handing it over)
+ * and the last timestamp it has read (after handing it over). Each child records the
+ * timestamp it has applied everything it received through. A child that has applied all
+ * it was given doesn't hold the watermark back, so idle children don't stall it.
+ */
+public class OplogWatermark {
+
+	private volatile BsonTimestamp readThrough;
+	private final AtomicReferenceArray<BsonTimestamp> queuedThrough;
+	private final AtomicReferenceArray<BsonTimestamp> appliedThrough;
+
+	public OplogWatermark(int numChildWorkers, BsonTimestamp startTimestamp) {
+		this.readThrough = startTimestamp;
+		this.queuedThrough = new AtomicReferenceArray<>(numChildWorkers);
+		this.appliedThrough = new AtomicReferenceArray<>(numChildWorkers);
+		for (int i = 0; i < numChildWorkers; i++) {
+			queuedThrough.set(i, startTimestamp);
+			appliedThrough.set(i, startTimestamp);
+		}
+	}
+
+	/**
+	 * Called by the tail before it hands an entry to a child.
+	 */
+	public void queued(int child, BsonTimestamp ts) {
+		queuedThrough.set(child, ts);
+	}
+
+	/**
+	 * Called by the tail once an entry has been handed over (or filtered out).
+	 */
+	public void read(BsonTimestamp ts) {
+		readThrough = ts;
+	}
+
+	/**
+	 * Called by a child once every entry it received at or before <code>ts</code> has been applied.
+	 */
+	public void applied(int child, BsonTimestamp ts) {
+		appliedThrough.set(child, ts);
+	}
+
+	public BsonTimestamp getAppliedThrough() {
+		// readThrough must be read first: anything read after it was queued after it
+		BsonTimestamp watermark = readThrough;
+		for (int i = 0; i < queuedThrough.length(); i++) {
+			BsonTimestamp queued = queuedThrough.get(i);
+			BsonTimestamp applied = appliedThrough.get(i);
+			if (queued.compareTo(applied) > 0 && applied.compareTo(watermark) < 0) {
+				watermark = applied;
+			}
+		}
+		return watermark;
+	}
+
+}
@@ -6,32 +6,57 @@ import static com.mongodb.client.model.Filters.gte;
 import static com.mongodb.client.model.Filters.lt;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
+import org.bson.BsonDocument;
+import org.bson.BsonMaxKey;
+import org.bson.BsonMinKey;
+import org.bson.BsonValue;
 import org.bson.Document;
 import org.bson.conversions.Bson;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.mongodb.MongoClientSettings;
 import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoIterable;
 import com.mongodb.client.model.Sorts;
+import com.mongodb.diff3.partition.Partition;
+import com.mongodb.diff3.partition.PartitionManager;
 import com.mongodb.model.Namespace;
 import com.mongodb.shardsync.ShardClient;
 import com.mongodb.util.BlockWhenQueueFull;
 
 public class ShardedCollectionCloneWorker extends AbstractCollectionCloneWorker implements Runnable {
+	
+	private final static double SAMPLE_RATE = 0.04;
+	private final static int SAMPLE_MIN_DOCS = 101;
+	private final static int MAX_DOCS_TO_SAMPLE_PER_RANGE = 10;
 
 	protected ThreadPoolExecutor executor = null;
+	// inserts of all chunk clones, cloneWriterThreads for each of the threads chunk clones
+	private ExecutorService writerPool;
 	private BlockingQueue<Runnable> workQueue;
 
 	List<Future<ChunkCloneResult>> chunkCloneResults;
+	
+	// splits large unsharded collections into _id ranges
+	private PartitionManager partitionManager;
+	
+	// null unless secondary index builds are deferred until after the clone
+	private DeferredIndexBuilder indexBuilder;
+	
+	private InitialSyncCheckpoint checkpoint;
 
 	public ShardedCollectionCloneWorker(ShardClient sourceShardClient, ShardClient destShardClient,
 			MongoSyncOptions options) {
@@ -40,6 +65,14 @@ public class ShardedCollectionCloneWorker extends AbstractCollectionCloneWorker
 		workQueue = new ArrayBlockingQueue<Runnable>(1000000);
 
 		executor = new ThreadPoolExecutor(options.getThreads(), options.getThreads(), 30, TimeUnit.SECONDS, workQueue, new BlockWhenQueueFull());
+		writerPool = Executors.newFixedThreadPool(options.getThreads() * Math.max(1, options.getCloneWriterThreads()),
+				new ThreadFactoryBuilder().setNameFormat("chunk-clone-writer-%d").setDaemon(true).build());
+		partitionManager = new PartitionManager(SAMPLE_RATE, SAMPLE_MIN_DOCS, MAX_DOCS_TO_SAMPLE_PER_RANGE,
+				options.getCloneRangeSize());
+		checkpoint = options.getInitialSyncCheckpoint();
+		if (options.isDeferIndexes()) {
+			indexBuilder = new DeferredIndexBuilder(sourceShardClient, destShardClient, options.getIndexBuildThreads());
+		}
 		// new ThreadFactoryBuilder().setNameFormat("shard-clone-worker-%d").setDaemon(true).build()
 	}
 	
@@ -56,6 +89,7 @@ public class ShardedCollectionCloneWorker extends AbstractCollectionCloneWorker
 			logger.warn("ShardedCollectionCloneWorker interrupted");
 			Thread.currentThread().interrupt();
 		}
+		writerPool.shutdown();
 		logger.debug("ShardedCollectionCloneWorker shutdown complete");
 	}
 
@@ -76,6 +110,11 @@ public class ShardedCollectionCloneWorker extends AbstractCollectionCloneWorker
 //		}
 		
 		chunkCloneResults = new ArrayList<>();
+		boolean resuming = checkpoint.isResuming();
+		if (resuming) {
+			logger.debug("resuming initial sync from checkpoint {}", checkpoint);
+		}
+		checkpoint.start();
 		
 		MongoIterable<String> dbNames = sourceShardClient.listDatabaseNames();
         for (String dbName : dbNames) {
@@ -88,7 +127,8 @@ public class ShardedCollectionCloneWorker extends AbstractCollectionCloneWorker
         		continue;
         	}
         	
-        	if (options.isDropDestDbs()) {
+        	// a resumed initial sync keeps what was already cloned
+        	if (options.isDropDestDbs() && !resuming) {
         		destShardClient.dropDatabase(dbName);
         	}
         	
@@ -107,6 +147,9 @@ public class ShardedCollectionCloneWorker extends AbstractCollectionCloneWorker
                 if (options.excludeNamespace(ns)) {
                 	continue;
                 }
+                if (indexBuilder != null) {
+                	indexBuilder.defer(ns);
+                }
                 cloneCollection(ns);
             }
         }
@@ -125,17 +168,46 @@ public class ShardedCollectionCloneWorker extends AbstractCollectionCloneWorker
 		}
 
 		shutdown();
+		
+		boolean indexesBuilt = true;
+		if (indexBuilder != null) {
+			indexesBuilt = indexBuilder.buildAll().isEmpty();
+		}
+		
+		boolean allDone = checkpoint.isAllDone();
+		if (!allDone) {
+			logger.warn("some chunks failed to clone, they will be retried when the initial sync is resumed");
+		}
+		if (!indexesBuilt) {
+			logger.error("some deferred index builds failed, the initial sync is not complete, "
+					+ "they will be retried when it is resumed");
+		}
+		checkpoint.stop(allDone && indexesBuilt);
 
 		logger.debug("ShardedCollectionCloneWorker complete!");
 
 	}
 
 	private void cloneCollection(Namespace ns) {
+		
+		List<ChunkCheckpoint> chunks = checkpoint.getPendingChunks(ns);
+		if (chunks != null) {
+			submitChunks(ns, chunks);
+			return;
+		}
+		chunks = new ArrayList<>();
 
 		shardCollection = sourceShardClient.getCollectionsMap().get(ns.getNamespace());
 		if (shardCollection == null) {
-			ChunkCloneTask task = new ChunkCloneTask(ns, sourceShardClient, destShardClient, null, options);
-			chunkCloneResults.add(executor.submit(task));
+			List<Partition> ranges = getCloneRanges(ns);
+			if (ranges.isEmpty()) {
+				chunks.add(new ChunkCheckpoint(ns, null, false));
+			} else {
+				for (Partition range : ranges) {
+					chunks.add(new ChunkCheckpoint(ns, toBsonDocument(range.query()), true));
+				}
+				logger.debug("{}: {} _id ranges for clone", ns, ranges.size());
+			}
 		} else {
 			Document shardKeysDoc = (Document) shardCollection.get("key");
 			Set<String> shardKeys = shardKeysDoc.keySet();
@@ -147,7 +219,6 @@ public class ShardedCollectionCloneWorker extends AbstractCollectionCloneWorker
 
 			FindIterable<Document> sourceChunks = chunksCollection.find(eq("ns", ns.getNamespace()))
 					.sort(Sorts.ascending("min"));
-			int i = 0;
 			for (Document sourceChunk : sourceChunks) {
 				String id = sourceChunk.getString("_id");
 				// each chunk is inclusive of min and exclusive of max
@@ -166,12 +237,74 @@ public class ShardedCollectionCloneWorker extends AbstractCollectionCloneWorker
 					chunkQuery = and(gte(key, min.get(key)), lt(key, max.get(key)));
 				}
 
-				ChunkCloneTask task = new ChunkCloneTask(ns, sourceShardClient, destShardClient, chunkQuery, options);
-				chunkCloneResults.add(executor.submit(task));
-				i++;
+				chunks.add(new ChunkCheckpoint(ns, toBsonDocument(chunkQuery), false));
 			}
-			logger.debug("{}: {} chunks processed / tasks submitted for chunk clone", ns, i);
 		}
+		// all chunks of a collection are recorded before any is cloned, so that a restart
+		// never sees only some of them
+		checkpoint.addChunks(ns, chunks);
+		submitChunks(ns, chunks);
+	}
+	
+	private void submitChunks(Namespace ns, List<ChunkCheckpoint> chunks) {
+		int submitted = 0;
+		for (ChunkCheckpoint chunk : chunks) {
+			ChunkCloneTask task = new ChunkCloneTask(ns, sourceShardClient, destShardClient, chunk, options, writerPool);
+			chunkCloneResults.add(executor.submit(task));
+			submitted++;
+		}
+		logger.debug("{}: {} chunks processed / {} tasks submitted for chunk clone", ns, chunks.size(), submitted);
+	}
+	
+	private static BsonDocument toBsonDocument(Bson query) {
+		return query.toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry());
+	}
+	
+	/**
+	 * The <code>_id</code> ranges to clone an unsharded collection in parallel, or an empty
+	 * list to clone it with a single cursor (small, empty or unsplittable collections).
+	 */
+	private List<Partition> getCloneRanges(Namespace ns) {
+		if (options.getCloneRangeSize() <= 0) {
+			return Collections.emptyList();
+		}
+		List<Partition> partitions;
+		try {
+			partitions = partitionManager.partitionCollection(ns, sourceShardClient.getMongoClient());
+		} catch (Exception e) {
+			logger.warn("{}: could not split into _id ranges, cloning with a single cursor: {}", ns, e.getMessage());
+			return Collections.emptyList();
+		}
+		if (partitions.size() < 2) {
+			return Collections.emptyList();
+		}
+		
+		// _id range queries only match values of the bound's type, so all _ids must have one type,
+		// i.e. the lowest and highest _id must have the same type
+		BsonValue minId = (BsonValue) partitions.get(0).getLowerBound();
+		BsonValue maxId = (BsonValue) partitions.get(partitions.size() - 1).getUpperBound();
+		if (!sameTypeBracket(minId, maxId)) {
+			logger.debug("{}: mixed _id types, cloning with a single cursor", ns);
+			return Collections.emptyList();
+		}
+		
+		// the outer bounds are the lowest and highest _id, open them so the first and last ranges
+		// include them (and anything inserted outside of them meanwhile)
+		List<Partition> ranges = new ArrayList<>(partitions.size());
+		for (int i = 0; i < partitions.size(); i++) {
+			Partition p = partitions.get(i);
+			Object lower = i == 0 ? new BsonMinKey() : p.getLowerBound();
+			Object upper = i == partitions.size() - 1 ? new BsonMaxKey() : p.getUpperBound();
+			ranges.add(new Partition(ns, lower, upper, p.getEstimatedDocCount()));
+		}
+		return ranges;
+	}
+	
+	private static boolean sameTypeBracket(BsonValue a, BsonValue b) {
+		if (a.isNumber() && b.isNumber()) {
+			return true;
+		}
+		return a.getBsonType() == b.getBsonType();
 	}
 
 }
@@ -24,9 +24,16 @@ public class TimestampFile {
 	
 	
 	public TimestampFile(String shardId) {
+		this(null, shardId);
+	}
+	
+	/**
+	 * Timestamp file of <code>shardId</code> in <code>dir</code> (the working directory if null).
+	 */
+	public TimestampFile(File dir, String shardId) {
 		this.shardId = shardId;
 		String fileName = shardId + ".timestamp";
-		tsFile = new File(fileName);
+		tsFile = new File(dir, fileName);
 	}
 	
 	public ShardTimestamp getShardTimestamp() throws IOException {
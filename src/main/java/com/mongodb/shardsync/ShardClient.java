@@ -26,6 +26,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 import org.apache.commons.lang3.StringUtils;
@@ -49,6 +50,7 @@ import com.mongodb.MongoCommandException;
 import com.mongodb.MongoException;
 import com.mongodb.MongoSocketException;
 import com.mongodb.MongoTimeoutException;
+import com.mongodb.ReadPreference;
 import com.mongodb.ServerAddress;
 import com.mongodb.WriteConcern;
 import com.mongodb.client.FindIterable;
@@ -62,6 +64,7 @@ import com.mongodb.client.model.IndexOptions;
 import com.mongodb.client.model.Sorts;
 import com.mongodb.client.model.UpdateOptions;
 import com.mongodb.client.result.DeleteResult;
+import com.mongodb.connection.ClusterConnectionMode;
 import com.mongodb.internal.dns.DefaultDnsResolver;
 import com.mongodb.model.DatabaseCatalog;
 import com.mongodb.model.DatabaseCatalogProvider;
@@ -147,6 +150,7 @@ public class ShardClient {
 	private DatabaseCatalogProvider databaseCatalogProvider;
 
 	private Map<String, MongoClient> shardMongoClients = new TreeMap<String, MongoClient>();
+	private final Map<String, MongoClient> shardMemberClients = new ConcurrentHashMap<>();
 
 	private List<String> srvHosts;
 
@@ -565,25 +569,7 @@ public class ShardClient {
 			}
 
 			settingsBuilder.applyToClusterSettings(builder -> builder.hosts(serverAddressList));
-			
-			
-			if (rsSsl != null) {
-				logger.debug("manual rs ssl config: {}", rsSsl);
-				settingsBuilder.applyToSslSettings(builder -> builder.enabled(rsSsl));
-			} else if (connectionString.getSslEnabled() != null) {
-				logger.debug("***** {} - SSL config set from connection string", name, rsSsl);
-				settingsBuilder.applyToSslSettings(builder -> builder.enabled(connectionString.getSslEnabled()));
-			}
-			if (connectionString.getCredential() != null) {
-				settingsBuilder.credential(connectionString.getCredential());
-			}
-			if (connectionString.getApplicationName() != null) {
-				settingsBuilder.applicationName(connectionString.getApplicationName());
-			}
-			if (connectionString.getReadPreference() != null) {
-				settingsBuilder.readPreference(connectionString.getReadPreference());
-			}
-			settingsBuilder.uuidRepresentation(UuidRepresentation.STANDARD);
+			applyShardSettings(settingsBuilder);
 
             if (connectionString.getReadPreference() != null) {
 				settingsBuilder.readPreference(connectionString.getReadPreference());
@@ -605,6 +591,42 @@ public class ShardClient {
 		}
 	}
 
+	private void applyShardSettings(MongoClientSettings.Builder settingsBuilder) {
+		if (rsSsl != null) {
+			logger.debug("manual rs ssl config: {}", rsSsl);
+			settingsBuilder.applyToSslSettings(builder -> builder.enabled(rsSsl));
+		} else if (connectionString.getSslEnabled() != null) {
+			logger.debug("***** {} - SSL config set from connection string", name, rsSsl);
+			settingsBuilder.applyToSslSettings(builder -> builder.enabled(connectionString.getSslEnabled()));
+		}
+		if (connectionString.getCredential() != null) {
+			settingsBuilder.credential(connectionString.getCredential());
+		}
+		if (connectionString.getApplicationName() != null) {
+			settingsBuilder.applicationName(connectionString.getApplicationName());
+		}
+		settingsBuilder.uuidRepresentation(UuidRepresentation.STANDARD);
+	}
+
+	/**
+	 * Client connected directly to one replica set member (<code>host:port</code>), with
+	 * the same credentials and SSL settings as the shard clients. Reads are allowed on
+	 * secondaries.
+	 */
+	public MongoClient getShardMemberClient(String hostPort) {
+		return shardMemberClients.computeIfAbsent(hostPort, hp -> {
+			String host = StringUtils.substringBeforeLast(hp, ":");
+			int port = Integer.parseInt(StringUtils.substringAfterLast(hp, ":"));
+			MongoClientSettings.Builder settingsBuilder = MongoClientSettings.builder();
+			settingsBuilder.applyToClusterSettings(builder -> builder.hosts(Arrays.asList(new ServerAddress(host, port)))
+					.mode(ClusterConnectionMode.SINGLE));
+			applyShardSettings(settingsBuilder);
+			settingsBuilder.readPreference(ReadPreference.secondaryPreferred());
+			logger.debug("{} - created member client for {}", name, hp);
+			return MongoClients.create(settingsBuilder.build());
+		});
+	}
+
 	public Document getLatestOplogEntry(String shardId) {
 		MongoClient client = shardMongoClients.get(shardId);
 		MongoCollection<Document> coll = client.getDatabase("local").getCollection("oplog.rs");
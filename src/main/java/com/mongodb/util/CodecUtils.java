@@ -7,6 +7,7 @@ import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.codec.binary.Hex;
 
 import java.io.UnsupportedEncodingException;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.zip.CRC32;
@@ -48,6 +49,23 @@ public final class CodecUtils {
     return Hex.encodeHexString(d.digest());
   }
 
+  /**
+   * Digests pV[pOffset, pOffset + pLength) with the per-thread md5 digest into a
+   * per-thread 16 byte buffer, without copying the input or allocating. The returned
+   * array is reused by the next call on the same thread.
+   */
+  public static byte[] md5Into(final byte[] pV, final int pOffset, final int pLength) {
+    final MessageDigest d = sCache.get();
+    final byte[] buffer = _16ByteBuffer.get();
+    d.update(pV, pOffset, pLength);
+    try {
+      d.digest(buffer, 0, MD5_BYTE_SIZE);
+    } catch (final DigestException e) {
+      throw new IllegalStateException(e);
+    }
+    return buffer;
+  }
+
   public static byte[] md5(final byte[] pV) {
     final MessageDigest d = sCache.get();
     d.update(pV);
@@ -5,23 +5,51 @@ import java.util.TreeSet;
 
 import org.bson.BsonDocument;
 import org.bson.BsonValue;
+import org.bson.ByteBuf;
 import org.bson.RawBsonDocument;
 import org.bson.codecs.BsonDocumentCodec;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.Sets;
+import com.mongodb.diff3.DocumentDigest;
 
 public class DiffUtils {
 	
 	private static Logger logger = LoggerFactory.getLogger(DiffUtils.class);
 	
 	public static boolean compareHashes(byte[] sourceBytes, byte[] destBytes) {
-		String sourceHash = CodecUtils.md5Hex(sourceBytes);
-		String destHash = CodecUtils.md5Hex(destBytes);
-		return sourceHash.equals(destHash);
+		return compareHashes(sourceBytes, 0, sourceBytes.length, destBytes, 0, destBytes.length);
 	}
-	
+
+	/**
+	 * Compares the md5 of the two documents' raw BSON, digesting each document's slice of
+	 * its backing buffer in place. Documents of different lengths are reported as
+	 * different without hashing either one.
+	 */
+	public static boolean compareHashes(RawBsonDocument sourceDoc, RawBsonDocument destDoc) {
+		ByteBuf source = sourceDoc.getByteBuffer();
+		ByteBuf dest = destDoc.getByteBuffer();
+		return compareHashes(source.array(), source.position(), source.remaining(),
+				dest.array(), dest.position(), dest.remaining());
+	}
+
+	private static boolean compareHashes(byte[] sourceBytes, int sourceOffset, int sourceLength,
+			byte[] destBytes, int destOffset, int destLength) {
+		if (sourceLength != destLength) {
+			return false;
+		}
+		byte[] md5 = CodecUtils.md5Into(sourceBytes, sourceOffset, sourceLength);
+		long sourceHigh = DocumentDigest.high(md5);
+		long sourceLow = DocumentDigest.low(md5);
+		md5 = CodecUtils.md5Into(destBytes, destOffset, destLength);
+		return sourceHigh == DocumentDigest.high(md5) && sourceLow == DocumentDigest.low(md5);
+	}
+
+	public static int documentSize(RawBsonDocument doc) {
+		return doc.getByteBuffer().remaining();
+	}
+
 	/**
 	 * This comparison handles the (very) special case that we could have (usually
 	 * due to some client/driver bug) 2 documents that differ only by the order of
@@ -74,8 +102,7 @@ public class DiffUtils {
 			if (setsEqual) {
 				RawBsonDocument sourceRawNew = new RawBsonDocument(sourceDocNew, new BsonDocumentCodec());
 				RawBsonDocument destRawNew = new RawBsonDocument(destDocNew, new BsonDocumentCodec());
-				boolean newDocsMatch = DiffUtils.compareHashes(sourceRawNew.getByteBuffer().array(),
-						destRawNew.getByteBuffer().array());
+				boolean newDocsMatch = DiffUtils.compareHashes(sourceRawNew, destRawNew);
 				//logger.debug(String.format("%s - bytes match: %s", ns, newDocsMatch));
 			}
 		}
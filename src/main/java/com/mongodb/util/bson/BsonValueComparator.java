@@ -1,7 +1,11 @@
 package com.mongodb.util.bson;
 
+import java.math.BigDecimal;
+import java.util.Arrays;
 import java.util.Comparator;
 
+import org.bson.BsonArray;
+import org.bson.BsonBinary;
 import org.bson.BsonDocument;
 import org.bson.BsonType;
 import org.bson.BsonValue;
@@ -35,15 +39,35 @@ public class BsonValueComparator implements Comparator<BsonValue> {
             
             switch(xType) {
             case DOCUMENT:
-              compareDocs((BsonDocument)x, (BsonDocument)y);
-              break;
+              return compareDocs((BsonDocument)x, (BsonDocument)y);
+            case DECIMAL128:
+              return compareNumbers(x, y);
+            case BINARY:
+              return compareBinary((BsonBinary)x, (BsonBinary)y);
+            case ARRAY:
+              return compareArrays((BsonArray)x, (BsonArray)y);
+            case MIN_KEY:
+            case MAX_KEY:
+            case NULL:
+            case UNDEFINED:
+              return 0;
             default:
               throw new IllegalArgumentException("not implemented");
             }
             
         }
-        
-        
+
+        int xOrder = typeOrder(xType);
+        int yOrder = typeOrder(yType);
+        if (xOrder != yOrder) {
+            return Integer.compare(xOrder, yOrder);
+        }
+        if (x.isNumber() || x.isDecimal128()) {
+            return compareNumbers(x, y);
+        }
+        if (xType == BsonType.SYMBOL || yType == BsonType.SYMBOL) {
+            return stringValue(x).compareTo(stringValue(y));
+        }
         return 0;
     }
     
@@ -53,4 +77,124 @@ public class BsonValueComparator implements Comparator<BsonValue> {
         return s1.compareTo(s2);
     }
 
+    /**
+     * Like the server: the shorter binary first, then by subtype, then by the bytes
+     * (unsigned), so UUIDs sort by their bytes.
+     */
+    private static int compareBinary(BsonBinary x, BsonBinary y) {
+        byte[] xData = x.getData();
+        byte[] yData = y.getData();
+        if (xData.length != yData.length) {
+            return Integer.compare(xData.length, yData.length);
+        }
+        if (x.getType() != y.getType()) {
+            return Integer.compare(x.getType() & 0xff, y.getType() & 0xff);
+        }
+        return Arrays.compareUnsigned(xData, yData);
+    }
+
+    /**
+     * Element by element, a prefix sorts first.
+     */
+    private int compareArrays(BsonArray x, BsonArray y) {
+        int n = Math.min(x.size(), y.size());
+        for (int i = 0; i < n; i++) {
+            int c = compare(x.get(i), y.get(i));
+            if (c != 0) {
+                return c;
+            }
+        }
+        return Integer.compare(x.size(), y.size());
+    }
+
+    /**
+     * Position of the type in the server's cross-type comparison order; types that the
+     * server compares as equivalent (e.g. all numbers) share a position.
+     */
+    private static int typeOrder(BsonType type) {
+        switch (type) {
+        case MIN_KEY:
+            return 0;
+        case NULL:
+        case UNDEFINED:
+            return 1;
+        case INT32:
+        case INT64:
+        case DOUBLE:
+        case DECIMAL128:
+            return 2;
+        case SYMBOL:
+        case STRING:
+            return 3;
+        case DOCUMENT:
+            return 4;
+        case ARRAY:
+            return 5;
+        case BINARY:
+            return 6;
+        case OBJECT_ID:
+            return 7;
+        case BOOLEAN:
+            return 8;
+        case DATE_TIME:
+            return 9;
+        case TIMESTAMP:
+            return 10;
+        case REGULAR_EXPRESSION:
+            return 11;
+        case MAX_KEY:
+            return 13;
+        default:
+            return 12;
+        }
+    }
+
+    private static int compareNumbers(BsonValue x, BsonValue y) {
+        // NaN sorts before every other number, infinities are handled by Double.compare
+        boolean xNaN = isNaN(x);
+        boolean yNaN = isNaN(y);
+        if (xNaN || yNaN) {
+            return Boolean.compare(yNaN, xNaN);
+        }
+        if (isInfinite(x) || isInfinite(y)) {
+            return Double.compare(toDouble(x), toDouble(y));
+        }
+        return toBigDecimal(x).compareTo(toBigDecimal(y));
+    }
+
+    private static boolean isNaN(BsonValue v) {
+        if (v.isDecimal128()) {
+            return v.asDecimal128().getValue().isNaN();
+        }
+        return v.isDouble() && Double.isNaN(v.asDouble().getValue());
+    }
+
+    private static boolean isInfinite(BsonValue v) {
+        if (v.isDecimal128()) {
+            return v.asDecimal128().getValue().isInfinite();
+        }
+        return v.isDouble() && Double.isInfinite(v.asDouble().getValue());
+    }
+
+    private static double toDouble(BsonValue v) {
+        return v.isDecimal128() ? v.asDecimal128().getValue().doubleValue() : v.asNumber().doubleValue();
+    }
+
+    private static BigDecimal toBigDecimal(BsonValue v) {
+        switch (v.getBsonType()) {
+        case INT32:
+            return BigDecimal.valueOf(v.asInt32().getValue());
+        case INT64:
+            return BigDecimal.valueOf(v.asInt64().getValue());
+        case DECIMAL128:
+            return v.asDecimal128().getValue().bigDecimalValue();
+        default:
+            return BigDecimal.valueOf(v.asDouble().getValue());
+        }
+    }
+
+    private static String stringValue(BsonValue v) {
+        return v.isSymbol() ? v.asSymbol().getSymbol() : v.asString().getValue();
+    }
+
 }
@@ -0,0 +1,117 @@
+package com.mongodb.util.bson;
+
+import java.nio.charset.StandardCharsets;
+
+import org.bson.BsonInvalidOperationException;
+import org.bson.BsonType;
+
+/**
+ * Minimal scanner over raw BSON bytes, for locating top-level elements without
+ * decoding the document into a tree of BsonValues.
+ *
+ * @see <a href="http://bsonspec.org/spec.html">BSON specification</a>
+ */
+public final class RawBsonScanner {
+
+    private RawBsonScanner() {
+    }
+
+    /**
+     * Returns the offset of the type byte of the top-level element <code>name</code> in
+     * the document starting at <code>docOffset</code>, or -1 if there is no such element.
+     */
+    public static int findElement(byte[] bytes, int docOffset, String name) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        int end = docOffset + readInt32(bytes, docOffset) - 1;
+        int pos = docOffset + 4;
+        while (pos < end) {
+            int elementOffset = pos;
+            byte type = bytes[pos++];
+            boolean match = true;
+            int i = 0;
+            while (bytes[pos] != 0) {
+                if (match && (i >= nameBytes.length || bytes[pos] != nameBytes[i])) {
+                    match = false;
+                }
+                pos++;
+                i++;
+            }
+            pos++;
+            if (match && i == nameBytes.length) {
+                return elementOffset;
+            }
+            pos += valueLength(bytes, type, pos);
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the offset of the value of the element whose type byte is at
+     * <code>elementOffset</code>.
+     */
+    public static int valueOffset(byte[] bytes, int elementOffset) {
+        int pos = elementOffset + 1;
+        while (bytes[pos] != 0) {
+            pos++;
+        }
+        return pos + 1;
+    }
+
+    /**
+     * Returns the number of bytes occupied by a value of the given BSON type starting
+     * at <code>valueOffset</code>.
+     */
+    public static int valueLength(byte[] bytes, byte type, int valueOffset) {
+        switch (BsonType.findByValue(type)) {
+        case UNDEFINED:
+        case NULL:
+        case MIN_KEY:
+        case MAX_KEY:
+            return 0;
+        case BOOLEAN:
+            return 1;
+        case INT32:
+            return 4;
+        case DOUBLE:
+        case DATE_TIME:
+        case TIMESTAMP:
+        case INT64:
+            return 8;
+        case OBJECT_ID:
+            return 12;
+        case DECIMAL128:
+            return 16;
+        case STRING:
+        case JAVASCRIPT:
+        case SYMBOL:
+            return 4 + readInt32(bytes, valueOffset);
+        case DOCUMENT:
+        case ARRAY:
+        case JAVASCRIPT_WITH_SCOPE:
+            return readInt32(bytes, valueOffset);
+        case BINARY:
+            return 4 + 1 + readInt32(bytes, valueOffset);
+        case DB_POINTER:
+            return 4 + readInt32(bytes, valueOffset) + 12;
+        case REGULAR_EXPRESSION:
+            int pos = valueOffset;
+            while (bytes[pos] != 0) {
+                pos++;
+            }
+            pos++;
+            while (bytes[pos] != 0) {
+                pos++;
+            }
+            return pos + 1 - valueOffset;
+        default:
+            throw new BsonInvalidOperationException("Unexpected BSON type: " + type);
+        }
+    }
+
+    public static int readInt32(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff)
+                | (bytes[offset + 1] & 0xff) << 8
+                | (bytes[offset + 2] & 0xff) << 16
+                | (bytes[offset + 3] & 0xff) << 24;
+    }
+}
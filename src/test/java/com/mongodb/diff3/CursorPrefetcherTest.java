@@ -0,0 +1,131 @@
+package com.mongodb.diff3;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.junit.jupiter.api.Test;
+
+import com.mongodb.MongoException;
+import com.mongodb.ServerAddress;
+import com.mongodb.ServerCursor;
+import com.mongodb.client.MongoCursor;
+
+public class CursorPrefetcherTest {
+
+    /**
+     * Cursor over a list, optionally failing after <code>failAfter</code> documents.
+     */
+    static class ListCursor implements MongoCursor<RawBsonDocument> {
+        private final Iterator<RawBsonDocument> docs;
+        private final int failAfter;
+        private int read;
+        final CountDownLatch closed = new CountDownLatch(1);
+
+        ListCursor(List<RawBsonDocument> docs, int failAfter) {
+            this.docs = docs.iterator();
+            this.failAfter = failAfter;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (read == failAfter) {
+                throw new MongoException("cursor failed");
+            }
+            return docs.hasNext();
+        }
+
+        @Override
+        public RawBsonDocument next() {
+            read++;
+            return docs.next();
+        }
+
+        @Override
+        public RawBsonDocument tryNext() {
+            return hasNext() ? next() : null;
+        }
+
+        @Override
+        public void close() {
+            closed.countDown();
+        }
+
+        @Override
+        public ServerCursor getServerCursor() {
+            return null;
+        }
+
+        @Override
+        public ServerAddress getServerAddress() {
+            return null;
+        }
+    }
+
+    static List<RawBsonDocument> docs(int from, int to) {
+        List<RawBsonDocument> docs = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            docs.add(new RawBsonDocument(new BsonDocument("_id", new BsonInt32(i)), new BsonDocumentCodec()));
+        }
+        return docs;
+    }
+
+    @Test
+    public void testKeepsOrderAcrossBatches() throws InterruptedException {
+        List<RawBsonDocument> expected = docs(0, 1003);
+        ListCursor cursor = new ListCursor(expected, -1);
+        List<RawBsonDocument> actual = new ArrayList<>();
+        try (CursorPrefetcher prefetcher = new CursorPrefetcher(cursor, 10, 2)) {
+            while (prefetcher.hasNext()) {
+                actual.add(prefetcher.next());
+            }
+            assertFalse(prefetcher.hasNext());
+        }
+        assertEquals(expected, actual);
+        assertTrue(cursor.closed.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testEmptyCursor() {
+        try (CursorPrefetcher prefetcher = new CursorPrefetcher(new ListCursor(docs(0, 0), -1), 10, 2)) {
+            assertFalse(prefetcher.hasNext());
+        }
+    }
+
+    @Test
+    public void testCursorFailureIsThrownAfterPrefetchedDocs() throws InterruptedException {
+        ListCursor cursor = new ListCursor(docs(0, 100), 25);
+        List<RawBsonDocument> read = new ArrayList<>();
+        try (CursorPrefetcher prefetcher = new CursorPrefetcher(cursor, 10, 2)) {
+            MongoException failure = assertThrows(MongoException.class, () -> {
+                while (prefetcher.hasNext()) {
+                    read.add(prefetcher.next());
+                }
+            });
+            assertEquals("cursor failed", failure.getMessage());
+        }
+        // the full batches read before the failure are still handed out
+        assertEquals(docs(0, 20), read);
+        assertTrue(cursor.closed.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testCloseStopsTheFillThread() throws InterruptedException {
+        ListCursor cursor = new ListCursor(docs(0, 10000), -1);
+        CursorPrefetcher prefetcher = new CursorPrefetcher(cursor, 10, 2);
+        assertEquals(docs(0, 1).get(0), prefetcher.next());
+        prefetcher.close();
+        assertTrue(cursor.closed.await(5, TimeUnit.SECONDS));
+    }
+}
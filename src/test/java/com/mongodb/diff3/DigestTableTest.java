@@ -0,0 +1,110 @@
+package com.mongodb.diff3;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonObjectId;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+import com.mongodb.util.CodecUtils;
+
+public class DigestTableTest {
+
+    private static RawBsonDocument doc(String firstKey, BsonValue id) {
+        BsonDocument d = new BsonDocument()
+                .append(firstKey, new BsonString("x"))
+                .append("_id", id);
+        return new RawBsonDocument(d, new BsonDocumentCodec());
+    }
+
+    private static int slotOf(DigestTable table, DigestTable probe) {
+        for (int slot = 0; slot < probe.capacity(); slot++) {
+            if (probe.isOccupied(slot)) {
+                return table.find(probe, slot);
+            }
+        }
+        return -1;
+    }
+
+    @Test
+    public void testPutFindAndDecode() {
+        DigestTable table = new DigestTable(4);
+        BsonValue[] ids = new BsonValue[] {
+                new BsonInt32(1), new BsonInt64(1), new BsonString("1"), new BsonObjectId(new ObjectId()),
+                new BsonDocument("a", new BsonInt32(1))
+        };
+        for (int i = 0; i < ids.length; i++) {
+            table.put(doc("before", ids[i]), i, -i);
+        }
+        for (int i = 0; i < 1000; i++) {
+            table.put(doc("a", new BsonInt32(i + 100)), i, i);
+        }
+        assertEquals(ids.length + 1000, table.size());
+
+        for (int i = 0; i < ids.length; i++) {
+            DigestTable probe = new DigestTable(1);
+            probe.put(doc("other", ids[i]), 0, 0);
+            int slot = slotOf(table, probe);
+            assertTrue(slot >= 0);
+            assertEquals(ids[i], table.getId(slot));
+            assertEquals(new DocumentDigest(i, -i), table.getDigest(slot));
+        }
+    }
+
+    @Test
+    public void testDuplicateIdReplacesDigest() {
+        DigestTable table = new DigestTable();
+        table.put(doc("a", new BsonString("k")), 1, 1);
+        table.put(doc("a", new BsonString("k")), 2, 2);
+        assertEquals(1, table.size());
+
+        DigestTable probe = new DigestTable();
+        probe.put(doc("b", new BsonString("k")), 0, 0);
+        assertEquals(new DocumentDigest(2, 2), table.getDigest(slotOf(table, probe)));
+
+        DigestTable missing = new DigestTable();
+        missing.put(doc("b", new BsonString("z")), 0, 0);
+        assertEquals(-1, slotOf(table, missing));
+    }
+
+    @Test
+    public void testHugeExpectedSizeIsClamped() {
+        for (int expectedSize : new int[] { 750000000, 800000000, Integer.MAX_VALUE, -1 }) {
+            DigestTable table = new DigestTable(expectedSize);
+            assertTrue(table.capacity() > 0 && table.capacity() <= 2 << 20);
+            table.put(doc("a", new BsonInt32(1)), 1, 1);
+            assertEquals(1, table.size());
+        }
+    }
+
+    @Test
+    public void testGrowsPastExpectedSize() {
+        DigestTable table = new DigestTable(1);
+        for (int i = 0; i < 10000; i++) {
+            table.put(doc("a", new BsonString("id-" + i)), i, i);
+        }
+        assertEquals(10000, table.size());
+        assertTrue(table.capacity() >= 10000 / 0.7);
+
+        DigestTable probe = new DigestTable(1);
+        probe.put(doc("b", new BsonString("id-9999")), 0, 0);
+        assertEquals(new DocumentDigest(9999, 9999), table.getDigest(slotOf(table, probe)));
+    }
+
+    @Test
+    public void testDigestHexRoundTrip() {
+        byte[] md5 = new byte[16];
+        for (int i = 0; i < md5.length; i++) {
+            md5[i] = (byte) (i * 17);
+        }
+        assertEquals(CodecUtils.toHex(md5), DocumentDigest.of(md5).toHex());
+    }
+}
@@ -0,0 +1,167 @@
+package com.mongodb.diff3;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.ByteBuf;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.junit.jupiter.api.Test;
+
+import com.mongodb.MongoException;
+import com.mongodb.util.CodecUtils;
+
+public class StreamingMergeJoinTest {
+
+    private static RawBsonDocument doc(int id, String value) {
+        return new RawBsonDocument(new BsonDocument("_id", new BsonInt32(id)).append("v", new BsonString(value)),
+                new BsonDocumentCodec());
+    }
+
+    private static List<RawBsonDocument> docs(int... ids) {
+        List<RawBsonDocument> docs = new ArrayList<>();
+        for (int id : ids) {
+            docs.add(doc(id, "x"));
+        }
+        return docs;
+    }
+
+    private static Set<BsonValue> ids(int... ids) {
+        Set<BsonValue> set = new HashSet<>();
+        for (int id : ids) {
+            set.add(new BsonInt32(id));
+        }
+        return set;
+    }
+
+    @Test
+    public void testEqualSides() {
+        StreamingMergeJoin join = new StreamingMergeJoin(10);
+        assertTrue(join.join(docs(1, 2, 3).iterator(), docs(1, 2, 3).iterator()));
+        assertEquals(3, join.getMatches());
+        assertTrue(join.getMismatches().isEmpty());
+        assertTrue(join.getSourceOnly().isEmpty());
+        assertTrue(join.getDestOnly().isEmpty());
+        assertEquals(join.getSourceBytes(), join.getDestBytes());
+        assertTrue(join.getMaxHeld() <= 2);
+    }
+
+    @Test
+    public void testInterleavedOrder() {
+        StreamingMergeJoin join = new StreamingMergeJoin(10);
+        assertTrue(join.join(docs(1, 2, 3, 4, 5, 6).iterator(), docs(2, 1, 4, 3, 6, 5).iterator()));
+        assertEquals(6, join.getMatches());
+        assertTrue(join.getSourceOnly().isEmpty());
+        assertTrue(join.getDestOnly().isEmpty());
+    }
+
+    @Test
+    public void testMissingAndExtraIds() {
+        StreamingMergeJoin join = new StreamingMergeJoin(10);
+        assertTrue(join.join(docs(1, 2, 3, 5, 7).iterator(), docs(1, 3, 4, 5, 6, 7, 8).iterator()));
+        assertEquals(4, join.getMatches());
+        assertEquals(ids(2), join.getSourceOnly());
+        assertEquals(ids(4, 6, 8), join.getDestOnly());
+    }
+
+    @Test
+    public void testOneSideEmpty() {
+        StreamingMergeJoin join = new StreamingMergeJoin(10);
+        assertTrue(join.join(Collections.<RawBsonDocument>emptyIterator(), docs(1, 2).iterator()));
+        assertEquals(0, join.getMatches());
+        assertEquals(ids(1, 2), join.getDestOnly());
+    }
+
+    @Test
+    public void testMismatch() {
+        List<RawBsonDocument> source = Arrays.asList(doc(1, "a"), doc(2, "b"));
+        List<RawBsonDocument> dest = Arrays.asList(doc(2, "changed"), doc(1, "a"));
+        StreamingMergeJoin join = new StreamingMergeJoin(10);
+        assertTrue(join.join(source.iterator(), dest.iterator()));
+        assertEquals(1, join.getMatches());
+        assertEquals(1, join.getMismatches().size());
+        DiffResult.MismatchEntry mismatch = join.getMismatches().iterator().next();
+        assertEquals(new BsonInt32(2), mismatch.getKey());
+        // source digest first, whichever side was read last
+        assertEquals(digestOf(source.get(1)), mismatch.getSrcDigest());
+        assertEquals(digestOf(dest.get(0)), mismatch.getDestDigest());
+    }
+
+    @Test
+    public void testGivesUpPastMaxPending() {
+        StreamingMergeJoin join = new StreamingMergeJoin(3);
+        assertFalse(join.join(docs(1, 2, 3, 4).iterator(), docs(5, 6, 7, 8).iterator()));
+        assertTrue(join.getMaxHeld() > 3);
+    }
+
+    @Test
+    public void testSpillIntoTablesAfterGivingUp() {
+        StreamingMergeJoin join = new StreamingMergeJoin(3);
+        Iterator<RawBsonDocument> source = docs(1, 2, 3, 4, 9).iterator();
+        Iterator<RawBsonDocument> dest = docs(5, 6, 1, 2, 3).iterator();
+        assertFalse(join.join(source, dest));
+
+        DigestTable sourceTable = new DigestTable();
+        DigestTable destTable = new DigestTable();
+        join.spillInto(sourceTable, destTable);
+        while (source.hasNext()) {
+            RawBsonDocument doc = source.next();
+            sourceTable.put(doc, digestOf(doc).getHigh(), digestOf(doc).getLow());
+        }
+        while (dest.hasNext()) {
+            RawBsonDocument doc = dest.next();
+            destTable.put(doc, digestOf(doc).getHigh(), digestOf(doc).getLow());
+        }
+        assertTrue(join.getSourceOnly().isEmpty());
+        assertTrue(join.getDestOnly().isEmpty());
+
+        // the join gave up holding 1, 2 and 5, 6: nothing was matched yet, it all goes to the tables
+        assertEquals(0, join.getMatches());
+        long inBoth = 0;
+        Set<BsonValue> tableIds = new HashSet<>();
+        for (int slot = 0; slot < sourceTable.capacity(); slot++) {
+            if (sourceTable.isOccupied(slot)) {
+                tableIds.add(sourceTable.getId(slot));
+                if (destTable.find(sourceTable, slot) >= 0) {
+                    inBoth++;
+                    assertEquals(sourceTable.getDigest(slot), destTable.getDigest(destTable.find(sourceTable, slot)));
+                }
+            }
+        }
+        for (int slot = 0; slot < destTable.capacity(); slot++) {
+            if (destTable.isOccupied(slot)) {
+                tableIds.add(destTable.getId(slot));
+            }
+        }
+        assertEquals(3, inBoth);
+        assertEquals(ids(1, 2, 3, 4, 5, 6, 9), tableIds);
+    }
+
+    @Test
+    public void testCursorFailure() {
+        CursorPrefetcherTest.ListCursor failing = new CursorPrefetcherTest.ListCursor(docs(1, 2, 3), 2);
+        StreamingMergeJoin join = new StreamingMergeJoin(10);
+        try (CursorPrefetcher dest = new CursorPrefetcher(failing, 1, 2)) {
+            assertThrows(MongoException.class, () -> join.join(docs(1, 2, 3).iterator(), dest));
+        }
+    }
+
+    private static DocumentDigest digestOf(RawBsonDocument doc) {
+        ByteBuf bb = doc.getByteBuffer();
+        return DocumentDigest.of(CodecUtils.md5Into(bb.array(), bb.position(), bb.remaining()));
+    }
+}
@@ -0,0 +1,136 @@
+package com.mongodb.diff3.partition;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.junit.jupiter.api.Test;
+
+import com.mongodb.diff3.DiffConfiguration;
+import com.mongodb.diff3.DiffResult;
+import com.mongodb.model.Namespace;
+
+public class MerklePartitionDiffTaskTest {
+
+    private static final Namespace NS = new Namespace("db.coll");
+    private static final int DOCS = 1000;
+
+    /**
+     * Serves range digests and splits from in-memory per-<code>_id</code> hashes and
+     * records the ranges that would be read document by document.
+     */
+    private static class FakeMerkleTask extends MerklePartitionDiffTask {
+        private final long[] sourceHashes;
+        private final long[] destHashes;
+        final List<Partition> leafRanges = new ArrayList<>();
+        int digests;
+
+        FakeMerkleTask(long[] sourceHashes, long[] destHashes, DiffConfiguration config) {
+            super(new Partition(NS, bound(0), bound(DOCS), DOCS), null, null, null, config, null);
+            this.sourceHashes = sourceHashes;
+            this.destHashes = destHashes;
+        }
+
+        @Override
+        RangeDigest digest(Target target, Partition range) {
+            digests++;
+            long[] hashes = target == Target.SOURCE ? sourceHashes : destHashes;
+            long h = 0;
+            for (int i = lower(range); i < upper(range); i++) {
+                h += hashes[i];
+            }
+            return new RangeDigest(upper(range) - lower(range), 10L * (upper(range) - lower(range)), h, h);
+        }
+
+        @Override
+        List<Object> splitRange(Target target, Partition range, long count) {
+            List<Object> bounds = new ArrayList<>();
+            int fanOut = config.getMerkleFanOut();
+            int step = (upper(range) - lower(range)) / fanOut;
+            for (int i = 1; i < fanOut; i++) {
+                bounds.add(bound(lower(range) + i * step));
+            }
+            return bounds;
+        }
+
+        @Override
+        DiffResult leafDiff(Partition range) {
+            leafRanges.add(range);
+            return new DiffResult(upper(range) - lower(range), 0, new HashSet<>(), new HashSet<>(), new HashSet<>(),
+                    NS, null);
+        }
+    }
+
+    private static BsonDocument bound(int id) {
+        return new BsonDocument("_id", new BsonInt32(id));
+    }
+
+    private static int lower(Partition range) {
+        return ((BsonDocument) range.getLowerBound()).getInt32("_id").getValue();
+    }
+
+    private static int upper(Partition range) {
+        return ((BsonDocument) range.getUpperBound()).getInt32("_id").getValue();
+    }
+
+    private static DiffConfiguration config() {
+        DiffConfiguration config = new DiffConfiguration();
+        config.setMerkleDiff(true);
+        config.setMerkleLeafDocs(10);
+        config.setMerkleFanOut(10);
+        config.setMerkleMaxDepth(8);
+        return config;
+    }
+
+    private static long[] hashes() {
+        long[] hashes = new long[DOCS];
+        for (int i = 0; i < DOCS; i++) {
+            hashes[i] = i * 31L + 7;
+        }
+        return hashes;
+    }
+
+    @Test
+    public void testInSyncRangeReadsNoDocuments() {
+        FakeMerkleTask task = new FakeMerkleTask(hashes(), hashes(), config());
+        DiffResult result = task.computeDiff();
+        assertTrue(task.leafRanges.isEmpty());
+        assertEquals(2, task.digests);
+        assertEquals(DOCS, result.getMatches());
+        assertEquals(10L * DOCS, result.getBytesProcessed());
+        assertTrue(result.getMismatchedEntries().isEmpty());
+    }
+
+    @Test
+    public void testOnlyTheDifferingLeafIsRead() {
+        long[] dest = hashes();
+        dest[537]++;
+        FakeMerkleTask task = new FakeMerkleTask(hashes(), dest, config());
+        DiffResult result = task.computeDiff();
+        assertEquals(1, task.leafRanges.size());
+        Partition leaf = task.leafRanges.get(0);
+        assertEquals(530, lower(leaf));
+        assertEquals(540, upper(leaf));
+        // 1 + 10 + 10 ranges digested on each side
+        assertEquals(42, task.digests);
+        assertEquals(DOCS, result.getMatches());
+    }
+
+    @Test
+    public void testMaxDepthStopsSplitting() {
+        long[] dest = hashes();
+        dest[5]++;
+        DiffConfiguration config = config();
+        config.setMerkleMaxDepth(1);
+        FakeMerkleTask task = new FakeMerkleTask(hashes(), dest, config);
+        task.computeDiff();
+        assertEquals(1, task.leafRanges.size());
+        assertEquals(0, lower(task.leafRanges.get(0)));
+        assertEquals(100, upper(task.leafRanges.get(0)));
+    }
+}
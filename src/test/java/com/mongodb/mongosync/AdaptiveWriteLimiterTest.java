@@ -0,0 +1,139 @@
+package com.mongodb.mongosync;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class AdaptiveWriteLimiterTest {
+
+    private static final long MB = 1024 * 1024;
+    private static final long MILLIS = 1000000;
+
+    /**
+     * Completes one window of <code>limit</code> writes.
+     */
+    private static void window(AdaptiveWriteLimiter limiter, long latencyNanos, boolean congested) {
+        int n = limiter.getLimit();
+        for (int i = 0; i < n; i++) {
+            limiter.acquire();
+        }
+        for (int i = 0; i < n; i++) {
+            limiter.release(latencyNanos, congested && i == 0);
+        }
+    }
+
+    @Test
+    public void testInitialValuesAreBounded() {
+        AdaptiveWriteLimiter limiter = new AdaptiveWriteLimiter("test", true, 10, 4, 100 * MB, 16 * MB);
+        assertEquals(4, limiter.getLimit());
+        assertEquals(16 * MB, limiter.getBatchBytes());
+        assertEquals(1, new AdaptiveWriteLimiter("test", true, 0, 4, MB, MB).getLimit());
+        assertEquals(1, new AdaptiveWriteLimiter("test", true, 2, 0, MB, MB).getLimit());
+    }
+
+    @Test
+    public void testNotAdaptive() {
+        AdaptiveWriteLimiter limiter = new AdaptiveWriteLimiter("test", false, 2, 4, 8 * MB, 16 * MB);
+        assertEquals(Integer.MAX_VALUE, limiter.getLimit());
+        for (int i = 0; i < 100; i++) {
+            limiter.acquire();
+        }
+        assertEquals(100, limiter.getInFlight());
+        for (int i = 0; i < 100; i++) {
+            limiter.release(100 * MILLIS, true);
+        }
+        assertEquals(0, limiter.getInFlight());
+        assertEquals(Integer.MAX_VALUE, limiter.getLimit());
+        assertEquals(8 * MB, limiter.getBatchBytes());
+    }
+
+    @Test
+    public void testAdditiveIncreaseUpToMax() {
+        AdaptiveWriteLimiter limiter = new AdaptiveWriteLimiter("test", true, 1, 4, 8 * MB, 10 * MB);
+        window(limiter, MILLIS, false);
+        assertEquals(2, limiter.getLimit());
+        assertEquals(9 * MB, limiter.getBatchBytes());
+        // a window is judged only once limit writes completed
+        limiter.acquire();
+        limiter.release(MILLIS, false);
+        assertEquals(2, limiter.getLimit());
+        limiter.acquire();
+        limiter.release(MILLIS, false);
+        assertEquals(3, limiter.getLimit());
+        assertEquals(10 * MB, limiter.getBatchBytes());
+        for (int i = 0; i < 5; i++) {
+            window(limiter, MILLIS, false);
+        }
+        assertEquals(4, limiter.getLimit());
+        assertEquals(10 * MB, limiter.getBatchBytes());
+    }
+
+    @Test
+    public void testMultiplicativeDecreaseOnCongestion() {
+        AdaptiveWriteLimiter limiter = new AdaptiveWriteLimiter("test", true, 8, 16, 8 * MB, 16 * MB);
+        window(limiter, MILLIS, true);
+        assertEquals(4, limiter.getLimit());
+        assertEquals(4 * MB, limiter.getBatchBytes());
+        for (int i = 0; i < 5; i++) {
+            window(limiter, MILLIS, true);
+        }
+        assertEquals(1, limiter.getLimit());
+        assertEquals(MB, limiter.getBatchBytes());
+    }
+
+    @Test
+    public void testDecreaseOnLatency() {
+        AdaptiveWriteLimiter limiter = new AdaptiveWriteLimiter("test", true, 4, 16, 8 * MB, 16 * MB);
+        window(limiter, 10 * MILLIS, false);
+        assertEquals(5, limiter.getLimit());
+        // within twice the baseline
+        window(limiter, 19 * MILLIS, false);
+        assertEquals(6, limiter.getLimit());
+        window(limiter, 50 * MILLIS, false);
+        assertEquals(3, limiter.getLimit());
+        assertEquals(5 * MB, limiter.getBatchBytes());
+    }
+
+    @Test
+    public void testAcquireBlocksAtLimit() throws InterruptedException {
+        AdaptiveWriteLimiter limiter = new AdaptiveWriteLimiter("test", true, 1, 4, MB, MB);
+        limiter.acquire();
+        CountDownLatch acquired = new CountDownLatch(1);
+        Thread writer = new Thread(() -> {
+            limiter.acquire();
+            acquired.countDown();
+        });
+        writer.start();
+        assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+        limiter.release(MILLIS, false);
+        assertTrue(acquired.await(10, TimeUnit.SECONDS));
+        writer.join();
+        assertEquals(1, limiter.getInFlight());
+    }
+
+    @Test
+    public void testInterruptDoesNotAbortAcquire() throws InterruptedException {
+        AdaptiveWriteLimiter limiter = new AdaptiveWriteLimiter("test", true, 1, 4, MB, MB);
+        limiter.acquire();
+        CountDownLatch acquired = new CountDownLatch(1);
+        boolean[] interrupted = new boolean[1];
+        Thread writer = new Thread(() -> {
+            limiter.acquire();
+            interrupted[0] = Thread.currentThread().isInterrupted();
+            acquired.countDown();
+        });
+        writer.start();
+        Thread.sleep(50);
+        writer.interrupt();
+        assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+        limiter.release(MILLIS, false);
+        assertTrue(acquired.await(10, TimeUnit.SECONDS));
+        writer.join();
+        assertTrue(interrupted[0]);
+    }
+}
@@ -0,0 +1,92 @@
+package com.mongodb.mongosync;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonMaxKey;
+import org.bson.BsonMinKey;
+import org.bson.BsonObjectId;
+import org.bson.BsonString;
+import org.bson.BsonType;
+import org.bson.BsonValue;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriterSettings;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+import com.mongodb.model.Namespace;
+
+public class ChunkCheckpointTest {
+
+    private static final JsonWriterSettings EXTENDED = JsonWriterSettings.builder().outputMode(JsonMode.EXTENDED)
+            .build();
+
+    private static ChunkCheckpoint roundTrip(ChunkCheckpoint chunk) {
+        return ChunkCheckpoint.fromDocument(BsonDocument.parse(chunk.toDocument().toJson(EXTENDED)));
+    }
+
+    @Test
+    public void testMinKeyMaxKeyQueryRoundTrip() {
+        BsonDocument query = new BsonDocument("x", new BsonDocument("$gte", new BsonMinKey())
+                .append("$lt", new BsonMaxKey()));
+        ChunkCheckpoint chunk = roundTrip(new ChunkCheckpoint(new Namespace("db.coll"), query, false));
+        assertEquals(new Namespace("db.coll"), chunk.getNamespace());
+        assertEquals(query, chunk.getQuery());
+        assertEquals(BsonType.MIN_KEY, chunk.getQuery().getDocument("x").get("$gte").getBsonType());
+        assertEquals(BsonType.MAX_KEY, chunk.getQuery().getDocument("x").get("$lt").getBsonType());
+        assertFalse(chunk.isIdOrdered());
+        assertNull(chunk.getLastId());
+        assertFalse(chunk.isDone());
+    }
+
+    @Test
+    public void testWholeCollectionRoundTrip() {
+        ChunkCheckpoint chunk = new ChunkCheckpoint(new Namespace("db.coll"), null, true);
+        chunk.setDone();
+        chunk = roundTrip(chunk);
+        assertNull(chunk.getQuery());
+        assertTrue(chunk.isIdOrdered());
+        assertTrue(chunk.isDone());
+    }
+
+    @Test
+    public void testLastIdTypesArePreserved() {
+        BsonValue[] ids = { new BsonObjectId(new ObjectId()), new BsonInt32(42), new BsonInt64(42),
+                new BsonString("42"), new BsonDocument("a", new BsonInt32(1)).append("b", new BsonInt64(2)) };
+        for (BsonValue id : ids) {
+            ChunkCheckpoint chunk = new ChunkCheckpoint(new Namespace("db.coll"), null, true);
+            chunk.inserted(id, 10, 1000);
+            BsonValue lastId = roundTrip(chunk).getLastId();
+            assertEquals(id, lastId);
+            assertEquals(id.getBsonType(), lastId.getBsonType());
+        }
+    }
+
+    @Test
+    public void testInsertedKeepsLastIdForUnorderedBatches() {
+        ChunkCheckpoint chunk = new ChunkCheckpoint(new Namespace("db.coll"), null, true);
+        chunk.inserted(new BsonInt32(5), 5, 50);
+        chunk.inserted(null, 5, 50);
+        assertEquals(new BsonInt32(5), chunk.getLastId());
+        BsonDocument doc = chunk.toDocument();
+        assertEquals(10, doc.getInt64("docs").getValue());
+        assertEquals(100, doc.getInt64("bytes").getValue());
+    }
+
+    @Test
+    public void testRestartClearsProgress() {
+        ChunkCheckpoint chunk = new ChunkCheckpoint(new Namespace("db.coll"), null, true);
+        chunk.inserted(new BsonInt32(5), 5, 50);
+        chunk.restart();
+        assertNull(chunk.getLastId());
+        BsonDocument doc = roundTrip(chunk).toDocument();
+        assertFalse(doc.containsKey("lastId"));
+        assertEquals(0, doc.getInt64("docs").getValue());
+        assertEquals(0, doc.getInt64("bytes").getValue());
+    }
+}
@@ -0,0 +1,156 @@
+package com.mongodb.mongosync;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonMaxKey;
+import org.bson.BsonMinKey;
+import org.bson.BsonObjectId;
+import org.bson.BsonType;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.mongodb.model.Namespace;
+
+public class InitialSyncCheckpointTest {
+
+    private static final Namespace NS1 = new Namespace("db.one");
+    private static final Namespace NS2 = new Namespace("db.two");
+
+    @TempDir
+    File dir;
+
+    private static BsonDocument range(BsonDocument min, BsonDocument max) {
+        return new BsonDocument("x", new BsonDocument("$gte", min.get("x")).append("$lt", max.get("x")));
+    }
+
+    @Test
+    public void testLoadWithoutFile() throws IOException {
+        InitialSyncCheckpoint checkpoint = new InitialSyncCheckpoint(dir);
+        assertFalse(checkpoint.load());
+        assertFalse(checkpoint.isComplete());
+        assertFalse(checkpoint.isResuming());
+        assertNull(checkpoint.getPendingChunks(NS1));
+        assertTrue(checkpoint.isAllDone());
+    }
+
+    @Test
+    public void testResumeSelection() throws IOException {
+        BsonDocument minKey = new BsonDocument("x", new BsonMinKey());
+        BsonDocument mid = new BsonDocument("x", new BsonInt32(100));
+        BsonDocument maxKey = new BsonDocument("x", new BsonMaxKey());
+        ChunkCheckpoint lower = new ChunkCheckpoint(NS1, range(minKey, mid), false);
+        ChunkCheckpoint upper = new ChunkCheckpoint(NS1, range(mid, maxKey), false);
+        ChunkCheckpoint whole = new ChunkCheckpoint(NS2, null, true);
+        ObjectId lastId = new ObjectId();
+
+        InitialSyncCheckpoint checkpoint = new InitialSyncCheckpoint(dir);
+        checkpoint.addChunks(NS1, Arrays.asList(lower, upper));
+        checkpoint.addChunks(NS2, Arrays.asList(whole));
+        lower.inserted(null, 10, 100);
+        lower.setDone();
+        upper.inserted(null, 5, 50);
+        upper.restart();
+        whole.inserted(new BsonObjectId(lastId), 7, 70);
+        assertFalse(checkpoint.isAllDone());
+        checkpoint.stop(false);
+
+        InitialSyncCheckpoint resumed = new InitialSyncCheckpoint(dir);
+        assertTrue(resumed.load());
+        assertFalse(resumed.isComplete());
+        assertTrue(resumed.isResuming());
+        assertFalse(resumed.isAllDone());
+        assertEquals(2, resumed.getChunks(NS1).size());
+
+        List<ChunkCheckpoint> pending = resumed.getPendingChunks(NS1);
+        assertEquals(1, pending.size());
+        assertEquals(upper.getQuery(), pending.get(0).getQuery());
+        assertEquals(BsonType.MAX_KEY, pending.get(0).getQuery().getDocument("x").get("$lt").getBsonType());
+        assertNull(pending.get(0).getLastId());
+
+        pending = resumed.getPendingChunks(NS2);
+        assertEquals(1, pending.size());
+        assertTrue(pending.get(0).isIdOrdered());
+        assertEquals(new BsonObjectId(lastId), pending.get(0).getLastId());
+
+        assertNull(resumed.getPendingChunks(new Namespace("db.three")));
+    }
+
+    @Test
+    public void testAllDoneButIncomplete() throws IOException {
+        // e.g. a deferred index build failed: the chunks are done but the sync is not
+        ChunkCheckpoint chunk = new ChunkCheckpoint(NS1, null, true);
+        InitialSyncCheckpoint checkpoint = new InitialSyncCheckpoint(dir);
+        checkpoint.addChunks(NS1, Arrays.asList(chunk));
+        chunk.setDone();
+        assertTrue(checkpoint.isAllDone());
+        checkpoint.stop(false);
+
+        InitialSyncCheckpoint resumed = new InitialSyncCheckpoint(dir);
+        assertTrue(resumed.load());
+        assertFalse(resumed.isComplete());
+        assertTrue(resumed.isAllDone());
+        assertTrue(resumed.getPendingChunks(NS1).isEmpty());
+    }
+
+    @Test
+    public void testComplete() throws IOException {
+        ChunkCheckpoint chunk = new ChunkCheckpoint(NS1, null, true);
+        InitialSyncCheckpoint checkpoint = new InitialSyncCheckpoint(dir);
+        checkpoint.addChunks(NS1, Arrays.asList(chunk));
+        chunk.setDone();
+        checkpoint.stop(true);
+
+        InitialSyncCheckpoint resumed = new InitialSyncCheckpoint(dir);
+        assertTrue(resumed.load());
+        assertTrue(resumed.isComplete());
+
+        resumed.clear();
+        assertFalse(resumed.isResuming());
+        assertFalse(new File(dir, "initialSync.checkpoint").exists());
+        assertFalse(new InitialSyncCheckpoint(dir).load());
+    }
+
+    @Test
+    public void testWrittenBeforeAnyChunkIsCloned() throws IOException {
+        InitialSyncCheckpoint checkpoint = new InitialSyncCheckpoint(dir);
+        checkpoint.start();
+        try {
+            InitialSyncCheckpoint started = new InitialSyncCheckpoint(dir);
+            assertTrue(started.load());
+            assertFalse(started.isComplete());
+            assertFalse(started.isResuming());
+
+            checkpoint.addChunks(NS1, Arrays.asList(new ChunkCheckpoint(NS1, null, true)));
+            InitialSyncCheckpoint added = new InitialSyncCheckpoint(dir);
+            assertTrue(added.load());
+            assertFalse(added.isComplete());
+            assertEquals(1, added.getPendingChunks(NS1).size());
+        } finally {
+            checkpoint.stop(false);
+        }
+    }
+
+    @Test
+    public void testAddChunksCopiesTheList() {
+        ChunkCheckpoint chunk = new ChunkCheckpoint(NS1, null, true);
+        List<ChunkCheckpoint> chunks = new ArrayList<>(Arrays.asList(chunk));
+        InitialSyncCheckpoint checkpoint = new InitialSyncCheckpoint(dir);
+        checkpoint.addChunks(NS1, chunks);
+        chunks.clear();
+        assertEquals(1, checkpoint.getChunks(NS1).size());
+        assertSame(chunk, checkpoint.getPendingChunks(NS1).get(0));
+    }
+}
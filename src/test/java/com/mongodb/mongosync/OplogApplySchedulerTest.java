@@ -0,0 +1,308 @@
+package com.mongodb.mongosync;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.bson.BsonArray;
+import org.bson.BsonBoolean;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonString;
+import org.bson.BsonTimestamp;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.model.Namespace;
+
+public class OplogApplySchedulerTest {
+
+    private static final Namespace NS = new Namespace("db.coll");
+    private static final BsonDocument LSID = new BsonDocument("id", new BsonString("session-1"));
+
+    @TempDir
+    File dir;
+
+    /**
+     * Records the documents of every bulk write instead of writing them, in the order the
+     * real helper would send them: ordered models first, then unordered ones.
+     */
+    private static class RecordingHelper extends ApplyOperationsHelper {
+
+        final List<BsonDocument> written = new ArrayList<>();
+        Consumer<BsonDocument> beforeWrite = doc -> {};
+
+        RecordingHelper() {
+            super("shard", null, null, null);
+        }
+
+        @Override
+        public BulkWriteOutput applyBulkWriteModelsOnCollection(Namespace namespace, OplogBatch batch) {
+            List<WriteModel<BsonDocument>> models = new ArrayList<>(batch.getOrderedWriteModels());
+            models.addAll(batch.getUnorderedWriteModels());
+            for (WriteModel<BsonDocument> model : models) {
+                BsonDocument doc = ((InsertOneModel<BsonDocument>) model).getDocument();
+                beforeWrite.accept(doc);
+                synchronized (written) {
+                    written.add(doc);
+                }
+            }
+            return new BulkWriteOutput();
+        }
+
+        List<Integer> values(int id) {
+            List<Integer> values = new ArrayList<>();
+            synchronized (written) {
+                for (BsonDocument doc : written) {
+                    if (doc.getInt32("_id").getValue() == id) {
+                        values.add(doc.getInt32("v").getValue());
+                    }
+                }
+            }
+            return values;
+        }
+
+        int size() {
+            synchronized (written) {
+                return written.size();
+            }
+        }
+    }
+
+    private static class RecordingMonitor extends OplogTailMonitor {
+
+        volatile BsonTimestamp latest;
+
+        RecordingMonitor(File dir) {
+            super(new TimestampFile(dir, "shard"), null, new HashMap<>());
+        }
+
+        @Override
+        protected synchronized void setLatestTimestamp(BsonTimestamp ts) {
+            latest = ts;
+        }
+    }
+
+    private static MongoSyncOptions options(int threads, int batchSize) {
+        MongoSyncOptions options = new MongoSyncOptions();
+        options.setOplogThreads(threads);
+        options.setOplogBatchSize(batchSize);
+        return options;
+    }
+
+    private static BsonTimestamp ts(int i) {
+        return new BsonTimestamp(1000, i);
+    }
+
+    private static BsonDocument insertOp(int id, int v) {
+        return new BsonDocument("op", new BsonString("i")).append("ns", new BsonString(NS.getNamespace()))
+                .append("o", new BsonDocument("_id", new BsonInt32(id)).append("v", new BsonInt32(v)));
+    }
+
+    private static OplogQueueEntry insert(int id, int v, BsonTimestamp ts) {
+        BsonDocument op = insertOp(id, v).append("ts", ts);
+        return new OplogQueueEntry(new RawBsonDocument(op, new BsonDocumentCodec()), NS, "i", ts, new BsonInt32(id));
+    }
+
+    private static OplogQueueEntry command(BsonDocument o, boolean inTxn, BsonTimestamp ts) {
+        BsonDocument doc = new BsonDocument("op", new BsonString("c")).append("ns", new BsonString("admin.$cmd"))
+                .append("o", o).append("ts", ts);
+        if (inTxn) {
+            doc.append("lsid", LSID).append("txnNumber", new BsonInt64(1));
+        }
+        return new OplogQueueEntry(new RawBsonDocument(doc, new BsonDocumentCodec()), new Namespace("admin.$cmd"),
+                "c", ts, null);
+    }
+
+    private static BsonDocument applyOps(String flag, BsonDocument... ops) {
+        BsonDocument o = new BsonDocument("applyOps", new BsonArray(Arrays.asList(ops)));
+        if (flag != null) {
+            o.append(flag, BsonBoolean.TRUE);
+        }
+        return o;
+    }
+
+    @Test
+    public void testPerIdOrderAcrossBatches() {
+        RecordingHelper helper = new RecordingHelper();
+        // slows down the writes of one document, so a later batch would overtake it if
+        // the groups were not chained
+        helper.beforeWrite = doc -> {
+            if (doc.getInt32("_id").getValue() == 0) {
+                sleep(2);
+            }
+        };
+        RecordingMonitor monitor = new RecordingMonitor(dir);
+        OplogApplyScheduler scheduler = new OplogApplyScheduler("shard", helper, monitor, options(4, 3));
+
+        int t = 0;
+        for (int v = 0; v < 20; v++) {
+            for (int id = 0; id < 5; id++) {
+                scheduler.add(insert(id, v, ts(++t)));
+            }
+        }
+        scheduler.close();
+
+        List<Integer> expected = new ArrayList<>();
+        for (int v = 0; v < 20; v++) {
+            expected.add(v);
+        }
+        for (int id = 0; id < 5; id++) {
+            assertEquals(expected, helper.values(id));
+        }
+        assertEquals(ts(t), monitor.latest);
+    }
+
+    @Test
+    public void testBarrierWaitsForInFlightBatches() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingHelper helper = new RecordingHelper();
+        helper.beforeWrite = doc -> {
+            if (doc.getInt32("_id").getValue() == 1) {
+                started.countDown();
+                await(release);
+            }
+        };
+        RecordingMonitor monitor = new RecordingMonitor(dir);
+        OplogApplyScheduler scheduler = new OplogApplyScheduler("shard", helper, monitor, options(2, 1));
+
+        scheduler.add(insert(1, 0, ts(1)));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        Thread tail = new Thread(() -> scheduler.add(command(applyOps(null, insertOp(2, 0)), false, ts(2))));
+        tail.start();
+        tail.join(200);
+        assertTrue(tail.isAlive());
+        assertEquals(0, helper.size());
+
+        release.countDown();
+        tail.join(10000);
+        assertFalse(tail.isAlive());
+        assertEquals(2, helper.size());
+        assertEquals(1, helper.written.get(0).getInt32("_id").getValue());
+        assertEquals(2, helper.written.get(1).getInt32("_id").getValue());
+        assertEquals(ts(2), monitor.latest);
+        scheduler.close();
+    }
+
+    @Test
+    public void testPreparedTransactionAppliedOnCommit() {
+        RecordingHelper helper = new RecordingHelper();
+        RecordingMonitor monitor = new RecordingMonitor(dir);
+        OplogApplyScheduler scheduler = new OplogApplyScheduler("shard", helper, monitor, options(2, 1));
+
+        scheduler.add(insert(1, 0, ts(1)));
+        scheduler.add(command(applyOps("prepare", insertOp(2, 0), insertOp(3, 0)), true, ts(2)));
+        assertEquals(ts(1), monitor.latest);
+
+        // entries after the prepare are applied, the timestamp stays before the transaction
+        scheduler.add(insert(4, 0, ts(3)));
+        scheduler.add(command(new BsonDocument("create", new BsonString("other")), false, ts(4)));
+        assertEquals(Arrays.asList(0), helper.values(4));
+        assertTrue(helper.values(2).isEmpty());
+        assertEquals(ts(1), monitor.latest);
+
+        scheduler.add(command(new BsonDocument("commitTransaction", new BsonInt32(1)), true, ts(5)));
+        assertEquals(Arrays.asList(0), helper.values(2));
+        assertEquals(Arrays.asList(0), helper.values(3));
+        assertEquals(ts(5), monitor.latest);
+        scheduler.close();
+    }
+
+    @Test
+    public void testPartialTransactionAppliedOnFinalApplyOps() {
+        RecordingHelper helper = new RecordingHelper();
+        RecordingMonitor monitor = new RecordingMonitor(dir);
+        OplogApplyScheduler scheduler = new OplogApplyScheduler("shard", helper, monitor, options(2, 1));
+
+        scheduler.add(insert(1, 0, ts(1)));
+        scheduler.add(command(applyOps("partialTxn", insertOp(2, 0), insertOp(2, 1)), true, ts(2)));
+        scheduler.add(command(applyOps("partialTxn", insertOp(2, 2)), true, ts(3)));
+        assertTrue(helper.values(2).isEmpty());
+        assertEquals(ts(1), monitor.latest);
+
+        scheduler.add(command(applyOps(null, insertOp(2, 3)), true, ts(4)));
+        assertEquals(Arrays.asList(0, 1, 2, 3), helper.values(2));
+        assertEquals(ts(4), monitor.latest);
+        scheduler.close();
+    }
+
+    @Test
+    public void testAbortedTransactionDropped() {
+        RecordingHelper helper = new RecordingHelper();
+        RecordingMonitor monitor = new RecordingMonitor(dir);
+        OplogApplyScheduler scheduler = new OplogApplyScheduler("shard", helper, monitor, options(2, 1));
+
+        scheduler.add(command(applyOps("prepare", insertOp(2, 0)), true, ts(1)));
+        scheduler.add(command(new BsonDocument("abortTransaction", new BsonInt32(1)), true, ts(2)));
+        scheduler.close();
+
+        assertEquals(0, helper.size());
+        assertEquals(ts(2), monitor.latest);
+    }
+
+    @Test
+    public void testFailedGroupHoldsTimestamp() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingHelper helper = new RecordingHelper();
+        helper.beforeWrite = doc -> {
+            if (doc.getInt32("_id").getValue() == 99) {
+                await(release);
+                throw new IllegalStateException("write failed");
+            }
+        };
+        RecordingMonitor monitor = new RecordingMonitor(dir);
+        OplogApplyScheduler scheduler = new OplogApplyScheduler("shard", helper, monitor, options(2, 1));
+
+        scheduler.add(insert(1, 0, ts(1)));
+        scheduler.add(insert(99, 0, ts(2)));
+        scheduler.add(insert(3, 0, ts(3)));
+        release.countDown();
+
+        CompletionException e = assertThrows(CompletionException.class, () -> {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (System.currentTimeMillis() < deadline) {
+                scheduler.flush();
+                sleep(5);
+            }
+        });
+        assertEquals("write failed", e.getCause().getMessage());
+        assertEquals(ts(1), monitor.latest);
+
+        scheduler.close();
+        assertEquals(ts(1), monitor.latest);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
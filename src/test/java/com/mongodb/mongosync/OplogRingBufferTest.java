@@ -0,0 +1,176 @@
+package com.mongodb.mongosync;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonTimestamp;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.junit.jupiter.api.Test;
+
+public class OplogRingBufferTest {
+
+    private static void publish(OplogRingBuffer buffer, int i) throws InterruptedException {
+        buffer.publish(null, null, "i", new BsonTimestamp(i, 0), null);
+    }
+
+    @Test
+    public void testCapacityIsRoundedUpToPowerOfTwo() {
+        assertEquals(8, new OplogRingBuffer(5, OplogRingBuffer.WaitStrategy.BLOCKING).getCapacity());
+        assertEquals(8, new OplogRingBuffer(8, OplogRingBuffer.WaitStrategy.BLOCKING).getCapacity());
+        assertEquals(1, new OplogRingBuffer(1, OplogRingBuffer.WaitStrategy.BLOCKING).getCapacity());
+    }
+
+    @Test
+    public void testWraparound() throws InterruptedException {
+        OplogRingBuffer buffer = new OplogRingBuffer(4, OplogRingBuffer.WaitStrategy.BLOCKING);
+        int next = 0;
+        for (int round = 0; round < 10; round++) {
+            // 3 per round so the batches straddle the end of the slots
+            for (int i = 0; i < 3; i++) {
+                publish(buffer, round * 3 + i);
+            }
+            int n = buffer.waitForAvailable(1, TimeUnit.SECONDS);
+            assertEquals(3, n);
+            for (int i = 0; i < n; i++) {
+                assertEquals(next++, buffer.get(i).ts.getTime());
+            }
+            buffer.release(n);
+            assertEquals(0, buffer.size());
+        }
+        assertEquals(30, buffer.getLatencySamples());
+    }
+
+    @Test
+    public void testReleaseDropsDocumentReferences() throws InterruptedException {
+        OplogRingBuffer buffer = new OplogRingBuffer(2, OplogRingBuffer.WaitStrategy.BLOCKING);
+        buffer.publish(new RawBsonDocument(new BsonDocument(), new BsonDocumentCodec()), null, "i",
+                new BsonTimestamp(1, 0), new BsonInt32(1));
+        assertEquals(1, buffer.waitForAvailable(1, TimeUnit.SECONDS));
+        OplogQueueEntry entry = buffer.get(0);
+        buffer.release(1);
+        assertNull(entry.doc);
+        assertNull(entry.id);
+    }
+
+    @Test
+    public void testEmptyTimesOut() throws InterruptedException {
+        for (OplogRingBuffer.WaitStrategy strategy : OplogRingBuffer.WaitStrategy.values()) {
+            OplogRingBuffer buffer = new OplogRingBuffer(4, strategy);
+            long start = System.nanoTime();
+            assertEquals(0, buffer.waitForAvailable(50, TimeUnit.MILLISECONDS), strategy.name());
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50), strategy.name());
+        }
+    }
+
+    @Test
+    public void testEmptyWakesOnPublish() throws InterruptedException {
+        OplogRingBuffer buffer = new OplogRingBuffer(4, OplogRingBuffer.WaitStrategy.BLOCKING);
+        Thread producer = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+                publish(buffer, 1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        producer.start();
+        assertEquals(1, buffer.waitForAvailable(10, TimeUnit.SECONDS));
+        producer.join();
+    }
+
+    @Test
+    public void testFullBlocksProducerUntilRelease() throws InterruptedException {
+        OplogRingBuffer buffer = new OplogRingBuffer(2, OplogRingBuffer.WaitStrategy.BLOCKING);
+        publish(buffer, 0);
+        publish(buffer, 1);
+        CountDownLatch published = new CountDownLatch(1);
+        Thread producer = new Thread(() -> {
+            try {
+                publish(buffer, 2);
+                published.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        producer.start();
+        assertFalse(published.await(100, TimeUnit.MILLISECONDS));
+        assertEquals(1, buffer.getProducerWaits());
+
+        assertEquals(2, buffer.waitForAvailable(1, TimeUnit.SECONDS));
+        buffer.release(1);
+        assertTrue(published.await(10, TimeUnit.SECONDS));
+        producer.join();
+        assertEquals(2, buffer.size());
+        assertEquals(1, buffer.get(0).ts.getTime());
+        assertEquals(2, buffer.get(1).ts.getTime());
+    }
+
+    @Test
+    public void testInterruptWhileFull() throws InterruptedException {
+        OplogRingBuffer buffer = new OplogRingBuffer(1, OplogRingBuffer.WaitStrategy.BLOCKING);
+        publish(buffer, 0);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread producer = new Thread(() -> {
+            try {
+                publish(buffer, 1);
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+        producer.start();
+        Thread.sleep(50);
+        producer.interrupt();
+        producer.join(10000);
+        assertFalse(producer.isAlive());
+        assertTrue(failure.get() instanceof InterruptedException);
+    }
+
+    @Test
+    public void testInterruptWhileEmpty() {
+        OplogRingBuffer buffer = new OplogRingBuffer(1, OplogRingBuffer.WaitStrategy.BLOCKING);
+        Thread.currentThread().interrupt();
+        assertThrows(InterruptedException.class, () -> buffer.waitForAvailable(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testConcurrentProducerConsumer() throws InterruptedException {
+        int total = 20000;
+        for (OplogRingBuffer.WaitStrategy strategy : OplogRingBuffer.WaitStrategy.values()) {
+            OplogRingBuffer buffer = new OplogRingBuffer(64, strategy);
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            Thread producer = new Thread(() -> {
+                try {
+                    for (int i = 0; i < total; i++) {
+                        publish(buffer, i);
+                    }
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            });
+            producer.start();
+            int next = 0;
+            while (next < total) {
+                int n = buffer.waitForAvailable(10, TimeUnit.SECONDS);
+                assertTrue(n > 0, strategy.name());
+                for (int i = 0; i < n; i++) {
+                    assertEquals(next++, buffer.get(i).ts.getTime(), strategy.name());
+                }
+                buffer.release(n);
+            }
+            producer.join(10000);
+            assertNull(failure.get(), strategy.name());
+            assertEquals(0, buffer.size(), strategy.name());
+            assertEquals(total, buffer.getLatencySamples(), strategy.name());
+        }
+    }
+}
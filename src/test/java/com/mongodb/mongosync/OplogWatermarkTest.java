@@ -0,0 +1,88 @@
+package com.mongodb.mongosync;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.bson.BsonTimestamp;
+import org.junit.jupiter.api.Test;
+
+public class OplogWatermarkTest {
+
+    private static BsonTimestamp ts(int seconds) {
+        return new BsonTimestamp(seconds, 0);
+    }
+
+    @Test
+    public void testStartsAtStartTimestamp() {
+        OplogWatermark watermark = new OplogWatermark(3, ts(10));
+        assertEquals(ts(10), watermark.getAppliedThrough());
+    }
+
+    @Test
+    public void testIdleChildrenDoNotHoldItBack() {
+        OplogWatermark watermark = new OplogWatermark(3, ts(10));
+        watermark.queued(0, ts(11));
+        watermark.read(ts(11));
+        watermark.applied(0, ts(11));
+        // children 1 and 2 never received anything
+        watermark.read(ts(20));
+        assertEquals(ts(20), watermark.getAppliedThrough());
+    }
+
+    @Test
+    public void testSlowestBusyChildHoldsItBack() {
+        OplogWatermark watermark = new OplogWatermark(3, ts(10));
+        watermark.queued(0, ts(11));
+        watermark.queued(1, ts(12));
+        watermark.queued(2, ts(13));
+        watermark.read(ts(13));
+        assertEquals(ts(10), watermark.getAppliedThrough());
+
+        watermark.applied(2, ts(13));
+        watermark.applied(0, ts(11));
+        // child 1 still has 12 pending
+        assertEquals(ts(10), watermark.getAppliedThrough());
+
+        watermark.queued(0, ts(14));
+        watermark.read(ts(14));
+        assertEquals(ts(10), watermark.getAppliedThrough());
+
+        watermark.applied(1, ts(12));
+        // child 0 applied through 11 and still has 14 pending
+        assertEquals(ts(11), watermark.getAppliedThrough());
+
+        watermark.applied(0, ts(14));
+        assertEquals(ts(14), watermark.getAppliedThrough());
+    }
+
+    @Test
+    public void testRetiresAsChildrenCatchUp() {
+        OplogWatermark watermark = new OplogWatermark(2, ts(0));
+        for (int i = 1; i <= 10; i++) {
+            watermark.queued(i % 2, ts(i));
+            watermark.read(ts(i));
+        }
+        // child 1 got the odd timestamps, child 0 the even ones
+        watermark.applied(1, ts(5));
+        watermark.applied(0, ts(8));
+        assertEquals(ts(5), watermark.getAppliedThrough());
+        watermark.applied(1, ts(9));
+        assertEquals(ts(8), watermark.getAppliedThrough());
+        watermark.applied(0, ts(10));
+        assertEquals(ts(10), watermark.getAppliedThrough());
+        watermark.read(ts(11));
+        // 11 was filtered out, nothing is pending
+        assertEquals(ts(11), watermark.getAppliedThrough());
+    }
+
+    @Test
+    public void testQueuedBeforeReadIsNotSkipped() {
+        OplogWatermark watermark = new OplogWatermark(1, ts(10));
+        // the tail records the handover before it records the read
+        watermark.queued(0, ts(11));
+        assertEquals(ts(10), watermark.getAppliedThrough());
+        watermark.read(ts(11));
+        assertEquals(ts(10), watermark.getAppliedThrough());
+        watermark.applied(0, ts(11));
+        assertEquals(ts(11), watermark.getAppliedThrough());
+    }
+}
@@ -1,11 +1,29 @@
 package com.mongodb.util.bson;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import org.bson.BsonArray;
+import org.bson.BsonBinary;
+import org.bson.BsonBinarySubType;
 import org.bson.BsonDocument;
+import org.bson.BsonDouble;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonMaxKey;
+import org.bson.BsonMinKey;
+import org.bson.BsonObjectId;
 import org.bson.BsonString;
+import org.bson.BsonValue;
 import org.bson.RawBsonDocument;
 import org.bson.codecs.BsonDocumentCodec;
+import org.bson.types.ObjectId;
 import org.junit.jupiter.api.Test;
 
 public class BsonValueComparatorTest {
@@ -54,4 +72,67 @@ public class BsonValueComparatorTest {
         assertEquals(0, compareResult);
     }
 
+    @Test
+    public void testMixedNumbers() {
+        assertEquals(0, comparator.compare(new BsonInt32(5), new BsonInt64(5L)));
+        assertTrue(comparator.compare(new BsonInt64(4L), new BsonDouble(4.5)) < 0);
+        assertTrue(comparator.compare(new BsonDouble(Double.POSITIVE_INFINITY), new BsonInt64(Long.MAX_VALUE)) > 0);
+    }
+
+    @Test
+    public void testCrossTypeOrder() {
+        assertTrue(comparator.compare(new BsonMinKey(), new BsonInt32(Integer.MIN_VALUE)) < 0);
+        assertTrue(comparator.compare(new BsonInt32(1), new BsonString("1")) < 0);
+        assertTrue(comparator.compare(new BsonString("z"), new BsonObjectId(new ObjectId())) < 0);
+        assertTrue(comparator.compare(new BsonMaxKey(), new BsonObjectId(new ObjectId())) > 0);
+        assertEquals(0, comparator.compare(new BsonMaxKey(), new BsonMaxKey()));
+    }
+
+    @Test
+    public void testBinary() {
+        BsonBinary shorter = new BsonBinary(BsonBinarySubType.BINARY, new byte[] { (byte) 0xff });
+        BsonBinary longer = new BsonBinary(BsonBinarySubType.BINARY, new byte[] { 0, 0 });
+        assertTrue(comparator.compare(shorter, longer) < 0);
+        BsonBinary generic = new BsonBinary(BsonBinarySubType.BINARY, new byte[] { 1, 2 });
+        BsonBinary userDefined = new BsonBinary(BsonBinarySubType.USER_DEFINED, new byte[] { 0, 0 });
+        assertTrue(comparator.compare(generic, userDefined) < 0);
+        // bytes compare unsigned
+        assertTrue(comparator.compare(longer, new BsonBinary(new byte[] { 0, (byte) 0x80 })) < 0);
+        assertEquals(0, comparator.compare(generic, new BsonBinary(new byte[] { 1, 2 })));
+    }
+
+    @Test
+    public void testUuidChunkBounds() {
+        List<BsonValue> bounds = new ArrayList<>();
+        bounds.add(new BsonMinKey());
+        bounds.add(new BsonBinary(UUID.fromString("40000000-0000-0000-0000-000000000000")));
+        bounds.add(new BsonBinary(UUID.fromString("80000000-0000-0000-0000-000000000000")));
+        bounds.add(new BsonBinary(UUID.fromString("c0000000-0000-0000-0000-000000000000")));
+        bounds.add(new BsonMaxKey());
+
+        Random random = new Random(42);
+        for (int i = 0; i < 1000; i++) {
+            UUID uuid = new UUID(random.nextLong(), random.nextLong());
+            BsonBinary key = new BsonBinary(uuid);
+            int expected = (int) ((uuid.getMostSignificantBits() >>> 62));
+            int found = -1;
+            for (int c = 0; c < bounds.size() - 1; c++) {
+                if (comparator.compare(bounds.get(c), key) <= 0 && comparator.compare(key, bounds.get(c + 1)) < 0) {
+                    found = c;
+                }
+            }
+            assertEquals(expected, found, uuid.toString());
+        }
+    }
+
+    @Test
+    public void testArrays() {
+        BsonArray a = new BsonArray(Arrays.asList(new BsonInt32(1), new BsonString("a")));
+        BsonArray b = new BsonArray(Arrays.asList(new BsonInt64(1), new BsonString("b")));
+        BsonArray prefix = new BsonArray(Arrays.asList(new BsonInt32(1)));
+        assertTrue(comparator.compare(a, b) < 0);
+        assertTrue(comparator.compare(prefix, a) < 0);
+        assertEquals(0, comparator.compare(a, new BsonArray(Arrays.asList(new BsonDouble(1.0), new BsonString("a")))));
+    }
+
 }